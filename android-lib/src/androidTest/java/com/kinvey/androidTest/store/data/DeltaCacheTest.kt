@@ -133,7 +133,7 @@ class DeltaCacheTest {
 
         val queryCache = client?.syncManager?.cacheManager
                 ?.getCache(Constants.QUERY_CACHE_COLLECTION, QueryCacheItem::class.java, Long.MAX_VALUE)
-        queryCache?.save(QueryCacheItem(Person.DELTA_SET_COLLECTION, query?.queryFilterMap.toString(), lastRequestTime))
+        queryCache?.save(QueryCacheItem(Person.DELTA_SET_COLLECTION, query!!.filterFingerprint.hash, lastRequestTime))
         val response = store?.pullBlocking(query)
 
         assertNotNull(response)
@@ -141,6 +141,38 @@ class DeltaCacheTest {
         assertEquals(2, response?.count)
     }
 
+    @Test
+    @Throws(IOException::class)
+    fun testDeltaSyncPullWithStateOfEarlierVersion() {
+        val query = client?.query()
+        val lastRequestTime = "Time"
+        val mockCacheGet = mock(QueryCacheGet::class.java)
+        val mockResponse = KinveyQueryCacheResponse<Person>()
+        mockResponse.lastRequestTime = lastRequestTime
+        mockResponse.changed = listOf(Person("name_1"))
+        mockResponse.listOfExceptions = ArrayList<Exception>()
+
+        `when`<KinveyQueryCacheResponse<*>>(mockCacheGet.execute()).thenReturn(mockResponse)
+        val spyNetworkManager = spy(NetworkManager(Person.DELTA_SET_COLLECTION, Person::class.java, client))
+        `when`(spyNetworkManager.queryCacheGetBlocking(query, lastRequestTime))?.thenReturn(mockCacheGet as NetworkManager.QueryCacheGet<Person>?)
+
+        val store = testManager?.mockBaseDataStore(client, Person.DELTA_SET_COLLECTION, Person::class.java, StoreType.SYNC, spyNetworkManager)
+        store?.isDeltaSetCachingEnabled = true
+
+        val queryCache = client?.syncManager?.cacheManager
+                ?.getCache(Constants.QUERY_CACHE_COLLECTION, QueryCacheItem::class.java, Long.MAX_VALUE)
+        queryCache?.clear()
+        // earlier versions keyed the delta set state by the filter map
+        queryCache?.save(QueryCacheItem(Person.DELTA_SET_COLLECTION, query!!.queryFilterMap.toString(), lastRequestTime))
+        val response = store?.pullBlocking(query)
+
+        assertNotNull(response)
+        assertEquals(1, response?.count)
+        val items = queryCache?.get()
+        assertEquals(1, items?.size)
+        assertEquals(query.filterFingerprint.hash, items?.get(0)?.query)
+    }
+
     @Test
     @Throws(InterruptedException::class, IOException::class)
     fun testCreate() {
@@ -326,7 +358,7 @@ class DeltaCacheTest {
                 ?.getCache(Constants.QUERY_CACHE_COLLECTION, QueryCacheItem::class.java, Long.MAX_VALUE)
         queryCache?.save(QueryCacheItem(
                 Person.DELTA_SET_COLLECTION,
-                query?.queryFilterMap.toString(),
+                query!!.filterFingerprint.hash,
                 lastRequestTime))
         val response = store?.find(query)?.result
 
@@ -563,7 +595,7 @@ class DeltaCacheTest {
                 ?.getCache(Constants.QUERY_CACHE_COLLECTION, QueryCacheItem::class.java, Long.MAX_VALUE)
         queryCache?.save(QueryCacheItem(
                 Person.DELTA_SET_COLLECTION,
-                query?.queryFilterMap.toString(),
+                query!!.filterFingerprint.hash,
                 lastRequestTime))
         val response = store?.find(query)?.result
 
@@ -763,7 +795,7 @@ class DeltaCacheTest {
                 ?.getCache(Constants.QUERY_CACHE_COLLECTION, QueryCacheItem::class.java, Long.MAX_VALUE)
         queryCache?.save(QueryCacheItem(
                 Person.DELTA_SET_COLLECTION,
-                query?.queryFilterMap.toString(),
+                query!!.filterFingerprint.hash,
                 lastRequestTime))
         try {
             store?.pullBlocking(query)
@@ -20,7 +20,6 @@ package com.kinvey.android
 import android.content.Context
 
 import com.google.api.client.http.BackOffPolicy
-import com.google.api.client.http.ExponentialBackOffPolicy
 import com.google.api.client.http.HttpRequestInitializer
 import com.google.api.client.http.HttpResponseException
 import com.google.api.client.http.HttpTransport
@@ -97,7 +96,7 @@ open class Client<T : User>
  * @param objectParser object parse used in all requests
  * @param kinveyRequestInitializer a [com.kinvey.java.core.KinveyClientRequestInitializer] object.
  * @param store a [com.kinvey.java.auth.CredentialStore] object.
- * @param requestPolicy a [BackOffPolicy] for retrying HTTP Requests
+ * @param requestPolicy a [BackOffPolicy] of the client, not used by the requests
  * @param context a [Context] android application context
  */
 protected constructor(transport: HttpTransport?, httpRequestInitializer: HttpRequestInitializer?, rootUrl: String?,
@@ -467,7 +466,6 @@ protected constructor(transport: HttpTransport?, httpRequestInitializer: HttpReq
                 : super(transport, null, KinveyClientRequestInitializer(appKey, appSecret, KinveyHeaders(context))) {
             this.setJsonFactory(factory)
             this.context = context?.applicationContext
-            this.requestBackoffPolicy = ExponentialBackOffPolicy()
 
             if (store == null) {
                 try {
@@ -529,7 +527,6 @@ protected constructor(transport: HttpTransport?, httpRequestInitializer: HttpReq
             this.kinveyClientRequestInitializer = initializer
 
             this.context = context?.applicationContext
-            this.requestBackoffPolicy = ExponentialBackOffPolicy()
             if (store == null) {
                 try {
                     this.setCredentialStore(AndroidCredentialStore(this.context))
@@ -678,7 +675,6 @@ protected constructor(transport: HttpTransport?, httpRequestInitializer: HttpReq
             this.kinveyClientRequestInitializer = initializer
 
             this.context = context?.applicationContext
-            this.requestBackoffPolicy = ExponentialBackOffPolicy()
             if (store == null) {
                 try {
                     this.setCredentialStore(AndroidCredentialStore(this.context))
@@ -24,6 +24,7 @@ import com.kinvey.android.sync.KinveyPushResponse
 import com.kinvey.java.AbstractClient
 import com.kinvey.java.Constants
 import com.kinvey.java.KinveyException
+import com.kinvey.java.core.KinveyScheduler
 import com.kinvey.java.network.NetworkManager
 import com.kinvey.java.store.StoreType
 import com.kinvey.java.sync.SyncManager
@@ -35,7 +36,6 @@ import java.security.AccessControlException
 import java.util.*
 import java.util.concurrent.ExecutionException
 import java.util.concurrent.ExecutorService
-import java.util.concurrent.Executors
 import java.util.concurrent.FutureTask
 
 /**
@@ -84,9 +84,10 @@ class AsyncPushRequest<T : GenericJson>(private val collection: String,
             var syncRequest: SyncRequest? = null
             var totalNumberOfPendingEntities = 0
             totalNumberOfPendingEntities = syncItems.size
+            val scheduler = client?.scheduler ?: KinveyScheduler.shared
             var i = 0
             while (i < totalNumberOfPendingEntities) {
-                val executor: ExecutorService = Executors.newFixedThreadPool(batchSize)
+                val executor: ExecutorService = scheduler.executor(collection, batchSize)
                 val tasks: MutableList<FutureTask<*>> = ArrayList()
                 var j = 0
                 while (j < batchSize && j + i < totalNumberOfPendingEntities) {
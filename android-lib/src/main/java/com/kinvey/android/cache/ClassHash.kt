@@ -21,6 +21,7 @@ import com.google.api.client.util.ClassInfo
 import com.google.api.client.util.FieldInfo
 import com.kinvey.android.Client.Companion.sharedInstance
 import com.kinvey.java.Constants
+import com.kinvey.java.core.EntityDescriptor
 import com.kinvey.java.model.KinveyMetaData
 import com.kinvey.java.model.KinveyMetaData.AccessControlList
 import com.kinvey.java.model.KinveyMetaData.AccessControlList.Companion.GR
@@ -29,8 +30,6 @@ import com.kinvey.java.model.KinveyMetaData.AccessControlList.Companion.R
 import com.kinvey.java.model.KinveyMetaData.AccessControlList.Companion.W
 import com.kinvey.java.model.KinveyMetaData.AccessControlList.Companion.fromMap
 import io.realm.*
-import java.lang.reflect.Field
-import java.lang.reflect.ParameterizedType
 import java.math.BigInteger
 import java.security.MessageDigest
 import java.security.NoSuchAlgorithmException
@@ -58,7 +57,7 @@ object ClassHash {
         if (GenericJson::class.java.isAssignableFrom(f.type)) {
             allowed = true
         } else if (isArrayOrCollection(f.type)) {
-            val underlying = getUnderlying(f.field)
+            val underlying = EntityDescriptor.elementType(f.field)
             if (underlying != null && GenericJson::class.java.isAssignableFrom(underlying)) {
                 allowed = true
             }
@@ -118,17 +117,17 @@ object ClassHash {
 
     private fun getClassHash(clazz: Class<out GenericJson>, selfReferenceState: SelfReferenceState, classes: MutableList<String>): String {
         val sb = StringBuilder()
-        val fields = getClassFieldsAndParentClassFields(clazz)
+        val fields = properties(clazz)
         if (classes.contains(clazz.simpleName)) {
             return clazz.name
         } else {
             classes.add(clazz.simpleName)
         }
-        for (f in fields) {
+        for (property in fields) {
             val classesList: MutableList<String> = ArrayList(classes)
-            val fieldInfo = FieldInfo.of(f) ?: continue
+            val fieldInfo = property.fieldInfo ?: continue
             if (isArrayOrCollection(fieldInfo.type)) {
-                val underlying = getUnderlying(f)
+                val underlying = underlying(property)
                 if (underlying != null && GenericJson::class.java.isAssignableFrom(underlying)) {
                     if (!underlying.simpleName.equals(clazz.simpleName, ignoreCase = true)) {
                         if (selfReferenceState == SelfReferenceState.DEFAULT) {
@@ -142,7 +141,7 @@ object ClassHash {
                     }
                 }
             } else if (GenericJson::class.java.isAssignableFrom(fieldInfo.type)) {
-                if (!f.type.simpleName.equals(clazz.simpleName, ignoreCase = true)) {
+                if (!property.type.simpleName.equals(clazz.simpleName, ignoreCase = true)) {
                     if (selfReferenceState == SelfReferenceState.DEFAULT) {
                         val innerHash = getClassHash(fieldInfo.type as Class<out GenericJson>, selfReferenceState, classesList)
                         sb.append(fieldInfo.name).append(":").append(innerHash).append(";")
@@ -228,11 +227,11 @@ object ClassHash {
         val shortName: String = newName ?: TableNameManager.createShortName(oldName, realm)
         val schema: RealmSchema = realm.schema
         schema.rename(oldName, shortName)
-        val fields = getClassFieldsAndParentClassFields(clazz)
-        for (f in fields) {
-            val fieldInfo = FieldInfo.of(f) ?: continue
+        val fields = properties(clazz)
+        for (property in fields) {
+            val fieldInfo = property.fieldInfo ?: continue
             if (fieldInfo.type.isArray || Collection::class.java.isAssignableFrom(fieldInfo.type)) {
-                val underlying = getUnderlying(f)
+                val underlying = underlying(property)
                 if (underlying != null && GenericJson::class.java.isAssignableFrom(underlying)) {
                     rename(oldName + Constants.UNDERSCORE + fieldInfo.name,
                             TableNameManager.createShortName(shortName + Constants.UNDERSCORE + fieldInfo.name, realm),
@@ -324,11 +323,11 @@ object ClassHash {
     private fun fillNewAclFields(name: String, isFill: Boolean, realm: DynamicRealm, clazz: Class<out GenericJson>) {
         val shortName = TableNameManager.getShortName(name, realm)
         val schema: RealmSchema = realm.schema
-        val fields = getClassFieldsAndParentClassFields(clazz)
-        for (f in fields) {
-            val fieldInfo = FieldInfo.of(f) ?: continue
+        val fields = properties(clazz)
+        for (property in fields) {
+            val fieldInfo = property.fieldInfo ?: continue
             if (fieldInfo.type.isArray || Collection::class.java.isAssignableFrom(fieldInfo.type)) {
-                val underlying = getUnderlying(f)
+                val underlying = underlying(property)
                 if (underlying != null && GenericJson::class.java.isAssignableFrom(underlying)) {
                     fillNewAclFields(shortName + Constants.UNDERSCORE + fieldInfo.name, true, realm, fieldInfo.type as Class<out GenericJson>)
                 }
@@ -362,15 +361,15 @@ object ClassHash {
                                       selfReferenceState: SelfReferenceState, classes: MutableList<String>): RealmObjectSchema {
         val shortName: String = TableNameManager.createShortName(name, realm)
         val schema: RealmObjectSchema = realm.schema.create(shortName)
-        val fields = getClassFieldsAndParentClassFields(clazz)
+        val fields = properties(clazz)
         var state: SelfReferenceState?
         classes.add(clazz.simpleName)
-        for (f in fields) {
+        for (property in fields) {
             state = null
             val classesList: MutableList<String> = ArrayList(classes)
-            val fieldInfo = FieldInfo.of(f) ?: continue
+            val fieldInfo = property.fieldInfo ?: continue
             if (Collection::class.java.isAssignableFrom(fieldInfo.type)) {
-                val underlying = getUnderlying(f)
+                val underlying = underlying(property)
                 if (underlying != null && GenericJson::class.java.isAssignableFrom(underlying)) {
                     if (!underlying.simpleName.equals(clazz.simpleName, ignoreCase = true)) {
                         state = selfReferenceState
@@ -409,8 +408,8 @@ object ClassHash {
                     }
                 }
             } else if (GenericJson::class.java.isAssignableFrom(fieldInfo.type)) {
-                if (!f.type.simpleName.equals(clazz.simpleName, ignoreCase = true)) {
-                    if (classes.contains(f.type.simpleName)) {
+                if (!property.type.simpleName.equals(clazz.simpleName, ignoreCase = true)) {
+                    if (classes.contains(property.type.simpleName)) {
                         if (selfReferenceState == SelfReferenceState.DEFAULT) {
                             val innerScheme = createSchemeFromClass(shortName + Constants.UNDERSCORE + fieldInfo.name, realm,
                                     fieldInfo.type as Class<out GenericJson>, SelfReferenceState.SUBCLASS, classesList)
@@ -496,7 +495,7 @@ object ClassHash {
     private fun saveClassData(name: String, realm: DynamicRealm, clazz: Class<out GenericJson>?,
                               obj: GenericJson?, selfReferenceState: SelfReferenceState, classes: MutableList<String>): DynamicRealmObject? {
         val shortName = TableNameManager.getShortName(name, realm)
-        val fields = getClassFieldsAndParentClassFields(clazz)
+        val fields = properties(clazz)
         var dynObject: DynamicRealmObject? = null
         if (obj?.containsKey(ID) == true && obj[ID] != null) {
             dynObject = realm.where(shortName)
@@ -549,15 +548,15 @@ object ClassHash {
         }
         var state: SelfReferenceState?
         clazz?.simpleName?.let { classes.add(it) }
-        for (f in fields) {
+        for (property in fields) {
             val classesList: MutableList<String> = ArrayList(classes)
-            val fieldInfo = FieldInfo.of(f) ?: continue
+            val fieldInfo = property.fieldInfo ?: continue
             state = null
-            if (isArrayOrCollection(f.type) && fieldInfo.getValue(obj) != null) {
-                val underlying = getUnderlying(f)
+            if (isArrayOrCollection(property.type) && fieldInfo.getValue(obj) != null) {
+                val underlying = underlying(property)
                 val list = RealmList<Any?>()
                 val collection = fieldInfo.getValue(obj)
-                if (f.type.isArray) {
+                if (property.type.isArray) {
                     if (!underlying?.simpleName.equals(clazz?.simpleName, ignoreCase = true)) {
                         state = selfReferenceState
                     } else if (selfReferenceState == SelfReferenceState.DEFAULT || selfReferenceState == SelfReferenceState.SUBCLASS) {
@@ -623,7 +622,7 @@ object ClassHash {
                     dynObject?.setList(fieldInfo.name, list)
                 }
             } else if (GenericJson::class.java.isAssignableFrom(fieldInfo.type)) {
-                if (!f.type.simpleName.equals(clazz?.simpleName, ignoreCase = true)) {
+                if (!property.type.simpleName.equals(clazz?.simpleName, ignoreCase = true)) {
                     state = selfReferenceState
                 } else if (selfReferenceState == SelfReferenceState.DEFAULT) {
                     state = SelfReferenceState.SUBCLASS
@@ -634,7 +633,7 @@ object ClassHash {
                     if (obj != null && fieldInfo.getValue(obj) != null) {
                         val innerObject = saveClassData(
                                 if (selfReferenceState == SelfReferenceState.SUBCLASS &&
-                                    classes.contains(f.type.simpleName)) name else shortName + Constants.UNDERSCORE + fieldInfo.name,
+                                    classes.contains(property.type.simpleName)) name else shortName + Constants.UNDERSCORE + fieldInfo.name,
                                 realm,
                                 fieldInfo.type as Class<out GenericJson>,
                                 obj[fieldInfo.name] as GenericJson, state, classesList)
@@ -680,14 +679,14 @@ object ClassHash {
         if (realmObject == null) {
             return size
         }
-        val fields = getClassFieldsAndParentClassFields(clazz)
+        val fields = properties(clazz)
         var state: SelfReferenceState? = null
         classes.add(clazz.simpleName)
-        for (f in fields) {
+        for (property in fields) {
             val classesList: MutableList<String> = ArrayList(classes)
-            val fieldInfo = FieldInfo.of(f) ?: continue
+            val fieldInfo = property.fieldInfo ?: continue
             if (fieldInfo.type.isArray || Collection::class.java.isAssignableFrom(fieldInfo.type)) {
-                val underlying = getUnderlying(f)
+                val underlying = underlying(property)
                 if (underlying != null && GenericJson::class.java.isAssignableFrom(underlying)) {
                     val list: RealmList<DynamicRealmObject> = realmObject.getList(fieldInfo.name)
                     val ids: MutableList<String> = list
@@ -699,7 +698,7 @@ object ClassHash {
                     }
                 }
             } else if (GenericJson::class.java.isAssignableFrom(fieldInfo.type)) {
-                if (!f.type.simpleName.equals(clazz.simpleName, ignoreCase = true)) {
+                if (!property.type.simpleName.equals(clazz.simpleName, ignoreCase = true)) {
                     state = selfReferenceState
                 } else if (selfReferenceState == SelfReferenceState.DEFAULT) {
                     state = SelfReferenceState.SUBCLASS
@@ -710,7 +709,7 @@ object ClassHash {
                     val dynObject = realmObject.getObject(fieldInfo.name)
                     if (dynObject?.hasField(ID) == true && dynObject.getString(ID) != null) {
                         deleteClassData(if (selfReferenceState == SelfReferenceState.SUBCLASS &&
-                                classes.contains(f.type.simpleName)) collection else shortName + Constants.UNDERSCORE + fieldInfo.name, realm,
+                                classes.contains(property.type.simpleName)) collection else shortName + Constants.UNDERSCORE + fieldInfo.name, realm,
                                 fieldInfo.type as Class<out GenericJson>, dynObject.getString(ID), state, classesList)
                     }
                 }
@@ -791,7 +790,8 @@ object ClassHash {
                     ret?.put(info.name, realmToObject(dynamic.getObject(info.name),
                             info.type as Class<out GenericJson>, true))
                 } else if (isArrayOrCollection(info.type)) {
-                    val underlying = getUnderlying(info.field)
+                    val underlying = (EntityDescriptor.of(objectClass).property(info.name)?.elementType
+                            ?: EntityDescriptor.elementType(info.field)) as Class<GenericJson>?
                     if (underlying != null) {
                         val list = dynamic.getList(info.name)
                         if (underlying.isArray && GenericJson::class.java.isAssignableFrom(underlying)) {
@@ -840,26 +840,11 @@ object ClassHash {
         return clazz.isArray || Collection::class.java.isAssignableFrom(clazz)
     }
 
-    private fun getUnderlying(f: Field): Class<GenericJson>? {
-        val type = f.type
-        val underlying: Class<GenericJson>?
-        underlying = if (type.isArray) {
-            type.componentType as Class<GenericJson>?
-        } else {
-            val genericSuperclass = f.genericType as ParameterizedType
-            genericSuperclass.actualTypeArguments[0] as Class<GenericJson>?
-        }
-        return underlying
+    private fun underlying(property: EntityDescriptor.Property): Class<GenericJson>? {
+        return property.elementType as Class<GenericJson>?
     }
 
-    private fun getClassFieldsAndParentClassFields(clazz: Class<*>?): List<Field> {
-        val fields: MutableList<Field> = ArrayList()
-        clazz?.let { cls ->
-            fields.addAll(listOf(*cls.declaredFields))
-            cls.superclass?.let { sCls ->
-                fields.addAll(listOf(*sCls.declaredFields))
-            }
-        }
-        return fields
+    private fun properties(clazz: Class<*>?): List<EntityDescriptor.Property> {
+        return clazz?.let { EntityDescriptor.of(it).properties } ?: emptyList()
     }
 }
@@ -21,7 +21,6 @@ import com.kinvey.android.cache.ClassHash.checkAclKmdFields
 import com.kinvey.android.cache.ClassHash.createScheme
 import com.kinvey.android.cache.ClassHash.deleteClassData
 import com.kinvey.android.cache.ClassHash.getClassHash
-import com.kinvey.android.cache.ClassHash.isArrayOrCollection
 import com.kinvey.android.cache.ClassHash.migration
 import com.kinvey.android.cache.ClassHash.realmToObject
 import com.kinvey.android.cache.ClassHash.saveData
@@ -31,6 +30,7 @@ import com.kinvey.java.cache.ICache
 import com.kinvey.java.model.AggregateType
 import com.kinvey.java.model.Aggregation.Result
 import com.kinvey.java.query.AbstractQuery.SortOrder
+import com.kinvey.java.query.QueryCompiler
 import io.realm.*
 import java.util.*
 import kotlin.collections.ArrayList
@@ -85,8 +85,13 @@ class RealmCache<T : GenericJson>(val collection: String, private val mCacheMana
         mRealm.use { mRealm ->
             val realmQuery: RealmQuery<DynamicRealmObject> = mRealm.where(TableNameManager.getShortName(collection, mRealm))
                     .greaterThanOrEqualTo(ClassHash.TTL, Calendar.getInstance().timeInMillis)
-            val isIgnoreIn = isQueryContainsInOperator(query?.queryFilterMap)
-            QueryHelper.prepareRealmQuery(realmQuery, query?.queryFilterMap, isIgnoreIn)
+            val filter = query?.queryFilterMap
+            val isIgnoreIn = isQueryContainsInOperator(filter)
+            // Realm cannot check $in, then the whole filter is checked on the loaded items.
+            // Without a $in inside of a $or the rest of the filter still narrows the items Realm loads.
+            if (!isIgnoreIn || !isQueryContainsOrOperator(filter)) {
+                QueryHelper.prepareRealmQuery(realmQuery, filter, isIgnoreIn)
+            }
             val objects = get(realmQuery, query)
             val limit = query?.limit ?: 0
             val skip = query?.skip ?: 0
@@ -94,7 +99,8 @@ class RealmCache<T : GenericJson>(val collection: String, private val mCacheMana
                 realmToObject(obj, collectionItemClass)
             }.toMutableList()
             if (isIgnoreIn) {
-                checkCustomInQuery(query?.queryFilterMap, ret)
+                val predicate = QueryCompiler.compile(filter)
+                ret = ret.filterTo(ArrayList()) { predicate.matches(it) }
             }
             //own skipping implementation
             if (skip > 0) {
@@ -420,193 +426,17 @@ class RealmCache<T : GenericJson>(val collection: String, private val mCacheMana
         return false
     }
 
-    private fun checkCustomInQuery(queryMap: Map<String, Any>?, ret: MutableList<T>?): MutableList<T>? {
-        //helper for ".in()" operator in List of primitives fields, because Realm doesn't support it
-        var ret: MutableList<T>? = ret
+    private fun isQueryContainsOrOperator(queryMap: Map<String, Any>?): Boolean {
         for ((field, params) in queryMap ?: mapOf()) {
             if (field.equals("\$or", ignoreCase = true)) {
-                val mRealm: DynamicRealm = mCacheManager.dynamicRealm
-                var objects = mutableListOf<DynamicRealmObject>()
-                //get all objects from realm. It need for make manual search in elements with "in" operator
-                mRealm.use { mRealm ->
-                    objects = mRealm.where(TableNameManager.getShortName(collection, mRealm))
-                            .greaterThanOrEqualTo(ClassHash.TTL, Calendar.getInstance().timeInMillis)
-                            .findAll()
-                }
-                val allItems = objects.mapNotNull { obj ->
-                    realmToObject(obj, collectionItemClass)
-                }
-                if (params.javaClass.isArray) {
-                    val components = params as Array<Map<String, Any>>
-                    if (components.isNotEmpty()) {
-                        var newItems: List<T>? = ArrayList()
-                        //get items from both sides of "or"
-                        for (component in components) {
-                            if (isQueryContainsInOperator(component)) {
-                                newItems = checkCustomInQuery(component, allItems as MutableList<T>?)
-                            }
-                        }
-                        //merge items from left and right parts of "or"
-                        if (newItems != null && ret != null) {
-                            // "ret" - it's items from search with was made exclude "in" operator
-                            // "newItems" - it's items from manual search with "in" operator
-
-                            val retCopy = ArrayList(ret)
-                            var isItemExist: Boolean
-                            for (item in newItems) {
-                                isItemExist = false
-                                for (oldItem in retCopy) {
-                                    if (oldItem[ID] == item[ID]) {
-                                        isItemExist = true
-                                        break
-                                    }
-                                }
-                                if (!isItemExist) {
-                                    ret.add(item)
-                                }
-                            }
-                        }
-                    }
-                }
-            } else if (field.equals("\$and", ignoreCase = true)) {
-                if (params.javaClass.isArray) {
-                    val components = params as Array<Map<String, Any>>
-                    if (components.isNotEmpty()) {
-                        for (component in components) {
-                            ret = checkCustomInQuery(component, ret)
-                        }
-                    }
-                }
+                return true
             }
-            if (params is Map<*, *>) {
-                var clazz: Class<*>
-                var types: Types
-                for ((operation, value) in params as Map<String, Any>) {
-                    //paramMap.getValue() - contains operator's parameters
-                    if (!isArrayOrCollection(value.javaClass)) {
-                        return ret
-                    }
-                    val operatorParams = value as Array<Any>
-                    clazz = value[0].javaClass
-                    types = Types.getType(clazz)
-                    if (operation.equals("\$in", ignoreCase = true)) {
-                        val retCopy = ArrayList(ret ?: listOf())
-                        for (t in retCopy) {
-                            val isArray = t[field] is ArrayList<*>
-                            var isExist = false
-/*                            //check that search field is List (not primitives or object)
-                            if (t.get(field) instanceof ArrayList) {*/
-
-                            var arrayList: ArrayList<*>? = null
-                            if (isArray) {
-                                arrayList = t[field] as ArrayList<*>?
-                            }
-                            // if search field is LIST
-                            else {
-                                // if search field is not LIST
-                                when (types) {
-                                    Types.LONG -> {
-                                        for (l in operatorParams as Array<Long>) {
-                                            isExist = l == t[field] as Long?
-                                            if (isExist) { break }
-                                        }
-                                        if (!isExist) { ret?.remove(t) }
-                                    }
-                                    Types.STRING -> {
-                                        for (s in operatorParams as Array<String>) {
-                                            isExist = s == t[field] as String?
-                                            if (isExist) { break }
-                                        }
-                                        if (!isExist) { ret?.remove(t) }
-                                    }
-                                    Types.BOOLEAN -> {
-                                        for (b in operatorParams as Array<Boolean>) {
-                                            isExist = b == t[field] as Boolean?
-                                            if (isExist) { break }
-                                        }
-                                        if (!isExist) { ret?.remove(t) }
-                                    }
-                                    Types.INTEGER -> {
-                                        for (i in operatorParams as Array<Int>) {
-                                            isExist = i == t[field] as Int?
-                                            if (isExist) { break }
-                                        }
-                                        if (!isExist) { ret?.remove(t) }
-                                    }
-                                    Types.FLOAT -> {
-                                        for (i in operatorParams as Array<Float>) {
-                                            isExist = i == t[field] as Float
-                                            if (isExist) { break }
-                                        }
-                                        if (!isExist) { ret?.remove(t) }
-                                    }
-                                }
-                            }
-                            if (isArray && arrayList?.isNotEmpty() == true && operatorParams.isNotEmpty()) {
-                                when (types) {
-                                    Types.LONG -> {
-                                        val listOfLong = ArrayList(arrayList as List<Long>)
-                                        for (lValue in listOfLong) {
-                                            for (l in operatorParams as Array<Long>) {
-                                                isExist = l == lValue
-                                                if (isExist) { break }
-                                            }
-                                            if (isExist) break
-                                        }
-                                        if (!isExist) { ret?.remove(t) }
-                                    }
-                                    Types.STRING -> {
-                                        val listOfString = ArrayList(arrayList as List<String>)
-                                        for (sValue in listOfString) {
-                                            for (s in operatorParams as Array<String>) {
-                                                isExist = sValue == s
-                                                if (isExist) { break }
-                                            }
-                                            if (isExist) break
-                                        }
-                                        if (!isExist) { ret?.remove(t) }
-                                    }
-                                    Types.BOOLEAN -> {
-                                        val listOfBoolean = ArrayList(arrayList as List<Boolean>)
-                                        for (bValue in listOfBoolean) {
-                                            for (b in operatorParams as Array<Boolean>) {
-                                                isExist = bValue == b
-                                                if (isExist) { break }
-                                            }
-                                            if (isExist) break
-                                        }
-                                        if (!isExist) { ret?.remove(t) }
-                                    }
-                                    Types.INTEGER -> {
-                                        val listOfInteger = ArrayList(arrayList as List<Long>)
-                                        for (lValue in listOfInteger) {
-                                            for (l in operatorParams as Array<Int>) {
-                                                isExist = lValue == l.toLong()
-                                                if (isExist) { break }
-                                            }
-                                            if (isExist) break
-                                        }
-                                        if (!isExist) { ret?.remove(t) }
-                                    }
-                                    Types.FLOAT -> {
-                                        val listOfFloat = ArrayList(arrayList as List<Float>)
-                                        for (lValue in listOfFloat) {
-                                            for (l in operatorParams as Array<Float>) {
-                                                isExist = lValue == l
-                                                if (isExist) { break }
-                                            }
-                                            if (isExist) break
-                                        }
-                                        if (!isExist) { ret?.remove(t) }
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
+            if (field.equals("\$and", ignoreCase = true) && params is Array<*>
+                    && params.any { isQueryContainsOrOperator(it as? Map<String, Any>) }) {
+                return true
             }
         }
-        return ret
+        return false
     }
 
     private fun calculation(type: AggregateType, fields: ArrayList<String>, reduceField: String?, q: Query): Array<Result> {
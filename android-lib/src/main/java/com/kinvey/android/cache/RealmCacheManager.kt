@@ -170,6 +170,12 @@ class RealmCacheManager : ICacheManager {
         }
     }
 
+    override fun getCollectionItemClass(collection: String?): Class<out GenericJson>? {
+        synchronized(LOCK) {
+            return mCacheMap[clientHash + File.separator + collection]?.collectionItemClass
+        }
+    }
+
     /**
      * Find all schemas (table names) to removing by collection name
      * @param collection collection name
@@ -26,18 +26,24 @@ import com.google.api.client.util.GenericData
 import java.io.IOException
 import java.lang.reflect.Array
 import java.util.Properties
+import java.util.concurrent.Executor
 import java.util.logging.Level
 import java.util.logging.Logger
 
 import com.kinvey.java.auth.ClientUser
 import com.kinvey.java.auth.CredentialManager
 import com.kinvey.java.auth.CredentialStore
+import com.kinvey.java.auth.TokenRefreshManager
 import com.kinvey.java.cache.ICacheManager
 import com.kinvey.java.core.AbstractKinveyClientRequest
 import com.kinvey.java.core.AbstractKinveyJsonClient
+import com.kinvey.java.core.HttpResponseCache
 import com.kinvey.java.core.KinveyClientRequestInitializer
+import com.kinvey.java.core.KinveyPooledHttpTransport
+import com.kinvey.java.core.KinveyScheduler
 import com.kinvey.java.dto.BaseUser
 import com.kinvey.java.network.NetworkFileManager
+import com.kinvey.java.network.ReadCoalescer
 import com.kinvey.java.query.MongoQueryFilter
 import com.kinvey.java.store.BaseFileStore
 import com.kinvey.java.store.StoreType
@@ -135,6 +141,53 @@ protected constructor(transport: HttpTransport?,
     var requestTimeout: Int = 0
     var numberThreadsForDataStoreSaveList = DEFAULT_NUMBER_OF_THREADS_FOR_DATASTORE_SAVE_OF_LIST
 
+    /**
+     * Max count of the batch POSTs of a saved list sent at the same time, 1 sends them one after another
+     */
+    var maxBatchPostsInFlight = DEFAULT_MAX_BATCH_POSTS_IN_FLIGHT
+
+    /**
+     * Counters of the connection pool, or null if the client doesn't use [KinveyPooledHttpTransport]
+     */
+    val connectionPoolStats: KinveyPooledHttpTransport.PoolStats?
+        get() = (requestFactory?.transport as? KinveyPooledHttpTransport)?.poolStats
+
+    /**
+     * Runs the concurrent requests of the stores and file transfers of this client: pull pages, saved lists,
+     * pushed sync items and file chunks, with one concurrency limit shared by all of them.
+     * Shut it down when the client is not used anymore.
+     */
+    val scheduler = KinveyScheduler().also { it.metrics = metrics }
+
+    /**
+     * Shares the `find` requests of this client which run at the same time with the same parameters,
+     * `null` (default) sends every request
+     */
+    var readCoalescer: ReadCoalescer? = null
+
+    /**
+     * Keeps the GET responses which have an `ETag` or `Last-Modified` header, the next requests for them are sent
+     * as conditional requests and an unchanged response is not downloaded again. `null` (default) disables it.
+     */
+    var httpResponseCache: HttpResponseCache? = null
+
+    /**
+     * Refreshes the access token of the active user for the requests which get `401 Unauthorized`,
+     * one refresh at a time
+     */
+    var tokenRefreshManager = TokenRefreshManager(this)
+
+    /**
+     * Runs the operations of the `CompletableFuture` API, see [com.kinvey.java.store.AsyncDataStore] and
+     * [com.kinvey.java.store.AsyncFileStore]. `null` (default) runs them on the [scheduler].
+     */
+    var asyncExecutor: Executor? = null
+
+    /**
+     * @return [asyncExecutor] or an executor queueing the tasks in the group of the [scheduler]
+     */
+    fun asyncExecutor(group: String?): Executor = asyncExecutor ?: Executor { scheduler.execute(group, it) }
+
     val isUserLoggedIn: Boolean
         get() = activeUser != null && activeUser?.id != null
 
@@ -159,11 +212,13 @@ protected constructor(transport: HttpTransport?,
         }
 
     /**
+     * Queues the writes of the stores in the [syncCacheManager], or in the [cacheManager]
+     * if the client has no separate cache manager for the sync queue
      *
      * @return SyncManager object
      */
     val syncManager: SyncManager
-        get() = SyncManager(syncCacheManager)
+        get() = SyncManager(syncCacheManager ?: cacheManager).also { it.metrics = metrics }
 
     val userArrayClass: Class<*>
         get() = Array.newInstance(userClass, 0)::class.java
@@ -396,6 +451,31 @@ protected constructor(transport: HttpTransport?,
             return props.getProperty(opt.value, defaultValue) ?: ""
         }
 
+        /**
+         * @param transport the transport all requests of the client are sent with
+         */
+        open fun setTransport(transport: HttpTransport): Builder {
+            this.transport = transport
+            return this
+        }
+
+        /**
+         * Sends requests over a [KinveyPooledHttpTransport] with the default pool settings,
+         * which keeps connections open between requests instead of the transport passed to the builder.
+         */
+        open fun setPooledTransport(): Builder {
+            return setPooledTransport(KinveyPooledHttpTransport.Builder())
+        }
+
+        /**
+         * Sends requests over a [KinveyPooledHttpTransport] instead of the transport passed to the builder.
+         *
+         * @param poolBuilder pool settings: max connections per route, idle timeout and keep-alive
+         */
+        open fun setPooledTransport(poolBuilder: KinveyPooledHttpTransport.Builder): Builder {
+            return setTransport(poolBuilder.build())
+        }
+
         /**
          * @param requestTimeout - the request timeout
          */
@@ -500,6 +580,8 @@ protected constructor(transport: HttpTransport?,
 
         const val DEFAULT_NUMBER_OF_THREADS_FOR_DATASTORE_SAVE_OF_LIST = 1
 
+        const val DEFAULT_MAX_BATCH_POSTS_IN_FLIGHT = 4
+
         /**
          * Non-default version of API. Developer should initialize it for change API version
          */
@@ -0,0 +1,125 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+package com.kinvey.java
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Lock-free latency histogram with power of two buckets in microseconds.
+ *
+ * Bucket 0 counts latencies below one microsecond, bucket `i` counts latencies
+ * from `2^(i-1)` up to `2^i` microseconds, the last bucket also counts everything above.
+ */
+class LatencyHistogram {
+
+    private val buckets = AtomicLongArray(BUCKETS)
+    private val totalNanos = AtomicLong()
+    private val maxNanos = AtomicLong()
+
+    /**
+     * Records one latency
+     * @param nanos latency in nanoseconds, negative values are recorded as zero
+     */
+    fun record(nanos: Long) {
+        val value = Math.max(nanos, 0L)
+        buckets.incrementAndGet(bucketOf(value))
+        totalNanos.addAndGet(value)
+        var max = maxNanos.get()
+        while (value > max && !maxNanos.compareAndSet(max, value)) {
+            max = maxNanos.get()
+        }
+    }
+
+    /**
+     * Takes a copy of the histogram, recordings made while the copy is taken may or may not be included.
+     */
+    fun snapshot(): Snapshot {
+        val counts = LongArray(BUCKETS) { buckets.get(it) }
+        return Snapshot(counts.sum(), totalNanos.get(), maxNanos.get(), counts)
+    }
+
+    fun reset() {
+        for (i in 0 until BUCKETS) {
+            buckets.set(i, 0)
+        }
+        totalNanos.set(0)
+        maxNanos.set(0)
+    }
+
+    /**
+     * Point in time copy of a [LatencyHistogram]
+     *
+     * @param count number of recorded latencies
+     * @param totalNanos sum of all recorded latencies
+     * @param maxNanos the highest recorded latency
+     * @param buckets number of latencies in every bucket
+     */
+    class Snapshot(val count: Long, val totalNanos: Long, val maxNanos: Long, private val buckets: LongArray) {
+
+        val meanNanos: Long
+            get() = if (count == 0L) 0L else totalNanos / count
+
+        /**
+         * @return number of latencies in the bucket
+         */
+        fun bucketCount(bucket: Int): Long = buckets[bucket]
+
+        /**
+         * Upper estimate of the percentile, it is the upper bound of the bucket the percentile falls in,
+         * but never more than the highest recorded latency.
+         *
+         * @param percentile value from 0.0 to 100.0
+         * @return latency in nanoseconds
+         */
+        fun percentileNanos(percentile: Double): Long {
+            require(percentile in 0.0..100.0) { "percentile must be from 0 to 100" }
+            if (count == 0L) {
+                return 0L
+            }
+            val rank = Math.max(1L, Math.ceil(count * percentile / 100.0).toLong())
+            var seen = 0L
+            for (i in buckets.indices) {
+                seen += buckets[i]
+                if (seen >= rank) {
+                    return Math.min(upperBoundNanos(i), maxNanos)
+                }
+            }
+            return maxNanos
+        }
+
+        override fun toString(): String {
+            return "count=$count mean=${meanNanos}ns p50=${percentileNanos(50.0)}ns " +
+                    "p99=${percentileNanos(99.0)}ns max=${maxNanos}ns"
+        }
+    }
+
+    companion object {
+
+        const val BUCKETS = 40
+
+        private fun bucketOf(nanos: Long): Int {
+            val micros = TimeUnit.NANOSECONDS.toMicros(nanos)
+            return Math.min(64 - java.lang.Long.numberOfLeadingZeros(micros), BUCKETS - 1)
+        }
+
+        private fun upperBoundNanos(bucket: Int): Long {
+            return if (bucket == BUCKETS - 1) Long.MAX_VALUE else TimeUnit.MICROSECONDS.toNanos(1L shl bucket)
+        }
+    }
+}
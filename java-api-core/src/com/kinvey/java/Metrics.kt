@@ -16,52 +16,268 @@
 
 package com.kinvey.java
 
-import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicLong
 
+/**
+ * Registry of counters and latency histograms keyed by collection and operation.
+ *
+ * Every client owns one registry, see [com.kinvey.java.core.AbstractKinveyClient.metrics].
+ * Network requests, cache reads and writes, the sync queue and file transfers record into it.
+ * Recording never takes a lock, so it is safe to keep the registry enabled in a busy service.
+ *
+ * Snapshots are exported by [publish], which hands them to every registered [Listener].
+ */
 class Metrics {
 
-    private val events: HashMap<String, Metric> = HashMap()
+    private val collections = ConcurrentHashMap<String, ConcurrentHashMap<String, Entry>>()
+    private val listeners = CopyOnWriteArrayList<Listener>()
 
-    private var metricMap: HashMap<String, Metrics>? = null
+    /**
+     * When disabled [entry] still returns entries, but nothing is recorded into them
+     */
+    @Volatile
+    var isEnabled = true
 
-    fun start(event: String) {
-        val start = System.currentTimeMillis()
-        events[event]?.start = start
+    /**
+     * Receives the snapshots exported by [publish]
+     */
+    interface Listener {
+        fun onSnapshot(snapshots: List<Snapshot>)
     }
 
-    fun end(event: String) {
-        val end = System.currentTimeMillis()
-        events[event]?.end = end
+    /**
+     * Returns the entry of the collection and operation, creating it on first use.
+     *
+     * @param collection collection name, `null` for operations which do not belong to a collection
+     * @param operation operation name, e.g. the request class or one of the `OP_` constants
+     */
+    fun entry(collection: String?, operation: String): Entry {
+        val key = collection ?: NO_COLLECTION
+        val byOperation = collections[key] ?: ConcurrentHashMap<String, Entry>().let { created ->
+            collections.putIfAbsent(key, created) ?: created
+        }
+        return byOperation[operation] ?: Entry().let { created ->
+            byOperation.putIfAbsent(operation, created) ?: created
+        }
     }
 
-    fun getMetrics(className: String): Metrics? {
-        if (metricMap == null) {
-            metricMap = HashMap()
-        }
-        metricMap?.let {
-            if (!it.containsKey(className)) {
-                it[className] = Metrics()
+    /**
+     * @return a snapshot of every entry which has been used
+     */
+    fun snapshot(): List<Snapshot> {
+        val snapshots = ArrayList<Snapshot>()
+        for ((collection, byOperation) in collections) {
+            for ((operation, entry) in byOperation) {
+                snapshots.add(entry.snapshot(collection, operation))
             }
-            return it[className]
         }
-        return null
+        return snapshots
+    }
+
+    /**
+     * @return the snapshot of the collection and operation or `null` if nothing has been recorded for them
+     */
+    fun snapshot(collection: String?, operation: String): Snapshot? {
+        return collections[collection ?: NO_COLLECTION]?.get(operation)?.snapshot(collection ?: NO_COLLECTION, operation)
+    }
+
+    fun addListener(listener: Listener) {
+        listeners.addIfAbsent(listener)
     }
 
-    private class Metric {
-        var start = -1L
-        var end = -1L
-            set(end) {
-                field = end
-                if (this.start == -1L) {
-                    return
-                }
-                isCalculated = true
-                delta = this.end - this.start
+    fun removeListener(listener: Listener) {
+        listeners.remove(listener)
+    }
+
+    /**
+     * Takes a snapshot and passes it to every listener
+     * @param reset if true the counters are cleared after the snapshot, so the next one holds only new recordings
+     * @return the published snapshot
+     */
+    @JvmOverloads
+    fun publish(reset: Boolean = false): List<Snapshot> {
+        val snapshots = snapshot()
+        if (reset) {
+            reset()
+        }
+        listeners.forEach { it.onSnapshot(snapshots) }
+        return snapshots
+    }
+
+    /**
+     * Clears all counters
+     */
+    fun reset() {
+        collections.values.forEach { byOperation -> byOperation.values.forEach { it.reset() } }
+    }
+
+    /**
+     * Counters and latency of one operation on one collection
+     */
+    inner class Entry internal constructor() {
+
+        private val count = AtomicLong()
+        private val errors = AtomicLong()
+        private val retries = AtomicLong()
+        private val bytesSent = AtomicLong()
+        private val bytesReceived = AtomicLong()
+        private val cacheHits = AtomicLong()
+        private val cacheMisses = AtomicLong()
+        private val level = AtomicLong()
+        private val peakLevel = AtomicLong()
+        private val latency = LatencyHistogram()
+
+        /**
+         * Records one finished call
+         * @param nanos how long the call took
+         * @param success false if the call failed
+         */
+        fun record(nanos: Long, success: Boolean) {
+            if (!isEnabled) {
+                return
+            }
+            count.incrementAndGet()
+            if (!success) {
+                errors.incrementAndGet()
             }
-        var delta = -1L
-            private set
-        var isCalculated = false
-            private set
+            latency.record(nanos)
+        }
+
+        /**
+         * Records calls without latency, e.g. items put into a queue
+         */
+        @JvmOverloads
+        fun increment(calls: Long = 1) {
+            if (isEnabled && calls > 0) {
+                count.addAndGet(calls)
+            }
+        }
+
+        fun recordRetry() {
+            if (isEnabled) {
+                retries.incrementAndGet()
+            }
+        }
+
+        /**
+         * @param sent bytes sent, negative if unknown
+         * @param received bytes received, negative if unknown
+         */
+        fun recordBytes(sent: Long, received: Long) {
+            if (!isEnabled) {
+                return
+            }
+            if (sent > 0) {
+                bytesSent.addAndGet(sent)
+            }
+            if (received > 0) {
+                bytesReceived.addAndGet(received)
+            }
+        }
+
+        fun recordCacheLookup(hits: Long, misses: Long) {
+            if (!isEnabled) {
+                return
+            }
+            if (hits > 0) {
+                cacheHits.addAndGet(hits)
+            }
+            if (misses > 0) {
+                cacheMisses.addAndGet(misses)
+            }
+        }
+
+        /**
+         * Records the current value of something which goes up and down, e.g. the length of a queue
+         */
+        fun recordLevel(value: Long) {
+            if (!isEnabled) {
+                return
+            }
+            level.set(value)
+            var peak = peakLevel.get()
+            while (value > peak && !peakLevel.compareAndSet(peak, value)) {
+                peak = peakLevel.get()
+            }
+        }
+
+        internal fun snapshot(collection: String, operation: String): Snapshot {
+            return Snapshot(collection, operation, count.get(), errors.get(), retries.get(),
+                    bytesSent.get(), bytesReceived.get(), cacheHits.get(), cacheMisses.get(), latency.snapshot(),
+                    level.get(), peakLevel.get())
+        }
+
+        internal fun reset() {
+            count.set(0)
+            errors.set(0)
+            retries.set(0)
+            bytesSent.set(0)
+            bytesReceived.set(0)
+            cacheHits.set(0)
+            cacheMisses.set(0)
+            // the level is still current, only the peak starts over
+            peakLevel.set(level.get())
+            latency.reset()
+        }
     }
-}
 
+    /**
+     * Point in time copy of an [Entry]
+     *
+     * @param level last value recorded by [Entry.recordLevel]
+     * @param peakLevel highest value recorded by [Entry.recordLevel] since the last reset
+     */
+    data class Snapshot(val collection: String,
+                        val operation: String,
+                        val count: Long,
+                        val errors: Long,
+                        val retries: Long,
+                        val bytesSent: Long,
+                        val bytesReceived: Long,
+                        val cacheHits: Long,
+                        val cacheMisses: Long,
+                        val latency: LatencyHistogram.Snapshot,
+                        val level: Long = 0,
+                        val peakLevel: Long = 0) {
+
+        /**
+         * Share of cache lookups which found data, from 0.0 to 1.0
+         */
+        val cacheHitRatio: Double
+            get() = if (cacheHits + cacheMisses == 0L) 0.0 else cacheHits.toDouble() / (cacheHits + cacheMisses)
+    }
+
+    companion object {
+        /**
+         * Collection name of the entries which do not belong to a collection
+         */
+        const val NO_COLLECTION = ""
+
+        /**
+         * Collection name of the file transfers
+         */
+        const val FILES_COLLECTION = "__KinveyFile__"
+
+        const val OP_CACHE_READ = "cache.read"
+        const val OP_CACHE_SAVE = "cache.save"
+        const val OP_CACHE_DELETE = "cache.delete"
+        const val OP_SYNC_ENQUEUE = "sync.enqueue"
+        const val OP_SYNC_EXECUTE = "sync.execute"
+        const val OP_FILE_UPLOAD = "file.upload"
+        const val OP_FILE_DOWNLOAD = "file.download"
+        const val OP_RETRY = "retry"
+        const val OP_RETRY_BUDGET_EXHAUSTED = "retry.budget.exhausted"
+        const val OP_RETRY_CIRCUIT_OPENED = "retry.circuit.opened"
+        /** requests which failed at once as the circuit of their host was open */
+        const val OP_RETRY_REJECTED = "retry.circuit.rejected"
+        /** tasks waiting in the queue of a group of the [com.kinvey.java.core.KinveyScheduler], as a level */
+        const val OP_SCHEDULER_QUEUED = "scheduler.queued"
+        /** tasks running on the [com.kinvey.java.core.KinveyScheduler], as a level */
+        const val OP_SCHEDULER_ACTIVE = "scheduler.active"
+        const val OP_TOKEN_REFRESH = "auth.refresh"
+        /** requests which waited for a token refresh run by another request */
+        const val OP_TOKEN_REFRESH_PARKED = "auth.refresh.parked"
+    }
+}
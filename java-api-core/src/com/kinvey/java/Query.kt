@@ -315,6 +315,13 @@ open class Query
         return this
     }
 
+    override fun fingerprintModifiers(): Map<String, Any?> {
+        if (skip == 0 && limit == 0) {
+            return super.fingerprintModifiers()
+        }
+        return super.fingerprintModifiers() + mapOf("skip" to skip, "limit" to limit)
+    }
+
     /**
      * @return current sort string
      */
@@ -17,59 +17,54 @@
 package com.kinvey.java.annotations
 
 import com.google.api.client.json.GenericJson
+import com.google.common.base.Preconditions
+import com.kinvey.java.Constants
 import com.kinvey.java.Logger.Companion.INFO
+import com.kinvey.java.core.EntityDescriptor
+import com.kinvey.java.model.KinveyBatchInsertError
 import com.kinvey.java.model.KinveyReference
+import com.kinvey.java.model.KinveySaveBatchResponse
+import java.io.IOException
 import java.lang.reflect.Array
-import java.lang.reflect.ParameterizedType
 import java.util.*
 
 /**
  * Created by Prots on 3/11/16.
+ *
+ * Fields annotated with [com.kinvey.java.annotations.KinveyReference] are found by the [EntityDescriptor]
+ * of the entity class, so the class is reflected only once.
  */
 object ReferenceHelper {
     @Throws(IllegalAccessException::class, InstantiationException::class)
     @JvmStatic
     fun <T : GenericJson> processReferences(gson: T?, listener: ReferenceListener): T? {
         INFO("Start ReferenceHelper.processReferences(T gson, final ReferenceListener listener)")
-        gson?.javaClass?.declaredFields?.let { fieldsList ->
-            for (f in fieldsList) {
-                //find field info
-
-                if (f.isAnnotationPresent(com.kinvey.java.annotations.KinveyReference::class.java)) {
-                    val ref: com.kinvey.java.annotations.KinveyReference = f.getAnnotation(com.kinvey.java.annotations.KinveyReference::class.java)
-                    f.isAccessible = true
-                    val reference: Any? = f.get(gson)
-                    if (GenericJson::class.java.isAssignableFrom(f.type) && reference != null) {
-                        processReferences(reference as GenericJson, listener)
-                        val id = listener.onUnsavedReferenceFound(ref.collection, f.get(gson) as GenericJson)
-                        gson.put(ref.fieldName, KinveyReference(ref.collection, id))
-                        continue
-                    } else if (f.type.isArray || Collection::class.java.isAssignableFrom(f.type) && reference != null) {
-                        //update
-
-                        val collection: Any = f.get(gson)
-                        val listReferences: MutableList<KinveyReference> = ArrayList()
-                        if (f.type.isArray) {
-                            val size = Array.getLength(collection)
-                            val clazz = f.type.componentType as Class<out GenericJson>
-                            for (i in 0 until size) {
-                                processReferences(Array.get(collection, i) as GenericJson, listener)
-                                val id = listener.onUnsavedReferenceFound(ref.collection, Array.get(collection, i) as GenericJson)
-                                listReferences.add(KinveyReference(ref.collection, id))
-                            }
-                        } else {
-                            val genericSuperclass = f.genericType as ParameterizedType
-                            val clazz = genericSuperclass.actualTypeArguments[0] as Class<*>
-                            for (`val` in collection as Collection<GenericJson>) {
-                                processReferences(`val`, listener)
-                                val id = listener.onUnsavedReferenceFound(ref.collection, `val`)
-                                listReferences.add(KinveyReference(ref.collection, id))
-                            }
-                        }
-                        gson.put(ref.fieldName, listReferences)
-                        continue
+        gson ?: return null
+        for (property in EntityDescriptor.of(gson.javaClass).references) {
+            val ref = property.reference ?: continue
+            val reference = property.get(gson) ?: continue
+            if (GenericJson::class.java.isAssignableFrom(property.type)) {
+                processReferences(reference as GenericJson, listener)
+                val id = listener.onUnsavedReferenceFound(ref.collection, reference)
+                gson.put(ref.fieldName, KinveyReference(ref.collection, id))
+            } else if (property.isArrayOrCollection) {
+                val listReferences: MutableList<KinveyReference> = ArrayList()
+                if (property.type.isArray) {
+                    val size = Array.getLength(reference)
+                    for (i in 0 until size) {
+                        val item = Array.get(reference, i) as GenericJson
+                        processReferences(item, listener)
+                        val id = listener.onUnsavedReferenceFound(ref.collection, item)
+                        listReferences.add(KinveyReference(ref.collection, id))
+                    }
+                } else {
+                    for (item in reference as Collection<GenericJson>) {
+                        processReferences(item, listener)
+                        val id = listener.onUnsavedReferenceFound(ref.collection, item)
+                        listReferences.add(KinveyReference(ref.collection, id))
                     }
                 }
+                gson.put(ref.fieldName, listReferences)
             }
         }
 
@@ -77,7 +72,136 @@ object ReferenceHelper {
         return gson
     }
 
+    /**
+     * Saves the unsaved entities referenced by the entities and puts [KinveyReference]s to them under the field
+     * names of the annotations like [processReferences] does.
+     *
+     * The whole graph is walked first, then the referenced entities without `_id` are passed to the listener
+     * in one call per collection and level, entities before the entities referencing them. Referenced entities
+     * with `_id` are not saved again and their references are not walked.
+     *
+     * Saved entities get their `_id`, so saving the graph again after a failure does not save them twice.
+     * A reference to an entity which was not saved is kept in its place as a [KinveyReference] without id.
+     *
+     * @return errors of the referenced entities which were not saved
+     */
+    @JvmStatic
+    fun processReferenceGraph(entities: Iterable<GenericJson>, listener: BatchReferenceListener): Map<GenericJson, KinveyBatchInsertError> {
+        Preconditions.checkNotNull(entities, "entities must not be null")
+        val graph = ReferenceGraph()
+        entities.forEach { graph.walk(it) }
+        val ids = IdentityHashMap<GenericJson, String>()
+        val errors = IdentityHashMap<GenericJson, KinveyBatchInsertError>()
+        for ((_, level) in graph.levels()) {
+            for ((collection, items) in level) {
+                items.forEach { bindReferences(it, ids) }
+                saveReferences(collection, items, listener, ids, errors)
+            }
+        }
+        entities.forEach { bindReferences(it, ids) }
+        return errors
+    }
+
+    private fun saveReferences(collection: String, items: List<GenericJson>, listener: BatchReferenceListener,
+                               ids: MutableMap<GenericJson, String>, errors: MutableMap<GenericJson, KinveyBatchInsertError>) {
+        val response = try {
+            listener.onUnsavedReferencesFound(collection, items)
+        } catch (e: IOException) {
+            items.forEachIndexed { i, item ->
+                errors[item] = KinveyBatchInsertError(i).apply {
+                    error = e.javaClass.simpleName
+                    description = e.message
+                }
+            }
+            return
+        }
+        val failed = response.errors.orEmpty().associateBy { it.index }
+        failed.forEach { (index, error) -> items.getOrNull(index)?.let { errors[it] = error } }
+        // the entities of a batch save are in the order of the items, without the failed ones if they are not null
+        val saved = response.entities.orEmpty()
+        val savedItems = if (saved.size == items.size) items.zip(saved)
+                else items.filterIndexed { i, _ -> i !in failed }.zip(saved.filterNotNull())
+        savedItems.forEach { (item, entity) ->
+            entity?.get(Constants._ID)?.let {
+                ids[item] = it.toString()
+                item[Constants._ID] = it.toString()
+            }
+        }
+    }
+
+    private fun bindReferences(entity: GenericJson, ids: Map<GenericJson, String>) {
+        for (property in EntityDescriptor.of(entity.javaClass).references) {
+            val ref = property.reference ?: continue
+            val value = property.get(entity) ?: continue
+            if (GenericJson::class.java.isAssignableFrom(property.type)) {
+                entity.put(ref.fieldName, KinveyReference(ref.collection, idOf(value as GenericJson, ids)))
+            } else if (property.isArrayOrCollection) {
+                entity.put(ref.fieldName, referencedEntities(value).map { KinveyReference(ref.collection, idOf(it, ids)) })
+            }
+        }
+    }
+
+    private fun idOf(entity: GenericJson, ids: Map<GenericJson, String>): String? = entity[Constants._ID]?.toString() ?: ids[entity]
+
+    private fun referencedEntities(value: Any): List<GenericJson> {
+        return if (value.javaClass.isArray) {
+            (0 until Array.getLength(value)).mapNotNull { Array.get(value, it) as GenericJson? }
+        } else {
+            (value as Collection<GenericJson?>).filterNotNull()
+        }
+    }
+
+    /**
+     * Unsaved referenced entities by their level, the number of unsaved entities under them on the longest path
+     */
+    private class ReferenceGraph {
+        private val levels = IdentityHashMap<GenericJson, Int>()
+        private val collections = IdentityHashMap<GenericJson, String>()
+        private val walking = IdentityHashMap<GenericJson, Boolean>()
+        private val order = ArrayList<GenericJson>()
+
+        fun walk(entity: GenericJson): Int {
+            levels[entity]?.let { return it }
+            Preconditions.checkArgument(walking.put(entity, true) == null, "references must not form a cycle")
+            var level = 0
+            for (property in EntityDescriptor.of(entity.javaClass).references) {
+                val ref = property.reference ?: continue
+                val value = property.get(entity) ?: continue
+                val items = if (GenericJson::class.java.isAssignableFrom(property.type)) listOf(value as GenericJson)
+                        else if (property.isArrayOrCollection) referencedEntities(value) else continue
+                items.filter { it[Constants._ID] == null }.forEach { item ->
+                    if (collections.put(item, ref.collection) == null) {
+                        order.add(item)
+                    }
+                    level = Math.max(level, walk(item) + 1)
+                }
+            }
+            walking.remove(entity)
+            levels[entity] = level
+            return level
+        }
+
+        /**
+         * @return referenced entities by collection, by level from the lowest
+         */
+        fun levels(): SortedMap<Int, Map<String, List<GenericJson>>> {
+            return order.groupBy { levels.getValue(it) }
+                    .mapValues { (_, items) -> items.groupBy { collections.getValue(it) } }
+                    .toSortedMap()
+        }
+    }
+
     interface ReferenceListener {
         fun onUnsavedReferenceFound(collection: String, item: GenericJson?): String
     }
+
+    interface BatchReferenceListener {
+        /**
+         * Saves entities of the collection
+         *
+         * @return saved entities and errors by the index of the item, like a batch save
+         */
+        @Throws(IOException::class)
+        fun onUnsavedReferencesFound(collection: String, items: List<GenericJson>): KinveySaveBatchResponse<GenericJson?>
+    }
 }
\ No newline at end of file
@@ -0,0 +1,250 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+
+package com.kinvey.java.auth
+
+import com.google.api.client.json.GenericJson
+import com.google.common.base.Preconditions
+import com.kinvey.java.AbstractClient
+import com.kinvey.java.Logger
+import com.kinvey.java.Metrics
+import com.kinvey.java.core.AbstractKinveyClientRequest
+import com.kinvey.java.core.KinveyClientRequestInitializer
+import com.kinvey.java.dto.BaseUser
+import com.kinvey.java.store.UserStoreRequestManager
+import java.io.IOException
+import java.io.InterruptedIOException
+import java.util.concurrent.CountDownLatch
+
+/**
+ * Refreshes the access token of the active user with its refresh token, one refresh at a time.
+ *
+ * A request which gets `401 Unauthorized` calls [onUnauthorized]. The first one runs the refresh, the requests
+ * which come while it's running are parked until it completes, then all of them are replayed with the new
+ * credential. A request sent with a token which has been refreshed already is replayed without a new refresh.
+ *
+ * When the lifetime of the access token is known, see [onTokenIssued], requests refresh it [refreshMarginSeconds]
+ * before it expires instead of waiting for the `401`. If such a refresh fails, the request is sent with the current
+ * credential and the next refresh before expiry is tried only after a backoff delay.
+ *
+ * The refreshes are recorded under [Metrics.OP_TOKEN_REFRESH], the parked requests under
+ * [Metrics.OP_TOKEN_REFRESH_PARKED].
+ */
+open class TokenRefreshManager(private val client: AbstractClient<*>) {
+
+    private val lock = Any()
+    private var inFlight: Refresh? = null
+    /** when the access token expires, 0 if it's not known */
+    @Volatile
+    private var expiresAtMillis = 0L
+    /** when a refresh before expiry may be tried again after failed ones */
+    @Volatile
+    private var retryAtMillis = 0L
+    private var retryDelayMillis = 0L
+
+    /**
+     * How long before the known expiry of the access token it is refreshed
+     */
+    var refreshMarginSeconds: Long = DEFAULT_REFRESH_MARGIN_SECONDS
+        set(value) {
+            Preconditions.checkArgument(value >= 0, "refreshMarginSeconds must not be negative")
+            field = value
+        }
+
+    private class Refresh {
+        val thread: Thread = Thread.currentThread()
+        val done = CountDownLatch(1)
+        var isRefreshed = false
+    }
+
+    /**
+     * Records the lifetime of an access token which has just been issued
+     *
+     * @param expiresInSeconds lifetime of the token, not positive if it's not known
+     */
+    fun onTokenIssued(expiresInSeconds: Long) {
+        expiresAtMillis = if (expiresInSeconds > 0) System.currentTimeMillis() + expiresInSeconds * 1000 else 0L
+        synchronized(lock) {
+            retryAtMillis = 0L
+            retryDelayMillis = 0L
+        }
+    }
+
+    /**
+     * Refreshes the access token if it expires within [refreshMarginSeconds] and sets the new credential to the
+     * request. Requests sent by the refresh itself are not held. A failed refresh does not fail the request,
+     * it's logged and the request keeps the current credential.
+     *
+     * @throws InterruptedIOException if the thread is interrupted while it waits for the refresh
+     */
+    @Throws(IOException::class)
+    fun refreshIfExpiring(request: AbstractKinveyClientRequest<*>) {
+        if (!isExpiring() || System.currentTimeMillis() < retryAtMillis) {
+            return
+        }
+        val isRefreshed = try {
+            refresh(null)
+        } catch (e: InterruptedIOException) {
+            throw e
+        } catch (e: IOException) {
+            onRefreshBeforeExpiryFailed(e)
+            false
+        }
+        if (isRefreshed) {
+            loadCredential()?.initialize(request)
+        }
+    }
+
+    /**
+     * Called by a request which got `401 Unauthorized`, refreshes the access token or waits for the refresh
+     * in progress and sets the new credential to the request.
+     *
+     * @return true if the request should be sent again
+     * @throws IOException if this request ran the refresh and it failed
+     */
+    @Throws(IOException::class)
+    fun onUnauthorized(request: AbstractKinveyClientRequest<*>): Boolean {
+        if (!refresh(request.getRequestHeaders().authorization)) {
+            return false
+        }
+        loadCredential()?.initialize(request)
+        return true
+    }
+
+    /**
+     * @param failedAuthorization `Authorization` header of the request which got `401`, `null` for a refresh
+     * before expiry
+     * @return true if the credential has been refreshed
+     */
+    @Throws(IOException::class)
+    private fun refresh(failedAuthorization: String?): Boolean {
+        var refresh: Refresh? = null
+        var credential: Credential? = null
+        var refreshToken: String? = null
+        synchronized(lock) {
+            val current = inFlight
+            if (current != null) {
+                if (current.thread === Thread.currentThread()) {
+                    // a request of the refresh itself
+                    return false
+                }
+                refresh = current
+            } else {
+                credential = loadCredential() ?: return false
+                val token = credential?.authToken
+                if (failedAuthorization == null && !isExpiring()
+                        || failedAuthorization != null && token != null && !failedAuthorization.endsWith(" $token")) {
+                    // refreshed by another request
+                    return true
+                }
+                refreshToken = credential?.refreshToken ?: return false
+                inFlight = Refresh()
+            }
+        }
+        val parked = refresh
+        if (parked != null) {
+            client.metrics.entry(null, Metrics.OP_TOKEN_REFRESH_PARKED).increment()
+            try {
+                parked.done.await()
+            } catch (e: InterruptedException) {
+                Thread.currentThread().interrupt()
+                throw InterruptedIOException("interrupted waiting for the token refresh")
+            }
+            return parked.isRefreshed
+        }
+        // runs outside of the lock, the requests of the refresh must not wait for the parked requests
+        val started = inFlight!!
+        val entry = client.metrics.entry(null, Metrics.OP_TOKEN_REFRESH)
+        val start = System.nanoTime()
+        try {
+            onTokenIssued(refreshCredential(credential!!, refreshToken!!))
+            started.isRefreshed = true
+            return true
+        } finally {
+            entry.record(System.nanoTime() - start, started.isRefreshed)
+            synchronized(lock) { inFlight = null }
+            started.done.countDown()
+        }
+    }
+
+    /**
+     * Doubles the delay before the next refresh before expiry, up to [MAX_RETRY_DELAY_MILLIS]
+     */
+    private fun onRefreshBeforeExpiryFailed(e: IOException) {
+        val delay = synchronized(lock) {
+            retryDelayMillis = if (retryDelayMillis == 0L) MIN_RETRY_DELAY_MILLIS
+                    else Math.min(retryDelayMillis * 2, MAX_RETRY_DELAY_MILLIS)
+            retryAtMillis = System.currentTimeMillis() + retryDelayMillis
+            retryDelayMillis
+        }
+        Logger.WARNING("Token refresh before expiry failed, next try in ${delay / 1000}s: ${e.message}")
+    }
+
+    private fun isExpiring(): Boolean {
+        val expiresAt = expiresAtMillis
+        return expiresAt > 0 && System.currentTimeMillis() >= expiresAt - refreshMarginSeconds * 1000
+    }
+
+    /**
+     * @return credential of the active user
+     */
+    @Throws(IOException::class)
+    protected open fun loadCredential(): Credential? = client.store?.load(client.activeUser?.id)
+
+    /**
+     * Gets a new access token for the refresh token, logs the user in with it and stores the new refresh token
+     *
+     * @return lifetime of the new access token in seconds, 0 if it's not known
+     */
+    @Throws(IOException::class)
+    protected open fun refreshCredential(credential: Credential, refreshToken: String): Long {
+        val initializer = client.kinveyRequestInitializer as KinveyClientRequestInitializer
+        val builder: KinveyAuthRequest.Builder<BaseUser> = KinveyAuthRequest.Builder(client.requestFactory?.transport,
+                client.jsonFactory, client.baseUrl, initializer.appKey ?: "", initializer.appSecret ?: "", null)
+        val userStoreRequestManager = UserStoreRequestManager(client, builder)
+
+        //use the refresh token for a new access token
+        val result: GenericJson = userStoreRequestManager.useRefreshToken(refreshToken).execute()
+                ?: throw IOException("no response to the token refresh")
+
+        // soft logout the current user
+        userStoreRequestManager.logoutSoft().execute()
+
+        //login with the access token
+        userStoreRequestManager.loginMobileIdentityBlocking(result["access_token"].toString()).execute()
+
+        //store the new refresh token
+        val currentCred = client.store?.load(client.activeUser?.id)
+        currentCred?.refreshToken = result["refresh_token"]?.toString()
+        client.store?.store(client.activeUser?.id ?: "", currentCred)
+        return expiresIn(result)
+    }
+
+    companion object {
+        const val DEFAULT_REFRESH_MARGIN_SECONDS = 60L
+
+        private const val MIN_RETRY_DELAY_MILLIS = 1000L
+        private const val MAX_RETRY_DELAY_MILLIS = 60000L
+
+        /**
+         * @return `expires_in` of a token response in seconds, 0 if it's missing
+         */
+        fun expiresIn(tokenResponse: GenericJson?): Long {
+            return tokenResponse?.get("expires_in")?.toString()?.toBigDecimalOrNull()?.toLong() ?: 0L
+        }
+    }
+}
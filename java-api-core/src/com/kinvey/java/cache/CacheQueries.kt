@@ -0,0 +1,84 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+package com.kinvey.java.cache
+
+import com.kinvey.java.Query
+import com.kinvey.java.model.AggregateType
+import com.kinvey.java.model.Aggregation
+import com.kinvey.java.query.JsonValues
+import com.kinvey.java.query.QueryCompiler
+import java.util.ArrayList
+import java.util.LinkedHashMap
+
+/**
+ * Sorting, paging and grouping of filtered entities, shared by the caches which evaluate queries themselves.
+ */
+internal object CacheQueries {
+
+    /**
+     * @return the entities sorted and paged like the query requires
+     */
+    fun <E : Map<*, *>> sortAndPage(items: List<E>, query: Query?): List<E> {
+        var result = items
+        QueryCompiler.comparator(query?.getSort())?.let { comparator -> result = result.sortedWith(comparator) }
+        val skip = query?.skip ?: 0
+        val limit = query?.limit ?: 0
+        if (skip > 0 || limit > 0) {
+            val from = Math.min(skip, result.size)
+            val to = if (limit > 0) Math.min(from + limit, result.size) else result.size
+            result = result.subList(from, to)
+        }
+        return result
+    }
+
+    /**
+     * Groups the entities by the values of the fields and reduces every group like the aggregation requires
+     */
+    fun group(items: List<Map<*, *>>, aggregateType: AggregateType, fields: List<String>, reduceField: String?): Array<Aggregation.Result> {
+        val groups = LinkedHashMap<List<Any?>, MutableList<Map<*, *>>>()
+        items.forEach { item ->
+            groups.getOrPut(fields.map { QueryCompiler.valueAt(item, it) }) { ArrayList() }.add(item)
+        }
+        val results = ArrayList<Aggregation.Result>()
+        for ((key, groupItems) in groups) {
+            val reduced = reduce(aggregateType, groupItems, reduceField) ?: continue
+            val result = Aggregation.Result()
+            fields.forEachIndexed { i, field -> result[field] = key[i] }
+            result.result = reduced
+            results.add(result)
+        }
+        return results.toTypedArray()
+    }
+
+    private fun reduce(aggregateType: AggregateType, items: List<Map<*, *>>, reduceField: String?): Number? {
+        if (aggregateType == AggregateType.COUNT) {
+            return items.size.toLong()
+        }
+        val values = items.mapNotNull { reduceField?.let { field -> QueryCompiler.valueAt(it, field) } as? Number }
+        return when (aggregateType) {
+            AggregateType.SUM -> if (values.all { it is Int || it is Long || it is Short || it is Byte }) {
+                values.fold(0L) { sum, value -> sum + value.toLong() }
+            } else {
+                values.fold(0.0) { sum, value -> sum + value.toDouble() }
+            }
+            AggregateType.MIN -> values.minWith(JsonValues)
+            AggregateType.MAX -> values.maxWith(JsonValues)
+            AggregateType.AVERAGE -> if (values.isEmpty()) null else values.sumByDouble { it.toDouble() } / values.size
+            AggregateType.COUNT -> items.size.toLong()
+        }
+    }
+}
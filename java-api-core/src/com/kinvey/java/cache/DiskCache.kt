@@ -0,0 +1,121 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+package com.kinvey.java.cache
+
+import com.google.api.client.json.GenericJson
+import com.google.api.client.json.JsonFactory
+import com.kinvey.java.Constants
+import com.kinvey.java.Query
+import com.kinvey.java.model.AggregateType
+import com.kinvey.java.model.Aggregation
+import com.kinvey.java.query.QueryCompiler
+import java.io.ByteArrayInputStream
+import java.util.ArrayList
+import java.util.UUID
+
+/**
+ * [ICache] of a collection of the [DiskCacheManager].
+ *
+ * Entities are stored as JSON and every read parses new objects, so changes of the returned objects
+ * do not change the cache. An entity is visible until [ttl] milliseconds after it was saved.
+ * Entities without `_id` get a temporary one like in the other caches.
+ */
+class DiskCache<T : GenericJson> internal constructor(private val collection: DiskCollection,
+                                                       private val collectionItemClass: Class<T>,
+                                                       ttl: Long,
+                                                       private val jsonFactory: JsonFactory) : ICache<T> {
+
+    override var ttl: Long = Math.max(ttl, 0)
+
+    override var isAddCount: Boolean? = false
+
+    override val first: T?
+        get() = collection.first(now())?.let { parse(it) }
+
+    override fun get(query: Query?): List<T> = find(query)
+
+    override fun get(ids: Iterable<String>): List<T> = collection.get(ids, now()).map { parse(it) }
+
+    override fun get(id: String): T? = collection.get(id, now())?.let { parse(it) }
+
+    override fun get(): List<T> = collection.getAll(now()).map { parse(it) }
+
+    override fun save(items: Iterable<T>?): List<T> {
+        val saved = items?.toList() ?: return emptyList()
+        collection.put(saved.map { store(it) }, expiresAt())
+        return saved
+    }
+
+    override fun save(item: T?): T? {
+        item ?: return null
+        collection.put(listOf(store(item)), expiresAt())
+        return item
+    }
+
+    override fun delete(query: Query?): Int {
+        return collection.remove(filter(query).map { it[Constants._ID].toString() })
+    }
+
+    override fun delete(ids: Iterable<String>): Int = collection.remove(ids)
+
+    override fun delete(id: String): Int = collection.remove(listOf(id))
+
+    override fun clear() = collection.clear()
+
+    override fun getFirst(q: Query): T? = find(q).firstOrNull()
+
+    override fun count(q: Query?): Long = filter(q).size.toLong()
+
+    override fun group(aggregateType: AggregateType, fields: ArrayList<String>, reduceField: String?, q: Query): Array<Aggregation.Result> {
+        return CacheQueries.group(filter(q), aggregateType, fields, reduceField)
+    }
+
+    /**
+     * @return entities matching the query, sorted and paged like the query requires
+     */
+    private fun find(query: Query?): List<T> = CacheQueries.sortAndPage(filter(query), query)
+
+    private fun filter(query: Query?): List<T> {
+        val items = collection.getAll(now()).map { parse(it) }
+        val filter = query?.queryFilterMap as Map<String, Any?>?
+        if (filter.isNullOrEmpty()) {
+            return items
+        }
+        val predicate = QueryCompiler.compile(filter)
+        return items.filter { predicate.matches(it) }
+    }
+
+    private fun store(item: T): Pair<String, ByteArray> {
+        if (item[Constants._ID] == null) {
+            item[Constants._ID] = TEMP_ID + UUID.randomUUID().toString()
+        }
+        return item[Constants._ID].toString() to jsonFactory.toByteArray(item)
+    }
+
+    private fun parse(value: ByteArray): T = jsonFactory.fromInputStream(ByteArrayInputStream(value), Charsets.UTF_8, collectionItemClass)
+
+    private fun expiresAt(): Long {
+        val now = now()
+        return if (now + ttl < 0) Long.MAX_VALUE else now + ttl
+    }
+
+    private fun now(): Long = System.currentTimeMillis()
+
+    companion object {
+        private const val TEMP_ID = "temp_"
+    }
+}
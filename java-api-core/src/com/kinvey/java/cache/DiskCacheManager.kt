@@ -0,0 +1,112 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+package com.kinvey.java.cache
+
+import com.google.api.client.json.GenericJson
+import com.google.api.client.json.JsonFactory
+import com.google.common.base.Preconditions
+import java.io.Closeable
+import java.io.File
+import java.net.URLEncoder
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * [ICacheManager] which keeps the collections in files, for JVM applications which have no local database
+ * and want the cached collections, the sync queue and the query cache to survive a restart.
+ *
+ * Every collection is an append-only log of segment files in its own subfolder of [directory].
+ * Only the locations of the entities are kept in memory, so opening a collection reads the record headers
+ * instead of pulling the collection again. Records torn by a crash are dropped when the collection is opened.
+ * Dead records are removed by a compaction on a background thread.
+ *
+ * A folder must be used by one manager at a time, [close] the manager to release the files.
+ *
+ * @param directory folder of the collections, created if it does not exist
+ * @param jsonFactory factory used to store and parse the entities
+ * @param maxSegmentSize size in bytes after which a new segment file is started
+ * @param syncWrites forces every write to the storage device before it returns. Writes survive a crash
+ * of the process without it, a crash of the system may lose the last writes.
+ */
+class DiskCacheManager @JvmOverloads constructor(private val directory: File,
+                                                 private val jsonFactory: JsonFactory,
+                                                 private val maxSegmentSize: Long = DEFAULT_MAX_SEGMENT_SIZE,
+                                                 private val syncWrites: Boolean = false) : ICacheManager, Closeable {
+
+    private val collections = ConcurrentHashMap<String, DiskCollection>()
+    private val itemClasses = ConcurrentHashMap<String, Class<out GenericJson>>()
+    private val compactionExecutor: ExecutorService = Executors.newSingleThreadExecutor { runnable ->
+        Thread(runnable, "kinvey-cache-compaction").apply { isDaemon = true }
+    }
+
+    init {
+        Preconditions.checkNotNull(directory, "directory must not be null")
+        Preconditions.checkNotNull(jsonFactory, "jsonFactory must not be null")
+        Preconditions.checkArgument(maxSegmentSize in 1..Int.MAX_VALUE, "maxSegmentSize must be positive and below 2GB")
+    }
+
+    override fun <T : GenericJson> getCache(collection: String?, collectionItemClass: Class<T>?, ttl: Long?): ICache<T>? {
+        val name = collection ?: throw NullPointerException("collection must not be null")
+        val itemClass = collectionItemClass ?: throw NullPointerException("collectionItemClass must not be null")
+        itemClasses[name] = itemClass
+        return DiskCache(collection(name), itemClass, ttl ?: Long.MAX_VALUE, jsonFactory)
+    }
+
+    override fun getCollectionItemClass(collection: String?): Class<out GenericJson>? = collection?.let { itemClasses[it] }
+
+    override fun clear() {
+        collections.values.forEach { it.clear() }
+        // collections which were not opened since the start
+        directory.listFiles()?.filter { it.isDirectory && collections.values.none { opened -> opened.directory == it } }
+                ?.forEach { it.deleteRecursively() }
+    }
+
+    override fun <T : GenericJson> clearCollection(collection: String?, collectionItemClass: Class<T>?, ttl: Long?) {
+        collection?.let { collection(it).clear() }
+    }
+
+    /**
+     * Compacts all open collections after the running compaction and waits for it, for example before a backup of the folder
+     */
+    fun compact() {
+        compactionExecutor.submit { collections.values.forEach { it.compact() } }.get()
+    }
+
+    /**
+     * Waits for the running compaction and closes the files of the collections
+     */
+    override fun close() {
+        compactionExecutor.shutdown()
+        compactionExecutor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+        collections.values.forEach { it.close() }
+        collections.clear()
+    }
+
+    private fun collection(name: String): DiskCollection {
+        return collections[name] ?: synchronized(collections) {
+            collections[name] ?: DiskCollection(File(directory, URLEncoder.encode(name, "UTF-8")), maxSegmentSize,
+                    syncWrites, compactionExecutor).also { collections[name] = it }
+        }
+    }
+
+    companion object {
+        const val DEFAULT_MAX_SEGMENT_SIZE = 32L * 1024 * 1024
+        private const val CLOSE_TIMEOUT_SECONDS = 30L
+    }
+}
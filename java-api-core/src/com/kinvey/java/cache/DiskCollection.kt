@@ -0,0 +1,468 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+package com.kinvey.java.cache
+
+import com.google.common.base.Preconditions
+import com.kinvey.java.Logger
+import java.io.Closeable
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.util.ArrayList
+import java.util.HashMap
+import java.util.LinkedHashMap
+import java.util.Properties
+import java.util.concurrent.Executor
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+
+/**
+ * Entities of one collection of the [DiskCacheManager], kept in a log of segment files in [directory].
+ *
+ * Saves and removals append records to the active segment, the location of the newest record of every `_id`
+ * is kept in memory, so reads go straight to the record. Records carry a sequence number, the newest record
+ * of an `_id` wins no matter which segment it is in. Opening the collection reads the record headers to rebuild
+ * the locations and cuts a record torn by a crash.
+ *
+ * Compaction copies the live records of the sealed segments into new segments and deletes the old ones,
+ * it runs on [compactionExecutor] once enough of the sealed segments is dead. The copy runs without the lock,
+ * only the switch to the new segments blocks the collection. The switch is recorded in a manifest first,
+ * so a crash in the middle of it is finished on the next open.
+ */
+internal class DiskCollection(val directory: File,
+                              private val maxSegmentSize: Long,
+                              private val syncWrites: Boolean,
+                              private val compactionExecutor: Executor) : Closeable {
+
+    /**
+     * Location of the newest record of an `_id`
+     */
+    private class Location(val segment: LogSegment, val offset: Long, val length: Int, val sequence: Long,
+                           val expiresAt: Long, val valueOffset: Long, val valueLength: Int)
+
+    private val lock = ReentrantReadWriteLock()
+    private val locations = LinkedHashMap<String, Location>()
+    private val segments = ArrayList<LogSegment>()
+    private lateinit var active: LogSegment
+    private var nextSequence = 0L
+    private val nextSegmentId = AtomicLong()
+
+    /**
+     * Changed by [clear], a compaction started before a clear is dropped
+     */
+    private var epoch = 0L
+    private val isCompacting = AtomicBoolean()
+
+    init {
+        Preconditions.checkArgument(maxSegmentSize in 1..Int.MAX_VALUE, "maxSegmentSize must be positive and below 2GB")
+        lock.write { open() }
+    }
+
+    val size: Int
+        get() = lock.read { locations.size }
+
+    fun first(now: Long): ByteArray? {
+        return lock.read { locations.values.firstOrNull { it.expiresAt >= now }?.let { read(it) } }
+    }
+
+    fun get(id: String, now: Long): ByteArray? {
+        return lock.read { locations[id]?.takeIf { it.expiresAt >= now }?.let { read(it) } }
+    }
+
+    fun get(ids: Iterable<String>, now: Long): List<ByteArray> {
+        return lock.read { ids.mapNotNull { id -> locations[id]?.takeIf { it.expiresAt >= now }?.let { read(it) } } }
+    }
+
+    /**
+     * @return values of the entities in the order they were first saved
+     */
+    fun getAll(now: Long): List<ByteArray> {
+        return lock.read { locations.values.filter { it.expiresAt >= now }.map { read(it) } }
+    }
+
+    /**
+     * Saves the values by their ids
+     */
+    fun put(values: List<Pair<String, ByteArray>>, expiresAt: Long) {
+        if (values.isEmpty()) {
+            return
+        }
+        val ids = values.map { (id, _) -> encodeId(id) }
+        val size = values.indices.sumBy { LogSegment.sizeOf(ids[it], values[it].second) }
+        lock.write {
+            val buffer = ByteBuffer.allocate(size)
+            val sequence = nextSequence
+            values.forEachIndexed { i, (_, value) -> LogSegment.encode(buffer, LogSegment.PUT, sequence + i, expiresAt, ids[i], value) }
+            val segment = segmentFor(size)
+            buffer.flip()
+            var offset = segment.append(buffer, syncWrites)
+            nextSequence += values.size
+            for (i in values.indices) {
+                val (id, value) = values[i]
+                val length = LogSegment.sizeOf(ids[i], value)
+                val location = Location(segment, offset, length, sequence + i, expiresAt,
+                        offset + length - value.size, value.size)
+                locations.put(id, location)?.let { it.segment.deadBytes += it.length }
+                offset += length
+            }
+        }
+        compactIfNeeded()
+    }
+
+    /**
+     * Removes the entities, a removal is recorded for every id which is in the collection
+     * @return number of the removed entities
+     */
+    fun remove(ids: Iterable<String>): Int {
+        val removed = lock.write {
+            val existing = ids.distinct().filter { locations.containsKey(it) }
+            if (existing.isNotEmpty()) {
+                val encoded = existing.map { encodeId(it) }
+                val size = encoded.sumBy { LogSegment.sizeOf(it, null) }
+                val buffer = ByteBuffer.allocate(size)
+                encoded.forEach { LogSegment.encode(buffer, LogSegment.DELETE, nextSequence++, 0, it, null) }
+                val segment = segmentFor(size)
+                buffer.flip()
+                segment.append(buffer, syncWrites)
+                // a removal is only needed until compaction drops the records it hides
+                segment.deadBytes += size
+                existing.forEach { id -> locations.remove(id)?.let { it.segment.deadBytes += it.length } }
+            }
+            existing.size
+        }
+        if (removed > 0) {
+            compactIfNeeded()
+        }
+        return removed
+    }
+
+    /**
+     * Removes all entities. A clear record is written to a new segment before the old segments are deleted,
+     * so the entities do not come back if the deletion is interrupted.
+     */
+    fun clear() {
+        lock.write {
+            epoch++
+            val old = ArrayList(segments)
+            segments.clear()
+            active = newSegment()
+            val buffer = ByteBuffer.allocate(LogSegment.sizeOf(ByteArray(0), null))
+            LogSegment.encode(buffer, LogSegment.CLEAR, nextSequence++, 0, ByteArray(0), null)
+            buffer.flip()
+            active.append(buffer, true)
+            active.deadBytes += active.size
+            locations.clear()
+            old.forEach { it.delete() }
+        }
+    }
+
+    /**
+     * Starts a compaction on the executor if the dead records take more than half of the sealed segments
+     * or the sealed segments are many small ones
+     */
+    fun compactIfNeeded() {
+        if (!isCompacting.get() && needsCompaction()) {
+            compactionExecutor.execute { compact() }
+        }
+    }
+
+    fun needsCompaction(): Boolean {
+        return lock.read {
+            val sealed = segments.filter { it !== active }
+            val total = sealed.sumByLong { it.size }
+            val dead = sealed.sumByLong { it.deadBytes }
+            total > 0 && (dead * 2 >= total || sealed.count { it.size < maxSegmentSize / 2 } >= MAX_SMALL_SEGMENTS)
+        }
+    }
+
+    /**
+     * Copies the live records of the sealed segments into new segments and deletes the sealed segments
+     */
+    fun compact() {
+        if (!isCompacting.compareAndSet(false, true)) {
+            return
+        }
+        try {
+            var inputs: List<LogSegment> = emptyList()
+            var live: List<Pair<String, Location>> = emptyList()
+            var startEpoch = 0L
+            lock.read {
+                inputs = segments.filter { it !== active }
+                live = locations.entries.filter { (_, location) -> inputs.contains(location.segment) }.map { it.key to it.value }
+                startEpoch = epoch
+            }
+            if (inputs.isEmpty()) {
+                return
+            }
+            val now = System.currentTimeMillis()
+            val copier = SegmentCopier()
+            try {
+                live.filter { (_, location) -> location.expiresAt >= now }.forEach { (id, location) ->
+                    copier.copy(id, location.segment.read(location.offset, location.length))
+                }
+                copier.finish()
+            } catch (e: IOException) {
+                copier.abort()
+                throw e
+            }
+            lock.write {
+                if (startEpoch != epoch) {
+                    copier.abort()
+                    return
+                }
+                switchSegments(inputs, live, copier)
+            }
+        } catch (e: IOException) {
+            Logger.ERROR("Compaction of ${directory.name} failed: ${e.message}")
+        } finally {
+            isCompacting.set(false)
+        }
+    }
+
+    override fun close() {
+        lock.write {
+            segments.forEach { it.close() }
+            if (active.size == 0L) {
+                active.file.delete()
+            }
+            segments.clear()
+        }
+    }
+
+    /**
+     * Writes the copied records of a compaction into temporary files, they become segments on the switch
+     */
+    private inner class SegmentCopier {
+        val outputs = ArrayList<Pair<Long, File>>()
+        val copied = ArrayList<Triple<String, Int, Long>>()
+        private var stream: FileOutputStream? = null
+        private var written = 0L
+
+        fun copy(id: String, record: ByteArray) {
+            if (stream == null || written > 0 && written + record.size > maxSegmentSize) {
+                stream?.let { close(it) }
+                val segmentId = nextSegmentId.getAndIncrement()
+                val file = File(directory, LogSegment.fileName(segmentId) + COMPACT_SUFFIX)
+                outputs.add(segmentId to file)
+                stream = FileOutputStream(file)
+                written = 0
+            }
+            copied.add(Triple(id, outputs.size - 1, written))
+            stream!!.write(record)
+            written += record.size
+        }
+
+        fun finish() {
+            stream?.let { close(it) }
+            stream = null
+        }
+
+        fun abort() {
+            try {
+                stream?.close()
+            } catch (ignored: IOException) {
+            }
+            stream = null
+            outputs.forEach { (_, file) -> file.delete() }
+        }
+
+        private fun close(stream: FileOutputStream) {
+            stream.fd.sync()
+            stream.close()
+        }
+    }
+
+    private fun switchSegments(inputs: List<LogSegment>, live: List<Pair<String, Location>>, copier: SegmentCopier) {
+        writeManifest(inputs.map { it.id }, copier.outputs.map { it.first })
+        val outputs = copier.outputs.map { (id, file) ->
+            file.renameTo(File(directory, LogSegment.fileName(id)))
+            LogSegment(id, File(directory, LogSegment.fileName(id))).apply { seal() }
+        }
+        val previous = live.toMap()
+        for ((id, output, offset) in copier.copied) {
+            val old = previous.getValue(id)
+            val segment = outputs[output]
+            val location = Location(segment, offset, old.length, old.sequence, old.expiresAt,
+                    offset + (old.valueOffset - old.offset), old.valueLength)
+            if (locations[id] === old) {
+                locations[id] = location
+            } else {
+                // saved or removed while it was copied
+                segment.deadBytes += old.length
+            }
+        }
+        // the expired entities were not copied
+        live.forEach { (id, old) -> if (locations[id] === old) locations.remove(id) }
+        segments.removeAll(inputs)
+        segments.addAll(0, outputs)
+        inputs.forEach { it.delete() }
+        File(directory, MANIFEST).delete()
+    }
+
+    private fun read(location: Location): ByteArray = location.segment.read(location.valueOffset, location.valueLength)
+
+    /**
+     * @return the active segment, a new one if the records do not fit into the current one
+     */
+    private fun segmentFor(size: Int): LogSegment {
+        if (active.size > 0 && active.size + size > maxSegmentSize) {
+            active.seal()
+            active = newSegment()
+        }
+        return active
+    }
+
+    private fun newSegment(): LogSegment {
+        val id = nextSegmentId.getAndIncrement()
+        val segment = LogSegment(id, File(directory, LogSegment.fileName(id)))
+        segments.add(segment)
+        return segment
+    }
+
+    private fun encodeId(id: String): ByteArray {
+        val bytes = id.toByteArray(Charsets.UTF_8)
+        Preconditions.checkArgument(bytes.size <= MAX_ID_LENGTH, "_id is too long: %s", id)
+        return bytes
+    }
+
+    private fun open() {
+        if (!directory.isDirectory && !directory.mkdirs()) {
+            throw IOException("Cannot create the cache folder ${directory.path}")
+        }
+        finishSwitch()
+        directory.listFiles { file -> file.name.endsWith(COMPACT_SUFFIX) }?.forEach { it.delete() }
+        val files = directory.listFiles()?.mapNotNull { file -> LogSegment.idOf(file)?.let { it to file } }?.sortedBy { it.first }
+                ?: emptyList()
+        val removed = HashMap<String, Long>()
+        var clearedBefore = -1L
+        for ((id, file) in files) {
+            nextSegmentId.set(Math.max(nextSegmentId.get(), id + 1))
+            val segment = LogSegment(id, file)
+            val cut = segment.recover { record ->
+                nextSequence = Math.max(nextSequence, record.sequence + 1)
+                when (record.type) {
+                    LogSegment.PUT -> {
+                        val current = locations[record.id]
+                        if (record.sequence > clearedBefore && record.sequence > removed[record.id] ?: -1L
+                                && (current == null || current.sequence < record.sequence)) {
+                            current?.let { it.segment.deadBytes += it.length }
+                            locations[record.id] = Location(segment, record.offset, record.length, record.sequence,
+                                    record.expiresAt, record.valueOffset, record.valueLength)
+                        } else {
+                            segment.deadBytes += record.length
+                        }
+                    }
+                    LogSegment.DELETE -> {
+                        segment.deadBytes += record.length
+                        removed[record.id] = Math.max(record.sequence, removed[record.id] ?: -1L)
+                        val current = locations[record.id]
+                        if (current != null && current.sequence < record.sequence) {
+                            locations.remove(record.id)
+                            current.segment.deadBytes += current.length
+                        }
+                    }
+                    LogSegment.CLEAR -> {
+                        segment.deadBytes += record.length
+                        clearedBefore = Math.max(clearedBefore, record.sequence)
+                        val iterator = locations.values.iterator()
+                        while (iterator.hasNext()) {
+                            val location = iterator.next()
+                            if (location.sequence < record.sequence) {
+                                location.segment.deadBytes += location.length
+                                iterator.remove()
+                            }
+                        }
+                    }
+                    else -> segment.deadBytes += record.length
+                }
+            }
+            if (cut) {
+                Logger.WARNING("Dropped a torn record at the end of ${directory.name}/${file.name}")
+            }
+            if (segment.size == 0L) {
+                segment.delete()
+            } else {
+                segment.seal()
+                segments.add(segment)
+            }
+        }
+        // records are appended to a new segment, so the recovered ones stay immutable
+        active = newSegment()
+    }
+
+    /**
+     * Finishes a segment switch interrupted by a crash, the copied segments are complete once the manifest exists
+     */
+    private fun finishSwitch() {
+        val manifest = File(directory, MANIFEST)
+        if (!manifest.exists()) {
+            return
+        }
+        val properties = Properties()
+        FileInputStream(manifest).use { properties.load(it) }
+        ids(properties.getProperty(OUTPUTS)).forEach { id ->
+            val copy = File(directory, LogSegment.fileName(id) + COMPACT_SUFFIX)
+            if (copy.exists()) {
+                copy.renameTo(File(directory, LogSegment.fileName(id)))
+            }
+        }
+        ids(properties.getProperty(INPUTS)).forEach { File(directory, LogSegment.fileName(it)).delete() }
+        manifest.delete()
+    }
+
+    private fun writeManifest(inputs: List<Long>, outputs: List<Long>) {
+        val properties = Properties()
+        properties.setProperty(INPUTS, inputs.joinToString(","))
+        properties.setProperty(OUTPUTS, outputs.joinToString(","))
+        val temp = File(directory, "$MANIFEST.tmp")
+        FileOutputStream(temp).use { stream ->
+            properties.store(stream, null)
+            stream.fd.sync()
+        }
+        val manifest = File(directory, MANIFEST)
+        if (!temp.renameTo(manifest)) {
+            manifest.delete()
+            if (!temp.renameTo(manifest)) {
+                throw IOException("Cannot write the compaction manifest of ${directory.name}")
+            }
+        }
+    }
+
+    private fun ids(value: String?): List<Long> = value?.split(',')?.mapNotNull { it.trim().toLongOrNull() } ?: emptyList()
+
+    private inline fun <E> Iterable<E>.sumByLong(selector: (E) -> Long): Long {
+        var sum = 0L
+        for (element in this) {
+            sum += selector(element)
+        }
+        return sum
+    }
+
+    companion object {
+        private const val MAX_ID_LENGTH = 0xFFFF
+        private const val MAX_SMALL_SEGMENTS = 8
+        private const val COMPACT_SUFFIX = ".compact"
+        private const val MANIFEST = "COMPACTION"
+        private const val INPUTS = "inputs"
+        private const val OUTPUTS = "outputs"
+    }
+}
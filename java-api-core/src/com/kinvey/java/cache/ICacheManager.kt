@@ -32,6 +32,13 @@ interface ICacheManager {
      */
     fun <T : GenericJson> getCache(collection: String?, collectionItemClass: Class<T>?, ttl: Long?): ICache<T>?
 
+    /**
+     * Get the item class of the cache opened for the collection
+     * @param collection Name of the collection
+     * @return the collectionItemClass the cache of the collection has been opened with, null if it has not been opened
+     */
+    fun getCollectionItemClass(collection: String?): Class<out GenericJson>? = null
+
     /**
      * Delete all collections
      */
@@ -0,0 +1,150 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+
+package com.kinvey.java.cache
+
+import com.google.api.client.json.GenericJson
+import com.google.api.client.json.JsonFactory
+import com.google.api.client.util.Types
+import com.kinvey.java.Constants
+import com.kinvey.java.Query
+import com.kinvey.java.model.AggregateType
+import com.kinvey.java.model.Aggregation
+import java.util.ArrayList
+import java.util.LinkedHashMap
+import java.util.LinkedHashSet
+import java.util.UUID
+
+/**
+ * [ICache] of a collection of the [InMemoryCacheManager].
+ *
+ * Saved entities are copied into the collection and every read returns copies, so changes of the returned
+ * objects do not change the cache. An entity is visible until [ttl] milliseconds after it was saved.
+ * Entities without `_id` get a temporary one like in the other caches.
+ */
+class InMemoryCache<T : GenericJson> internal constructor(private val collection: InMemoryCollection,
+                                                           private val collectionItemClass: Class<T>,
+                                                           ttl: Long,
+                                                           private val jsonFactory: JsonFactory?) : ICache<T> {
+
+    override var ttl: Long = Math.max(ttl, 0)
+
+    override var isAddCount: Boolean? = false
+
+    override val first: T?
+        get() = collection.first(now())?.let { copy(it) }
+
+    override fun get(query: Query?): List<T> = find(query).map { copy(it) }
+
+    override fun get(ids: Iterable<String>): List<T> = collection.get(ids, now()).map { copy(it) }
+
+    override fun get(id: String): T? = collection.get(id, now())?.let { copy(it) }
+
+    override fun get(): List<T> = collection.getAll(now()).map { copy(it) }
+
+    override fun save(items: Iterable<T>?): List<T> {
+        val saved = items?.toList() ?: return emptyList()
+        collection.put(saved.map { store(it) }, expiresAt())
+        return saved
+    }
+
+    override fun save(item: T?): T? {
+        item ?: return null
+        collection.put(listOf(store(item)), expiresAt())
+        return item
+    }
+
+    override fun delete(query: Query?): Int {
+        return collection.remove(find(query).map { it[Constants._ID].toString() })
+    }
+
+    override fun delete(ids: Iterable<String>): Int = collection.remove(ids)
+
+    override fun delete(id: String): Int = collection.remove(listOf(id))
+
+    override fun clear() = collection.clear()
+
+    override fun getFirst(q: Query): T? = find(q).firstOrNull()?.let { copy(it) }
+
+    override fun count(q: Query?): Long = collection.find(q?.queryFilterMap as Map<String, Any?>?, now()).size.toLong()
+
+    override fun group(aggregateType: AggregateType, fields: ArrayList<String>, reduceField: String?, q: Query): Array<Aggregation.Result> {
+        return CacheQueries.group(collection.find(q.queryFilterMap as Map<String, Any?>?, now()), aggregateType, fields, reduceField)
+    }
+
+    /**
+     * @return entities matching the query, sorted and paged like the query requires
+     */
+    private fun find(query: Query?): List<GenericJson> {
+        return CacheQueries.sortAndPage(collection.find(query?.queryFilterMap as Map<String, Any?>?, now()), query)
+    }
+
+    private fun store(item: T): GenericJson {
+        if (item[Constants._ID] == null) {
+            item[Constants._ID] = TEMP_ID + UUID.randomUUID().toString()
+        }
+        return deepCopy(item)
+    }
+
+    private fun copy(item: GenericJson): T {
+        if (item.javaClass == collectionItemClass) {
+            return collectionItemClass.cast(deepCopy(item))
+        }
+        // the collection was saved with another entity class
+        val factory = jsonFactory ?: item.factory
+        if (factory != null) {
+            return factory.fromString(factory.toString(item), collectionItemClass)
+        }
+        val result = Types.newInstance(collectionItemClass)
+        result.putAll(deepCopy(item))
+        return result
+    }
+
+    private fun expiresAt(): Long {
+        val now = now()
+        return if (now + ttl < 0) Long.MAX_VALUE else now + ttl
+    }
+
+    private fun now(): Long = System.currentTimeMillis()
+
+    companion object {
+        private const val TEMP_ID = "temp_"
+
+        /**
+         * Copies the entity with its embedded entities, lists, maps and arrays.
+         * Unlike [GenericJson.clone] it does not need the list classes of the entity to be instantiable,
+         * so entities holding immutable lists can be copied.
+         */
+        internal fun <J : GenericJson> deepCopy(item: J): J {
+            val result = Types.newInstance(item.javaClass)
+            result.factory = item.factory
+            item.forEach { (key, value) -> result[key] = copyValue(value) }
+            return result
+        }
+
+        private fun copyValue(value: Any?): Any? {
+            return when (value) {
+                is GenericJson -> deepCopy(value)
+                is List<*> -> value.mapTo(ArrayList(value.size)) { copyValue(it) }
+                is Set<*> -> value.mapTo(LinkedHashSet()) { copyValue(it) }
+                is Map<*, *> -> value.entries.associateTo(LinkedHashMap()) { it.key to copyValue(it.value) }
+                is Array<*> -> value.copyOf()
+                else -> value
+            }
+        }
+    }
+}
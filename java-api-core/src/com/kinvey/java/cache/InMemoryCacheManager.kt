@@ -0,0 +1,77 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+
+package com.kinvey.java.cache
+
+import com.google.api.client.json.GenericJson
+import com.google.api.client.json.JsonFactory
+import com.google.common.base.Preconditions
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * [ICacheManager] which keeps the collections in the heap, for JVM applications which have no local database.
+ * It makes [com.kinvey.java.store.StoreType.CACHE], [com.kinvey.java.store.StoreType.AUTO] and
+ * [com.kinvey.java.store.StoreType.SYNC] usable, the data is lost when the process ends.
+ *
+ * Entities are indexed by `_id`, fields used to filter queries can be indexed with [addIndex]
+ * to answer equality, `$in` and range conditions without scanning the collection.
+ * Each collection has its own lock, so queries of different collections never wait for each other.
+ *
+ * @param jsonFactory factory used to convert entities read with another class than they were saved with,
+ * the factory of the saved entity is used if it is null
+ */
+class InMemoryCacheManager @JvmOverloads constructor(private val jsonFactory: JsonFactory? = null) : ICacheManager {
+
+    private val collections = ConcurrentHashMap<String, InMemoryCollection>()
+    private val itemClasses = ConcurrentHashMap<String, Class<out GenericJson>>()
+
+    /**
+     * Declares an index of the field of the collection, dotted paths index fields of embedded objects.
+     * The entities already in the collection are indexed at once.
+     */
+    fun addIndex(collection: String, field: String) {
+        Preconditions.checkNotNull(collection, "collection must not be null")
+        Preconditions.checkNotNull(field, "field must not be null")
+        collection(collection).addIndex(field)
+    }
+
+    /**
+     * @return the fields of the collection which are indexed
+     */
+    fun getIndexes(collection: String): Set<String> = collections[collection]?.indexedFields ?: emptySet()
+
+    override fun <T : GenericJson> getCache(collection: String?, collectionItemClass: Class<T>?, ttl: Long?): ICache<T>? {
+        val name = collection ?: throw NullPointerException("collection must not be null")
+        val itemClass = collectionItemClass ?: throw NullPointerException("collectionItemClass must not be null")
+        itemClasses[name] = itemClass
+        return InMemoryCache(collection(name), itemClass, ttl ?: Long.MAX_VALUE, jsonFactory)
+    }
+
+    override fun getCollectionItemClass(collection: String?): Class<out GenericJson>? = collection?.let { itemClasses[it] }
+
+    override fun clear() {
+        collections.values.forEach { it.clear() }
+    }
+
+    override fun <T : GenericJson> clearCollection(collection: String?, collectionItemClass: Class<T>?, ttl: Long?) {
+        collection?.let { collections[it]?.clear() }
+    }
+
+    private fun collection(name: String): InMemoryCollection {
+        return collections[name] ?: InMemoryCollection(name).let { created -> collections.putIfAbsent(name, created) ?: created }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+
+package com.kinvey.java.cache
+
+import com.google.api.client.json.GenericJson
+import com.kinvey.java.Constants
+import com.kinvey.java.query.QueryCompiler
+import java.util.ArrayList
+import java.util.HashSet
+import java.util.LinkedHashMap
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+
+/**
+ * Entities of one collection of the [InMemoryCacheManager].
+ *
+ * Every collection has its own read-write lock, so readers of a collection run in parallel and writers block only
+ * the users of the same collection. Stored entities are never modified, a save replaces the entity, so the caches
+ * copy them outside of the lock.
+ */
+internal class InMemoryCollection(val name: String) {
+
+    /**
+     * @param sequence position of the entity in the order the entities were first saved
+     */
+    class Entry(val item: GenericJson, val expiresAt: Long, val sequence: Long)
+
+    private val lock = ReentrantReadWriteLock()
+    private val items = LinkedHashMap<String, Entry>()
+    private val indexes = LinkedHashMap<String, SecondaryIndex>()
+    private val timers = TimerWheel()
+    private var nextSequence = 0L
+
+    @Volatile
+    private var lastPurgeTick = -1L
+
+    @Volatile
+    private var hasTimers = false
+
+    val indexedFields: Set<String>
+        get() = lock.read { HashSet(indexes.keys) }
+
+    /**
+     * Declares an index of the field and indexes the stored entities
+     */
+    fun addIndex(field: String) {
+        lock.write {
+            if (!indexes.containsKey(field)) {
+                val index = SecondaryIndex(field)
+                items.forEach { (id, entry) -> index.add(id, entry.item) }
+                indexes[field] = index
+            }
+        }
+    }
+
+    fun first(now: Long): GenericJson? {
+        purgeExpired(now)
+        return lock.read { items.values.firstOrNull { it.expiresAt >= now }?.item }
+    }
+
+    fun get(id: String, now: Long): GenericJson? {
+        purgeExpired(now)
+        return lock.read { items[id]?.takeIf { it.expiresAt >= now }?.item }
+    }
+
+    fun get(ids: Iterable<String>, now: Long): List<GenericJson> {
+        purgeExpired(now)
+        return lock.read { ids.mapNotNull { id -> items[id]?.takeIf { it.expiresAt >= now }?.item } }
+    }
+
+    fun getAll(now: Long): List<GenericJson> {
+        purgeExpired(now)
+        return lock.read { items.values.filter { it.expiresAt >= now }.map { it.item } }
+    }
+
+    /**
+     * @return entities matching the filter, in the order they were first saved
+     */
+    fun find(filter: Map<String, Any?>?, now: Long): List<GenericJson> {
+        purgeExpired(now)
+        val predicate = QueryCompiler.compile(filter)
+        return lock.read {
+            val candidates = candidates(filter)
+            val entries = if (candidates == null) items.values else candidates.mapNotNull { items[it] }.sortedBy { it.sequence }
+            entries.filter { it.expiresAt >= now && predicate.matches(it.item) }.map { it.item }
+        }
+    }
+
+    fun put(items: List<GenericJson>, expiresAt: Long) {
+        lock.write {
+            items.forEach { item ->
+                val id = item[Constants._ID].toString()
+                val old = this.items[id]
+                old?.let { indexes.values.forEach { it.remove(id, old.item) } }
+                this.items[id] = Entry(item, expiresAt, old?.sequence ?: nextSequence++)
+                indexes.values.forEach { it.add(id, item) }
+                timers.schedule(id, expiresAt)
+            }
+            hasTimers = timers.size > 0
+        }
+    }
+
+    fun remove(ids: Iterable<String>): Int {
+        return lock.write { ids.count { removeEntry(it) != null } }
+    }
+
+    fun clear() {
+        lock.write {
+            items.clear()
+            indexes.values.forEach { it.clear() }
+            timers.clear()
+            hasTimers = false
+        }
+    }
+
+    /**
+     * Removes the entities whose time to live has passed, the timer wheel is advanced at most once per tick
+     */
+    private fun purgeExpired(now: Long) {
+        val tick = now / TimerWheel.DEFAULT_TICK_MILLIS
+        if (!hasTimers || tick == lastPurgeTick) {
+            return
+        }
+        lock.write {
+            lastPurgeTick = tick
+            timers.advance(now).forEach { timer ->
+                // the entity may have been saved again with another deadline
+                if (items[timer.id]?.expiresAt == timer.deadline) {
+                    removeEntry(timer.id)
+                }
+            }
+            hasTimers = timers.size > 0
+        }
+    }
+
+    private fun removeEntry(id: String): Entry? {
+        val entry = items.remove(id) ?: return null
+        indexes.values.forEach { it.remove(id, entry.item) }
+        return entry
+    }
+
+    /**
+     * Narrows the entities to check by the indexes of the fields the filter requires
+     * @return ids of the candidates or null if no index applies
+     */
+    private fun candidates(filter: Map<String, Any?>?): Set<String>? {
+        if (filter == null || indexes.isEmpty()) {
+            return null
+        }
+        val conditions = ArrayList<Pair<String, Any?>>()
+        collectConditions(filter, conditions)
+        var result: Set<String>? = null
+        for ((field, condition) in conditions) {
+            val ids = indexes[field]?.lookup(condition) ?: continue
+            result = if (result == null) ids else intersect(result, ids)
+        }
+        return result
+    }
+
+    private fun intersect(a: Set<String>, b: Set<String>): Set<String> {
+        val (smaller, larger) = if (a.size < b.size) a to b else b to a
+        return smaller.filterTo(HashSet()) { larger.contains(it) }
+    }
+
+    private fun collectConditions(filter: Map<*, *>, conditions: MutableList<Pair<String, Any?>>) {
+        filter.forEach { (key, condition) ->
+            when (key) {
+                QueryCompiler.AND -> QueryCompiler.subFilters(condition).forEach { collectConditions(it, conditions) }
+                QueryCompiler.OR -> Unit
+                else -> conditions.add(key.toString() to condition)
+            }
+        }
+    }
+}
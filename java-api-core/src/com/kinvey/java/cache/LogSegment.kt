@@ -0,0 +1,214 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+package com.kinvey.java.cache
+
+import java.io.Closeable
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.util.zip.CRC32
+
+/**
+ * Segment file of the log of a [DiskCollection].
+ *
+ * Records are only appended to the active segment, once it is full it is sealed and memory-mapped for reads.
+ * A record is stored as
+ *
+ *     length: int, crc32 of the body: int,
+ *     body: type: byte, sequence: long, expiresAt: long, id length: short, id: UTF-8, value: UTF-8 JSON
+ *
+ * so a torn write at the end of a segment is detected by the length or the checksum on recovery.
+ */
+internal class LogSegment(val id: Long, val file: File) : Closeable {
+
+    /**
+     * Decoded header of a record, [offset] is the position of the record in the segment
+     */
+    class Record(val offset: Long, val length: Int, val type: Byte, val sequence: Long, val expiresAt: Long,
+                 val id: String, val valueOffset: Long, val valueLength: Int)
+
+    private val channel: FileChannel = RandomAccessFile(file, "rw").channel
+    private var mapped: MappedByteBuffer? = null
+
+    @Volatile
+    var size: Long = channel.size()
+        private set
+
+    /**
+     * Bytes of the records which are replaced, removed or expired, changed only under the lock of the collection
+     */
+    var deadBytes = 0L
+
+    val isSealed: Boolean
+        get() = mapped != null
+
+    /**
+     * Appends the encoded records
+     * @return offset of the first record
+     */
+    @Throws(IOException::class)
+    fun append(records: ByteBuffer, force: Boolean): Long {
+        val offset = size
+        var position = offset
+        while (records.hasRemaining()) {
+            position += channel.write(records, position)
+        }
+        if (force) {
+            channel.force(false)
+        }
+        size = position
+        return offset
+    }
+
+    /**
+     * Maps the segment for reads, nothing is appended to a sealed segment
+     */
+    @Throws(IOException::class)
+    fun seal() {
+        if (mapped == null) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size)
+        }
+    }
+
+    @Throws(IOException::class)
+    fun read(offset: Long, length: Int): ByteArray {
+        val result = ByteArray(length)
+        val buffer = mapped
+        if (buffer != null) {
+            // a duplicate has its own position, so readers do not interfere
+            val view = buffer.duplicate()
+            view.position(offset.toInt())
+            view.get(result)
+        } else {
+            val target = ByteBuffer.wrap(result)
+            while (target.hasRemaining()) {
+                if (channel.read(target, offset + target.position()) < 0) {
+                    throw IOException("Unexpected end of segment ${file.name}")
+                }
+            }
+        }
+        return result
+    }
+
+    /**
+     * Reads the records of the segment and cuts the segment after the last valid record,
+     * which drops a record torn by a crash while it was written.
+     *
+     * @return true if the segment was cut
+     */
+    @Throws(IOException::class)
+    fun recover(visitor: (Record) -> Unit): Boolean {
+        val buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size)
+        val crc = CRC32()
+        var body = ByteArray(256)
+        var position = 0
+        while (position + HEADER_SIZE <= size) {
+            val length = buffer.getInt(position)
+            val checksum = buffer.getInt(position + 4)
+            if (length < BODY_HEADER_SIZE || position + HEADER_SIZE + length > size) {
+                break
+            }
+            if (body.size < length) {
+                body = ByteArray(Math.max(length, body.size * 2))
+            }
+            buffer.position(position + HEADER_SIZE)
+            buffer.get(body, 0, length)
+            crc.reset()
+            crc.update(body, 0, length)
+            if (crc.value.toInt() != checksum) {
+                break
+            }
+            val bodyBuffer = ByteBuffer.wrap(body, 0, length)
+            val type = bodyBuffer.get()
+            val sequence = bodyBuffer.long
+            val expiresAt = bodyBuffer.long
+            val idLength = bodyBuffer.short.toInt() and 0xFFFF
+            if (BODY_HEADER_SIZE + idLength > length) {
+                break
+            }
+            val recordId = String(body, BODY_HEADER_SIZE, idLength, Charsets.UTF_8)
+            val valueOffset = position + HEADER_SIZE + BODY_HEADER_SIZE + idLength
+            visitor(Record(position.toLong(), HEADER_SIZE + length, type, sequence, expiresAt, recordId,
+                    valueOffset.toLong(), length - BODY_HEADER_SIZE - idLength))
+            position += HEADER_SIZE + length
+        }
+        if (position < size) {
+            channel.truncate(position.toLong())
+            size = position.toLong()
+            return true
+        }
+        return false
+    }
+
+    @Throws(IOException::class)
+    fun force() = channel.force(false)
+
+    override fun close() {
+        mapped = null
+        channel.close()
+    }
+
+    /**
+     * Closes and deletes the segment file
+     */
+    fun delete() {
+        close()
+        file.delete()
+    }
+
+    companion object {
+        const val PUT: Byte = 1
+        const val DELETE: Byte = 2
+        const val CLEAR: Byte = 3
+
+        const val HEADER_SIZE = 8
+        const val BODY_HEADER_SIZE = 19
+
+        const val SUFFIX = ".log"
+
+        fun fileName(id: Long): String = String.format("%016d%s", id, SUFFIX)
+
+        fun idOf(file: File): Long? = file.name.removeSuffix(SUFFIX).takeIf { file.name.endsWith(SUFFIX) }?.toLongOrNull()
+
+        /**
+         * @return size of the encoded record
+         */
+        fun sizeOf(id: ByteArray, value: ByteArray?): Int = HEADER_SIZE + BODY_HEADER_SIZE + id.size + (value?.size ?: 0)
+
+        /**
+         * Encodes the record into the buffer
+         */
+        fun encode(buffer: ByteBuffer, type: Byte, sequence: Long, expiresAt: Long, id: ByteArray, value: ByteArray?) {
+            val start = buffer.position()
+            val length = BODY_HEADER_SIZE + id.size + (value?.size ?: 0)
+            buffer.putInt(length)
+            buffer.putInt(0)
+            buffer.put(type)
+            buffer.putLong(sequence)
+            buffer.putLong(expiresAt)
+            buffer.putShort(id.size.toShort())
+            buffer.put(id)
+            value?.let { buffer.put(it) }
+            val crc = CRC32()
+            crc.update(buffer.array(), buffer.arrayOffset() + start + HEADER_SIZE, length)
+            buffer.putInt(start + 4, crc.value.toInt())
+        }
+    }
+}
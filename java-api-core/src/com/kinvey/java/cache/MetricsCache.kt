@@ -0,0 +1,104 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+package com.kinvey.java.cache
+
+import com.google.api.client.json.GenericJson
+import com.kinvey.java.Metrics
+import com.kinvey.java.Query
+import com.kinvey.java.model.AggregateType
+import com.kinvey.java.model.Aggregation
+import java.util.ArrayList
+
+/**
+ * [ICache] which records the latency of reads, saves and deletes and the cache hits into [Metrics],
+ * every call is passed to the wrapped cache as is.
+ *
+ * A read by id is a hit if the entity is found, a read by ids counts a hit or a miss for every id,
+ * a read by query is a hit if it finds anything.
+ */
+class MetricsCache<T : GenericJson?>(val cache: ICache<T>, collectionName: String?, metrics: Metrics) : ICache<T> {
+
+    private val reads = metrics.entry(collectionName, Metrics.OP_CACHE_READ)
+    private val saves = metrics.entry(collectionName, Metrics.OP_CACHE_SAVE)
+    private val deletes = metrics.entry(collectionName, Metrics.OP_CACHE_DELETE)
+
+    override val first: T?
+        get() = read { cache.first }.also { reads.recordCacheLookup(if (it != null) 1 else 0, if (it != null) 0 else 1) }
+
+    override var isAddCount: Boolean?
+        get() = cache.isAddCount
+        set(value) {
+            cache.isAddCount = value
+        }
+
+    override var ttl: Long
+        get() = cache.ttl
+        set(value) {
+            cache.ttl = value
+        }
+
+    override fun get(query: Query?): List<T> = read { cache[query] }.also { recordList(it) }
+
+    override fun get(ids: Iterable<String>): List<T> {
+        val result = read { cache[ids] }
+        val requested = (ids as? Collection<String>)?.size ?: ids.count()
+        reads.recordCacheLookup(result.size.toLong(), (requested - result.size).toLong())
+        return result
+    }
+
+    override fun get(id: String): T? = read { cache[id] }.also { reads.recordCacheLookup(if (it != null) 1 else 0, if (it != null) 0 else 1) }
+
+    override fun get(): List<T> = read { cache.get() }.also { recordList(it) }
+
+    override fun save(items: Iterable<T>?): List<T> = measure(saves) { cache.save(items) }
+
+    override fun save(item: T?): T? = measure(saves) { cache.save(item) }
+
+    override fun delete(query: Query?): Int = measure(deletes) { cache.delete(query) }
+
+    override fun delete(ids: Iterable<String>): Int = measure(deletes) { cache.delete(ids) }
+
+    override fun delete(id: String): Int = measure(deletes) { cache.delete(id) }
+
+    override fun clear() = measure(deletes) { cache.clear() }
+
+    override fun getFirst(q: Query): T? = read { cache.getFirst(q) }.also { reads.recordCacheLookup(if (it != null) 1 else 0, if (it != null) 0 else 1) }
+
+    override fun count(q: Query?): Long = read { cache.count(q) }
+
+    override fun group(aggregateType: AggregateType, fields: ArrayList<String>, reduceField: String?, q: Query): Array<Aggregation.Result> {
+        return read { cache.group(aggregateType, fields, reduceField, q) }
+    }
+
+    private fun recordList(result: List<T>) {
+        reads.recordCacheLookup(if (result.isEmpty()) 0 else 1, if (result.isEmpty()) 1 else 0)
+    }
+
+    private inline fun <R> read(block: () -> R): R = measure(reads, block)
+
+    private inline fun <R> measure(entry: Metrics.Entry, block: () -> R): R {
+        val start = System.nanoTime()
+        var success = false
+        try {
+            val result = block()
+            success = true
+            return result
+        } finally {
+            entry.record(System.nanoTime() - start, success)
+        }
+    }
+}
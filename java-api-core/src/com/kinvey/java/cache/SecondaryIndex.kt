@@ -0,0 +1,107 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+
+package com.kinvey.java.cache
+
+import com.kinvey.java.query.JsonValues
+import com.kinvey.java.query.QueryCompiler
+import java.util.HashSet
+import java.util.NavigableMap
+import java.util.TreeMap
+
+/**
+ * Ordered index of the values of one field of the entities of a collection.
+ *
+ * Every element of an array field is indexed, null and missing values are not indexed.
+ * [lookup] answers equality, `$in` and range conditions with a superset of the matching ids,
+ * the caller still evaluates the whole query on the candidates.
+ *
+ * Not thread-safe, it is used under the lock of its collection.
+ */
+internal class SecondaryIndex(val field: String) {
+
+    private val entries = TreeMap<Any, MutableSet<String>>(JsonValues)
+
+    fun add(id: String, item: Map<*, *>) {
+        keys(item).forEach { key -> entries.getOrPut(key) { HashSet() }.add(id) }
+    }
+
+    fun remove(id: String, item: Map<*, *>) {
+        keys(item).forEach { key ->
+            val ids = entries[key]
+            if (ids != null) {
+                ids.remove(id)
+                if (ids.isEmpty()) {
+                    entries.remove(key)
+                }
+            }
+        }
+    }
+
+    fun clear() {
+        entries.clear()
+    }
+
+    /**
+     * @return ids of the entities which may match the condition or null if the index cannot answer it
+     */
+    fun lookup(condition: Any?): Set<String>? {
+        if (condition == null || QueryCompiler.isList(condition)) {
+            return null
+        }
+        if (condition !is Map<*, *>) {
+            return entries[condition] ?: emptySet()
+        }
+        if (!QueryCompiler.isOperatorMap(condition)) {
+            return null
+        }
+        var result: Set<String>? = null
+        condition["\$eq"]?.let { operand -> if (!QueryCompiler.isList(operand)) result = entries[operand] ?: emptySet() }
+        condition["\$in"]?.let { operand ->
+            val values = QueryCompiler.toList(operand)
+            if (values.none { it == null || QueryCompiler.isList(it) }) {
+                result = intersect(result, values.flatMapTo(HashSet<String>()) { entries[it] ?: emptySet<String>() })
+            }
+        }
+        range(condition)?.let { range -> result = intersect(result, range.values.flatMapTo(HashSet<String>()) { it }) }
+        return result
+    }
+
+    private fun range(condition: Map<*, *>): NavigableMap<Any, MutableSet<String>>? {
+        val lower = condition["\$gt"] ?: condition["\$gte"]
+        val upper = condition["\$lt"] ?: condition["\$lte"]
+        if (lower == null && upper == null) {
+            return null
+        }
+        var range: NavigableMap<Any, MutableSet<String>> = entries
+        if (lower != null) {
+            range = range.tailMap(lower, condition.containsKey("\$gte"))
+        }
+        if (upper != null) {
+            range = range.headMap(upper, condition.containsKey("\$lte"))
+        }
+        return range
+    }
+
+    private fun intersect(a: Set<String>?, b: Set<String>): Set<String> {
+        return if (a == null) b else a.filterTo(HashSet()) { b.contains(it) }
+    }
+
+    private fun keys(item: Map<*, *>): List<Any> {
+        return QueryCompiler.toList(QueryCompiler.valueAt(item, field)).filterNotNull()
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+
+package com.kinvey.java.cache
+
+import java.util.ArrayList
+
+/**
+ * Hashed timer wheel of the expiration times of cached entities.
+ *
+ * Deadlines are kept in [wheelSize] slots of [tickMillis] each, a deadline further than one turn of the wheel
+ * stays in its slot until the turn it is due. [advance] visits only the slots of the ticks passed since the last call,
+ * so expired entities are found without scanning the collection.
+ *
+ * Not thread-safe, it is used under the write lock of its collection.
+ */
+internal class TimerWheel(private val tickMillis: Long = DEFAULT_TICK_MILLIS, private val wheelSize: Int = DEFAULT_WHEEL_SIZE) {
+
+    class Timer(val id: String, val deadline: Long)
+
+    private val slots = Array(wheelSize) { ArrayList<Timer>() }
+    private var lastTick = -1L
+
+    var size = 0
+        private set
+
+    /**
+     * Schedules the expiration of the entity, [Long.MAX_VALUE] deadlines are never scheduled.
+     * An entity saved again gets a new timer, the stale one is ignored by the collection when it is due.
+     */
+    fun schedule(id: String, deadline: Long) {
+        if (deadline == Long.MAX_VALUE) {
+            return
+        }
+        val tick = Math.max(deadline / tickMillis, lastTick)
+        slots[slot(tick)].add(Timer(id, deadline))
+        size++
+    }
+
+    /**
+     * @return true if a tick has passed since the last [advance]
+     */
+    fun isDue(now: Long): Boolean = size > 0 && now / tickMillis != lastTick
+
+    /**
+     * Removes the timers whose deadline is before now
+     * @return the removed timers
+     */
+    fun advance(now: Long): List<Timer> {
+        val nowTick = now / tickMillis
+        val expired = ArrayList<Timer>()
+        if (size > 0) {
+            val firstTick = if (lastTick < 0 || nowTick - lastTick >= wheelSize) nowTick - wheelSize + 1 else lastTick
+            for (tick in firstTick..nowTick) {
+                val slot = slots[slot(tick)]
+                if (slot.isEmpty()) {
+                    continue
+                }
+                val iterator = slot.iterator()
+                while (iterator.hasNext()) {
+                    val timer = iterator.next()
+                    if (timer.deadline < now) {
+                        iterator.remove()
+                        expired.add(timer)
+                    }
+                }
+            }
+            size -= expired.size
+        }
+        lastTick = nowTick
+        return expired
+    }
+
+    fun clear() {
+        slots.forEach { it.clear() }
+        size = 0
+    }
+
+    private fun slot(tick: Long): Int = ((tick % wheelSize + wheelSize) % wheelSize).toInt()
+
+    companion object {
+        const val DEFAULT_TICK_MILLIS = 1000L
+        const val DEFAULT_WHEEL_SIZE = 512
+    }
+}
@@ -25,6 +25,7 @@ import com.google.api.client.json.JsonObjectParser
 import com.google.api.client.util.ObjectParser
 import com.kinvey.java.KinveyException
 import com.kinvey.java.Logger.Companion.INFO
+import com.kinvey.java.Metrics
 import com.kinvey.java.store.BaseFileStore
 import com.kinvey.java.store.StoreType
 import java.io.IOException
@@ -39,7 +40,8 @@ abstract class AbstractKinveyClient protected constructor(transport: HttpTranspo
                                                            *  @return the kinveyRequestInitializer
                                                            */
                                                           open var kinveyRequestInitializer: KinveyRequestInitializer?,
-                                                          /** the http request backoff policy  */
+                                                          /** the http request backoff policy, not used by the requests  */
+                                                          @Deprecated("Failed requests are retried by the retryEngine of the client")
                                                           open val backoffPolicy: BackOffPolicy?) {
     /** the noramlized root url for the service
      * Returns root url for this service with a trailing "/".
@@ -60,13 +62,25 @@ abstract class AbstractKinveyClient protected constructor(transport: HttpTranspo
     /** the http request factory.  */
     val requestFactory: HttpRequestFactory?
 
+    /**
+     * Counters and latencies of the requests, cache and file operations made through this client,
+     * register a [Metrics.Listener] to export them.
+     */
+    val metrics = Metrics()
+
+    /**
+     * Retries the failed requests and file transfers of this client and suspends the requests to a failing host,
+     * `null` disables retries.
+     */
+    var retryEngine: RetryEngine? = RetryEngine(metrics)
+
     /**
      * @param transport  HTTP transport
      * @param httpRequestInitializer the http request initializer
      * @param rootUrl the root url for this service
      * @param servicePath the service path
      * @param objectParser the object parser or `null` if none
-     * @param requestPolicy the [BackOffPolicy] to use for HTTP requests
+     * @param requestPolicy the [BackOffPolicy] of the client, not used by the requests
      */
     protected constructor(transport: HttpTransport, httpRequestInitializer: HttpRequestInitializer?, rootUrl: String, servicePath: String,
                           objectParser: JsonObjectParser, requestPolicy: BackOffPolicy)
@@ -106,12 +120,15 @@ abstract class AbstractKinveyClient protected constructor(transport: HttpTranspo
      * Constructs an [AbstractKinveyClient]
      */
     abstract class Builder @JvmOverloads constructor(
-            /**
-             * @return the transport
-             */
-            val transport: HttpTransport?, defaultRootUrl: String,
+            transport: HttpTransport?, defaultRootUrl: String,
             defaultServicePath: String, httpRequestInitializer: HttpRequestInitializer?, kinveyRequestInitializer: KinveyClientRequestInitializer? = null) {
 
+        /**
+         * @return the transport
+         */
+        var transport: HttpTransport? = transport
+            protected set
+
         var objectParser: JsonObjectParser? = null
 
         /**
@@ -137,9 +154,10 @@ abstract class AbstractKinveyClient protected constructor(transport: HttpTranspo
 
         /**
          *
-         * @param requestBackoffPolicy The [BackOffPolicy] for the HTTP request
+         * @param requestBackoffPolicy The [BackOffPolicy] for the HTTP request, not used by the requests
          * @return Current backoffpolicy
          */
+        @Deprecated("Failed requests are retried by the retryEngine of the client")
         var requestBackoffPolicy: BackOffPolicy? = null
 
         abstract fun build(): AbstractKinveyClient?
@@ -17,6 +17,7 @@
 package com.kinvey.java.core
 
 import java.io.*
+import java.nio.charset.Charset
 import java.util.Locale
 
 import com.google.api.client.http.*
@@ -29,9 +30,6 @@ import com.kinvey.java.Constants
 import com.kinvey.java.Constants.DEF_REQUEST_TIMEOUT
 import com.kinvey.java.KinveyException
 import com.kinvey.java.Logger
-import com.kinvey.java.auth.KinveyAuthRequest
-import com.kinvey.java.dto.BaseUser
-import com.kinvey.java.store.UserStoreRequestManager
 
 /**
  * @author m0rganic
@@ -124,15 +122,6 @@ protected constructor(
      */
     val downloader: MediaHttpDownloader? = null
 
-    /**
-     * [BackOffPolicy] to use for retries
-     */
-    /**
-     *
-     * @return the Backoff Policy
-     */
-    val requestBackoffPolicy: BackOffPolicy?
-
     /**
      * Does this request require the appkey/appsecret for authentication or does it require a user context
      */
@@ -195,11 +184,16 @@ protected constructor(
                           responseClass: Class<T>?) : this(abstractKinveyClient, abstractKinveyClient?.baseUrl, requestMethod, uriTemplate, httpContent, responseClass) {
     }
 
+    /** response the validators of the last conditional request were taken from */
+    private var cachedResponse: HttpResponseCache.Entry? = null
+
+    /** key of the last request in [AbstractClient.httpResponseCache], `null` if it's not cached */
+    private var responseCacheKey: String? = null
+
     init {
         Preconditions.checkNotNull(client, "abstractKinveyClient must not be null")
         Preconditions.checkNotNull(requestMethod, "requestMethod must not be null")
         this.uriTemplate = uriTemplate
-        this.requestBackoffPolicy = client?.backoffPolicy
     }
 
     /**
@@ -240,8 +234,6 @@ protected constructor(
         httpRequest?.suppressUserAgentSuffix = true
         httpRequest?.connectTimeout = client?.requestTimeout ?: DEF_REQUEST_TIMEOUT
         httpRequest?.readTimeout = client?.requestTimeout ?: DEF_REQUEST_TIMEOUT
-        //httpRequest.setRetryOnExecuteIOException(true);
-        //httpRequest.setBackOffPolicy(this.requestBackoffPolicy);
         // custom methods may use POST with no content but require a Content-Length header
         if (httpContent == null && (requestMethod == HttpMethods.POST || requestMethod == HttpMethods.PUT)) {
             httpRequest?.content = EmptyContent()
@@ -291,18 +283,55 @@ protected constructor(
         val response: HttpResponse?
         val throwExceptionOnError: Boolean
 
+        if (!isRequireAppCredentials) {
+            client?.tokenRefreshManager?.refreshIfExpiring(this)
+        }
+
         // normal request
         val request = buildHttpRequest()
         throwExceptionOnError = request?.throwExceptionOnExecuteError ?: false
         request?.throwExceptionOnExecuteError = false
+        // bounds the redirects followed by the request, failures are retried by the RetryEngine of the client
         request?.numberOfRetries = 3
         abstractKinveyClient?.getObjectParser()?.run { request?.parser = this }
 
         if (overrideRedirect) {
             request?.followRedirects = false
         }
+        prepareConditionalRequest(request)
 
-        response = request?.execute()
+        val metricsEntry = abstractKinveyClient?.metrics?.entry(this[COLLECTION_NAME_KEY] as? String, metricsOperation)
+        val attempts = request?.let {
+            abstractKinveyClient?.retryEngine?.start(it.url.host, it.requestMethod, it.content?.retrySupported() != false)
+        }
+        val start = System.nanoTime()
+        while (true) {
+            val attempt: HttpResponse?
+            try {
+                attempts?.begin()
+                attempt = request?.execute()
+            } catch (e: IOException) {
+                if (attempts?.onError(e) == true) {
+                    metricsEntry?.recordRetry()
+                    continue
+                }
+                metricsEntry?.record(System.nanoTime() - start, false)
+                throw e
+            }
+            if (attempt != null && attempts?.onResponse(attempt.statusCode) == true) {
+                metricsEntry?.recordRetry()
+                attempt.ignore()
+                continue
+            }
+            response = attempt
+            break
+        }
+        metricsEntry?.record(System.nanoTime() - start, response?.isSuccessStatusCode == true || isNotModified(response))
+        if (requestMethod != HttpMethods.GET) {
+            // the entities may have been changed, results kept for coalesced reads are stale
+            client?.readCoalescer?.invalidate(this[COLLECTION_NAME_KEY] as? String)
+        }
+        metricsEntry?.recordBytes(httpContent?.length ?: -1, response?.headers?.contentLength ?: -1)
         Logger.INFO("Getting response for network request")
 
         lastResponseCode = response?.statusCode ?: 0
@@ -314,47 +343,16 @@ protected constructor(
         }
 
         //process refresh token needed
-        if (response?.statusCode == 401 && !hasRetryed) {
-            //get the refresh token
-            Logger.INFO("get the refresh token")
-            val cred = client?.store?.load(client.activeUser?.id)
-            var refreshToken: String? = null
-
-            if (cred != null) {
-                refreshToken = cred.refreshToken
-            }
-
-            if (refreshToken != null) {
-                hasRetryed = true
-                val appKey = (client?.kinveyRequestInitializer as KinveyClientRequestInitializer).appKey
-                val appSecret = (client.kinveyRequestInitializer as KinveyClientRequestInitializer).appSecret
-
-                val builder: KinveyAuthRequest.Builder<BaseUser> = KinveyAuthRequest.Builder(client.requestFactory?.transport,
-                        client.jsonFactory, client.baseUrl, appKey ?: "", appSecret ?: "", null)
-
-                val userStoreRequestManager = UserStoreRequestManager(client, builder)
-
-                //use the refresh token for a new access token
-                val result = userStoreRequestManager.useRefreshToken(refreshToken).execute()
-
-                // soft logout the current user
-                userStoreRequestManager.logoutSoft().execute()
-
-                //login with the access token
-                userStoreRequestManager.loginMobileIdentityBlocking(result!!["access_token"]!!.toString()).execute()
-
-                //store the new refresh token
-                val currentCred = client.store?.load(client.activeUser?.id)
-                currentCred?.refreshToken = result["refresh_token"]!!.toString()
-                client.store?.store(client.activeUser?.id ?: "", currentCred)
-                currentCred?.initialize(this)
-                return executeUnparsed()
-            }
-
+        if (response?.statusCode == 401 && !hasRetryed && client?.tokenRefreshManager?.onUnauthorized(this) == true) {
+            hasRetryed = true
+            metricsEntry?.recordRetry()
+            response.ignore()
+            return executeUnparsed()
         }
 
         // process any other errors
-        if (throwExceptionOnError && response?.isSuccessStatusCode == false && response.statusCode != 302) {
+        if (throwExceptionOnError && response?.isSuccessStatusCode == false && response.statusCode != 302
+                && !isNotModified(response)) {
             throw newExceptionOnError(response)
         }
 
@@ -388,7 +386,8 @@ protected constructor(
         }
 
         // special class to handle void or empty responses
-        if (Void::class.java == responseClass || response?.content == null) {
+        val content = if (Void::class.java == responseClass) null else response?.let { responseContent(it) }
+        if (response == null || content == null) {
             response?.ignore()
             return null
         }
@@ -397,12 +396,12 @@ protected constructor(
             val statusCode = response.statusCode
             if (response.request.requestMethod == HttpMethods.HEAD || statusCode / 100 == 1
                     || statusCode == HttpStatusCodes.STATUS_CODE_NO_CONTENT
-                    || statusCode == HttpStatusCodes.STATUS_CODE_NOT_MODIFIED) {
+                    || statusCode == HttpStatusCodes.STATUS_CODE_NOT_MODIFIED && !isNotModified(response)) {
                 response.ignore()
                 return null
 
             } else {
-                return abstractKinveyClient?.getObjectParser()?.parseAndClose(response.content, Charsets.UTF_8, responseClass)
+                return abstractKinveyClient?.getObjectParser()?.parseAndClose(content, Charsets.UTF_8, responseClass)
             }
 
         } catch (e: IllegalArgumentException) {
@@ -446,7 +445,77 @@ protected constructor(
      */
     @Throws(IOException::class)
     fun executeAsInputStream(): InputStream? {
-        return executeUnparsed()?.content
+        return executeUnparsed()?.let { responseContent(it) }
+    }
+
+    /**
+     * Adds the validators of the cached response to a GET request if the client has an [HttpResponseCache]
+     */
+    private fun prepareConditionalRequest(request: HttpRequest?) {
+        cachedResponse = null
+        responseCacheKey = null
+        val cache = client?.httpResponseCache
+        if (cache == null || request == null || requestMethod != HttpMethods.GET
+                || request.headers.ifNoneMatch != null || request.headers.ifModifiedSince != null) {
+            return
+        }
+        val key = listOf(request.url.build(), request.headers.authorization,
+                request.headers[CUSTOM_REQUEST_PROPERTIES_HEADER]).joinToString("\n")
+        responseCacheKey = key
+        val entry = cache[key] ?: return
+        cachedResponse = entry
+        entry.etag?.let { request.headers.ifNoneMatch = it }
+        entry.lastModified?.let { request.headers.ifModifiedSince = it }
+    }
+
+    /**
+     * @return true if the response is a `304 Not Modified` answer to a request sent with the validators of a cached response
+     */
+    protected fun isNotModified(response: HttpResponse?): Boolean {
+        return cachedResponse != null && response?.statusCode == HttpStatusCodes.STATUS_CODE_NOT_MODIFIED
+    }
+
+    /**
+     * Body of the response: the cached one for a `304 Not Modified` answer to a conditional request, otherwise
+     * the content of the response. A body with a validator is copied into the [HttpResponseCache] while it is read,
+     * if it is not bigger than [HttpResponseCache.maxEntryBytes].
+     */
+    @Throws(IOException::class)
+    protected fun responseContent(response: HttpResponse): InputStream? {
+        val cached = cachedResponse
+        if (cached != null && response.statusCode == HttpStatusCodes.STATUS_CODE_NOT_MODIFIED) {
+            response.ignore()
+            return ByteArrayInputStream(cached.body)
+        }
+        val content = response.content ?: return null
+        val cache = client?.httpResponseCache
+        val key = responseCacheKey
+        if (cache == null || key == null || !response.isSuccessStatusCode) {
+            return content
+        }
+        val etag = response.headers.eTag
+        val lastModified = response.headers.lastModified
+        if (etag == null && lastModified == null) {
+            cache.remove(key)
+            return content
+        }
+        // the cached response is outdated, the new one replaces it once it has been read
+        cache.remove(key)
+        val contentType = response.contentType
+        return ResponseCachingInputStream(content, cache.maxEntryBytes) { body ->
+            cache.put(key, HttpResponseCache.Entry(etag, lastModified, contentType, body))
+        }
+    }
+
+    /**
+     * @return charset of the body returned by [responseContent]
+     */
+    protected fun responseCharset(response: HttpResponse): Charset {
+        val cached = cachedResponse
+        if (cached != null && response.statusCode == HttpStatusCodes.STATUS_CODE_NOT_MODIFIED) {
+            return cached.contentType?.let { HttpMediaType(it).charsetParameter } ?: Charsets.UTF_8
+        }
+        return response.contentCharset
     }
 
     fun setAppKey(appKey: String?): AbstractKinveyClientRequest<T> {
@@ -464,11 +533,24 @@ protected constructor(
         return null
     }
 
+    /**
+     * Operation name the request is recorded under in [com.kinvey.java.Metrics], the request class name by default
+     */
+    protected open val metricsOperation: String
+        get() = javaClass.simpleName.ifEmpty { requestMethod ?: "" }
+
     companion object {
 
         /**
          * The message received when a user has been locked down
          */
         private val LOCKED_DOWN = "UserLockedDown"
+
+        /**
+         * Url key of the collection name, requests on a collection are recorded in [com.kinvey.java.Metrics] under it
+         */
+        private const val COLLECTION_NAME_KEY = "collectionName"
+
+        private const val CUSTOM_REQUEST_PROPERTIES_HEADER = "x-kinvey-custom-request-properties"
     }
 }
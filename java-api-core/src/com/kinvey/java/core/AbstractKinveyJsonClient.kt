@@ -37,7 +37,7 @@ abstract class AbstractKinveyJsonClient : AbstractKinveyClient {
      * @param rootUrl the root url for this service
      * @param servicePath the service path
      * @param objectParser the object parser or `null` if none
-     * @param requestPolicy the [BackOffPolicy] to use for HTTP requests
+     * @param requestPolicy the [BackOffPolicy] of the client, not used by the requests
      */
     protected constructor(transport: HttpTransport,
                           httpRequestInitializer: HttpRequestInitializer, rootUrl: String, servicePath: String,
@@ -52,7 +52,7 @@ abstract class AbstractKinveyJsonClient : AbstractKinveyClient {
      * @param servicePath the service path
      * @param objectParser the object parser or `null` if none
      * @param kinveyRequestInitializer initializer to handle kinvey specific headers and authorization tokens
-     * @param requestPolicy the [BackOffPolicy] to use for HTTP requests
+     * @param requestPolicy the [BackOffPolicy] of the client, not used by the requests
      */
     protected constructor(transport: HttpTransport?,
                           httpRequestInitializer: HttpRequestInitializer?, rootUrl: String?, servicePath: String?,
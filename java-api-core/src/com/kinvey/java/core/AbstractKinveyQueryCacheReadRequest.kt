@@ -1,22 +1,15 @@
 package com.kinvey.java.core
 
 import com.google.api.client.http.HttpMethods
-import com.google.api.client.http.HttpResponse
 import com.google.api.client.http.HttpStatusCodes
 import com.google.api.client.json.GenericJson
-import com.google.api.client.json.JsonObjectParser
-import com.google.api.client.util.Charsets
-import com.google.gson.JsonArray
-import com.google.gson.JsonElement
-import com.google.gson.JsonObject
-import com.google.gson.JsonParser
+import com.google.api.client.json.JsonToken
 import com.kinvey.java.AbstractClient
 import com.kinvey.java.Constants
 import com.kinvey.java.KinveyException
 import com.kinvey.java.Logger
 import com.kinvey.java.model.KinveyQueryCacheResponse
 
-import java.io.ByteArrayInputStream
 import java.io.IOException
 import java.util.ArrayList
 import java.util.Locale
@@ -47,7 +40,8 @@ protected constructor(abstractKinveyJsonClient: AbstractClient<*>?, requestMetho
             return onRedirect(response?.headers?.location ?: "")
         }
         // special class to handle void or empty responses
-        if (response?.content == null) {
+        val content = response?.let { responseContent(it) }
+        if (response == null || content == null) {
             response?.ignore()
             return null
         }
@@ -56,49 +50,32 @@ protected constructor(abstractKinveyJsonClient: AbstractClient<*>?, requestMetho
             val statusCode = response.statusCode
             if (response.request.requestMethod == HttpMethods.HEAD || statusCode / 100 == 1
                     || statusCode == HttpStatusCodes.STATUS_CODE_NO_CONTENT
-                    || statusCode == HttpStatusCodes.STATUS_CODE_NOT_MODIFIED) {
+                    || statusCode == HttpStatusCodes.STATUS_CODE_NOT_MODIFIED && !isNotModified(response)) {
                 response.ignore()
                 return null
 
             } else {
 
-                val jsonString = response.parseAsString()
-                val jsonParser = JsonParser()
-                val jsonObject = jsonParser.parse(jsonString) as JsonObject
-                val jsonArrayChanged = jsonObject.getAsJsonArray(Constants.CHANGED)
-                val objectParser = abstractKinveyClient.getObjectParser()
                 val changed = ArrayList<T>()
+                val deleted = ArrayList<T>()
                 val exceptions = ArrayList<Exception>()
-
-                jsonArrayChanged.onEach { element ->
-                    try {
-                        val item = objectParser?.parseAndClose(ByteArrayInputStream(element.toString().toByteArray(Charsets.UTF_8)), Charsets.UTF_8, queryResponseClass)
-                        item?.run { changed.add(this) }
-                    } catch (e: IllegalArgumentException) {
-                        Logger.ERROR("unable to parse response -> $e")
-                        exceptions.add(KinveyException("Unable to parse the JSON in the response", "examine BL or DLC to ensure data format is correct. If the exception is caused by `key <somkey>`, then <somekey> might be a different type than is expected (int instead of of string)", e.toString()))
-                    } catch (e: Exception) {
-                        e.printStackTrace()
-                        exceptions.add(e)
+                val arrayParser = KinveyJsonArrayParser(abstractKinveyClient.jsonFactory)
+                val parser = arrayParser.createParser(content, responseCharset(response))
+                try {
+                    parser.nextToken()
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        val fieldName = parser.currentName
+                        parser.nextToken()
+                        when (fieldName) {
+                            Constants.CHANGED -> arrayParser.readArray(parser, queryResponseClass, changed, exceptions)
+                            Constants.DELETED -> arrayParser.readArray(parser, queryResponseClass, deleted, exceptions)
+                            else -> parser.skipChildren()
+                        }
                     }
+                } finally {
+                    parser.close()
                 }
                 ret.changed = changed
-
-                val jsonArrayDeleted = jsonObject.getAsJsonArray(Constants.DELETED)
-                val deleted = ArrayList<T>()
-                for (element in jsonArrayDeleted) {
-                    try {
-                        val item = objectParser?.parseAndClose(ByteArrayInputStream(element.toString().toByteArray(Charsets.UTF_8)), Charsets.UTF_8, queryResponseClass)
-                        item?.run { deleted.add(this) }
-                    } catch (e: IllegalArgumentException) {
-                        Logger.ERROR("unable to parse response -> $e")
-                        exceptions.add(KinveyException("Unable to parse the JSON in the response", "examine BL or DLC to ensure data format is correct. If the exception is caused by `key <somkey>`, then <somekey> might be a different type than is expected (int instead of of string)", e.toString()))
-                    } catch (e: Exception) {
-                        e.printStackTrace()
-                        exceptions.add(e)
-                    }
-
-                }
                 ret.deleted = deleted
                 ret.listOfExceptions = exceptions
                 if (response.headers.containsKey(Constants.X_KINVEY_REQUEST_START)) {
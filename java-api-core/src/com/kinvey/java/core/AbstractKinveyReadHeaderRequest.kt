@@ -20,15 +20,12 @@ import com.google.api.client.http.HttpMethods
 import com.google.api.client.http.HttpResponse
 import com.google.api.client.http.HttpStatusCodes
 import com.google.api.client.json.GenericJson
-import com.google.api.client.json.JsonObjectParser
-import com.google.api.client.util.Charsets
 import com.kinvey.java.AbstractClient
 import com.kinvey.java.Constants
 import com.kinvey.java.KinveyException
 import com.kinvey.java.Logger
 import com.kinvey.java.model.AbstractKinveyHeadersResponse
 
-import java.io.ByteArrayInputStream
 import java.io.IOException
 import java.util.Locale
 
@@ -56,7 +53,8 @@ protected constructor(abstractKinveyJsonClient: AbstractClient<*>?, requestMetho
             return onRedirect(response?.headers?.location ?: "")
         }
         // special class to handle void or empty responses
-        if (response?.content == null) {
+        val content = response?.let { responseContent(it) }
+        if (response == null || content == null) {
             response?.ignore()
             return null
         }
@@ -65,14 +63,13 @@ protected constructor(abstractKinveyJsonClient: AbstractClient<*>?, requestMetho
             val statusCode = response.statusCode
             if (response.request.requestMethod == HttpMethods.HEAD || statusCode / 100 == 1
                     || statusCode == HttpStatusCodes.STATUS_CODE_NO_CONTENT
-                    || statusCode == HttpStatusCodes.STATUS_CODE_NOT_MODIFIED) {
+                    || statusCode == HttpStatusCodes.STATUS_CODE_NOT_MODIFIED && !isNotModified(response)) {
                 response.ignore()
                 return null
 
             } else {
-                val jsonString = response.parseAsString()
                 val objectParser = abstractKinveyClient.getObjectParser()
-                ret = objectParser?.parseAndClose(ByteArrayInputStream(jsonString.toByteArray(Charsets.UTF_8)), Charsets.UTF_8, responseClass)
+                ret = objectParser?.parseAndClose(content, responseCharset(response), responseClass)
                 ret?.run {
                     if (response.headers.containsKey(Constants.X_KINVEY_REQUEST_START)) {
                         this.lastRequestTime = response.headers.getHeaderStringValues(Constants.X_KINVEY_REQUEST_START)[0].toUpperCase(Locale.US)
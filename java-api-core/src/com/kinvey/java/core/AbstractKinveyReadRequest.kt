@@ -1,21 +1,14 @@
 package com.kinvey.java.core
 
 import com.google.api.client.http.HttpMethods
-import com.google.api.client.http.HttpResponse
 import com.google.api.client.http.HttpStatusCodes
 import com.google.api.client.json.GenericJson
-import com.google.api.client.json.JsonObjectParser
-import com.google.api.client.util.Charsets
-import com.google.gson.JsonArray
-import com.google.gson.JsonElement
-import com.google.gson.JsonParser
 import com.kinvey.java.AbstractClient
 import com.kinvey.java.Constants
 import com.kinvey.java.KinveyException
 import com.kinvey.java.Logger
 import com.kinvey.java.model.KinveyReadResponse
 
-import java.io.ByteArrayInputStream
 import java.io.IOException
 import java.util.ArrayList
 import java.util.Locale
@@ -53,7 +46,8 @@ protected constructor(abstractKinveyJsonClient: AbstractClient<*>?, requestMetho
         }
 
         // special class to handle void or empty responses
-        if (Void::class.java == requestResponseClass || response?.content == null) {
+        val content = if (Void::class.java == requestResponseClass) null else response?.let { responseContent(it) }
+        if (response == null || content == null) {
             response?.ignore()
             return null
         }
@@ -62,26 +56,12 @@ protected constructor(abstractKinveyJsonClient: AbstractClient<*>?, requestMetho
             val statusCode = response.statusCode
             if (response.request.requestMethod == HttpMethods.HEAD || statusCode / 100 == 1
                     || statusCode == HttpStatusCodes.STATUS_CODE_NO_CONTENT
-                    || statusCode == HttpStatusCodes.STATUS_CODE_NOT_MODIFIED) {
+                    || statusCode == HttpStatusCodes.STATUS_CODE_NOT_MODIFIED && !isNotModified(response)) {
                 response.ignore()
                 return null
             } else {
-                val jsonString = response.parseAsString()
-                val jsonParser = JsonParser()
-                val jsonArray = jsonParser.parse(jsonString) as JsonArray
-                val objectParser = abstractKinveyClient.getObjectParser()
-                jsonArray.onEach { element ->
-                    try {
-                        val item = objectParser?.parseAndClose(ByteArrayInputStream(element.toString().toByteArray(Charsets.UTF_8)), Charsets.UTF_8, requestResponseClass) as T?
-                        item?.run { results.add(this) }
-                    } catch (e: IllegalArgumentException) {
-                        Logger.ERROR("unable to parse response -> $e")
-                        exceptions.add(KinveyException("Unable to parse the JSON in the response", "examine BL or DLC to ensure data format is correct. If the exception is caused by `key <somkey>`, then <somekey> might be a different type than is expected (int instead of of string)", e.toString()))
-                    } catch (e: Exception) {
-                        e.printStackTrace()
-                        exceptions.add(e)
-                    }
-                }
+                KinveyJsonArrayParser(abstractKinveyClient.jsonFactory)
+                        .parseArrayAndClose(content, responseCharset(response), requestResponseClass, results, exceptions)
                 if (response.headers.containsKey(Constants.X_KINVEY_REQUEST_START)) {
                     ret.lastRequestTime = response.headers.getHeaderStringValues(Constants.X_KINVEY_REQUEST_START)[0].toUpperCase(Locale.US)
                 } else if (response.headers.containsKey(Constants.X_KINVEY_REQUEST_START_CAMEL_CASE)) {
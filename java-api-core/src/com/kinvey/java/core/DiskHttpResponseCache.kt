@@ -0,0 +1,181 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+
+package com.kinvey.java.core
+
+import com.google.common.base.Charsets
+import com.google.common.base.Preconditions
+import com.google.common.hash.Hashing
+import com.kinvey.java.store.file.LruFileCache
+import java.io.ByteArrayInputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileFilter
+import java.io.FileOutputStream
+import java.io.IOException
+
+/**
+ * [HttpResponseCache] which keeps every response in a file of the directory, so the responses survive restarts.
+ *
+ * The keys hold the credentials of the requests, so only their SHA-256 is written: it names the file and
+ * is kept in it to tell the key apart from another one.
+ * The least recently used files are evicted once they take more than [maxBytes], see [LruFileCache].
+ * A file is written next to its final name and renamed, so a reader never sees a partly written response.
+ * A file which cannot be read is deleted and treated as a miss.
+ * Only the `.response` files of the cache are read, evicted and cleared, other files of the directory are left alone.
+ */
+class DiskHttpResponseCache @JvmOverloads constructor(private val directory: File,
+                                                      val maxBytes: Long = DEFAULT_MAX_BYTES) : HttpResponseCache {
+
+    private val tempDirectory = File(directory, TEMP_DIRECTORY)
+    private val lru: LruFileCache
+
+    init {
+        Preconditions.checkArgument(maxBytes > 0, "maxBytes must be positive")
+        tempDirectory.mkdirs()
+        // files of writes interrupted by a crash
+        tempDirectory.listFiles { file: File -> file.isFile && file.name.contains("$SUFFIX.") }?.forEach { it.delete() }
+        lru = LruFileCache.forDirectory(directory, FileFilter { isResponseFile(it) })
+        lru.maxSize = maxBytes
+    }
+
+    override fun get(key: String): HttpResponseCache.Entry? {
+        val file = fileOf(key)
+        if (!file.exists()) {
+            return null
+        }
+        val entry = try {
+            DataInputStream(ByteArrayInputStream(file.readBytes())).use { input -> read(input, digest(key)) }
+        } catch (e: IOException) {
+            null
+        }
+        if (entry == null) {
+            delete(file)
+            return null
+        }
+        lru.touch(file)
+        return entry
+    }
+
+    override fun put(key: String, entry: HttpResponseCache.Entry) {
+        if (entry.body.size > maxBytes) {
+            remove(key)
+            return
+        }
+        val file = fileOf(key)
+        val temp = File(tempDirectory, "${file.name}.${Thread.currentThread().id}")
+        try {
+            DataOutputStream(FileOutputStream(temp).buffered()).use { output -> write(output, digest(key), entry) }
+            if (!temp.renameTo(file)) {
+                temp.delete()
+                return
+            }
+        } catch (e: IOException) {
+            temp.delete()
+            return
+        }
+        lru.onWrite(file)
+    }
+
+    override fun remove(key: String) {
+        delete(fileOf(key))
+    }
+
+    override fun clear() {
+        directory.listFiles { file: File -> isResponseFile(file) }?.forEach { delete(it) }
+    }
+
+    private fun delete(file: File) {
+        file.delete()
+        lru.onDelete(file)
+    }
+
+    private fun isResponseFile(file: File): Boolean = file.isFile && file.name.endsWith(SUFFIX)
+
+    private fun fileOf(key: String): File = File(directory, digest(key) + SUFFIX)
+
+    private fun digest(key: String): String = Hashing.sha256().hashString(key, Charsets.UTF_8).toString()
+
+    @Throws(IOException::class)
+    private fun write(output: DataOutputStream, digest: String, entry: HttpResponseCache.Entry) {
+        output.writeInt(VERSION)
+        writeString(output, digest)
+        writeString(output, entry.etag)
+        writeString(output, entry.lastModified)
+        writeString(output, entry.contentType)
+        output.writeInt(entry.body.size)
+        output.write(entry.body)
+    }
+
+    /**
+     * @return the entry or `null` if the file is of another version or another key
+     */
+    @Throws(IOException::class)
+    private fun read(input: DataInputStream, digest: String): HttpResponseCache.Entry? {
+        if (input.readInt() != VERSION || readString(input) != digest) {
+            return null
+        }
+        val etag = readString(input)
+        val lastModified = readString(input)
+        val contentType = readString(input)
+        val body = ByteArray(checkLength(input, input.readInt()))
+        input.readFully(body)
+        return HttpResponseCache.Entry(etag, lastModified, contentType, body)
+    }
+
+    @Throws(IOException::class)
+    private fun writeString(output: DataOutputStream, value: String?) {
+        if (value == null) {
+            output.writeInt(-1)
+            return
+        }
+        val bytes = value.toByteArray(Charsets.UTF_8)
+        output.writeInt(bytes.size)
+        output.write(bytes)
+    }
+
+    @Throws(IOException::class)
+    private fun readString(input: DataInputStream): String? {
+        val length = input.readInt()
+        if (length < 0) {
+            return null
+        }
+        val bytes = ByteArray(checkLength(input, length))
+        input.readFully(bytes)
+        return String(bytes, Charsets.UTF_8)
+    }
+
+    /**
+     * Checks a length read from the file, so a corrupted file doesn't allocate a huge array
+     */
+    @Throws(IOException::class)
+    private fun checkLength(input: DataInputStream, length: Int): Int {
+        if (length < 0 || length > input.available()) {
+            throw IOException("corrupted response file")
+        }
+        return length
+    }
+
+    companion object {
+        const val DEFAULT_MAX_BYTES = 32L * 1024 * 1024
+
+        private const val VERSION = 1
+        private const val SUFFIX = ".response"
+        private const val TEMP_DIRECTORY = "tmp"
+    }
+}
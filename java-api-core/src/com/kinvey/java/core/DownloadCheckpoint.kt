@@ -0,0 +1,155 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+package com.kinvey.java.core
+
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.util.BitSet
+import java.util.Properties
+
+/**
+ * Sidecar file of a download into a file, it lists the chunks which are already written to the target.
+ *
+ * The checkpoint is only valid for the same file id, file version (its ETag or `_kmd.lmt`), file size and chunk size,
+ * a download with other values starts over, so the chunks of a replaced file are never mixed with the new ones.
+ * It is saved after every chunk, by writing a temporary file and renaming it, so a crash leaves either
+ * the previous or the new checkpoint.
+ */
+internal class DownloadCheckpoint private constructor(private val file: File,
+                                                      private val fileId: String?,
+                                                      private val version: String?,
+                                                      val fileSize: Long,
+                                                      val chunkSize: Int) {
+
+    private val completed = BitSet()
+
+    private var isDeleted = false
+
+    val chunkCount: Int
+        get() = ((fileSize + chunkSize - 1) / chunkSize).toInt()
+
+    val completedBytes: Long
+        get() {
+            var bytes = 0L
+            var chunk = completed.nextSetBit(0)
+            while (chunk >= 0) {
+                bytes += chunkLength(chunk)
+                chunk = completed.nextSetBit(chunk + 1)
+            }
+            return bytes
+        }
+
+    fun isCompleted(chunk: Int): Boolean = completed[chunk]
+
+    /**
+     * true if every chunk of the file is written
+     */
+    val isAllCompleted: Boolean
+        @Synchronized
+        get() = completed.nextClearBit(0) >= chunkCount
+
+    fun chunkOffset(chunk: Int): Long = chunk.toLong() * chunkSize
+
+    fun chunkLength(chunk: Int): Long = Math.min(chunkSize.toLong(), fileSize - chunkOffset(chunk))
+
+    /**
+     * Marks the chunk as written and saves the checkpoint
+     */
+    @Synchronized
+    @Throws(IOException::class)
+    fun complete(chunk: Int) {
+        completed.set(chunk)
+        if (!isDeleted) {
+            save()
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun save() {
+        val properties = Properties()
+        properties.setProperty(FILE_ID, fileId ?: "")
+        properties.setProperty(VERSION, version ?: "")
+        properties.setProperty(FILE_SIZE, fileSize.toString())
+        properties.setProperty(CHUNK_SIZE, chunkSize.toString())
+        properties.setProperty(COMPLETED, (0 until chunkCount).filter { completed[it] }.joinToString(","))
+        val temporary = File(file.path + ".tmp")
+        FileOutputStream(temporary).use { properties.store(it, null) }
+        if (!temporary.renameTo(file)) {
+            file.delete()
+            if (!temporary.renameTo(file)) {
+                throw IOException("cannot save download checkpoint $file")
+            }
+        }
+    }
+
+    /**
+     * Removes the checkpoint file, the chunks completed afterwards are not saved
+     */
+    @Synchronized
+    fun delete() {
+        isDeleted = true
+        file.delete()
+    }
+
+    companion object {
+
+        private const val SUFFIX = ".kdownload"
+        private const val FILE_ID = "fileId"
+        private const val VERSION = "version"
+        private const val FILE_SIZE = "fileSize"
+        private const val CHUNK_SIZE = "chunkSize"
+        private const val COMPLETED = "completed"
+
+        fun fileFor(target: File): File = File(target.path + SUFFIX)
+
+        /**
+         * Loads the checkpoint of the download into the target, an unreadable checkpoint, a checkpoint for
+         * another file, another version of the file or other sizes, or a checkpoint without the target file are ignored.
+         *
+         * @param fileId id of the file metadata
+         * @param version ETag or `_kmd.lmt` of the file, which changes when the file is replaced
+         */
+        fun load(target: File, fileId: String?, version: String?, fileSize: Long, chunkSize: Int): DownloadCheckpoint {
+            val file = fileFor(target)
+            val checkpoint = DownloadCheckpoint(file, fileId, version, fileSize, chunkSize)
+            if (!file.exists() || !target.exists()) {
+                return checkpoint
+            }
+            try {
+                val properties = Properties()
+                FileInputStream(file).use { properties.load(it) }
+                if (properties.getProperty(FILE_ID) == (fileId ?: "")
+                        && properties.getProperty(VERSION) == (version ?: "")
+                        && properties.getProperty(FILE_SIZE) == fileSize.toString()
+                        && properties.getProperty(CHUNK_SIZE) == chunkSize.toString()) {
+                    properties.getProperty(COMPLETED)
+                            ?.split(',')
+                            ?.mapNotNull { it.trim().toIntOrNull() }
+                            ?.filter { it in 0 until checkpoint.chunkCount }
+                            ?.forEach { checkpoint.completed.set(it) }
+                }
+            } catch (e: IOException) {
+                // the download starts over
+            } catch (e: IllegalArgumentException) {
+                // the download starts over
+            }
+            return checkpoint
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+package com.kinvey.java.core
+
+import com.google.api.client.util.FieldInfo
+import com.google.common.base.Preconditions
+import com.kinvey.java.annotations.KinveyReference
+import java.lang.reflect.Field
+import java.lang.reflect.ParameterizedType
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Fields of an entity class, reflected once per class and shared by the code which walks entities by their fields:
+ * reference processing on save and the schema and binding of the database caches.
+ *
+ * [properties] are the fields declared by the class and by its superclass, in declaration order, with their `@Key`
+ * names, element types and [KinveyReference] annotations. Fields read or written directly by [Property.get] and [Property.set]
+ * are made accessible on their first use.
+ */
+class EntityDescriptor private constructor(val type: Class<*>) {
+
+    val properties: List<Property> = (type.declaredFields.asList() + (type.superclass?.declaredFields?.asList() ?: emptyList()))
+            .map { Property(it) }
+
+    /**
+     * Fields of the class itself annotated with [KinveyReference]
+     */
+    val references: List<Property> = properties.filter { it.reference != null && it.field.declaringClass == type }
+
+    private val propertiesByName: Map<String, Property> = properties.filter { it.fieldInfo != null }
+            .associateBy { it.name }
+
+    /**
+     * @return the `@Key` field with the JSON name or null
+     */
+    fun property(name: String): Property? = propertiesByName[name]
+
+    class Property internal constructor(val field: Field) {
+
+        /**
+         * Binding of the field, null if the field is not a `@Key` field
+         */
+        val fieldInfo: FieldInfo? = FieldInfo.of(field)
+
+        /**
+         * JSON name of a `@Key` field, the field name otherwise
+         */
+        val name: String = fieldInfo?.name ?: field.name
+
+        val type: Class<*> = field.type
+
+        val isArrayOrCollection: Boolean = type.isArray || Collection::class.java.isAssignableFrom(type)
+
+        /**
+         * Component type of an array or the type argument of a collection, null if it is not a class
+         */
+        val elementType: Class<*>? = if (isArrayOrCollection) elementType(field) else null
+
+        val reference: KinveyReference? = field.getAnnotation(KinveyReference::class.java)
+
+        @Volatile
+        private var isAccessible = false
+
+        /**
+         * @return value of the field in the entity
+         */
+        fun get(entity: Any): Any? {
+            if (fieldInfo != null) {
+                return fieldInfo.getValue(entity)
+            }
+            return accessibleField().get(entity)
+        }
+
+        /**
+         * Sets the value of the field in the entity
+         */
+        fun set(entity: Any, value: Any?) {
+            if (fieldInfo != null) {
+                fieldInfo.setValue(entity, value)
+                return
+            }
+            accessibleField().set(entity, value)
+        }
+
+        /**
+         * Makes the field accessible on its first direct read or write, the fields which are never read stay untouched
+         */
+        private fun accessibleField(): Field {
+            if (!isAccessible) {
+                field.isAccessible = true
+                isAccessible = true
+            }
+            return field
+        }
+    }
+
+    companion object {
+
+        // Android doesn't have ClassValue before API 34, entity classes stay loaded for the life of the app anyway
+        private val descriptors = ConcurrentHashMap<Class<*>, EntityDescriptor>()
+
+        /**
+         * @return the descriptor of the class, reflected on the first call
+         */
+        @JvmStatic
+        fun of(type: Class<*>): EntityDescriptor {
+            Preconditions.checkNotNull(type, "type must not be null")
+            descriptors[type]?.let { return it }
+            val descriptor = EntityDescriptor(type)
+            return descriptors.putIfAbsent(type, descriptor) ?: descriptor
+        }
+
+        /**
+         * @return component type of an array field or the type argument of a collection field, null if it is not a class
+         */
+        @JvmStatic
+        fun elementType(field: Field): Class<*>? {
+            if (field.type.isArray) {
+                return field.type.componentType
+            }
+            val genericType = field.genericType as? ParameterizedType ?: return null
+            return genericType.actualTypeArguments.firstOrNull() as? Class<*>
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+package com.kinvey.java.core
+
+import com.google.api.client.http.AbstractInputStreamContent
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+
+/**
+ * Content of a byte range of a file, read from a shared [FileChannel] at explicit offsets.
+ *
+ * Positional reads do not move the channel position, so several ranges of the same channel can be sent
+ * at the same time. The range is written by [FileChannel.transferTo], without copying it into a chunk buffer,
+ * and can be sent again on retry.
+ */
+internal class FileRangeContent(type: String?,
+                                private val channel: FileChannel,
+                                private val offset: Long,
+                                private val length: Long) : AbstractInputStreamContent(type) {
+
+    init {
+        setCloseInputStream(true)
+    }
+
+    override fun getLength(): Long = length
+
+    override fun retrySupported(): Boolean = true
+
+    override fun getInputStream(): InputStream = RangeInputStream()
+
+    @Throws(IOException::class)
+    override fun writeTo(out: OutputStream) {
+        val target = Channels.newChannel(out)
+        var position = offset
+        val end = offset + length
+        while (position < end) {
+            val transferred = channel.transferTo(position, end - position, target)
+            if (transferred <= 0) {
+                throw IOException("file is shorter than expected, ${end - position} bytes of the range are missing")
+            }
+            position += transferred
+        }
+        out.flush()
+    }
+
+    private inner class RangeInputStream : InputStream() {
+
+        private var position = offset
+
+        override fun read(): Int {
+            val single = ByteArray(1)
+            return if (read(single, 0, 1) == -1) -1 else single[0].toInt() and 0xFF
+        }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            val remaining = offset + length - position
+            if (remaining <= 0) {
+                return -1
+            }
+            val read = channel.read(ByteBuffer.wrap(b, off, Math.min(len.toLong(), remaining).toInt()), position)
+            if (read > 0) {
+                position += read
+            }
+            return read
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+
+package com.kinvey.java.core
+
+/**
+ * Keeps the bodies of GET responses which came with a validator, `ETag` or `Last-Modified`.
+ *
+ * When a client has a cache, see [com.kinvey.java.AbstractClient.httpResponseCache], its GET requests are sent
+ * with `If-None-Match` and `If-Modified-Since` of the cached response and a `304 Not Modified` answer is parsed
+ * from the cached body, so unchanged entities are not downloaded again. The keys are built from the url and
+ * the credentials of the request, so users of a client do not see each other's responses.
+ *
+ * Implementations must be thread safe: [InMemoryHttpResponseCache], [DiskHttpResponseCache].
+ */
+interface HttpResponseCache {
+
+    /**
+     * @return the response kept for the key or `null`
+     */
+    operator fun get(key: String): Entry?
+
+    /**
+     * Largest body to keep, bigger bodies are streamed to the caller without being cached
+     */
+    val maxEntryBytes: Long
+        get() = DEFAULT_MAX_ENTRY_BYTES
+
+    fun put(key: String, entry: Entry)
+
+    fun remove(key: String)
+
+    fun clear()
+
+    /**
+     * Cached response
+     *
+     * @param etag `ETag` header of the response
+     * @param lastModified `Last-Modified` header of the response
+     * @param contentType `Content-Type` header of the response, used to read the body in the right charset
+     * @param body the response body
+     */
+    class Entry(val etag: String?, val lastModified: String?, val contentType: String?, val body: ByteArray)
+
+    companion object {
+        const val DEFAULT_MAX_ENTRY_BYTES = 1024L * 1024
+    }
+}
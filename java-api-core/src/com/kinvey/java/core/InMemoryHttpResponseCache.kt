@@ -0,0 +1,74 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+
+package com.kinvey.java.core
+
+import com.google.common.base.Preconditions
+import java.util.LinkedHashMap
+
+/**
+ * [HttpResponseCache] which keeps the responses in memory, the least recently used ones are evicted
+ * once the bodies take more than [maxBytes].
+ */
+class InMemoryHttpResponseCache @JvmOverloads constructor(val maxBytes: Long = DEFAULT_MAX_BYTES) : HttpResponseCache {
+
+    private val entries = LinkedHashMap<String, HttpResponseCache.Entry>(16, 0.75f, true)
+    private var totalBytes = 0L
+
+    init {
+        Preconditions.checkArgument(maxBytes > 0, "maxBytes must be positive")
+    }
+
+    /**
+     * Total size of the cached bodies in bytes
+     */
+    val size: Long
+        @Synchronized get() = totalBytes
+
+    @Synchronized
+    override fun get(key: String): HttpResponseCache.Entry? = entries[key]
+
+    @Synchronized
+    override fun put(key: String, entry: HttpResponseCache.Entry) {
+        remove(key)
+        if (entry.body.size > maxBytes) {
+            return
+        }
+        entries[key] = entry
+        totalBytes += entry.body.size
+        val iterator = entries.values.iterator()
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            totalBytes -= iterator.next().body.size
+            iterator.remove()
+        }
+    }
+
+    @Synchronized
+    override fun remove(key: String) {
+        entries.remove(key)?.let { totalBytes -= it.body.size }
+    }
+
+    @Synchronized
+    override fun clear() {
+        entries.clear()
+        totalBytes = 0
+    }
+
+    companion object {
+        const val DEFAULT_MAX_BYTES = 4L * 1024 * 1024
+    }
+}
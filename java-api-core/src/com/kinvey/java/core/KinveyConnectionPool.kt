@@ -0,0 +1,291 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+package com.kinvey.java.core
+
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.net.Socket
+import java.net.SocketTimeoutException
+import java.util.ArrayDeque
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import javax.net.SocketFactory
+import javax.net.ssl.HostnameVerifier
+import javax.net.ssl.HttpsURLConnection
+import javax.net.ssl.SSLPeerUnverifiedException
+import javax.net.ssl.SSLSocket
+import javax.net.ssl.SSLSocketFactory
+import kotlin.concurrent.withLock
+
+/**
+ * Keeps open connections per route (scheme, host and port) for [KinveyPooledHttpTransport].
+ *
+ * At most `maxConnectionsPerRoute` connections of a route are leased or idle at the same time,
+ * a caller which needs one more waits up to the connect timeout. Idle connections are evicted
+ * lazily, on every acquire, once they have been idle longer than `idleTimeoutMillis`.
+ */
+internal class KinveyConnectionPool(private val maxConnectionsPerRoute: Int,
+                                    private val idleTimeoutMillis: Long,
+                                    private val socketFactory: SocketFactory,
+                                    private val sslSocketFactory: SSLSocketFactory,
+                                    private val hostnameVerifier: HostnameVerifier?) {
+
+    private val lock = ReentrantLock()
+    private val connectionReleased = lock.newCondition()
+    private val routes = HashMap<Route, RouteState>()
+    private var connectionsCreated = 0L
+    private var connectionsReused = 0L
+    private var isShutdown = false
+
+    val stats: KinveyPooledHttpTransport.PoolStats
+        get() = lock.withLock {
+            KinveyPooledHttpTransport.PoolStats(
+                    leased = routes.values.sumBy { it.leased },
+                    idle = routes.values.sumBy { it.idle.size },
+                    pending = routes.values.sumBy { it.pending },
+                    connectionsCreated = connectionsCreated,
+                    connectionsReused = connectionsReused)
+        }
+
+    /**
+     * Leases an idle connection of the route or opens a new one.
+     */
+    @Throws(IOException::class)
+    fun acquire(route: Route, connectTimeout: Int, readTimeout: Int): Connection {
+        var candidate: Connection? = null
+        lock.withLock {
+            if (isShutdown) {
+                throw IOException("connection pool is shut down")
+            }
+            val state = routes.getOrPut(route) { RouteState() }
+            var waitNanos = TimeUnit.MILLISECONDS.toNanos(connectTimeout.toLong())
+            state.pending++
+            try {
+                while (true) {
+                    evictIdle(System.currentTimeMillis())
+                    candidate = state.idle.pollLast()
+                    if (candidate != null || state.leased < maxConnectionsPerRoute) {
+                        state.leased++
+                        break
+                    }
+                    if (connectTimeout == 0) {
+                        connectionReleased.await()
+                    } else {
+                        if (waitNanos <= 0) {
+                            throw SocketTimeoutException("timed out waiting for a connection to $route")
+                        }
+                        waitNanos = connectionReleased.awaitNanos(waitNanos)
+                    }
+                }
+            } finally {
+                state.pending--
+            }
+        }
+        try {
+            val idle = candidate
+            if (idle != null) {
+                if (!idle.isStale()) {
+                    lock.withLock { connectionsReused++ }
+                    idle.socket.soTimeout = readTimeout
+                    idle.isReused = true
+                    return idle
+                }
+                idle.close()
+            }
+            return connect(route, connectTimeout, readTimeout)
+        } catch (e: IOException) {
+            releaseSlot(route)
+            throw e
+        } catch (e: RuntimeException) {
+            releaseSlot(route)
+            throw e
+        }
+    }
+
+    /**
+     * Returns the leased connection to the pool if it can carry one more request, closes it otherwise.
+     */
+    fun release(connection: Connection, reusable: Boolean) {
+        var toClose: Connection? = null
+        lock.withLock {
+            val state = routes[connection.route]
+            state?.leased = (state?.leased ?: 1) - 1
+            if (reusable && !isShutdown && state != null && !connection.socket.isClosed) {
+                connection.idleSince = System.currentTimeMillis()
+                state.idle.addLast(connection)
+            } else {
+                toClose = connection
+            }
+            connectionReleased.signalAll()
+        }
+        toClose?.close()
+    }
+
+    /**
+     * Closes the connections which have been idle longer than the idle timeout.
+     */
+    fun evictIdleConnections() {
+        lock.withLock { evictIdle(System.currentTimeMillis()) }
+    }
+
+    /**
+     * Closes all idle connections, connections in use are closed once they are released.
+     */
+    fun shutdown() {
+        lock.withLock {
+            isShutdown = true
+            routes.values.forEach { state ->
+                state.idle.forEach { it.close() }
+                state.idle.clear()
+            }
+            connectionReleased.signalAll()
+        }
+    }
+
+    private fun releaseSlot(route: Route) {
+        lock.withLock {
+            routes[route]?.let { it.leased-- }
+            connectionReleased.signalAll()
+        }
+    }
+
+    private fun evictIdle(now: Long) {
+        routes.values.forEach { state ->
+            val iterator = state.idle.iterator()
+            while (iterator.hasNext()) {
+                val connection = iterator.next()
+                if (now - connection.idleSince >= idleTimeoutMillis) {
+                    iterator.remove()
+                    connection.close()
+                }
+            }
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun connect(route: Route, connectTimeout: Int, readTimeout: Int): Connection {
+        var socket = socketFactory.createSocket()
+        try {
+            socket.tcpNoDelay = true
+            socket.keepAlive = true
+            socket.connect(InetSocketAddress(route.host, route.port), connectTimeout)
+            socket.soTimeout = readTimeout
+            if (route.isSecure) {
+                val sslSocket = sslSocketFactory.createSocket(socket, route.host, route.port, true) as SSLSocket
+                socket = sslSocket
+                val verifier = hostnameVerifier ?: identifyEndpoint(sslSocket)
+                sslSocket.startHandshake()
+                if (verifier != null && !verifier.verify(route.host, sslSocket.session)) {
+                    throw SSLPeerUnverifiedException("hostname ${route.host} is not verified")
+                }
+            }
+        } catch (e: IOException) {
+            closeQuietly(socket)
+            throw e
+        }
+        lock.withLock { connectionsCreated++ }
+        return Connection(route, socket)
+    }
+
+    /**
+     * Makes the handshake check the host name against the certificate like `https` URLs do.
+     *
+     * @return the platform verifier to check the host name after the handshake where the socket can't do it,
+     * null if the handshake checks it
+     */
+    private fun identifyEndpoint(sslSocket: SSLSocket): HostnameVerifier? {
+        return try {
+            val parameters = sslSocket.sslParameters
+            parameters.endpointIdentificationAlgorithm = ENDPOINT_IDENTIFICATION_HTTPS
+            sslSocket.sslParameters = parameters
+            null
+        } catch (e: NoSuchMethodError) {
+            // Android before API 24, its default verifier checks the host name
+            HttpsURLConnection.getDefaultHostnameVerifier()
+        }
+    }
+
+    private class RouteState {
+        val idle = ArrayDeque<Connection>()
+        var leased = 0
+        var pending = 0
+    }
+
+    internal data class Route(val scheme: String, val host: String, val port: Int) {
+        val isSecure: Boolean
+            get() = HTTPS == scheme
+
+        override fun toString(): String = "$scheme://$host:$port"
+    }
+
+    internal class Connection(val route: Route, val socket: Socket) {
+
+        val input = BufferedInputStream(socket.getInputStream(), BUFFER_SIZE)
+        val output = BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE)
+        var idleSince = 0L
+
+        /**
+         * True if the connection has carried a request before, the server may have closed it in the meantime
+         */
+        var isReused = false
+
+        /**
+         * An idle connection must not have anything to read, end of stream means the server has closed it.
+         */
+        fun isStale(): Boolean {
+            if (socket.isClosed || socket.isInputShutdown || socket.isOutputShutdown) {
+                return true
+            }
+            val readTimeout = socket.soTimeout
+            return try {
+                socket.soTimeout = 1
+                input.mark(1)
+                val read = input.read()
+                input.reset()
+                read == -1
+            } catch (e: SocketTimeoutException) {
+                false
+            } catch (e: IOException) {
+                true
+            } finally {
+                try {
+                    socket.soTimeout = readTimeout
+                } catch (e: IOException) {
+                    // the socket is closed, it will be reported as stale
+                }
+            }
+        }
+
+        fun close() = closeQuietly(socket)
+    }
+
+    companion object {
+        const val HTTPS = "https"
+        private const val ENDPOINT_IDENTIFICATION_HTTPS = "HTTPS"
+        private const val BUFFER_SIZE = 8192
+
+        private fun closeQuietly(socket: Socket) {
+            try {
+                socket.close()
+            } catch (e: IOException) {
+                // nothing to do, the connection is dropped anyway
+            }
+        }
+    }
+}
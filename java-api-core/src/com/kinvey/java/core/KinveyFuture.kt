@@ -0,0 +1,101 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+
+package com.kinvey.java.core
+
+import java.util.concurrent.Callable
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executor
+
+/**
+ * [CompletableFuture] of an operation running on an executor.
+ *
+ * Cancelling it before the operation has started means the operation never runs. Once the operation is running,
+ * the request already sent completes but its result is dropped, like cancelling a [KinveyCancellableCallback].
+ * The thread running it is interrupted if `mayInterruptIfRunning` is true, and the cancel action, e.g. cancelling
+ * a file transfer, is called.
+ */
+class KinveyFuture<T> private constructor(private val onCancel: Runnable?) : CompletableFuture<T>() {
+
+    private val lock = Any()
+    private var runner: Thread? = null
+
+    override fun cancel(mayInterruptIfRunning: Boolean): Boolean {
+        val cancelled = super.cancel(mayInterruptIfRunning)
+        if (cancelled) {
+            onCancel?.run()
+            if (mayInterruptIfRunning) {
+                synchronized(lock) { runner?.interrupt() }
+            }
+        }
+        return cancelled
+    }
+
+    /**
+     * Delivers the result to the callback. A [KinveyCancellableCallback] which has been cancelled, or whose future
+     * has been cancelled, gets [KinveyCancellableCallback.onCancelled] instead.
+     *
+     * @return this future
+     */
+    fun whenDone(callback: KinveyClientCallback<T>): KinveyFuture<T> {
+        whenComplete { result, error ->
+            val cancellable = callback as? KinveyCancellableCallback<T>
+            when {
+                cancellable != null && (cancellable.isCancelled || isCancelled) -> cancellable.onCancelled()
+                error != null -> callback.onFailure(error)
+                else -> callback.onSuccess(result)
+            }
+        }
+        return this
+    }
+
+    private fun run(task: Callable<T>) {
+        if (isDone) {
+            return
+        }
+        synchronized(lock) { runner = Thread.currentThread() }
+        try {
+            complete(task.call())
+        } catch (e: Throwable) {
+            completeExceptionally(e)
+        } finally {
+            synchronized(lock) {
+                runner = null
+                if (isCancelled) {
+                    // don't leave the interrupt to the next task of the thread
+                    Thread.interrupted()
+                }
+            }
+        }
+    }
+
+    companion object {
+
+        /**
+         * Runs the task on the executor
+         *
+         * @param onCancel called when the future is cancelled, `null` if only the result should be dropped
+         */
+        @JvmStatic
+        @JvmOverloads
+        fun <T> supply(executor: Executor, task: Callable<T>, onCancel: Runnable? = null): KinveyFuture<T> {
+            val future = KinveyFuture<T>(onCancel)
+            executor.execute { future.run(task) }
+            return future
+        }
+    }
+}
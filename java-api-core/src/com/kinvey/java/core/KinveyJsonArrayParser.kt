@@ -0,0 +1,188 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+package com.kinvey.java.core
+
+import com.google.api.client.json.JsonFactory
+import com.google.api.client.json.JsonParser
+import com.google.api.client.json.JsonToken
+import com.kinvey.java.KinveyException
+import com.kinvey.java.Logger
+
+import java.io.IOException
+import java.io.InputStream
+import java.lang.reflect.Type
+import java.math.BigDecimal
+import java.math.BigInteger
+import java.nio.charset.Charset
+
+/**
+ * Reads JSON arrays of entities straight from a response stream, binding every element into the item class
+ * as soon as its tokens are read, so the payload is never held as a string or as a JSON tree.
+ *
+ * An element which can't be bound is recorded in the list of exceptions and skipped, the rest of the array
+ * is still read.
+ */
+class KinveyJsonArrayParser(private val jsonFactory: JsonFactory) {
+
+    /**
+     * Creates a parser over the given content for [readArray], which then doesn't need to wrap it.
+     * The caller is responsible for closing it.
+     */
+    @Throws(IOException::class)
+    fun createParser(content: InputStream, charset: Charset): JsonParser {
+        return DepthTrackingJsonParser(jsonFactory.createJsonParser(content, charset))
+    }
+
+    /**
+     * Reads the whole content as a top level JSON array and closes it.
+     *
+     * @param content response content
+     * @param charset content charset
+     * @param itemClass class every array element is parsed into
+     * @param results list the parsed elements are added to
+     * @param exceptions list the per-element parsing errors are added to
+     */
+    @Throws(IOException::class)
+    fun <T> parseArrayAndClose(content: InputStream, charset: Charset, itemClass: Class<*>?,
+                               results: MutableList<T>, exceptions: MutableList<Exception>) {
+        val parser = createParser(content, charset)
+        try {
+            parser.nextToken()
+            readArray(parser, itemClass, results, exceptions)
+        } finally {
+            parser.close()
+        }
+    }
+
+    /**
+     * Reads the array the parser is positioned on, leaving the parser on its closing token.
+     *
+     * @param parser parser positioned on [JsonToken.START_ARRAY], a parser not created by [createParser]
+     * is wrapped to keep track of the nesting of the elements
+     * @param itemClass class every array element is parsed into
+     * @param results list the parsed elements are added to
+     * @param exceptions list the per-element parsing errors are added to
+     */
+    @Throws(IOException::class)
+    fun <T> readArray(parser: JsonParser, itemClass: Class<*>?,
+                      results: MutableList<T>, exceptions: MutableList<Exception>) {
+        val trackingParser = parser as? DepthTrackingJsonParser ?: DepthTrackingJsonParser(parser)
+        if (trackingParser.currentToken != JsonToken.START_ARRAY) {
+            throw IllegalArgumentException("expected JSON array but was ${trackingParser.currentToken}")
+        }
+        val arrayDepth = trackingParser.depth
+        while (true) {
+            val token = trackingParser.nextToken()
+                    ?: throw IOException("unexpected end of JSON content")
+            if (token == JsonToken.END_ARRAY) {
+                return
+            }
+            try {
+                val item = trackingParser.parse(itemClass as Type?, false) as T?
+                item?.run { results.add(this) }
+            } catch (e: IllegalArgumentException) {
+                Logger.ERROR("unable to parse response -> $e")
+                exceptions.add(KinveyException("Unable to parse the JSON in the response", "examine BL or DLC to ensure data format is correct. If the exception is caused by `key <somkey>`, then <somekey> might be a different type than is expected (int instead of of string)", e.toString()))
+                skipToDepth(trackingParser, arrayDepth)
+            } catch (e: IOException) {
+                throw e
+            } catch (e: Exception) {
+                Logger.ERROR("unable to parse response -> $e")
+                exceptions.add(e)
+                skipToDepth(trackingParser, arrayDepth)
+            }
+        }
+    }
+
+    /**
+     * Moves the parser to the last token of the element that failed, so the next token belongs to the array again.
+     */
+    @Throws(IOException::class)
+    private fun skipToDepth(parser: DepthTrackingJsonParser, arrayDepth: Int) {
+        while (parser.depth > arrayDepth) {
+            parser.nextToken() ?: throw IOException("unexpected end of JSON content")
+        }
+    }
+
+    /**
+     * Delegating parser which keeps the current nesting depth, so a partially parsed element can be skipped.
+     * The depth counts from the position of the delegate when it is wrapped.
+     */
+    private class DepthTrackingJsonParser(private val delegate: JsonParser) : JsonParser() {
+
+        var depth = 0
+            private set
+
+        override fun getFactory(): JsonFactory = delegate.factory
+
+        @Throws(IOException::class)
+        override fun close() = delegate.close()
+
+        @Throws(IOException::class)
+        override fun nextToken(): JsonToken? {
+            val token = delegate.nextToken()
+            when (token) {
+                JsonToken.START_ARRAY, JsonToken.START_OBJECT -> depth++
+                JsonToken.END_ARRAY, JsonToken.END_OBJECT -> depth--
+                else -> {}
+            }
+            return token
+        }
+
+        override fun getCurrentToken(): JsonToken? = delegate.currentToken
+
+        @Throws(IOException::class)
+        override fun getCurrentName(): String? = delegate.currentName
+
+        @Throws(IOException::class)
+        override fun skipChildren(): JsonParser {
+            val token = delegate.currentToken
+            delegate.skipChildren()
+            if (token == JsonToken.START_ARRAY || token == JsonToken.START_OBJECT) {
+                depth--
+            }
+            return this
+        }
+
+        @Throws(IOException::class)
+        override fun getText(): String? = delegate.text
+
+        @Throws(IOException::class)
+        override fun getByteValue(): Byte = delegate.byteValue
+
+        @Throws(IOException::class)
+        override fun getShortValue(): Short = delegate.shortValue
+
+        @Throws(IOException::class)
+        override fun getIntValue(): Int = delegate.intValue
+
+        @Throws(IOException::class)
+        override fun getFloatValue(): Float = delegate.floatValue
+
+        @Throws(IOException::class)
+        override fun getLongValue(): Long = delegate.longValue
+
+        @Throws(IOException::class)
+        override fun getDoubleValue(): Double = delegate.doubleValue
+
+        @Throws(IOException::class)
+        override fun getBigIntegerValue(): BigInteger = delegate.bigIntegerValue
+
+        @Throws(IOException::class)
+        override fun getDecimalValue(): BigDecimal = delegate.decimalValue
+    }
+}
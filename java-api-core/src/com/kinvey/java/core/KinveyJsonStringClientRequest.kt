@@ -67,18 +67,20 @@ open class KinveyJsonStringClientRequest<T> protected constructor(abstractKinvey
         }
 
         // special class to handle void or empty responses
-        if (Void::class.java == responseClass || response?.content == null) {
+        val content = if (Void::class.java == responseClass) null else response?.let { responseContent(it) }
+        if (response == null || content == null) {
             response?.ignore()
             return null
         }
         return try {
             val statusCode = response.statusCode
             if (response.request.requestMethod == HttpMethods.HEAD || statusCode / 100 == 1
-                || statusCode == HttpStatusCodes.STATUS_CODE_NO_CONTENT || statusCode == HttpStatusCodes.STATUS_CODE_NOT_MODIFIED) {
+                || statusCode == HttpStatusCodes.STATUS_CODE_NO_CONTENT
+                || statusCode == HttpStatusCodes.STATUS_CODE_NOT_MODIFIED && !isNotModified(response)) {
                 response.ignore()
                 null
             } else {
-                val parsedContent: Any = response.parseAs(responseClassType)
+                val parsedContent: Any = response.request.parser.parseAndClose(content, responseCharset(response), responseClassType)
                 response.disconnect()
                 parsedContent as T
             }
@@ -0,0 +1,537 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+package com.kinvey.java.core
+
+import com.google.api.client.http.HttpContent
+import com.google.api.client.http.HttpTransport
+import com.google.api.client.http.LowLevelHttpRequest
+import com.google.api.client.http.LowLevelHttpResponse
+import com.google.api.client.http.javanet.NetHttpTransport
+import com.google.common.base.Preconditions
+import com.kinvey.java.Logger
+import com.kinvey.java.core.KinveyConnectionPool.Connection
+import com.kinvey.java.core.KinveyConnectionPool.Route
+import java.io.EOFException
+import java.io.FilterOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.net.Proxy
+import java.net.ProxySelector
+import java.net.SocketTimeoutException
+import java.net.URISyntaxException
+import java.net.URL
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import javax.net.SocketFactory
+import javax.net.ssl.HostnameVerifier
+import javax.net.ssl.HttpsURLConnection
+import javax.net.ssl.SSLSocketFactory
+
+/**
+ * HTTP/1.1 transport which keeps connections open between requests, so paginated pulls and parallel saves
+ * don't pay for a TCP and TLS handshake on every request.
+ *
+ * Connections are pooled per route with a limit of connections per route and an idle timeout,
+ * see [Builder]. Live pool counters are available from [poolStats].
+ * The pool connects directly, a request to a host the default [ProxySelector] sends through a proxy
+ * is made by a [NetHttpTransport] instead, without pooling.
+ */
+class KinveyPooledHttpTransport private constructor(builder: Builder) : HttpTransport() {
+
+    private val isKeepAliveEnabled = builder.isKeepAliveEnabled
+    private val pool = KinveyConnectionPool(builder.maxConnectionsPerRoute, builder.idleTimeoutMillis,
+            builder.socketFactory, builder.sslSocketFactory, builder.hostnameVerifier)
+    private val proxyTransport: NetHttpTransport by lazy { NetHttpTransport() }
+    private val isProxyWarningLogged = AtomicBoolean()
+
+    /**
+     * Current counters of the connection pool
+     */
+    val poolStats: PoolStats
+        get() = pool.stats
+
+    override fun supportsMethod(method: String): Boolean = method in SUPPORTED_METHODS
+
+    @Throws(IOException::class)
+    override fun buildRequest(method: String, url: String): LowLevelHttpRequest {
+        Preconditions.checkArgument(supportsMethod(method), "HTTP method %s not supported", method)
+        val requestUrl = URL(url)
+        if (isProxied(requestUrl)) {
+            if (isProxyWarningLogged.compareAndSet(false, true)) {
+                Logger.WARNING("A proxy is configured for ${requestUrl.host}, its requests are sent without connection pooling")
+            }
+            return proxyTransport.buildRequest(method, url)
+        }
+        return PooledRequest(method, requestUrl)
+    }
+
+    private fun isProxied(url: URL): Boolean {
+        val selector = ProxySelector.getDefault() ?: return false
+        return try {
+            selector.select(url.toURI()).any { it.type() != Proxy.Type.DIRECT }
+        } catch (e: URISyntaxException) {
+            false
+        }
+    }
+
+    /**
+     * Closes the connections which have been idle longer than the idle timeout, it's done on every request as well.
+     */
+    fun evictIdleConnections() = pool.evictIdleConnections()
+
+    @Throws(IOException::class)
+    override fun shutdown() {
+        pool.shutdown()
+    }
+
+    /**
+     * Connection pool counters
+     *
+     * @property leased connections carrying a request or a response right now
+     * @property idle open connections waiting for the next request
+     * @property pending requests waiting for a connection because the route limit is reached
+     * @property connectionsCreated connections opened, i.e. TCP and TLS handshakes made, since the transport was created
+     * @property connectionsReused requests sent over an already open connection since the transport was created
+     */
+    data class PoolStats(val leased: Int, val idle: Int, val pending: Int,
+                         val connectionsCreated: Long, val connectionsReused: Long)
+
+    /**
+     * Builder for [KinveyPooledHttpTransport]
+     */
+    class Builder {
+
+        var maxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE
+            private set
+        var idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS
+            private set
+        var isKeepAliveEnabled = true
+            private set
+        var socketFactory: SocketFactory = SocketFactory.getDefault()
+            private set
+        var sslSocketFactory: SSLSocketFactory = HttpsURLConnection.getDefaultSSLSocketFactory()
+            private set
+        /**
+         * Verifier of the host names of TLS connections, null to let the TLS handshake verify them
+         * like `https` URLs of the platform do
+         */
+        var hostnameVerifier: HostnameVerifier? = null
+            private set
+
+        /**
+         * @param maxConnectionsPerRoute max count of open connections to the same scheme, host and port
+         */
+        fun setMaxConnectionsPerRoute(maxConnectionsPerRoute: Int): Builder {
+            Preconditions.checkArgument(maxConnectionsPerRoute > 0, "maxConnectionsPerRoute must be positive")
+            this.maxConnectionsPerRoute = maxConnectionsPerRoute
+            return this
+        }
+
+        /**
+         * @param idleTimeout time after which an idle connection is closed
+         * @param unit unit of the idle timeout
+         */
+        fun setIdleTimeout(idleTimeout: Long, unit: TimeUnit): Builder {
+            Preconditions.checkArgument(idleTimeout >= 0, "idleTimeout must not be negative")
+            this.idleTimeoutMillis = unit.toMillis(idleTimeout)
+            return this
+        }
+
+        /**
+         * @param isKeepAliveEnabled false to close every connection after its response, as `Connection: close` does
+         */
+        fun setKeepAliveEnabled(isKeepAliveEnabled: Boolean): Builder {
+            this.isKeepAliveEnabled = isKeepAliveEnabled
+            return this
+        }
+
+        fun setSocketFactory(socketFactory: SocketFactory): Builder {
+            this.socketFactory = socketFactory
+            return this
+        }
+
+        fun setSslSocketFactory(sslSocketFactory: SSLSocketFactory): Builder {
+            this.sslSocketFactory = sslSocketFactory
+            return this
+        }
+
+        fun setHostnameVerifier(hostnameVerifier: HostnameVerifier?): Builder {
+            this.hostnameVerifier = hostnameVerifier
+            return this
+        }
+
+        fun build(): KinveyPooledHttpTransport = KinveyPooledHttpTransport(this)
+    }
+
+    private inner class PooledRequest(private val method: String, private val url: URL) : LowLevelHttpRequest() {
+
+        private val headers = ArrayList<Pair<String, String>>()
+        private var connectTimeout = DEFAULT_TIMEOUT_MILLIS
+        private var readTimeout = DEFAULT_TIMEOUT_MILLIS
+
+        override fun addHeader(name: String, value: String) {
+            headers.add(name to value)
+        }
+
+        override fun setTimeout(connectTimeout: Int, readTimeout: Int) {
+            this.connectTimeout = connectTimeout
+            this.readTimeout = readTimeout
+        }
+
+        @Throws(IOException::class)
+        override fun execute(): LowLevelHttpResponse {
+            val scheme = url.protocol.toLowerCase()
+            val port = if (url.port != -1) url.port else url.defaultPort
+            val route = Route(scheme, url.host, port)
+            while (true) {
+                val connection = pool.acquire(route, connectTimeout, readTimeout)
+                try {
+                    writeRequest(connection, port)
+                    return readResponse(connection)
+                } catch (e: IOException) {
+                    pool.release(connection, false)
+                    if (!connection.isReused || e is SocketTimeoutException || !isRetrySupported()) {
+                        throw e
+                    }
+                    // the server has closed the kept alive connection, the request is sent again over a new one
+                } catch (e: RuntimeException) {
+                    pool.release(connection, false)
+                    throw e
+                }
+            }
+        }
+
+        private fun isRetrySupported(): Boolean {
+            val content = streamingContent
+            return content == null || (content is HttpContent && content.retrySupported())
+        }
+
+        @Throws(IOException::class)
+        private fun writeRequest(connection: Connection, port: Int) {
+            val head = StringBuilder()
+            val path = if (url.file.isNullOrEmpty()) "/" else url.file
+            head.append(method).append(' ').append(path).append(" HTTP/1.1").append(CRLF)
+            head.append("Host: ").append(url.host)
+            if (port != url.defaultPort) {
+                head.append(':').append(port)
+            }
+            head.append(CRLF)
+            headers.forEach { (name, value) -> head.append(name).append(": ").append(value).append(CRLF) }
+            if (!isKeepAliveEnabled) {
+                head.append("Connection: close").append(CRLF)
+            }
+            val content = streamingContent
+            contentType?.let { head.append("Content-Type: ").append(it).append(CRLF) }
+            contentEncoding?.let { head.append("Content-Encoding: ").append(it).append(CRLF) }
+            val isChunked = content != null && contentLength < 0
+            when {
+                isChunked -> head.append("Transfer-Encoding: chunked").append(CRLF)
+                content != null -> head.append("Content-Length: ").append(contentLength).append(CRLF)
+                method == "POST" || method == "PUT" || method == "PATCH" -> head.append("Content-Length: 0").append(CRLF)
+            }
+            head.append(CRLF)
+            val output = connection.output
+            output.write(head.toString().toByteArray(StandardCharsets.UTF_8))
+            if (content != null) {
+                if (isChunked) {
+                    val chunked = ChunkedOutputStream(output)
+                    content.writeTo(chunked)
+                    chunked.finish()
+                } else {
+                    content.writeTo(output)
+                }
+            }
+            output.flush()
+        }
+
+        @Throws(IOException::class)
+        private fun readResponse(connection: Connection): LowLevelHttpResponse {
+            val input = connection.input
+            var statusLine: String
+            var responseHeaders: List<Pair<String, String>>
+            do {
+                statusLine = readLine(input) ?: throw EOFException("connection closed before the response")
+                responseHeaders = readHeaders(input)
+            } while (statusCode(statusLine) == HTTP_CONTINUE)
+            return PooledResponse(connection, method, statusLine, responseHeaders)
+        }
+    }
+
+    private inner class PooledResponse(private val connection: Connection, method: String,
+                                       private val statusLine: String,
+                                       private val headers: List<Pair<String, String>>) : LowLevelHttpResponse() {
+
+        private val statusCode = statusCode(statusLine)
+        private val contentLength = header(CONTENT_LENGTH)?.trim()?.toLongOrNull() ?: -1
+        private val content: BodyInputStream
+
+        init {
+            val isChunked = header(TRANSFER_ENCODING)?.contains("chunked", ignoreCase = true) == true
+            val hasNoBody = method == "HEAD" || statusCode in 100..199 || statusCode == 204 || statusCode == 304
+            val isDelimited = hasNoBody || isChunked || contentLength >= 0
+            val connectionHeader = header(CONNECTION)
+            val isPersistent = if (statusLine.startsWith("HTTP/1.0")) {
+                connectionHeader.equals("keep-alive", ignoreCase = true)
+            } else {
+                !connectionHeader.equals("close", ignoreCase = true)
+            }
+            val reusable = isKeepAliveEnabled && isDelimited && isPersistent
+            content = when {
+                hasNoBody -> BodyInputStream(connection, reusable, 0)
+                isChunked -> ChunkedBodyInputStream(connection, reusable)
+                else -> BodyInputStream(connection, reusable, contentLength)
+            }
+            if (hasNoBody) {
+                content.close()
+            }
+        }
+
+        private fun header(name: String): String? = headers.firstOrNull { it.first.equals(name, ignoreCase = true) }?.second
+
+        override fun getContent(): InputStream = content
+
+        override fun getContentEncoding(): String? = header(CONTENT_ENCODING)
+
+        override fun getContentLength(): Long = contentLength
+
+        override fun getContentType(): String? = header(CONTENT_TYPE)
+
+        override fun getStatusLine(): String = statusLine
+
+        override fun getStatusCode(): Int = statusCode
+
+        override fun getReasonPhrase(): String? {
+            val parts = statusLine.split(' ', limit = 3)
+            return if (parts.size == 3) parts[2] else null
+        }
+
+        override fun getHeaderCount(): Int = headers.size
+
+        override fun getHeaderName(index: Int): String = headers[index].first
+
+        override fun getHeaderValue(index: Int): String = headers[index].second
+
+        override fun disconnect() {
+            content.abort()
+        }
+    }
+
+    /**
+     * Response body of a known length, or up to the end of the stream for a length of -1.
+     * The connection goes back to the pool once the body is read to its end.
+     */
+    private open inner class BodyInputStream(protected val connection: Connection, private val reusable: Boolean,
+                                             private var remaining: Long) : InputStream() {
+
+        private var isReleased = false
+
+        @Throws(IOException::class)
+        override fun read(): Int {
+            val buffer = ByteArray(1)
+            return if (read(buffer, 0, 1) == -1) -1 else buffer[0].toInt() and 0xff
+        }
+
+        @Throws(IOException::class)
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            if (isReleased) {
+                return -1
+            }
+            val read = readBody(b, off, len)
+            if (read == -1) {
+                release(true)
+            }
+            return read
+        }
+
+        @Throws(IOException::class)
+        protected open fun readBody(b: ByteArray, off: Int, len: Int): Int {
+            if (remaining == 0L) {
+                return -1
+            }
+            val toRead = if (remaining > 0) Math.min(len.toLong(), remaining).toInt() else len
+            val read = connection.input.read(b, off, toRead)
+            if (read == -1) {
+                if (remaining > 0) {
+                    release(false)
+                    throw EOFException("connection closed before the end of the response")
+                }
+                return -1
+            }
+            if (remaining > 0) {
+                remaining -= read
+            }
+            return read
+        }
+
+        /**
+         * Reads the rest of a small body so the connection can be reused, a bigger one closes the connection.
+         */
+        @Throws(IOException::class)
+        override fun close() {
+            if (isReleased) {
+                return
+            }
+            try {
+                val buffer = ByteArray(DRAIN_BUFFER_SIZE)
+                var drained = 0L
+                while (drained < MAX_DRAIN_BYTES) {
+                    val read = read(buffer, 0, buffer.size)
+                    if (read == -1) {
+                        return
+                    }
+                    drained += read
+                }
+                release(false)
+            } catch (e: IOException) {
+                release(false)
+            }
+        }
+
+        fun abort() {
+            release(false)
+        }
+
+        protected fun release(bodyCompleted: Boolean) {
+            if (!isReleased) {
+                isReleased = true
+                pool.release(connection, reusable && bodyCompleted)
+            }
+        }
+    }
+
+    private inner class ChunkedBodyInputStream(connection: Connection, reusable: Boolean)
+        : BodyInputStream(connection, reusable, -1) {
+
+        private var chunkRemaining = 0L
+        private var isLastChunk = false
+
+        @Throws(IOException::class)
+        override fun readBody(b: ByteArray, off: Int, len: Int): Int {
+            if (isLastChunk) {
+                return -1
+            }
+            if (chunkRemaining == 0L) {
+                val sizeLine = readLine(connection.input) ?: throw EOFException("connection closed in a chunk header")
+                chunkRemaining = sizeLine.substringBefore(';').trim().toLong(16)
+                if (chunkRemaining == 0L) {
+                    // trailer headers end with an empty line
+                    readHeaders(connection.input)
+                    isLastChunk = true
+                    return -1
+                }
+            }
+            val read = connection.input.read(b, off, Math.min(len.toLong(), chunkRemaining).toInt())
+            if (read == -1) {
+                release(false)
+                throw EOFException("connection closed in a chunk")
+            }
+            chunkRemaining -= read
+            if (chunkRemaining == 0L) {
+                readLine(connection.input)
+            }
+            return read
+        }
+    }
+
+    private class ChunkedOutputStream(out: OutputStream) : FilterOutputStream(out) {
+
+        override fun write(b: Int) {
+            write(byteArrayOf(b.toByte()), 0, 1)
+        }
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            if (len == 0) {
+                return
+            }
+            out.write((Integer.toHexString(len) + CRLF).toByteArray(StandardCharsets.US_ASCII))
+            out.write(b, off, len)
+            out.write(CRLF_BYTES)
+        }
+
+        /**
+         * Writes the last chunk, the underlying stream stays open for the next request.
+         */
+        fun finish() {
+            out.write("0$CRLF$CRLF".toByteArray(StandardCharsets.US_ASCII))
+        }
+
+        override fun close() {
+            flush()
+        }
+    }
+
+    companion object {
+        private val SUPPORTED_METHODS = setOf("DELETE", "GET", "HEAD", "OPTIONS", "POST", "PUT", "PATCH", "TRACE")
+        private const val CRLF = "\r\n"
+        private val CRLF_BYTES = CRLF.toByteArray(StandardCharsets.US_ASCII)
+        private const val CONTENT_LENGTH = "Content-Length"
+        private const val CONTENT_TYPE = "Content-Type"
+        private const val CONTENT_ENCODING = "Content-Encoding"
+        private const val TRANSFER_ENCODING = "Transfer-Encoding"
+        private const val CONNECTION = "Connection"
+        private const val HTTP_CONTINUE = 100
+        private const val DRAIN_BUFFER_SIZE = 4096
+        private const val MAX_DRAIN_BYTES = 64 * 1024L
+        private const val DEFAULT_TIMEOUT_MILLIS = 20 * 1000
+
+        const val DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 5
+        const val DEFAULT_IDLE_TIMEOUT_MILLIS = 30 * 1000L
+
+        private fun statusCode(statusLine: String): Int {
+            val parts = statusLine.split(' ', limit = 3)
+            return if (parts.size >= 2) parts[1].toIntOrNull() ?: -1 else -1
+        }
+
+        @Throws(IOException::class)
+        private fun readHeaders(input: InputStream): List<Pair<String, String>> {
+            val headers = ArrayList<Pair<String, String>>()
+            while (true) {
+                val line = readLine(input) ?: throw EOFException("connection closed in the response headers")
+                if (line.length == 0) {
+                    return headers
+                }
+                val colon = line.indexOf(':')
+                if (colon > 0) {
+                    headers.add(line.substring(0, colon).trim() to line.substring(colon + 1).trim())
+                }
+            }
+        }
+
+        /**
+         * @return the line without its line break or null at the end of the stream
+         */
+        @Throws(IOException::class)
+        private fun readLine(input: InputStream): String? {
+            val line = StringBuilder()
+            while (true) {
+                val c = input.read()
+                when (c) {
+                    -1 -> return if (line.length == 0) null else line.toString()
+                    '\n'.toInt() -> {
+                        if (line.isNotEmpty() && line[line.length - 1] == '\r') {
+                            line.setLength(line.length - 1)
+                        }
+                        return line.toString()
+                    }
+                    else -> line.append(c.toChar())
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,515 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+
+package com.kinvey.java.core
+
+import com.google.common.base.Preconditions
+import com.google.common.util.concurrent.ThreadFactoryBuilder
+import com.kinvey.java.Metrics
+import java.util.ArrayDeque
+import java.util.ArrayList
+import java.util.HashSet
+import java.util.LinkedHashMap
+import java.util.concurrent.AbstractExecutorService
+import java.util.concurrent.Callable
+import java.util.concurrent.Executor
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Future
+import java.util.concurrent.FutureTask
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.SynchronousQueue
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * Runs the background work of a client: page requests of a pull, entities of a saved list, sync items of a push
+ * and chunks of file transfers.
+ *
+ * At most [maxConcurrency] tasks run at the same time across the whole client. Tasks are queued per group,
+ * usually the collection name, and the groups take turns, so a long pull of one collection does not hold back
+ * the requests of another one. Callers which need their own limit on top of that take an [executor] of a group.
+ *
+ * The running tasks and the queue of every group are recorded as levels in [metrics], under
+ * [Metrics.OP_SCHEDULER_ACTIVE] and [Metrics.OP_SCHEDULER_QUEUED].
+ *
+ * Workers are started on demand and idle ones stop after a minute. On a JVM with virtual threads they can be
+ * used instead of platform threads, see [isVirtualThreadsEnabled].
+ */
+class KinveyScheduler @JvmOverloads constructor(maxConcurrency: Int = DEFAULT_MAX_CONCURRENCY,
+                                                useVirtualThreads: Boolean = false) {
+
+    private val lock = ReentrantLock()
+    private val terminated = lock.newCondition()
+    /** groups which have queued tasks, in the order they take turns */
+    private val queues = LinkedHashMap<String, ArrayDeque<Runnable>>()
+    private var active = 0
+        set(value) {
+            field = value
+            metrics?.entry(null, Metrics.OP_SCHEDULER_ACTIVE)?.recordLevel(value.toLong())
+        }
+    private var queued = 0
+    private var completed = 0L
+    private var isShutdown = false
+    private val threadNumber = AtomicLong()
+    private val platformWorkers = ThreadPoolExecutor(0, Int.MAX_VALUE, WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            SynchronousQueue(), ThreadFactoryBuilder().setDaemon(true).setNameFormat("kinvey-worker-%d").build())
+
+    /**
+     * Max count of the tasks running at the same time, lowering it lets the running tasks finish
+     */
+    var maxConcurrency: Int = maxConcurrency
+        set(value) {
+            Preconditions.checkArgument(value > 0, "maxConcurrency must be positive")
+            lock.withLock { field = value }
+            dispatch()
+        }
+
+    /**
+     * Registry the scheduler records its levels into, `null` (default) records nothing
+     */
+    @Volatile
+    var metrics: Metrics? = null
+
+    /**
+     * Run the tasks on virtual threads, it has effect only if [isVirtualThreadsSupported]
+     */
+    @Volatile
+    var isVirtualThreadsEnabled: Boolean = useVirtualThreads
+
+    /**
+     * Counters of the scheduler, see [Stats]
+     */
+    val stats: Stats
+        get() = lock.withLock {
+            Stats(active = active, queued = queued, completed = completed,
+                    queuedByGroup = queues.mapValuesTo(LinkedHashMap<String, Int>()) { it.value.size })
+        }
+
+    val isTerminated: Boolean
+        get() = lock.withLock { isShutdown && active == 0 && queued == 0 }
+
+    init {
+        Preconditions.checkArgument(maxConcurrency > 0, "maxConcurrency must be positive")
+    }
+
+    /**
+     * Queues the task in the group
+     * @param group group the task takes turns with, `null` for work which does not belong to a collection
+     * @throws RejectedExecutionException if the scheduler is shut down
+     */
+    fun execute(group: String?, command: Runnable) {
+        lock.withLock {
+            if (isShutdown) {
+                throw RejectedExecutionException("scheduler is shut down")
+            }
+            val key = group ?: NO_GROUP
+            val queue = queues[key] ?: ArrayDeque<Runnable>().also { queues[key] = it }
+            queue.add(command)
+            queued++
+            recordQueued(key, queue.size)
+        }
+        dispatch()
+    }
+
+    /**
+     * Queues the task in the group
+     * @return the future of the task result
+     */
+    fun <V> submit(group: String?, task: Callable<V>): Future<V> {
+        val future = FutureTask(task)
+        execute(group, future)
+        return future
+    }
+
+    /**
+     * Returns an executor which runs its tasks in the group, at most [parallelism] of them at a time.
+     * It's cheap, take a new one for every operation. Shutting it down affects only the tasks submitted through it.
+     *
+     * A task which is submitted from a task of this scheduler starts at once if the executor and the scheduler
+     * have a free slot, otherwise it runs on the submitting thread, so waiting for it cannot starve the scheduler.
+     */
+    fun executor(group: String?, parallelism: Int): ExecutorService {
+        Preconditions.checkArgument(parallelism > 0, "parallelism must be positive")
+        return GroupExecutor(group, parallelism)
+    }
+
+    /**
+     * Stops accepting tasks, the queued ones still run
+     */
+    fun shutdown() {
+        lock.withLock {
+            isShutdown = true
+            signalIfTerminated()
+        }
+    }
+
+    /**
+     * Stops accepting tasks and removes the queued ones, the running tasks are not interrupted
+     * @return the removed tasks
+     */
+    fun shutdownNow(): List<Runnable> {
+        val removed = ArrayList<Runnable>()
+        lock.withLock {
+            isShutdown = true
+            queues.values.forEach { removed.addAll(it) }
+            queues.clear()
+            queued = 0
+            signalIfTerminated()
+        }
+        return removed
+    }
+
+    /**
+     * Waits until the scheduler is shut down and all its tasks have finished
+     * @return false if the timeout elapsed before
+     */
+    @Throws(InterruptedException::class)
+    fun awaitTermination(timeout: Long, unit: TimeUnit): Boolean {
+        var nanos = unit.toNanos(timeout)
+        lock.withLock {
+            while (!(isShutdown && active == 0 && queued == 0)) {
+                if (nanos <= 0) {
+                    return false
+                }
+                nanos = terminated.awaitNanos(nanos)
+            }
+        }
+        platformWorkers.shutdown()
+        return true
+    }
+
+    /**
+     * Starts workers while there are queued tasks and free slots
+     */
+    private fun dispatch() {
+        while (true) {
+            val task = lock.withLock {
+                if (active >= maxConcurrency) {
+                    return
+                }
+                val next = poll() ?: return
+                active++
+                next
+            }
+            start(task)
+        }
+    }
+
+    /**
+     * Starts the task without queueing it if there is a free slot
+     * @return false if all slots are taken
+     * @throws RejectedExecutionException if the scheduler is shut down
+     */
+    private fun tryStart(command: Runnable): Boolean {
+        lock.withLock {
+            if (isShutdown) {
+                throw RejectedExecutionException("scheduler is shut down")
+            }
+            if (active >= maxConcurrency) {
+                return false
+            }
+            active++
+        }
+        start(command)
+        return true
+    }
+
+    /**
+     * Runs the task on a worker, its slot must be taken already
+     */
+    private fun start(task: Runnable) {
+        try {
+            workers().execute { runWorker(task) }
+        } catch (e: RejectedExecutionException) {
+            lock.withLock {
+                active--
+                signalIfTerminated()
+            }
+            throw e
+        }
+    }
+
+    /**
+     * Runs the task and then the next queued ones until the queues are empty or the slot is no longer allowed
+     */
+    private fun runWorker(first: Runnable) {
+        CURRENT.set(this)
+        try {
+            var task: Runnable? = first
+            while (task != null) {
+                try {
+                    task.run()
+                } catch (e: RuntimeException) {
+                    // a plain Runnable has nobody to report to, the worker keeps running
+                } catch (e: Error) {
+                    lock.withLock {
+                        completed++
+                        active--
+                        signalIfTerminated()
+                    }
+                    throw e
+                }
+                // the interrupt of a cancelled task must not hit the next one
+                Thread.interrupted()
+                task = lock.withLock {
+                    completed++
+                    val next = if (active <= maxConcurrency) poll() else null
+                    if (next == null) {
+                        active--
+                        signalIfTerminated()
+                    }
+                    next
+                }
+            }
+        } finally {
+            CURRENT.remove()
+        }
+    }
+
+    /**
+     * Takes the first task of the group whose turn it is and moves the group to the end of the line
+     */
+    private fun poll(): Runnable? {
+        val iterator = queues.entries.iterator()
+        if (!iterator.hasNext()) {
+            return null
+        }
+        val (group, queue) = iterator.next()
+        val task = queue.poll()
+        iterator.remove()
+        if (queue.isNotEmpty()) {
+            queues[group] = queue
+        }
+        queued--
+        recordQueued(group, queue.size)
+        return task
+    }
+
+    private fun recordQueued(group: String, size: Int) {
+        metrics?.entry(group, Metrics.OP_SCHEDULER_QUEUED)?.recordLevel(size.toLong())
+    }
+
+    private fun signalIfTerminated() {
+        if (isShutdown && active == 0 && queued == 0) {
+            terminated.signalAll()
+        }
+    }
+
+    private fun workers(): Executor {
+        val factory = VIRTUAL_THREAD_FACTORY
+        if (isVirtualThreadsEnabled && factory != null) {
+            return Executor { command ->
+                val thread = factory.newThread(command)
+                thread.name = "kinvey-virtual-worker-${threadNumber.getAndIncrement()}"
+                thread.start()
+            }
+        }
+        return platformWorkers
+    }
+
+    /**
+     * Executor of a group which queues the tasks over its parallelism itself, so they don't take turns in the scheduler
+     */
+    private inner class GroupExecutor(private val group: String?, private val parallelism: Int) : AbstractExecutorService() {
+
+        private val groupLock = ReentrantLock()
+        private val idle = groupLock.newCondition()
+        private val pending = ArrayDeque<Runnable>()
+        /** tasks queued in the scheduler which have not started yet */
+        private val scheduled = HashSet<Runnable>()
+        /** threads running the tasks of this executor, [shutdownNow] interrupts them */
+        private val threads = HashSet<Thread>()
+        private var running = 0
+        private var isShutdown = false
+
+        override fun execute(command: Runnable) {
+            val isNested = CURRENT.get() === this@KinveyScheduler
+            val hasSlot = groupLock.withLock {
+                if (isShutdown) {
+                    throw RejectedExecutionException("executor is shut down")
+                }
+                val hasSlot = running < parallelism
+                if (!isNested && !hasSlot) {
+                    pending.add(command)
+                    return
+                }
+                running++
+                hasSlot
+            }
+            when {
+                !isNested -> schedule(command)
+                // the submitting task may wait for it, so it must not be queued behind other tasks
+                !hasSlot || !startNested(command) -> run(command)
+            }
+        }
+
+        /**
+         * Starts the task submitted from a task of the scheduler on a free slot of the scheduler
+         * @return false if the scheduler has no free slot
+         */
+        private fun startNested(command: Runnable): Boolean {
+            groupLock.withLock { scheduled.add(command) }
+            try {
+                if (tryStart(Runnable { runScheduled(command) })) {
+                    return true
+                }
+            } catch (e: RejectedExecutionException) {
+                groupLock.withLock { scheduled.remove(command) }
+                finished()
+                throw e
+            }
+            groupLock.withLock { scheduled.remove(command) }
+            return false
+        }
+
+        private fun schedule(command: Runnable) {
+            groupLock.withLock { scheduled.add(command) }
+            try {
+                this@KinveyScheduler.execute(group, Runnable { runScheduled(command) })
+            } catch (e: RejectedExecutionException) {
+                groupLock.withLock { scheduled.remove(command) }
+                finished()
+                throw e
+            }
+        }
+
+        private fun runScheduled(command: Runnable) {
+            if (groupLock.withLock { scheduled.remove(command) }) {
+                run(command)
+            } else {
+                // removed by shutdownNow before it started
+                finished()
+            }
+        }
+
+        private fun run(command: Runnable) {
+            val thread = Thread.currentThread()
+            val isNested = groupLock.withLock { !threads.add(thread) }
+            try {
+                command.run()
+            } finally {
+                if (!isNested) {
+                    groupLock.withLock { threads.remove(thread) }
+                }
+                finished()?.let { schedule(it) }
+            }
+        }
+
+        /**
+         * @return the next pending task which takes the slot of the finished one
+         */
+        private fun finished(): Runnable? {
+            groupLock.withLock {
+                val next = pending.poll()
+                if (next == null) {
+                    running--
+                    idle.signalAll()
+                }
+                return next
+            }
+        }
+
+        override fun shutdown() {
+            groupLock.withLock {
+                isShutdown = true
+                idle.signalAll()
+            }
+        }
+
+        override fun shutdownNow(): List<Runnable> {
+            groupLock.withLock {
+                isShutdown = true
+                val removed = ArrayList(pending)
+                removed.addAll(scheduled)
+                pending.clear()
+                scheduled.clear()
+                threads.forEach { it.interrupt() }
+                idle.signalAll()
+                return removed
+            }
+        }
+
+        override fun isShutdown(): Boolean = groupLock.withLock { isShutdown }
+
+        override fun isTerminated(): Boolean = groupLock.withLock { isShutdown && running == 0 }
+
+        @Throws(InterruptedException::class)
+        override fun awaitTermination(timeout: Long, unit: TimeUnit): Boolean {
+            var nanos = unit.toNanos(timeout)
+            groupLock.withLock {
+                while (!(isShutdown && running == 0)) {
+                    if (nanos <= 0) {
+                        return false
+                    }
+                    nanos = idle.awaitNanos(nanos)
+                }
+                return true
+            }
+        }
+    }
+
+    /**
+     * Point in time counters of a [KinveyScheduler]
+     *
+     * @param active tasks running now
+     * @param queued tasks waiting for a free slot
+     * @param completed tasks finished since the scheduler was created
+     * @param queuedByGroup queued tasks of every group which has any
+     */
+    data class Stats(val active: Int, val queued: Int, val completed: Long, val queuedByGroup: Map<String, Int>)
+
+    companion object {
+
+        const val DEFAULT_MAX_CONCURRENCY = 16
+
+        /**
+         * Group of the tasks which do not belong to a collection
+         */
+        const val NO_GROUP = ""
+
+        private const val WORKER_KEEP_ALIVE_SECONDS = 60L
+
+        private val CURRENT = ThreadLocal<KinveyScheduler>()
+
+        /**
+         * `Thread.ofVirtual().factory()`, looked up by reflection as it's available since Java 21 only
+         */
+        private val VIRTUAL_THREAD_FACTORY: ThreadFactory? = try {
+            val builder = Thread::class.java.getMethod("ofVirtual").invoke(null)
+            Class.forName("java.lang.Thread\$Builder").getMethod("factory").invoke(builder) as ThreadFactory
+        } catch (e: Exception) {
+            null
+        }
+
+        /**
+         * Scheduler of the work which is not started through a client
+         */
+        @JvmStatic
+        val shared: KinveyScheduler by lazy { KinveyScheduler() }
+
+        /**
+         * true if the JVM can run [KinveyScheduler] tasks on virtual threads
+         */
+        @JvmStatic
+        val isVirtualThreadsSupported: Boolean
+            get() = VIRTUAL_THREAD_FACTORY != null
+    }
+}
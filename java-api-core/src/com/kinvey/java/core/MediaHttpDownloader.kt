@@ -23,6 +23,8 @@ import com.google.api.client.http.HttpRequest
 import com.google.api.client.http.HttpRequestFactory
 import com.google.api.client.http.HttpRequestInitializer
 import com.google.api.client.http.HttpResponse
+import com.google.api.client.http.HttpResponseException
+import com.google.api.client.http.HttpStatusCodes
 import com.google.api.client.http.HttpTransport
 import com.google.api.client.json.JsonObjectParser
 import com.google.api.client.json.JsonParser
@@ -32,18 +34,26 @@ import com.google.common.base.Preconditions
 import java.io.BufferedInputStream
 import java.io.ByteArrayInputStream
 import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.FileOutputStream
 import java.io.IOException
 import java.io.InputStream
+import java.io.InterruptedIOException
 import java.io.OutputStream
+import java.io.RandomAccessFile
 import java.net.URL
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
 import java.util.HashMap
-import java.util.Random
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorCompletionService
 
 import com.google.common.io.ByteStreams
 import com.kinvey.java.KinveyDownloadFileException
 import com.kinvey.java.KinveyException
 import com.kinvey.java.KinveyUploadFileException
 import com.kinvey.java.Logger
+import com.kinvey.java.Metrics
 import com.kinvey.java.model.FileMetaData
 
 /**
@@ -73,9 +83,6 @@ class MediaHttpDownloader
 (transport: HttpTransport?,
  httpRequestInitializer: HttpRequestInitializer?) {
 
-    /* Retries after this point do not need to continue increasing backoff time. */
-    private val MAXIMUM_BACKOFF_TIME_WAITING = 64000
-
     /* Retries after this point do not need to continue increasing backoff retry counter. */
     private val MAXIMUM_BACKOFF_RETRY_CONT = 10
 
@@ -143,6 +150,7 @@ class MediaHttpDownloader
      *
      * @return the number of bytes downloaded
      */
+    @Volatile
     var numBytesDownloaded: Long = 0
         private set
 
@@ -171,11 +179,58 @@ class MediaHttpDownloader
     var isCancelled = false
         private set
 
+    /**
+     * Registry the transfer is recorded in, nothing is recorded if it is not set
+     */
+    var metrics: Metrics? = null
+
+    private var metricsEntry: Metrics.Entry? = null
+
+    /**
+     * ETag of a copy of the file the caller already has. The download is sent with `If-None-Match` and if the file
+     * has not changed it completes without writing anything, see [isNotModified].
+     */
+    var ifNoneMatch: String? = null
+
+    /**
+     * true if the last download was skipped as the file matched [ifNoneMatch]
+     */
+    var isNotModified = false
+        private set
+
+    /**
+     * Scheduler the chunks of a parallel download are requested on, [KinveyScheduler.shared] if it is not set
+     */
+    var scheduler: KinveyScheduler? = null
+
+    /**
+     * Engine whose client-wide retry budget limits the retries of failed chunks, retries are not limited if it is not set
+     */
+    var retryEngine: RetryEngine? = null
+
+    /**
+     * ETag the chunks of a parallel download were answered with
+     */
+    @Volatile
+    private var chunkEtag: String? = null
+
     /**
      * Counter for backoff retry if connection was interrupted
      */
     private var retryBackOffCounter: Int = 0
 
+    /**
+     * Number of chunks downloaded at the same time by [download] into a file, 1 by default.
+     * Downloads into a stream are always done one chunk after another.
+     */
+    var parallelDownloads = 1
+        private set
+
+    /**
+     * Serializes the checkpoint updates and progress notifications of the chunks downloaded in parallel
+     */
+    private val progressLock = Any()
+
     /**
      * Gets the download progress denoting the percentage of bytes that have been downloaded,
      * represented between 0.0 (0%) and 1.0 (100%).
@@ -274,6 +329,65 @@ class MediaHttpDownloader
      */
     @Throws(IOException::class)
     fun download(metaData: FileMetaData, out: OutputStream): FileMetaData? {
+        val bytesBefore = metaData.resumeDownloadData?.get("NumBytesDownloaded") as? Long ?: numBytesDownloaded
+        return record(bytesBefore) { runDownload(metaData, out) }
+    }
+
+    /**
+     * Downloads the file into the target by ranged requests of [getChunkSize] bytes, [parallelDownloads]
+     * of them at the same time. Every chunk is written at its offset, so the target is preallocated to
+     * [FileMetaData.fileSize] and the chunks may complete in any order.
+     *
+     *
+     * The completed chunks are kept in a checkpoint file next to the target, a download which failed or was
+     * cancelled is resumed by calling this method again with the same target and chunk size, only the missing
+     * chunks are requested. The checkpoint belongs to the file id and to the ETag or `_kmd.lmt` of the metadata,
+     * the chunks of another file or of a replaced file are downloaded again.
+     *
+     *
+     * Every chunk must come with a `Content-Range` of its own range and of [FileMetaData.fileSize] in total.
+     * The checkpoint is removed once every chunk is written and the written bytes add up to the file size,
+     * the ETag of the responses is set as [FileMetaData.etag], `null` if they had none.
+     *
+     *
+     * With [ifNoneMatch] set, a download which has no chunk written yet requests its first chunk alone with
+     * `If-None-Match`. If the file has not changed the download completes without requesting the other chunks,
+     * see [isNotModified], and the content of the target is undefined.
+     *
+     *
+     * Files of unknown size are downloaded with [download] into a stream of the target, which is appended to
+     * if [FileMetaData.resumeDownloadData] has bytes already downloaded.
+     *
+     * @param metaData metadata taken from kinvey backend that contains download url and file size
+     * @param target   file to download into
+     * @throws KinveyDownloadFileException if a chunk could not be downloaded, the checkpoint is kept
+     */
+    @Throws(IOException::class)
+    fun download(metaData: FileMetaData, target: File): FileMetaData? {
+        if (metaData.fileSize <= 0L || metaData.downloadURL == null) {
+            // a download resumed from resumeDownloadData appends the missing bytes to the target
+            val isResumed = (metaData.resumeDownloadData?.get("NumBytesDownloaded") as? Long ?: 0L) > 0L
+            return FileOutputStream(target, isResumed).use { download(metaData, it) }
+        }
+        return record(numBytesDownloaded) { downloadChunksInParallel(metaData, target) }
+    }
+
+    private inline fun record(bytesBefore: Long, block: () -> FileMetaData?): FileMetaData? {
+        val entry = metrics?.entry(Metrics.FILES_COLLECTION, Metrics.OP_FILE_DOWNLOAD)
+        metricsEntry = entry
+        val start = System.nanoTime()
+        var result: FileMetaData? = null
+        try {
+            result = block()
+            return result
+        } finally {
+            entry?.record(System.nanoTime() - start, result != null)
+            entry?.recordBytes(-1, numBytesDownloaded - bytesBefore)
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun runDownload(metaData: FileMetaData, out: OutputStream): FileMetaData? {
         Preconditions.checkArgument(downloadState == DownloadState.NOT_STARTED)
         updateStateAndNotifyListener(DownloadState.DOWNLOAD_IN_PROGRESS)
         var isDownloaded = false
@@ -319,13 +433,22 @@ class MediaHttpDownloader
                 // retry the same request again if there is a server error.
                 currentRequest?.backOffPolicy = ExponentialBackOffPolicy()
             }
+            if (ifNoneMatch != null && numBytesDownloaded == 0L) {
+                currentRequest?.headers?.ifNoneMatch = ifNoneMatch
+            }
 
             var response: HttpResponse? = null
             try {
                 response = currentRequest?.execute()
             } catch (e: Exception) {
-                if (retryBackOffCounter < MAXIMUM_BACKOFF_RETRY_CONT) {
-                    backOffThreadSleep()
+                if (e is HttpResponseException && e.statusCode == HttpStatusCodes.STATUS_CODE_NOT_MODIFIED
+                        && currentRequest?.headers?.ifNoneMatch != null) {
+                    isNotModified = true
+                    metaData.etag = ifNoneMatch
+                    updateStateAndNotifyListener(DownloadState.DOWNLOAD_COMPLETE)
+                    return metaData
+                }
+                if (retryBackOffCounter < MAXIMUM_BACKOFF_RETRY_CONT && backOffThreadSleep()) {
                     retryBackOffCounter++
                     continue
                 } else {
@@ -347,8 +470,7 @@ class MediaHttpDownloader
                     IOUtils.copy(bis, out)
                 }
             } catch (e: Exception) {
-                if (retryBackOffCounter < MAXIMUM_BACKOFF_RETRY_CONT) {
-                    backOffThreadSleep()
+                if (retryBackOffCounter < MAXIMUM_BACKOFF_RETRY_CONT && backOffThreadSleep()) {
                     retryBackOffCounter++
                     continue
                 } else {
@@ -365,6 +487,7 @@ class MediaHttpDownloader
             }
 
             val contentRange = response!!.headers.contentRange
+            response.headers.eTag?.let { metaData.etag = it }
             val nextByteIndex = getNextByteIndex(contentRange)
             setMediaContentLength(contentRange)
             if (mediaContentLength <= nextByteIndex) {
@@ -389,18 +512,208 @@ class MediaHttpDownloader
     }
 
 
-    private fun backOffThreadSleep() {
-        //use exponential backoff
-        try {
-            Thread.sleep(Math.min(Math.pow(2.0, retryBackOffCounter.toDouble()) * 1000 + getRandom(1, 1000), MAXIMUM_BACKOFF_TIME_WAITING.toDouble()).toLong())
-        } catch (e: InterruptedException) {
-            e.printStackTrace()
+    @Throws(IOException::class)
+    private fun downloadChunksInParallel(metaData: FileMetaData, target: File): FileMetaData? {
+        Preconditions.checkArgument(downloadState == DownloadState.NOT_STARTED)
+        updateStateAndNotifyListener(DownloadState.DOWNLOAD_IN_PROGRESS)
+        val downloadUrl = GenericUrl(metaData.downloadURL!!)
+        val fileSize = metaData.fileSize
+        val version = metaData.etag ?: metaData.kinveyMetaData?.lastModifiedTime
+        val checkpoint = DownloadCheckpoint.load(target, metaData.id, version, fileSize, chunkSize)
+        mediaContentLength = fileSize
+        numBytesDownloaded = checkpoint.completedBytes
+        updateStateAndNotifyListener(DownloadState.INITIATION_COMPLETE)
+
+        var pending = (0 until checkpoint.chunkCount).filter { !checkpoint.isCompleted(it) }
+        RandomAccessFile(target, "rw").use { randomAccessFile ->
+            if (randomAccessFile.length() != fileSize) {
+                randomAccessFile.setLength(fileSize)
+            }
+            val channel = randomAccessFile.channel
+            val etag = ifNoneMatch
+            if (etag != null && pending.size == checkpoint.chunkCount && pending.isNotEmpty()) {
+                if (!downloadChunk(downloadUrl, channel, checkpoint, pending[0], etag)) {
+                    checkpoint.delete()
+                    isNotModified = true
+                    metaData.etag = etag
+                    updateStateAndNotifyListener(DownloadState.DOWNLOAD_COMPLETE)
+                    return metaData
+                }
+                pending = pending.drop(1)
+            }
+            if (pending.isNotEmpty()) {
+                val executor = (scheduler ?: KinveyScheduler.shared)
+                        .executor(Metrics.FILES_COLLECTION, Math.min(parallelDownloads, pending.size))
+                try {
+                    val completionService = ExecutorCompletionService<Boolean>(executor)
+                    pending.forEach { chunk -> completionService.submit { downloadChunk(downloadUrl, channel, checkpoint, chunk) } }
+                    for (i in pending.indices) {
+                        try {
+                            completionService.take().get()
+                        } catch (e: ExecutionException) {
+                            val cause = e.cause
+                            if (cause is KinveyDownloadFileException) {
+                                cause.downloadedFileMetaData = metaData
+                            }
+                            throw cause as? IOException ?: cause as? RuntimeException ?: IOException(cause)
+                        } catch (e: InterruptedException) {
+                            Thread.currentThread().interrupt()
+                            throw InterruptedIOException("download interrupted")
+                        }
+                    }
+                } finally {
+                    executor.shutdownNow()
+                }
+            }
+            if (isCancelled) {
+                Logger.INFO("DOWNLOAD REQUEST cancelled")
+                return null
+            }
+            channel.force(false)
+        }
+        val writtenBytes = checkpoint.completedBytes
+        if (!checkpoint.isAllCompleted || writtenBytes != fileSize) {
+            val exception = KinveyDownloadFileException("File download failed",
+                    "Try to download file again",
+                    "The downloaded chunks have $writtenBytes bytes instead of $fileSize")
+            exception.downloadedFileMetaData = metaData
+            throw exception
+        }
+        checkpoint.delete()
+        metaData.etag = chunkEtag
+        updateStateAndNotifyListener(DownloadState.DOWNLOAD_COMPLETE)
+        return metaData
+    }
+
+    /**
+     * Downloads one chunk into its range of the file, retrying connection and server errors
+     *
+     * @param ifNoneMatch ETag the chunk is requested with `If-None-Match` of
+     * @return false if the file matched [ifNoneMatch] and the chunk was not downloaded
+     */
+    @Throws(IOException::class)
+    private fun downloadChunk(downloadUrl: GenericUrl, channel: FileChannel, checkpoint: DownloadCheckpoint, chunk: Int,
+                              ifNoneMatch: String? = null): Boolean {
+        val offset = checkpoint.chunkOffset(chunk)
+        val length = checkpoint.chunkLength(chunk)
+        var retryCounter = 0
+        while (!isCancelled) {
+            val request = requestFactory?.buildGetRequest(downloadUrl) ?: return true
+            request.suppressUserAgentSuffix = true
+            request.throwExceptionOnExecuteError = false
+            request.headers.range = "bytes=" + offset + "-" + (offset + length - 1)
+            if (ifNoneMatch != null) {
+                request.headers.ifNoneMatch = ifNoneMatch
+            }
+            val response = try {
+                request.execute()
+            } catch (e: IOException) {
+                if (retryCounter < MAXIMUM_BACKOFF_RETRY_CONT && backOffThreadSleep(retryCounter++)) {
+                    continue
+                }
+                throw KinveyDownloadFileException("Connection was interrupted", "Retry request", e.message ?: "")
+            }
+            try {
+                val statusCode = response.statusCode
+                if (statusCode == HttpStatusCodes.STATUS_CODE_NOT_MODIFIED && ifNoneMatch != null) {
+                    return false
+                }
+                // a server which ignores the range answers 200 with the whole file, which is only usable for a single chunk
+                if (statusCode == 206 || statusCode == 200 && length == checkpoint.fileSize) {
+                    if (statusCode == 206) {
+                        verifyContentRange(response.headers.contentRange, checkpoint, offset, length)
+                    }
+                    try {
+                        writeChunk(response.content, channel, offset, length)
+                    } catch (e: IOException) {
+                        if (!channel.isOpen || retryCounter >= MAXIMUM_BACKOFF_RETRY_CONT
+                                || !backOffThreadSleep(retryCounter++)) {
+                            throw e
+                        }
+                        continue
+                    }
+                    response.headers.eTag?.let { chunkEtag = it }
+                    onChunkDownloaded(checkpoint, chunk, length)
+                    return true
+                }
+                if ((statusCode == 500 || statusCode == 502 || statusCode == 503 || statusCode == 504)
+                        && retryCounter < MAXIMUM_BACKOFF_RETRY_CONT && backOffThreadSleep(retryCounter++)) {
+                    continue
+                }
+                throw KinveyDownloadFileException("File download failed",
+                        "Try to download file again",
+                        "The server responded to the chunk at offset $offset with status code $statusCode")
+            } finally {
+                response.disconnect()
+            }
+        }
+        return true
+    }
+
+    /**
+     * Checks that the response has the requested range of a file of the size in the metadata,
+     * another total means that the file has been replaced since the download started
+     */
+    @Throws(KinveyDownloadFileException::class)
+    private fun verifyContentRange(contentRange: String?, checkpoint: DownloadCheckpoint, offset: Long, length: Long) {
+        val expected = "bytes " + offset + "-" + (offset + length - 1) + "/" + checkpoint.fileSize
+        if (contentRange?.trim() == expected) {
+            return
+        }
+        if (contentRange != null && contentRange.substringAfter('/').trim() != checkpoint.fileSize.toString()) {
+            // the chunks written so far belong to another version of the file
+            checkpoint.delete()
         }
+        throw KinveyDownloadFileException("File download failed",
+                "Try to download file again",
+                "The server responded to the chunk at offset $offset with the range $contentRange instead of $expected")
+    }
 
+    @Throws(IOException::class)
+    private fun writeChunk(content: InputStream?, channel: FileChannel, offset: Long, length: Long) {
+        var written = 0L
+        if (content != null) {
+            val source = Channels.newChannel(content)
+            while (written < length) {
+                val count = channel.transferFrom(source, offset + written, length - written)
+                if (count <= 0) {
+                    break
+                }
+                written += count
+            }
+        }
+        if (written < length) {
+            throw IOException("The chunk at offset $offset ended after $written of $length bytes")
+        }
     }
 
-    private fun getRandom(min: Int, max: Int): Int {
-        return Random().nextInt(max - min + 1) + min
+    @Throws(IOException::class)
+    private fun onChunkDownloaded(checkpoint: DownloadCheckpoint, chunk: Int, length: Long) {
+        synchronized(progressLock) {
+            checkpoint.complete(chunk)
+            numBytesDownloaded += length
+            updateStateAndNotifyListener(DownloadState.DOWNLOAD_IN_PROGRESS)
+        }
+    }
+
+    /**
+     * Takes a retry from the budget of the [retryEngine] and waits the jittered backoff delay of the retry
+     * @return false if the retry budget is exhausted
+     * @throws InterruptedIOException if the thread is interrupted, e.g. by cancelling the future of the transfer
+     */
+    @Throws(InterruptedIOException::class)
+    private fun backOffThreadSleep(retryCounter: Int = retryBackOffCounter): Boolean {
+        if (retryEngine?.tryAcquireRetry() == false) {
+            return false
+        }
+        metricsEntry?.recordRetry()
+        try {
+            Thread.sleep(RETRY_POLICY.delayMillis(retryCounter))
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+            throw InterruptedIOException("download interrupted")
+        }
+        return true
     }
 
     /**
@@ -566,6 +879,15 @@ class MediaHttpDownloader
         return chunkSize
     }
 
+    /**
+     * Sets the number of chunks downloaded at the same time, see [parallelDownloads].
+     */
+    fun setParallelDownloads(parallelDownloads: Int): MediaHttpDownloader {
+        Preconditions.checkArgument(parallelDownloads > 0, "parallelDownloads must be positive")
+        this.parallelDownloads = parallelDownloads
+        return this
+    }
+
     /**
      * Sets the download state and notifies the progress listener.
      *
@@ -585,6 +907,9 @@ class MediaHttpDownloader
 
     companion object {
 
+        /* Backoff of the retries of failed requests, the delay does not increase beyond 64 seconds. */
+        private val RETRY_POLICY = RetryEngine.Policy(10, 1000, 64000)
+
         /**
          * Default maximum number of bytes that will be downloaded from the server in any single HTTP
          * request. Set to 5MB because that is average value in terms of performance and resume if chunk download fails.
@@ -17,14 +17,20 @@
 package com.kinvey.java.core
 
 import java.io.BufferedInputStream
+import java.io.File
 import java.io.IOException
 import java.io.InputStream
+import java.io.InterruptedIOException
+import java.io.RandomAccessFile
+import java.nio.channels.FileChannel
 import java.util.Locale
-import java.util.Random
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorCompletionService
 
 import com.google.api.client.http.AbstractInputStreamContent
 import com.google.api.client.http.ByteArrayContent
 import com.google.api.client.http.EmptyContent
+import com.google.api.client.http.FileContent
 import com.google.api.client.http.GZipEncoding
 import com.google.api.client.http.GenericUrl
 import com.google.api.client.http.HttpContent
@@ -40,14 +46,15 @@ import com.google.api.client.json.JsonObjectParser
 import com.google.api.client.util.ByteStreams
 import com.google.api.client.util.Preconditions.checkState
 import com.google.common.base.Preconditions
+import com.kinvey.java.AbstractClient
 import com.kinvey.java.KinveyException
 import com.kinvey.java.linkedResources.SaveLinkedResourceClientRequest
 import com.kinvey.java.KinveyUploadFileException
 import com.kinvey.java.Logger
+import com.kinvey.java.Metrics
 import com.kinvey.java.model.FileMetaData
 import kotlin.math.max
 import kotlin.math.min
-import kotlin.math.pow
 
 /**
  * Media HTTP Uploader, with support for both direct and resumable media uploads. Documentation is
@@ -147,6 +154,29 @@ constructor (mediaContent: AbstractInputStreamContent,
     var isCancelled = false
         private set
 
+    /**
+     * Registry the transfer is recorded in, the client of the initiation request is used if it is not set
+     */
+    var metrics: Metrics? = null
+
+    private var metricsEntry: Metrics.Entry? = null
+
+    /**
+     * Scheduler the chunks of a parallel upload are sent on, the scheduler of the client of the initiation request
+     * is used if it is not set
+     */
+    var scheduler: KinveyScheduler? = null
+
+    private var chunkScheduler: KinveyScheduler = KinveyScheduler.shared
+
+    /**
+     * Engine whose client-wide retry budget limits the retries of failed chunks, the engine of the client of the
+     * initiation request is used if it is not set
+     */
+    var retryEngine: RetryEngine? = null
+
+    private var chunkRetryEngine: RetryEngine? = null
+
     /**
      * The length of the HTTP media content.
      *
@@ -200,9 +230,6 @@ constructor (mediaContent: AbstractInputStreamContent,
      */
     private var backOffPolicyEnabled = true
 
-    /* Retries after this point do not need to continue increasing backoff time. */
-    private val MAXIMUM_BACKOFF_TIME_WAITING = 64000
-
     /* Retries after this point do not need to continue increasing backoff retry counter. */
     private val MAXIMUM_BACKOFF_RETRY_CONT = 10
 
@@ -311,8 +338,21 @@ constructor (mediaContent: AbstractInputStreamContent,
      * uploads when the content length is not known in advance.
      */
     // TODO(rmistry): Figure out a way to compute the content length using CountingInputStream.
+    @Volatile
     private var totalBytesServerReceived: Long = 0
 
+    /**
+     * Number of chunks uploaded at the same time, 1 by default. Parallel uploads are used for
+     * [FileContent] longer than one chunk, any other content is uploaded one chunk after another.
+     */
+    var parallelUploads = 1
+        private set
+
+    /**
+     * Serializes the progress notifications of the chunks uploaded in parallel
+     */
+    private val progressLock = Any()
+
     /* *
     * Metadata for uploading if previous uploading was interrupted
     * If fileMetaDataForUploading != null then previous uploading was interrupted
@@ -460,6 +500,25 @@ constructor (mediaContent: AbstractInputStreamContent,
      */
     @Throws(IOException::class)
     fun upload(initiationClientRequest: AbstractKinveyClientRequest<*>): FileMetaData? {
+        val entry = (metrics ?: initiationClientRequest.abstractKinveyClient?.metrics)
+                ?.entry(Metrics.FILES_COLLECTION, Metrics.OP_FILE_UPLOAD)
+        metricsEntry = entry
+        chunkScheduler = scheduler ?: (initiationClientRequest.abstractKinveyClient as? AbstractClient<*>)?.scheduler
+                ?: KinveyScheduler.shared
+        chunkRetryEngine = retryEngine ?: initiationClientRequest.abstractKinveyClient?.retryEngine
+        val start = System.nanoTime()
+        var result: FileMetaData? = null
+        try {
+            result = runUpload(initiationClientRequest)
+            return result
+        } finally {
+            entry?.record(System.nanoTime() - start, result != null)
+            entry?.recordBytes(totalBytesServerReceived, -1)
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun runUpload(initiationClientRequest: AbstractKinveyClientRequest<*>): FileMetaData? {
 
         isResume = fileMetaDataForUploading?.uploadUrl != null
 
@@ -473,6 +532,11 @@ constructor (mediaContent: AbstractInputStreamContent,
             makeInitiationClientRequest(initiationClientRequest)
         }
 
+        val file = (mediaContent as? FileContent)?.file
+        if (!isResume && file != null && parallelUploads > 1 && getMediaContentLength() > chunkSize) {
+            return uploadChunksInParallel(file)
+        }
+
         createInputStream()
 
         var response: HttpResponse? = null
@@ -484,7 +548,7 @@ constructor (mediaContent: AbstractInputStreamContent,
             setContentAndHeadersOnCurrentRequest(meta?.mimetype)
 
             // if there are custom headers, add them
-            addCustomHeaders(headers)
+            addCustomHeaders(headers, currentRequest)
 
             try {
                 response = if (isMediaLengthKnown) {
@@ -495,8 +559,7 @@ constructor (mediaContent: AbstractInputStreamContent,
                     executeCurrentRequest(currentRequest)
                 }
             } catch (e: IOException) {
-                if (retryBackOffCounter < MAXIMUM_BACKOFF_RETRY_CONT) {
-                    backOffThreadSleep()
+                if (retryBackOffCounter < MAXIMUM_BACKOFF_RETRY_CONT && backOffThreadSleep()) {
                     retryBackOffCounter++
                     invalidateUnUploadedChunk()
                     isResume = true
@@ -520,8 +583,7 @@ constructor (mediaContent: AbstractInputStreamContent,
                 statusCode = response?.statusCode ?: 0
 
                 if ((statusCode == 500 || statusCode == 502 || statusCode == 503 || statusCode == 504)
-                        && retryBackOffCounter < MAXIMUM_BACKOFF_RETRY_CONT) {
-                    backOffThreadSleep()
+                        && retryBackOffCounter < MAXIMUM_BACKOFF_RETRY_CONT && backOffThreadSleep()) {
                     retryBackOffCounter++
                     invalidateUnUploadedChunk()
                     isResume = true
@@ -531,6 +593,7 @@ constructor (mediaContent: AbstractInputStreamContent,
                 if (statusCode == 404 && retry404ErrorCounter < MAXIMUM_ERROR404_RETRY_CONT) {
                     //start upload from the beginning
                     retry404ErrorCounter++
+                    metricsEntry?.recordRetry()
                     invalidateUnUploadedChunk()
                     continue
                 }
@@ -595,6 +658,149 @@ constructor (mediaContent: AbstractInputStreamContent,
         return if (isCancelled) null else meta
     }
 
+    /**
+     * Uploads the chunks of the file by [parallelUploads] concurrent requests. Every chunk is a ranged PUT
+     * to the upload url, read from the file at its offset, and is retried on its own with the same backoff
+     * as the sequential upload.
+     *
+     * A server which takes the bytes of an upload url only in order keeps the chunks which follow the bytes it
+     * has, the others are dropped. After all chunks are sent the bytes from the end of the contiguous range the
+     * server reports are sent again one chunk after another.
+     */
+    @Throws(IOException::class)
+    private fun uploadChunksInParallel(file: File): FileMetaData? {
+        val length = getMediaContentLength()
+        mediaContentLengthStr = length.toString()
+        val chunkCount = ((length + chunkSize - 1) / chunkSize).toInt()
+        var received = 0L
+        RandomAccessFile(file, "r").use { randomAccessFile ->
+            val channel = randomAccessFile.channel
+            val executor = chunkScheduler.executor(Metrics.FILES_COLLECTION, min(parallelUploads, chunkCount))
+            try {
+                val completionService = ExecutorCompletionService<Long>(executor)
+                for (chunk in 0 until chunkCount) {
+                    val offset = chunk.toLong() * chunkSize
+                    val chunkLength = min(chunkSize.toLong(), length - offset)
+                    completionService.submit { uploadChunk(channel, offset, chunkLength, length) }
+                }
+                for (chunk in 0 until chunkCount) {
+                    try {
+                        received = max(received, completionService.take().get())
+                    } catch (e: ExecutionException) {
+                        throw e.cause as? IOException ?: e.cause as? RuntimeException ?: IOException(e.cause)
+                    } catch (e: InterruptedException) {
+                        Thread.currentThread().interrupt()
+                        throw InterruptedIOException("upload interrupted")
+                    }
+                }
+            } finally {
+                executor.shutdownNow()
+            }
+            // the chunks which completed the file may have arrived before others, the server tells what it has now
+            if (!isCancelled && received < length) {
+                received = uploadStatus(length)
+            }
+            while (!isCancelled && received < length) {
+                val next = uploadChunk(channel, received, min(chunkSize.toLong(), length - received), length)
+                if (next <= received) {
+                    throw KinveyUploadFileException("File upload failed",
+                            "Try to upload file again",
+                            "The server has not taken the bytes from offset $received", meta)
+                }
+                received = next
+            }
+        }
+        if (isCancelled) {
+            return null
+        }
+        totalBytesServerReceived = length
+        meta?.uploadUrl = null
+        updateStateAndNotifyListener(UploadState.UPLOAD_COMPLETE)
+        return meta
+    }
+
+    /**
+     * Sends one chunk, retrying connection and server errors
+     * @return the length of the file if the server has confirmed the whole upload, otherwise the end of the
+     * contiguous range of bytes the server has received from the beginning of the file
+     */
+    @Throws(IOException::class)
+    private fun uploadChunk(channel: FileChannel, offset: Long, chunkLength: Long, length: Long): Long {
+        var retryCounter = 0
+        while (!isCancelled) {
+            val request = requestFactory?.buildPutRequest(uploadUrl, FileRangeContent(meta?.mimetype, channel, offset, chunkLength))
+            request?.suppressUserAgentSuffix = true
+            request?.headers?.contentRange = "bytes " + offset + "-" + (offset + chunkLength - 1) + "/" + length
+            addCustomHeaders(headers, request)
+            val response = try {
+                executeCurrentRequestWithoutGZip(request)
+            } catch (e: IOException) {
+                if (retryCounter < MAXIMUM_BACKOFF_RETRY_CONT && backOffThreadSleep(retryCounter++)) {
+                    continue
+                }
+                throw KinveyUploadFileException("Connection was interrupted", "Retry request", e.message, meta)
+            }
+            try {
+                val statusCode = response?.statusCode ?: 0
+                if (response?.isSuccessStatusCode == true || statusCode == 308) {
+                    val received = if (response?.isSuccessStatusCode == true) length else getNextByteIndex(response?.headers?.range)
+                    onBytesReceived(received)
+                    return received
+                }
+                if ((statusCode == 500 || statusCode == 502 || statusCode == 503 || statusCode == 504)
+                        && retryCounter < MAXIMUM_BACKOFF_RETRY_CONT && backOffThreadSleep(retryCounter++)) {
+                    continue
+                }
+                throw KinveyUploadFileException("File upload failed",
+                        "Try to upload file again",
+                        "The server rejected the chunk at offset $offset with status code $statusCode", meta)
+            } finally {
+                response?.disconnect()
+            }
+        }
+        return 0
+    }
+
+    /**
+     * Asks the server for the upload status
+     * @return the length of the file if the server has received the whole file, otherwise the end of the
+     * contiguous range of bytes it has received from the beginning of the file
+     */
+    @Throws(IOException::class)
+    private fun uploadStatus(length: Long): Long {
+        val request = requestFactory?.buildPutRequest(uploadUrl, EmptyContent())
+        request?.suppressUserAgentSuffix = true
+        request?.headers?.contentRange = "bytes */$length"
+        addCustomHeaders(headers, request)
+        val response = executeCurrentRequestWithoutGZip(request)
+        try {
+            if (response?.isSuccessStatusCode == true) {
+                return length
+            }
+            if (response?.statusCode == 308) {
+                return getNextByteIndex(response.headers?.range)
+            }
+            throw KinveyUploadFileException("File upload failed",
+                    "Try to upload file again",
+                    "The server answered the upload status request with status code ${response?.statusCode}", meta)
+        } finally {
+            response?.disconnect()
+        }
+    }
+
+    /**
+     * Reports the progress up to the end of the contiguous range of bytes the server has received
+     */
+    @Throws(IOException::class)
+    private fun onBytesReceived(received: Long) {
+        synchronized(progressLock) {
+            if (received > totalBytesServerReceived) {
+                totalBytesServerReceived = received
+                updateStateAndNotifyListener(UploadState.UPLOAD_IN_PROGRESS)
+            }
+        }
+    }
+
     /*
         Make initial request to get the unique upload URL.
     */
@@ -629,13 +835,13 @@ constructor (mediaContent: AbstractInputStreamContent,
     }
 
     // if there are custom headers, add them
-    private fun addCustomHeaders(headers: Map<String, String>?) {
+    private fun addCustomHeaders(headers: Map<String, String>?, request: HttpRequest?) {
         headers?.let { map ->
             for (header in map.keys) {
                 val curHeader = map[header]
                 val curHeaderStr = header.toLowerCase(Locale.US)
                 // then it's a list
-                currentRequest?.let { request ->
+                request?.let { request ->
                     if (curHeader?.contains(", ") == true) {
                         val listheaders = curHeader.split(", ".toRegex()).dropLastWhile { it.isEmpty() }.toTypedArray()
                         request.headers[curHeaderStr] = listOf(*listheaders)
@@ -668,14 +874,24 @@ constructor (mediaContent: AbstractInputStreamContent,
         }
     }
 
-    private fun backOffThreadSleep() {
-        //use exponential backoff
+    /**
+     * Takes a retry from the budget of the retry engine and waits the jittered backoff delay of the retry
+     * @return false if the retry budget is exhausted
+     * @throws InterruptedIOException if the thread is interrupted, e.g. by cancelling the future of the transfer
+     */
+    @Throws(InterruptedIOException::class)
+    private fun backOffThreadSleep(retryCounter: Int = retryBackOffCounter): Boolean {
+        if (chunkRetryEngine?.tryAcquireRetry() == false) {
+            return false
+        }
+        metricsEntry?.recordRetry()
         try {
-            Thread.sleep(min(2.0.pow(retryBackOffCounter.toDouble()) * 1000 + getRandom(1, 1000),
-                    MAXIMUM_BACKOFF_TIME_WAITING.toDouble()).toLong())
+            Thread.sleep(RETRY_POLICY.delayMillis(retryCounter))
         } catch (e: InterruptedException) {
-            e.printStackTrace()
+            Thread.currentThread().interrupt()
+            throw InterruptedIOException("upload interrupted")
         }
+        return true
     }
 
     @Throws(IOException::class)
@@ -704,7 +920,6 @@ constructor (mediaContent: AbstractInputStreamContent,
         return response
     }
 
-    private fun getRandom(min: Int, max: Int): Int = Random().nextInt(max - min + 1) + min
 
     /**
      * Returns the next byte index identifying data that the server has not yet received, obtained
@@ -1016,6 +1231,17 @@ constructor (mediaContent: AbstractInputStreamContent,
      */
     fun getChunkSize(): Int = chunkSize
 
+    /**
+     * Sets the number of chunks uploaded at the same time, see [parallelUploads].
+     * Parallel chunks save time only if the server of the upload url takes the chunks in any order,
+     * a server which takes them in order gets the dropped chunks again after the parallel ones.
+     */
+    fun setParallelUploads(parallelUploads: Int): MediaHttpUploader {
+        Preconditions.checkArgument(parallelUploads > 0, "parallelUploads must be positive")
+        this.parallelUploads = parallelUploads
+        return this
+    }
+
     /**
      * Returns the HTTP method used for the initiation request.
      *
@@ -1105,6 +1331,9 @@ constructor (mediaContent: AbstractInputStreamContent,
 
     companion object {
 
+        /* Backoff of the retries of failed requests, the delay does not increase beyond 64 seconds. */
+        private val RETRY_POLICY = RetryEngine.Policy(10, 1000, 64000)
+
         /**
          * Upload content type header.
          *
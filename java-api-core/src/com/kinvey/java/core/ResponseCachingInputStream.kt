@@ -0,0 +1,97 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+package com.kinvey.java.core
+
+import java.io.ByteArrayOutputStream
+import java.io.FilterInputStream
+import java.io.IOException
+import java.io.InputStream
+
+/**
+ * Passes a response body to the caller and copies it on the way, the copy is handed to [onComplete]
+ * once the body has been read to its end. A body bigger than [maxBytes] is not copied any further,
+ * so a large response is streamed without being held in memory.
+ *
+ * Closing the stream reads the rest of a body which is still being copied, parsers often stop
+ * before the end of the body.
+ */
+internal class ResponseCachingInputStream(content: InputStream, private val maxBytes: Long,
+                                          private val onComplete: (ByteArray) -> Unit) : FilterInputStream(content) {
+
+    private var copy: ByteArrayOutputStream? = ByteArrayOutputStream()
+
+    @Throws(IOException::class)
+    override fun read(): Int {
+        val b = super.read()
+        if (b == -1) {
+            complete()
+        } else {
+            copy?.let { it.write(b); checkSize(it) }
+        }
+        return b
+    }
+
+    @Throws(IOException::class)
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        val read = super.read(b, off, len)
+        if (read == -1) {
+            complete()
+        } else {
+            copy?.let { it.write(b, off, read); checkSize(it) }
+        }
+        return read
+    }
+
+    @Throws(IOException::class)
+    override fun skip(n: Long): Long {
+        // skipped bytes are not copied
+        copy = null
+        return super.skip(n)
+    }
+
+    override fun markSupported(): Boolean = false
+
+    @Throws(IOException::class)
+    override fun close() {
+        try {
+            val buffer = ByteArray(DRAIN_BUFFER_SIZE)
+            while (copy != null && read(buffer, 0, buffer.size) != -1) {
+                // reads the rest of the body into the copy
+            }
+        } catch (e: IOException) {
+            copy = null
+        } finally {
+            super.close()
+        }
+    }
+
+    private fun checkSize(copy: ByteArrayOutputStream) {
+        if (copy.size() > maxBytes) {
+            this.copy = null
+        }
+    }
+
+    private fun complete() {
+        val body = copy?.toByteArray() ?: return
+        copy = null
+        onComplete(body)
+    }
+
+    companion object {
+        private const val DRAIN_BUFFER_SIZE = 4096
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+
+package com.kinvey.java.core
+
+import com.google.api.client.http.HttpMethods
+import com.google.common.base.Preconditions
+import com.kinvey.java.Metrics
+import java.io.IOException
+import java.io.InterruptedIOException
+import java.util.Random
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Decides which failed requests of a client are sent again and when, shared by all request types of the client.
+ *
+ * - A failure is retried by the [Policy] of its status code, see [setPolicy], connection errors by [ioErrorPolicy].
+ *   The delay before a retry is a decorrelated jitter backoff, so clients which failed at the same time
+ *   don't retry in lockstep. By default only idempotent requests are retried, a POST may have been stored
+ *   by the backend before the failure was reported.
+ * - Retries are limited by a budget: every request adds [retryBudgetRatio] of a retry to it and every retry takes
+ *   one, so retries stay a fraction of the traffic when the backend is failing. The budget starts with
+ *   [minRetryBudget] retries.
+ * - Each host can have a circuit breaker, disabled unless [failureThreshold] is set. After [failureThreshold]
+ *   failed requests in a row it opens and requests fail at once with [KinveyCircuitOpenException]. A request
+ *   fails the circuit once, after its last attempt, and only on a connection error or a 502, 503 or 504:
+ *   other errors come from a backend which is up. After [openMillis] one probe request is let through:
+ *   the circuit closes if the probe succeeds and opens again if it fails.
+ *
+ * Retries, exhausted budget, opened circuits and rejected requests are recorded in the [Metrics] of the client
+ * under the `OP_RETRY` operations, see [stats] for the current state.
+ */
+class RetryEngine @JvmOverloads constructor(private val metrics: Metrics? = null) {
+
+    private val statusPolicies = ConcurrentHashMap<Int, Policy>()
+    private val circuits = HashMap<String, Circuit>()
+    private val budgetLock = Any()
+    private var budget: Double
+    private val retries = AtomicLong()
+    private val budgetExhausted = AtomicLong()
+    private val rejected = AtomicLong()
+
+    /**
+     * Policy of the connection errors, by default only idempotent requests are retried
+     */
+    var ioErrorPolicy = Policy(DEFAULT_MAX_RETRIES, idempotentOnly = true)
+
+    /**
+     * Share of a retry every request adds to the budget
+     */
+    var retryBudgetRatio = DEFAULT_RETRY_BUDGET_RATIO
+        set(value) {
+            Preconditions.checkArgument(value >= 0, "retryBudgetRatio must not be negative")
+            field = value
+        }
+
+    /**
+     * Retries available before any traffic, and the least the budget can save up
+     */
+    var minRetryBudget = DEFAULT_MIN_RETRY_BUDGET
+        set(value) {
+            Preconditions.checkArgument(value >= 0, "minRetryBudget must not be negative")
+            field = value
+        }
+
+    /**
+     * Most retries the budget can save up
+     */
+    var maxRetryBudget = DEFAULT_MAX_RETRY_BUDGET
+        set(value) {
+            Preconditions.checkArgument(value >= 0, "maxRetryBudget must not be negative")
+            field = value
+        }
+
+    /**
+     * Failed requests in a row which open the circuit of a host, 0 disables the circuit breaker
+     */
+    var failureThreshold = DEFAULT_FAILURE_THRESHOLD
+        set(value) {
+            Preconditions.checkArgument(value >= 0, "failureThreshold must not be negative")
+            field = value
+        }
+
+    /**
+     * How long an open circuit rejects requests before a probe is let through
+     */
+    var openMillis = DEFAULT_OPEN_MILLIS
+        set(value) {
+            Preconditions.checkArgument(value >= 0, "openMillis must not be negative")
+            field = value
+        }
+
+    init {
+        budget = minRetryBudget
+        listOf(HTTP_TOO_MANY_REQUESTS, HTTP_SERVICE_UNAVAILABLE).forEach {
+            statusPolicies[it] = Policy(DEFAULT_MAX_RETRIES, DEFAULT_BASE_DELAY_MILLIS * 5, idempotentOnly = true)
+        }
+        listOf(HTTP_INTERNAL_ERROR, HTTP_BAD_GATEWAY, HTTP_GATEWAY_TIMEOUT).forEach {
+            statusPolicies[it] = Policy(DEFAULT_MAX_RETRIES, idempotentOnly = true)
+        }
+    }
+
+    /**
+     * How often and how long after a failure a request is sent again
+     *
+     * @param maxRetries retries after the first attempt
+     * @param baseDelayMillis shortest delay before a retry
+     * @param maxDelayMillis longest delay before a retry
+     * @param idempotentOnly true if only requests which can be repeated safely, e.g. GET, PUT and DELETE, are retried
+     */
+    class Policy @JvmOverloads constructor(val maxRetries: Int,
+                                           val baseDelayMillis: Long = DEFAULT_BASE_DELAY_MILLIS,
+                                           val maxDelayMillis: Long = DEFAULT_MAX_DELAY_MILLIS,
+                                           val idempotentOnly: Boolean = false) {
+        init {
+            Preconditions.checkArgument(maxRetries >= 0, "maxRetries must not be negative")
+            Preconditions.checkArgument(baseDelayMillis in 0..maxDelayMillis, "baseDelayMillis must be between 0 and maxDelayMillis")
+        }
+
+        /**
+         * Decorrelated jitter: a random delay between the base delay and three times the previous delay
+         *
+         * @param previousDelayMillis delay before the previous retry, 0 for the first retry
+         */
+        @JvmOverloads
+        fun nextDelayMillis(previousDelayMillis: Long, random: Random = RANDOM): Long {
+            val upper = Math.min(maxDelayMillis, Math.max(baseDelayMillis, previousDelayMillis * 3))
+            return baseDelayMillis + (random.nextDouble() * (upper - baseDelayMillis + 1)).toLong()
+        }
+
+        /**
+         * Delay before a retry for callers which keep only the count of their retries, the upper bound of the
+         * jitter grows like the one of [nextDelayMillis]
+         *
+         * @param retry number of the retry, from 0
+         */
+        fun delayMillis(retry: Int): Long {
+            var previous = 0L
+            for (i in 0 until retry) {
+                previous = if (previous == 0L) baseDelayMillis else Math.min(maxDelayMillis, previous * 3)
+            }
+            return nextDelayMillis(previous)
+        }
+
+        private companion object {
+            private val RANDOM = Random()
+        }
+    }
+
+    enum class CircuitState {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    data class Stats(val retries: Long,
+                     val budgetExhausted: Long,
+                     val rejected: Long,
+                     val retryBudget: Double,
+                     val circuits: Map<String, CircuitState>)
+
+    private class Circuit {
+        var state = CircuitState.CLOSED
+        var failures = 0
+        /** when the circuit opened or its probe was let through */
+        var openedAt = 0L
+    }
+
+    /**
+     * Sets the policy of a status code, `null` to never retry it
+     */
+    fun setPolicy(statusCode: Int, policy: Policy?) {
+        if (policy == null) {
+            statusPolicies.remove(statusCode)
+        } else {
+            statusPolicies[statusCode] = policy
+        }
+    }
+
+    fun getPolicy(statusCode: Int): Policy? = statusPolicies[statusCode]
+
+    /**
+     * State of the circuit of the host
+     */
+    fun circuitState(host: String): CircuitState = synchronized(circuits) { circuits[host]?.state ?: CircuitState.CLOSED }
+
+    val stats: Stats
+        get() = Stats(retries.get(), budgetExhausted.get(), rejected.get(), synchronized(budgetLock) { budget },
+                synchronized(circuits) { circuits.mapValues { it.value.state } })
+
+    /**
+     * Starts the attempts of one request
+     *
+     * @param host host the request is sent to, the key of its circuit
+     * @param method HTTP method of the request
+     * @param retryable false if the request can't be sent again, e.g. its content is a stream
+     */
+    @JvmOverloads
+    fun start(host: String?, method: String?, retryable: Boolean = true): Attempts = Attempts(host ?: "", method, retryable)
+
+    /**
+     * Attempts of one request: call [begin] before every attempt and [onResponse] or [onError] after it.
+     * Only the first attempt is checked against the circuit of the host, the retries of a request let through
+     * are sent, so that a probe can retry too.
+     */
+    inner class Attempts internal constructor(private val host: String,
+                                             private val method: String?,
+                                             private val retryable: Boolean) {
+        private var retryCount = 0
+        private var previousDelayMillis = 0L
+        private var isFirst = true
+
+        /**
+         * @throws KinveyCircuitOpenException if the circuit of the host is open
+         */
+        @Throws(KinveyCircuitOpenException::class)
+        fun begin() {
+            if (!isFirst) {
+                return
+            }
+            isFirst = false
+            synchronized(budgetLock) { budget = Math.min(Math.max(maxRetryBudget, minRetryBudget), budget + retryBudgetRatio) }
+            if (!acquireCircuit(host)) {
+                rejected.incrementAndGet()
+                metrics?.entry(null, Metrics.OP_RETRY_REJECTED)?.increment()
+                throw KinveyCircuitOpenException(host)
+            }
+        }
+
+        /**
+         * Records the response and waits before the retry if it should be retried
+         *
+         * @return true if the request should be sent again
+         */
+        @Throws(IOException::class)
+        fun onResponse(statusCode: Int): Boolean {
+            val failed = statusCode >= HTTP_INTERNAL_ERROR || statusCode == HTTP_TOO_MANY_REQUESTS
+            if (failed && retry(statusPolicies[statusCode])) {
+                return true
+            }
+            recordResult(host, statusCode != HTTP_BAD_GATEWAY && statusCode != HTTP_SERVICE_UNAVAILABLE
+                    && statusCode != HTTP_GATEWAY_TIMEOUT)
+            return false
+        }
+
+        /**
+         * Records the connection error and waits before the retry if it should be retried
+         *
+         * @return true if the request should be sent again
+         */
+        @Throws(IOException::class)
+        fun onError(e: IOException): Boolean {
+            if (e is KinveyCircuitOpenException) {
+                return false
+            }
+            if (retry(ioErrorPolicy)) {
+                return true
+            }
+            recordResult(host, false)
+            return false
+        }
+
+        @Throws(IOException::class)
+        private fun retry(policy: Policy?): Boolean {
+            if (policy == null || !retryable || retryCount >= policy.maxRetries
+                    || policy.idempotentOnly && !isIdempotent(method)) {
+                return false
+            }
+            if (!tryAcquireRetry()) {
+                return false
+            }
+            retryCount++
+            previousDelayMillis = policy.nextDelayMillis(previousDelayMillis)
+            try {
+                Thread.sleep(previousDelayMillis)
+            } catch (e: InterruptedException) {
+                Thread.currentThread().interrupt()
+                throw InterruptedIOException("interrupted waiting to retry")
+            }
+            return true
+        }
+    }
+
+    /**
+     * Takes one retry from the budget, for the file transfers which count their retries themselves
+     *
+     * @return false if the budget is exhausted and the failure must not be retried
+     */
+    fun tryAcquireRetry(): Boolean {
+        val acquired = synchronized(budgetLock) {
+            if (budget >= 1) {
+                budget -= 1
+                true
+            } else {
+                false
+            }
+        }
+        if (acquired) {
+            retries.incrementAndGet()
+            metrics?.entry(null, Metrics.OP_RETRY)?.increment()
+        } else {
+            budgetExhausted.incrementAndGet()
+            metrics?.entry(null, Metrics.OP_RETRY_BUDGET_EXHAUSTED)?.increment()
+        }
+        return acquired
+    }
+
+    /**
+     * @return false if the request must be rejected as the circuit is open or its probe is in flight
+     */
+    private fun acquireCircuit(host: String): Boolean {
+        if (failureThreshold == 0) {
+            return true
+        }
+        synchronized(circuits) {
+            val circuit = circuits[host] ?: return true
+            return when (circuit.state) {
+                CircuitState.CLOSED -> true
+                CircuitState.OPEN, CircuitState.HALF_OPEN -> {
+                    // a probe which has not reported for openMillis is replaced by a new one
+                    if (System.currentTimeMillis() - circuit.openedAt < openMillis) {
+                        false
+                    } else {
+                        circuit.state = CircuitState.HALF_OPEN
+                        circuit.openedAt = System.currentTimeMillis()
+                        true
+                    }
+                }
+            }
+        }
+    }
+
+    private fun recordResult(host: String, success: Boolean) {
+        if (failureThreshold == 0) {
+            return
+        }
+        synchronized(circuits) {
+            if (success) {
+                circuits.remove(host)
+                return
+            }
+            val circuit = circuits[host] ?: Circuit().also { circuits[host] = it }
+            circuit.failures++
+            if (circuit.state == CircuitState.HALF_OPEN || circuit.state == CircuitState.CLOSED && circuit.failures >= failureThreshold) {
+                circuit.state = CircuitState.OPEN
+                circuit.openedAt = System.currentTimeMillis()
+                metrics?.entry(null, Metrics.OP_RETRY_CIRCUIT_OPENED)?.increment()
+            }
+        }
+    }
+
+    companion object {
+        const val DEFAULT_MAX_RETRIES = 3
+        const val DEFAULT_BASE_DELAY_MILLIS = 100L
+        const val DEFAULT_MAX_DELAY_MILLIS = 10_000L
+        const val DEFAULT_RETRY_BUDGET_RATIO = 0.2
+        const val DEFAULT_MIN_RETRY_BUDGET = 10.0
+        const val DEFAULT_MAX_RETRY_BUDGET = 100.0
+        const val DEFAULT_FAILURE_THRESHOLD = 0
+        const val DEFAULT_OPEN_MILLIS = 30_000L
+
+        private const val HTTP_TOO_MANY_REQUESTS = 429
+        private const val HTTP_INTERNAL_ERROR = 500
+        private const val HTTP_BAD_GATEWAY = 502
+        private const val HTTP_SERVICE_UNAVAILABLE = 503
+        private const val HTTP_GATEWAY_TIMEOUT = 504
+
+        private fun isIdempotent(method: String?): Boolean {
+            return method == HttpMethods.GET || method == HttpMethods.HEAD || method == HttpMethods.PUT
+                    || method == HttpMethods.DELETE || method == HttpMethods.OPTIONS
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+package com.kinvey.java.deltaset
+
+/**
+ * Open-addressing map from entity `_id` to a primitive long value, used by [DeltaSetMerge].
+ *
+ * Keys and values are kept in two parallel arrays, so an index over a few hundred thousand
+ * entities takes two arrays instead of one map entry object per entity.
+ * Depending on the use the value is the last modified time in epoch millis (see [parseLmt])
+ * or the position of the entity in a list.
+ */
+class DeltaSetIndex(expectedSize: Int = DEFAULT_EXPECTED_SIZE) {
+
+    private var keys: Array<String?>
+    private var values: LongArray
+    private var mask: Int
+
+    /**
+     * Number of ids in the index
+     */
+    var size = 0
+        private set
+
+    init {
+        val capacity = capacityFor(Math.max(expectedSize, 1))
+        keys = arrayOfNulls(capacity)
+        values = LongArray(capacity)
+        mask = capacity - 1
+    }
+
+    /**
+     * Puts the value for the id, replacing the previous one if the id is already in the index.
+     */
+    fun put(id: String, value: Long) {
+        var slot = slotOf(id, keys, mask)
+        if (keys[slot] == null) {
+            if ((size + 1) * 2 > keys.size) {
+                grow()
+                slot = slotOf(id, keys, mask)
+            }
+            keys[slot] = id
+            size++
+        }
+        values[slot] = value
+    }
+
+    /**
+     * @return true if the id is in the index
+     */
+    operator fun contains(id: String?): Boolean {
+        return id != null && keys[slotOf(id, keys, mask)] != null
+    }
+
+    /**
+     * @return the value for the id or `defaultValue` if the id is not in the index
+     */
+    fun get(id: String?, defaultValue: Long): Long {
+        if (id == null) {
+            return defaultValue
+        }
+        val slot = slotOf(id, keys, mask)
+        return if (keys[slot] != null) values[slot] else defaultValue
+    }
+
+    private fun grow() {
+        val oldKeys = keys
+        val oldValues = values
+        val capacity = oldKeys.size * 2
+        val newKeys = arrayOfNulls<String>(capacity)
+        val newValues = LongArray(capacity)
+        val newMask = capacity - 1
+        for (i in oldKeys.indices) {
+            val key = oldKeys[i] ?: continue
+            val slot = slotOf(key, newKeys, newMask)
+            newKeys[slot] = key
+            newValues[slot] = oldValues[i]
+        }
+        keys = newKeys
+        values = newValues
+        mask = newMask
+    }
+
+    companion object {
+
+        private const val DEFAULT_EXPECTED_SIZE = 16
+
+        /**
+         * Value of an entity which has no `_kmd`, such entity is never updated
+         */
+        const val NO_KMD = Long.MIN_VALUE
+
+        /**
+         * Value of an entity which has `_kmd` without a readable last modified time, such entity is always updated
+         */
+        const val UNKNOWN_LMT = Long.MIN_VALUE + 1
+
+        private fun capacityFor(expectedSize: Int): Int {
+            var capacity = 2
+            while (capacity < expectedSize * 2) {
+                capacity = capacity shl 1
+            }
+            return capacity
+        }
+
+        private fun slotOf(id: String, keys: Array<String?>, mask: Int): Int {
+            var h = id.hashCode() * -0x61c88647
+            h = h xor (h ushr 16)
+            var slot = h and mask
+            while (true) {
+                val key = keys[slot] ?: return slot
+                if (key == id) {
+                    return slot
+                }
+                slot = (slot + 1) and mask
+            }
+        }
+
+        /**
+         * Parses the last modified time of the `yyyy-MM-dd'T'HH:mm:ss.SSS'Z'` form into epoch millis without
+         * creating any objects. Fraction of seconds may have any number of digits or be absent.
+         *
+         * @return epoch millis or [UNKNOWN_LMT] if the value can't be read
+         */
+        @JvmStatic
+        fun parseLmt(lmt: CharSequence?): Long {
+            if (lmt == null || lmt.length < 20) {
+                return UNKNOWN_LMT
+            }
+            if (lmt[4] != '-' || lmt[7] != '-' || lmt[10] != 'T' || lmt[13] != ':' || lmt[16] != ':'
+                    || lmt[lmt.length - 1] != 'Z') {
+                return UNKNOWN_LMT
+            }
+            val year = digits(lmt, 0, 4)
+            val month = digits(lmt, 5, 2)
+            val day = digits(lmt, 8, 2)
+            val hour = digits(lmt, 11, 2)
+            val minute = digits(lmt, 14, 2)
+            val second = digits(lmt, 17, 2)
+            if (year < 0 || month !in 1..12 || day !in 1..31 || hour !in 0..23 || minute !in 0..59 || second !in 0..60) {
+                return UNKNOWN_LMT
+            }
+            var millis = 0
+            val end = lmt.length - 1
+            if (end > 19) {
+                if (lmt[19] != '.' || end == 20) {
+                    return UNKNOWN_LMT
+                }
+                var scale = 100
+                for (i in 20 until end) {
+                    val c = lmt[i]
+                    if (c !in '0'..'9') {
+                        return UNKNOWN_LMT
+                    }
+                    millis += (c - '0') * scale
+                    scale /= 10
+                }
+            }
+            val days = daysFromCivil(year, month, day)
+            return ((days * 24 + hour) * 60 + minute) * 60_000L + second * 1000L + millis
+        }
+
+        private fun digits(s: CharSequence, start: Int, count: Int): Int {
+            var value = 0
+            for (i in start until start + count) {
+                val c = s[i]
+                if (c !in '0'..'9') {
+                    return -1
+                }
+                value = value * 10 + (c - '0')
+            }
+            return value
+        }
+
+        /**
+         * Days since 1970-01-01 for the proleptic Gregorian date
+         */
+        private fun daysFromCivil(year: Int, month: Int, day: Int): Long {
+            val y = if (month <= 2) year - 1 else year
+            val era = (if (y >= 0) y else y - 399) / 400
+            val yearOfEra = y - era * 400
+            val dayOfYear = (153 * (if (month > 2) month - 3 else month + 9) + 2) / 5 + day - 1
+            val dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear
+            return era * 146097L + dayOfEra - 719468
+        }
+    }
+}
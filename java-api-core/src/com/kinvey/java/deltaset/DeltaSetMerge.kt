@@ -20,37 +20,72 @@ import com.google.api.client.json.GenericJson
 import com.kinvey.java.Constants._ID
 import com.kinvey.java.Constants._KMD
 import com.kinvey.java.Constants._LMT
-import com.kinvey.java.deltaset.DeltaSetItem.KMD
 import java.io.IOException
 
 /**
  * Created by Prots on 12/11/15.
  */
 object DeltaSetMerge {
+
+    private const val KMD_LMT = "lmt"
+    private const val DECIDED = Long.MIN_VALUE + 2
+    private const val NOT_FOUND = -1L
+
     @Throws(IOException::class)
     fun <T> getIdsForUpdate(cache: List<T>?, items: List<DeltaSetItem>?): List<String> {
-        val cachedMap = listToMap(cache)
-        val onlineMap = listToMap(items)
-        val idsToUpdate = HashSet<String>()
-
-        //assume all data have to be updated
-        idsToUpdate.addAll(onlineMap.keys)
+        return getIdsForUpdate(cache, items?.iterator() ?: emptyList<DeltaSetItem>().iterator(), items?.size ?: 0)
+    }
 
-        cachedMap.keys.onEach { cachedId ->
-            if (onlineMap.containsKey(cachedId)) {
-                val onlineItem = onlineMap[cachedId]
-                val cachedItem = cachedMap[cachedId]
-                var cachedKMD: KMD? = null
-                if (cachedItem is GenericJson && (cachedItem as GenericJson).containsKey(_KMD)) {
-                    val kmd = cachedItem[_KMD]
-                    if (kmd is Map<*, *>) { cachedKMD = KMD(kmd[_LMT].toString()) }
-                }
-                if (cachedKMD == null || cachedKMD.lmt == onlineItem?.kmd?.lmt) {
-                    idsToUpdate.remove(cachedId)
-                }
+    /**
+     * Same as [getIdsForUpdate] for the online items read one by one, so the whole metadata response
+     * doesn't have to be kept in memory.
+     * The cache is indexed once by id with the last modified time parsed to epoch millis,
+     * every online item is then checked with a single lookup and a long comparison.
+     *
+     * @param cache cached entities
+     * @param items online items in the server order, the ids to update are returned in this order
+     * @param expectedCount expected count of the online items, used to size the index
+     * @return ids of the entities which are missed in the cache or changed since they were cached
+     */
+    @Throws(IOException::class)
+    fun <T> getIdsForUpdate(cache: List<T>?, items: Iterator<DeltaSetItem>, expectedCount: Int = 0): List<String> {
+        val index = cacheIndex(cache, expectedCount)
+        val idsToUpdate = ArrayList<String>()
+        items.forEach { item ->
+            val id = item.id ?: return@forEach
+            val cachedLmt = index.get(id, NOT_FOUND)
+            if (cachedLmt == DECIDED) {
+                return@forEach
+            }
+            index.put(id, DECIDED)
+            if (cachedLmt == NOT_FOUND || isChanged(cachedLmt, item)) {
+                idsToUpdate.add(id)
             }
         }
-        return idsToUpdate.toList()
+        return idsToUpdate
+    }
+
+    private fun <T> cacheIndex(cache: List<T>?, expectedCount: Int): DeltaSetIndex {
+        val index = DeltaSetIndex(Math.max(cache?.size ?: 0, expectedCount))
+        cache?.forEach { cachedItem ->
+            val id = (cachedItem as? GenericJson)?.get(_ID) ?: return@forEach
+            index.put(id.toString(), cachedLmt(cachedItem as GenericJson))
+        }
+        return index
+    }
+
+    private fun cachedLmt(cachedItem: GenericJson): Long {
+        val kmd = cachedItem[_KMD] as? Map<*, *> ?: return DeltaSetIndex.NO_KMD
+        val lmt = kmd[_LMT] ?: kmd[KMD_LMT]
+        return DeltaSetIndex.parseLmt(lmt as? CharSequence)
+    }
+
+    private fun isChanged(cachedLmt: Long, item: DeltaSetItem): Boolean {
+        return when (cachedLmt) {
+            DeltaSetIndex.NO_KMD -> false
+            DeltaSetIndex.UNKNOWN_LMT -> true
+            else -> cachedLmt != DeltaSetIndex.parseLmt(item.kmd?.lmt)
+        }
     }
 
     @Throws(IOException::class)
@@ -64,17 +99,39 @@ object DeltaSetMerge {
 
     @Throws(IOException::class)
     fun <T> merge(order: List<DeltaSetItem>?, cache: List<T>?, online: List<T>?): List<T> {
-        val cacheMap = listToMap(cache)
-        val onlineMap = listToMap(online)
-        val orderedResult = order?.map { item ->
-            val itemId = item.id
-            when {
-                //prefer online
-                onlineMap.containsKey(itemId) -> onlineMap[itemId] as T
-                cacheMap.containsKey(itemId) -> cacheMap[itemId] as T
-                else -> null
+        val cacheList = randomAccess(cache)
+        val onlineList = randomAccess(online)
+        val cacheIndex = positionIndex(cacheList)
+        val onlineIndex = positionIndex(onlineList)
+        val orderedResult = ArrayList<T>(order?.size ?: 0)
+        order?.forEach { item ->
+            //prefer online
+            val onlinePosition = onlineIndex.get(item.id, NOT_FOUND)
+            if (onlinePosition != NOT_FOUND) {
+                onlineList?.get(onlinePosition.toInt())?.let { orderedResult.add(it) }
+            } else {
+                val cachePosition = cacheIndex.get(item.id, NOT_FOUND)
+                if (cachePosition != NOT_FOUND) {
+                    cacheList?.get(cachePosition.toInt())?.let { orderedResult.add(it) }
+                }
             }
-        }?.filterNot { item -> item == null }?.toMutableList() ?: mutableListOf()
-        return orderedResult as List<T>
+        }
+        return orderedResult
+    }
+
+    private fun <T> randomAccess(list: List<T>?): List<T>? {
+        return if (list == null || list is RandomAccess) list else ArrayList(list)
+    }
+
+    /**
+     * Indexes the position of every entity in the list by its id, the last entity wins for a repeated id
+     */
+    private fun <T> positionIndex(list: List<T>?): DeltaSetIndex {
+        val index = DeltaSetIndex(list?.size ?: 0)
+        list?.forEachIndexed { position, item ->
+            val id = (item as? GenericJson)?.get(_ID) ?: return@forEachIndexed
+            index.put(id.toString(), position.toLong())
+        }
+        return index
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,11 @@
+package com.kinvey.java.model
+
+/**
+ * Result of a lookup by a list of ids.
+ *
+ * [result] keeps the order of the requested ids, [missingIds] are the requested ids which were not found.
+ */
+data class KinveyBulkReadResponse<T>(
+    var result: List<T>? = null,
+    var missingIds: List<String>? = null
+) : AbstractKinveyExceptionsListResponse()
@@ -17,7 +17,6 @@
 package com.kinvey.java.model
 
 import com.google.api.client.json.GenericJson
-import com.google.api.client.util.ArrayMap
 import com.google.api.client.util.Key
 import com.kinvey.java.Logger
 
@@ -67,14 +66,14 @@ data class KinveyReference(
 
     val resolvedObject: GenericJson?
         get() {
-            val direct = get("_obj") as ArrayMap<String, Any>? ?: return null
+            val direct = get(RESOLVED_KEY) as Map<String, Any?>? ?: return null
             val ret = GenericJson()
             ret.putAll(direct)
             return ret
         }
 
     fun <T : GenericJson> getTypedObject(clazz: Class<T>): T? {
-        val direct = get("_obj") as ArrayMap<String, Any>? ?: return null
+        val direct = get(RESOLVED_KEY) as Map<String, Any?>? ?: return null
         var ret: T? = null
         try {
             ret = clazz.newInstance()
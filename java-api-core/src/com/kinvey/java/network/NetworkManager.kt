@@ -24,12 +24,14 @@ import com.google.common.base.Preconditions
 import com.google.gson.Gson
 import com.kinvey.java.AbstractClient
 import com.kinvey.java.Constants
+import com.kinvey.java.KinveySaveBatchException
 import com.kinvey.java.Logger.Companion.ERROR
 import com.kinvey.java.Logger.Companion.INFO
 import com.kinvey.java.Query
 import com.kinvey.java.annotations.ReferenceHelper
-import com.kinvey.java.annotations.ReferenceHelper.ReferenceListener
+import com.kinvey.java.annotations.ReferenceHelper.BatchReferenceListener
 import com.kinvey.java.cache.ICache
+import com.kinvey.java.cache.InMemoryCache
 import com.kinvey.java.core.*
 import com.kinvey.java.deltaset.DeltaSetItem
 import com.kinvey.java.deltaset.DeltaSetMerge
@@ -37,9 +39,11 @@ import com.kinvey.java.dto.BatchList
 import com.kinvey.java.dto.DeviceId
 import com.kinvey.java.model.*
 import com.kinvey.java.query.MongoQueryFilter.MongoQueryFilterBuilder
+import com.kinvey.java.query.QueryFingerprint
 import java.io.IOException
 import java.net.SocketTimeoutException
 import java.net.UnknownHostException
+import java.util.concurrent.Callable
 import kotlin.collections.ArrayList
 
 /**
@@ -373,7 +377,7 @@ open class NetworkManager<T : GenericJson>(
         val jsonEntity = entity as GenericJson?
         sourceID = jsonEntity?.run { this[ID_FIELD_NAME] as String? }
 //prepare entity relation data saving
-        entityRelationDataSavingCheck(entity)
+        entityRelationDataSavingCheck(listOf(entity))
         val bRealmGeneratedId = isTempId(entity)
         INFO("Start choosing PUT or POST request")
         if (sourceID != null && !bRealmGeneratedId) {
@@ -391,39 +395,48 @@ open class NetworkManager<T : GenericJson>(
         return save
     }
 
-    private fun entityRelationDataSavingCheck(entity: T?) {
-        try {
-            INFO("Start prepare entity relation data saving")
-            ReferenceHelper.processReferences(entity, object : ReferenceListener {
-                override fun onUnsavedReferenceFound(collection: String, item: GenericJson?): String {
-                    INFO("Calling onUnsavedReferenceFound(String, GenericJson)")
-                    if (item?.containsKey("_id") == true) {
-                        INFO("return object.get(_id).toString() for onUnsavedReferenceFound(String, GenericJson)")
-                        return item["_id"].toString()
-                    }
-                    val manager = NetworkManager(collection, GenericJson::class.java, client)
-                    try {
-                        INFO("Start recursive call for manager.saveBlocking(object).execute() inside saveBlocking")
-                        val saved = manager.saveBlocking(item)?.execute()
-                        INFO("return saved.get(ID_FIELD_NAME).toString() for onUnsavedReferenceFound(String, GenericJson)")
-                        return saved?.run { this.get(ID_FIELD_NAME)?.toString() } ?: ""
-                    } catch (e: IOException) {
-                        ERROR("Catch exception for recursive call for manager.saveBlocking(object).execute()")
-                        e.printStackTrace()
+    /**
+     * Saves the unsaved entities referenced by the entities with batch saves, see [ReferenceHelper.processReferenceGraph]
+     *
+     * @throws KinveySaveBatchException with the errors and the referenced entities which were not saved,
+     * the entities referencing them must not be saved
+     */
+    @Throws(IOException::class)
+    private fun entityRelationDataSavingCheck(entities: List<T?>) {
+        INFO("Start prepare entity relation data saving")
+        val errors = ReferenceHelper.processReferenceGraph(entities.filterNotNull(), object : BatchReferenceListener {
+            @Throws(IOException::class)
+            override fun onUnsavedReferencesFound(collection: String, items: List<GenericJson>): KinveySaveBatchResponse<GenericJson?> {
+                val manager = NetworkManager(collection, GenericJson::class.java, client)
+                val result = KinveySaveBatchResponse<GenericJson?>(ArrayList(), ArrayList())
+                items.chunked(REFERENCES_PER_BATCH).forEachIndexed { chunk, chunkItems ->
+                    val response = manager.batchBlocking(chunkItems).execute()
+                    val errors = response?.errors.orEmpty()
+                    // keep the entities of all the chunks in the order of the items
+                    val failed = errors.mapTo(HashSet()) { it.index }
+                    val saved = response?.entities.orEmpty().filterNotNull().iterator()
+                    chunkItems.indices.forEach { i -> result.entities?.add(if (i !in failed && saved.hasNext()) saved.next() else null) }
+                    errors.forEach { error ->
+                        error.index += chunk * REFERENCES_PER_BATCH
+                        result.errors?.add(error)
                     }
-                    INFO("return null for onUnsavedReferenceFound(String, GenericJson)")
-                    return ""
                 }
-            })
-        } catch (e: IllegalAccessException) {
-            e.printStackTrace()
-        } catch (e: InstantiationException) {
-            e.printStackTrace()
+                return result
+            }
+        })
+        if (errors.isNotEmpty()) {
+            errors.values.forEach { error -> ERROR("Referenced entity was not saved: ${error.error} ${error.description}") }
+            throw KinveySaveBatchException(errors.values.toList(), null, errors.keys.toList())
         }
     }
 
     @Throws(IOException::class)
     open fun saveBatchBlocking(list: List<T>?): SaveBatch<T>? {
+        list?.let { entityRelationDataSavingCheck(it) }
+        return batchBlocking(list)
+    }
+
+    private fun batchBlocking(list: List<T>?): SaveBatch<T> {
         val responseClassType = KinveySaveBatchResponse::class.java
         val batch = SaveBatch(this, client, list, responseClassType as Class<KinveySaveBatchResponse<T>>, currentClass, SaveMode.POST)
         client?.initializeRequest(batch)
@@ -711,6 +724,9 @@ open class NetworkManager<T : GenericJson>(
 
         var hasCountHeader  = false
 
+        /** hash of the canonical filter, identifies the request for [ReadCoalescer] */
+        private var filterHash: String? = null
+
         private fun addHeaders(networkManager: NetworkManager<T>) {
             getRequestHeaders()["X-Kinvey-Client-App-Version"] = networkManager.clientAppVersion
             if (!networkManager.customRequestProperties.isNullOrEmpty()) {
@@ -721,11 +737,21 @@ open class NetworkManager<T : GenericJson>(
             }
         }
 
+        /**
+         * @return identity of the request for [ReadCoalescer]: filter, sort, paging, references and headers
+         */
+        private fun coalescingKey(): String {
+            return listOf("find", filterHash, sortFilter, limit, skip, resolve, resolveDepth, retainReferences,
+                    getRequestHeaders()[Constants.X_KINVEY_INCLUDE_ITEMS_COUNT],
+                    getRequestHeaders()["X-Kinvey-Custom-Request-Properties"]).joinToString("|")
+        }
+
         constructor(networkManager: NetworkManager<T>, client: AbstractClient<*>?, query: Query?, myClass: Class<T>?,  hasCountHeader: Boolean = false)
             : super(client, HttpVerb.GET.verb, GET_REST_PATH, null, myClass) {
             this.collectionName = networkManager.collectionName
             this.hasCountHeader = hasCountHeader
             queryFilter = query?.getQueryFilterJson(client?.jsonFactory)
+            filterHash = (query?.filterFingerprint ?: QueryFingerprint.of(null)).hash
             val queryLimit = query?.limit ?: 0
             val querySkip = query?.skip ?: 0
             limit = if (queryLimit > 0) queryLimit.toString() else null
@@ -741,6 +767,7 @@ open class NetworkManager<T : GenericJson>(
             this.collectionName = networkManager.collectionName
             this.hasCountHeader = hasCountHeader
             queryFilter = query?.getQueryFilterJson(client?.jsonFactory)
+            filterHash = (query?.filterFingerprint ?: QueryFingerprint.of(null)).hash
             val queryLimit = query?.limit ?: 0
             val querySkip = query?.skip ?: 0
             limit = if (queryLimit > 0) queryLimit.toString() else null
@@ -758,13 +785,25 @@ open class NetworkManager<T : GenericJson>(
             this.collectionName = networkManager.collectionName
             this.hasCountHeader = hasCountHeader
             queryFilter = if (queryString != "{}") queryString else null
+            filterHash = queryFilter?.let { QueryFingerprint.ofRaw(it).hash } ?: QueryFingerprint.of(null).hash
             setTemplateExpand(false)
             addHeaders(networkManager)
         }
 
+        /**
+         * Sends the request, or shares the one in flight with the same parameters if the client has a [ReadCoalescer]
+         */
         @Throws(IOException::class)
         override fun execute(): KinveyReadResponse<T>? {
-            return super.execute()
+            val coalescer = (abstractKinveyClient as? AbstractClient<*>)?.readCoalescer ?: return super.execute()
+            return coalescer.execute(collectionName, coalescingKey(), { response -> copyResponse(response) },
+                    Callable { super.execute() })
+        }
+
+        private fun copyResponse(response: KinveyReadResponse<T>): KinveyReadResponse<T> {
+            val copy = response.copy(result = response.result?.map { InMemoryCache.deepCopy(it) })
+            copy.listOfExceptions = response.listOfExceptions?.let { ArrayList(it) }
+            return copy
         }
     }
 
@@ -848,9 +887,16 @@ open class NetworkManager<T : GenericJson>(
             }
         }
 
+        /**
+         * Sends the request, or shares the one in flight for the same entity if the client has a [ReadCoalescer]
+         */
         @Throws(IOException::class)
         override fun execute(): T? {
-            return super.execute()
+            val coalescer = (abstractKinveyClient as? AbstractClient<*>)?.readCoalescer ?: return super.execute()
+            val key = listOf("findById", entityID, resolve, resolveDepth, retainReferences,
+                    getRequestHeaders()["X-Kinvey-Custom-Request-Properties"]).joinToString("|")
+            return coalescer.execute(collectionName, key, { entity -> InMemoryCache.deepCopy(entity) },
+                    Callable { super.execute() })
         }
     }
 
@@ -1063,9 +1109,10 @@ open class NetworkManager<T : GenericJson>(
         val GEOLOC_FIELD_NAME: String? = "_geoloc"
 
         fun checkNetworkRuntimeExceptions(e: Exception?): Boolean =
-                e !is UnknownHostException && e !is SocketTimeoutException
+                e !is UnknownHostException && e !is SocketTimeoutException && e !is KinveyCircuitOpenException
 
         const val IDS_PER_PAGE = 100
+        private const val REFERENCES_PER_BATCH = 100
 
         const val SAVE_REST_PATH = "appdata/{appKey}/{collectionName}/{entityID}"
 
@@ -0,0 +1,202 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+
+package com.kinvey.java.network
+
+import com.google.common.base.Preconditions
+import java.io.IOException
+import java.io.InterruptedIOException
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Lets identical reads which run at the same time share one request.
+ *
+ * The first caller of a key sends the request, the callers which come while it's in flight wait for it.
+ * The result is copied once into a snapshot no caller can reach and every caller, the sender included, gets its own
+ * copy of the snapshot, so changes of a returned result are not seen by the others. An error is thrown to all of them.
+ * With [resultTtlMillis] greater than 0 the result is reused for that long after the request has finished, every write
+ * request of the client drops the kept results, see [invalidate].
+ *
+ * Coalescing is opt-in, set an instance to [com.kinvey.java.AbstractClient.readCoalescer] to enable it
+ * for the `find` requests of the client.
+ */
+class ReadCoalescer @JvmOverloads constructor(resultTtlMillis: Long = 0) {
+
+    private val calls = ConcurrentHashMap<Key, Call>()
+    /** changed by every [invalidate], a result is kept only if it did not change while the request was in flight */
+    private val generation = AtomicLong()
+    private val hits = AtomicLong()
+    private val misses = AtomicLong()
+    private val coalesced = AtomicLong()
+
+    /**
+     * How long a result is reused after its request has finished, 0 to share only requests in flight
+     */
+    var resultTtlMillis: Long = resultTtlMillis
+        set(value) {
+            Preconditions.checkArgument(value >= 0, "resultTtlMillis must not be negative")
+            field = value
+        }
+
+    init {
+        Preconditions.checkArgument(resultTtlMillis >= 0, "resultTtlMillis must not be negative")
+    }
+
+    val stats: Stats
+        get() = Stats(hits.get(), misses.get(), coalesced.get())
+
+    /**
+     * Returns the result of the request in flight or kept for the key, or sends the request.
+     *
+     * @param collection collection the request reads, used by [invalidate]
+     * @param key identity of the request: verb, canonical query or id and every parameter which changes the response
+     * @param copy makes an independent copy of a result
+     * @param request sends the request
+     */
+    @Throws(IOException::class)
+    fun <V> execute(collection: String?, key: String, copy: (V) -> V, request: Callable<V?>): V? {
+        val callKey = Key(collection, key)
+        while (true) {
+            val existing = calls[callKey]
+            if (existing != null) {
+                if (!existing.isDone) {
+                    coalesced.incrementAndGet()
+                    return existing.await<V>()?.let(copy)
+                }
+                if (existing.isFresh(System.currentTimeMillis())) {
+                    hits.incrementAndGet()
+                    return existing.await<V>()?.let(copy)
+                }
+                calls.remove(callKey, existing)
+                continue
+            }
+            val call = Call(generation.get())
+            if (calls.putIfAbsent(callKey, call) != null) {
+                continue
+            }
+            if (misses.incrementAndGet() % PURGE_INTERVAL == 0L) {
+                purgeExpired()
+            }
+            return send(callKey, call, copy, request)
+        }
+    }
+
+    /**
+     * Drops the results kept for the collection, the requests in flight are still shared but their results are not kept
+     * @param collection collection which has been changed, `null` to drop the results of all the collections
+     */
+    fun invalidate(collection: String?) {
+        generation.incrementAndGet()
+        val iterator = calls.entries.iterator()
+        while (iterator.hasNext()) {
+            val (key, call) = iterator.next()
+            if (call.isDone && (collection == null || collection == key.collection)) {
+                iterator.remove()
+            }
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun <V> send(key: Key, call: Call, copy: (V) -> V, request: Callable<V?>): V? {
+        var snapshot: V? = null
+        var error: Throwable? = null
+        try {
+            snapshot = request.call()?.let(copy)
+            return snapshot?.let(copy)
+        } catch (e: Throwable) {
+            error = e
+            throw e
+        } finally {
+            val ttl = resultTtlMillis
+            val isKept = error == null && ttl > 0 && generation.get() == call.generation
+            call.complete(snapshot, error, if (isKept) System.currentTimeMillis() + ttl else 0)
+            if (!isKept) {
+                calls.remove(key, call)
+            }
+        }
+    }
+
+    private fun purgeExpired() {
+        val now = System.currentTimeMillis()
+        val iterator = calls.values.iterator()
+        while (iterator.hasNext()) {
+            val call = iterator.next()
+            if (call.isDone && !call.isFresh(now)) {
+                iterator.remove()
+            }
+        }
+    }
+
+    private data class Key(val collection: String?, val key: String)
+
+    private class Call(val generation: Long) {
+
+        private val done = CountDownLatch(1)
+        @Volatile
+        private var value: Any? = null
+        @Volatile
+        private var error: Throwable? = null
+        @Volatile
+        private var expiresAt = 0L
+
+        val isDone: Boolean
+            get() = done.count == 0L
+
+        fun isFresh(now: Long): Boolean = isDone && error == null && now < expiresAt
+
+        fun complete(value: Any?, error: Throwable?, expiresAt: Long) {
+            this.value = value
+            this.error = error
+            this.expiresAt = expiresAt
+            done.countDown()
+        }
+
+        @Throws(IOException::class)
+        fun <V> await(): V? {
+            try {
+                done.await()
+            } catch (e: InterruptedException) {
+                Thread.currentThread().interrupt()
+                throw InterruptedIOException("interrupted while waiting for a coalesced request")
+            }
+            when (val error = error) {
+                // the value was set by the send of a caller with the same key, of the same type
+                null -> @Suppress("UNCHECKED_CAST") return value as V?
+                is IOException -> throw error
+                is RuntimeException -> throw error
+                is Error -> throw error
+                else -> throw IOException(error)
+            }
+        }
+    }
+
+    /**
+     * Counters of a [ReadCoalescer]
+     *
+     * @param hits reads answered by a kept result
+     * @param misses reads which sent a request
+     * @param coalesced reads which waited for a request in flight
+     */
+    data class Stats(val hits: Long, val misses: Long, val coalesced: Long)
+
+    companion object {
+        private const val PURGE_INTERVAL = 64L
+    }
+}
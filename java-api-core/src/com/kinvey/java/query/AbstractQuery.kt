@@ -40,8 +40,22 @@ abstract class AbstractQuery(protected var builder: QueryFilterBuilder?) : Seria
      */
     enum class SortOrder { ASC, DESC }
 
+    /**
+     * Value computed from the filter, valid while the filter has the same version
+     */
+    private class Memo<V>(val version: Long, val factory: JsonFactory?, val value: V)
+
     protected var sort: LinkedHashMap<String, SortOrder>
     private var queryString: String? = null
+
+    @Transient
+    @Volatile
+    private var filterJsonMemo: Memo<String?>? = null
+
+    @Transient
+    @Volatile
+    private var filterFingerprintMemo: Memo<QueryFingerprint>? = null
+
     /**
      * Sets the raw query string
      *
@@ -70,6 +84,58 @@ abstract class AbstractQuery(protected var builder: QueryFilterBuilder?) : Seria
         if (queryString != null) {
             return queryString
         }
+        val version = filterVersion
+        filterJsonMemo?.let { memo ->
+            if (memo.version == version && memo.factory === factory) {
+                return memo.value
+            }
+        }
+        val json = buildQueryFilterJson(factory)
+        if (version != QueryFilterBuilder.UNTRACKED) {
+            filterJsonMemo = Memo(version, factory, json)
+        }
+        return json
+    }
+
+    /**
+     * Canonical form of the filter, the same for filters which differ only in the order of their keys.
+     * It is computed once for every version of the filter, changes of the maps returned by [queryFilterMap]
+     * are not tracked.
+     */
+    val filterFingerprint: QueryFingerprint
+        get() {
+            queryString?.let { return QueryFingerprint.ofRaw(it) }
+            val version = filterVersion
+            filterFingerprintMemo?.let { memo ->
+                if (memo.version == version) {
+                    return memo.value
+                }
+            }
+            val fingerprint = QueryFingerprint.of(queryFilterMap)
+            if (version != QueryFilterBuilder.UNTRACKED) {
+                filterFingerprintMemo = Memo(version, null, fingerprint)
+            }
+            return fingerprint
+        }
+
+    /**
+     * Canonical form of the whole query, the filter together with the sort order and the paging,
+     * queries with the same fingerprint return the same result
+     */
+    val fingerprint: QueryFingerprint
+        get() = filterFingerprint.with(fingerprintModifiers())
+
+    /**
+     * @return modifiers of the query which change its result besides the filter
+     */
+    protected open fun fingerprintModifiers(): Map<String, Any?> {
+        return if (sort.isEmpty()) emptyMap() else mapOf("sort" to sort.map { (field, order) -> listOf(field, if (order == SortOrder.DESC) -1 else 1) })
+    }
+
+    private val filterVersion: Long
+        get() = builder?.version ?: QueryFilterBuilder.UNTRACKED
+
+    private fun buildQueryFilterJson(factory: JsonFactory?): String? {
         val writer = StringWriter()
         var jsonResult = ""
         try {
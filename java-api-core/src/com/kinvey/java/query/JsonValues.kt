@@ -0,0 +1,118 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+
+package com.kinvey.java.query
+
+import java.math.BigDecimal
+import java.math.BigInteger
+
+/**
+ * Equality and ordering of the values of json entities.
+ *
+ * Numbers are compared by value whatever their type is, so `1`, `1L` and `1.0` are equal.
+ * Values of different kinds are ordered null, numbers, strings, booleans and the rest by their string form.
+ */
+internal object JsonValues : Comparator<Any?> {
+
+    private const val RANK_NULL = 0
+    private const val RANK_NUMBER = 1
+    private const val RANK_STRING = 2
+    private const val RANK_BOOLEAN = 3
+    private const val RANK_OTHER = 4
+
+    private val NULL_KEY = Any()
+    private val MIN_LONG = BigDecimal.valueOf(Long.MIN_VALUE)
+    private val MAX_LONG = BigDecimal.valueOf(Long.MAX_VALUE)
+
+    fun equal(a: Any?, b: Any?): Boolean {
+        return when {
+            a == null || b == null -> a == null && b == null
+            a is Number && b is Number -> compareNumbers(a, b) == 0
+            else -> a == b
+        }
+    }
+
+    /**
+     * @return true if the values are of the same kind which has an order
+     */
+    fun isComparable(a: Any?, b: Any?): Boolean {
+        val rank = rank(a)
+        return rank != RANK_NULL && rank != RANK_OTHER && rank == rank(b)
+    }
+
+    override fun compare(a: Any?, b: Any?): Int {
+        val rankA = rank(a)
+        val rankB = rank(b)
+        if (rankA != rankB) {
+            return rankA.compareTo(rankB)
+        }
+        return when (rankA) {
+            RANK_NULL -> 0
+            RANK_NUMBER -> compareNumbers(a as Number, b as Number)
+            RANK_STRING -> (a as String).compareTo(b as String)
+            RANK_BOOLEAN -> (a as Boolean).compareTo(b as Boolean)
+            else -> a.toString().compareTo(b.toString())
+        }
+    }
+
+    fun compareNumbers(a: Number, b: Number): Int {
+        if (isIntegral(a) && isIntegral(b)) {
+            return a.toLong().compareTo(b.toLong())
+        }
+        val x = toBigDecimal(a)
+        val y = toBigDecimal(b)
+        return if (x != null && y != null) x.compareTo(y) else java.lang.Double.compare(a.toDouble(), b.toDouble())
+    }
+
+    /**
+     * @return key of the value for hash sets, the keys of values are equal if the values are [equal]
+     */
+    fun hashKey(value: Any?): Any {
+        return when (value) {
+            null -> NULL_KEY
+            is Int, is Long, is Short, is Byte -> (value as Number).toLong()
+            is Number -> {
+                val decimal = toBigDecimal(value) ?: return value.toDouble()
+                val stripped = if (decimal.signum() == 0) BigDecimal.ZERO else decimal.stripTrailingZeros()
+                if (stripped.scale() <= 0 && stripped >= MIN_LONG && stripped <= MAX_LONG) stripped.toLong() else stripped
+            }
+            else -> value
+        }
+    }
+
+    private fun rank(value: Any?): Int {
+        return when (value) {
+            null -> RANK_NULL
+            is Number -> RANK_NUMBER
+            is String -> RANK_STRING
+            is Boolean -> RANK_BOOLEAN
+            else -> RANK_OTHER
+        }
+    }
+
+    private fun isIntegral(value: Number): Boolean = value is Int || value is Long || value is Short || value is Byte
+
+    private fun toBigDecimal(value: Number): BigDecimal? {
+        return when (value) {
+            is BigDecimal -> value
+            is BigInteger -> BigDecimal(value)
+            is Double -> if (value.isNaN() || value.isInfinite()) null else BigDecimal.valueOf(value)
+            is Float -> if (value.isNaN() || value.isInfinite()) null else BigDecimal(value.toString())
+            else -> BigDecimal.valueOf(value.toLong())
+        }
+    }
+}
@@ -33,14 +33,26 @@ open class MongoQueryFilter : QueryFilter, Serializable {
 
     @Key
     override var filter: LinkedHashMap<String, Any?> = LinkedHashMap()
+        set(value) {
+            field = value
+            version++
+        }
+
+    /**
+     * Number of the changes of the filter
+     */
+    var version = 0L
+        private set
 
     override fun put(key: String?, value: Any?) {
         if (key != null) {
             filter[key] = value
+            version++
         }
     }
 
     override fun put(operation: String?, key: String?, value: Any?) {
+        version++
         val nestedMap: LinkedHashMap<String, Any?> = LinkedHashMap()
         operation?.run { nestedMap[operation] = value }
         if (filter.containsKey(key)) {
@@ -61,6 +73,7 @@ open class MongoQueryFilter : QueryFilter, Serializable {
     }
 
     override fun put(operation: String, key: String, value: Array<Any?>) {
+        version++
         val nestedMap: LinkedHashMap<String, Any?> = LinkedHashMap()
         nestedMap[operation] = value
         if (filter.containsKey(key)) {
@@ -112,6 +125,9 @@ open class MongoQueryFilter : QueryFilter, Serializable {
         override val filterMap: AbstractMap<String, Any?>
             get() = query.filter
 
+        override val version: Long
+            get() = query.version
+
         override fun joinFilter(operator: String?, newQuery: AbstractQuery?) {
             query.joinFilters(operator, newQuery?.queryFilterMap as LinkedHashMap<String, Any?>)
         }
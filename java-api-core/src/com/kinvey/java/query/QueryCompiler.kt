@@ -0,0 +1,313 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+package com.kinvey.java.query
+
+import com.kinvey.java.KinveyException
+import com.kinvey.java.query.AbstractQuery.SortOrder
+import java.util.ArrayList
+import java.util.HashSet
+import java.util.LinkedHashMap
+import java.util.regex.Pattern
+
+/**
+ * Compiles the Mongo style filter of a [com.kinvey.java.Query] into a [QueryPredicate] which local caches use
+ * to evaluate queries in memory.
+ *
+ * Supports `$eq`, `$ne`, `$gt`, `$gte`, `$lt`, `$lte`, `$in`, `$nin`, `$all`, `$size`, `$regex` with `$options`,
+ * `$exists`, `$not`, `$and`, `$or` and dotted paths. Like in Mongo a condition on an array field matches if any
+ * of its elements matches. Location operators are not supported.
+ *
+ * Paths are split, regular expressions are compiled and the operands of `$in` and `$nin` are put into hash sets
+ * once per filter. Compiled filters are kept by the fingerprint of the filter, so running the same query again
+ * does not compile it again.
+ */
+object QueryCompiler {
+
+    private const val MAX_CACHED_PREDICATES = 256
+
+    const val AND = "\$and"
+    const val OR = "\$or"
+
+    private val MATCH_ALL = object : QueryPredicate {
+        override fun matches(item: Map<*, *>): Boolean = true
+    }
+
+    private val predicates = object : LinkedHashMap<String, QueryPredicate>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, QueryPredicate>?): Boolean {
+            return size > MAX_CACHED_PREDICATES
+        }
+    }
+
+    /**
+     * @return predicate of the filter, a predicate which matches everything if the filter is null or empty
+     * @throws KinveyException if the filter uses an operator which is not supported
+     */
+    @JvmStatic
+    fun compile(filter: Map<String, Any?>?): QueryPredicate {
+        if (filter == null || filter.isEmpty()) {
+            return MATCH_ALL
+        }
+        val fingerprint = QueryFingerprint.canonical(filter)
+        synchronized(predicates) { predicates[fingerprint] }?.let { return it }
+        val predicate = compileFilter(filter)
+        synchronized(predicates) { predicates[fingerprint] = predicate }
+        return predicate
+    }
+
+    /**
+     * @return comparator of the entities by the sort fields of a query or null if it has none
+     */
+    @JvmStatic
+    fun comparator(sort: Map<String, SortOrder?>?): Comparator<Map<*, *>>? {
+        if (sort == null || sort.isEmpty()) {
+            return null
+        }
+        val keys = sort.map { (field, order) -> SortKey(split(field), order == SortOrder.DESC) }
+        return Comparator { a, b ->
+            for (key in keys) {
+                val result = key.compare(a, b)
+                if (result != 0) {
+                    return@Comparator result
+                }
+            }
+            0
+        }
+    }
+
+    /**
+     * @return value of the dotted path, values of the elements of the arrays on the path are collected into a list
+     */
+    @JvmStatic
+    fun valueAt(item: Any?, path: String): Any? = valueAt(item, split(path), 0)
+
+    internal fun isOperatorMap(condition: Map<*, *>): Boolean = condition.keys.any { it.toString().startsWith("$") }
+
+    internal fun subFilters(condition: Any?): List<Map<*, *>> = toList(condition).filterIsInstance<Map<*, *>>()
+
+    internal fun isList(value: Any?): Boolean = value is Collection<*> || value is Array<*>
+            || value is IntArray || value is LongArray || value is DoubleArray || value is FloatArray
+            || value is BooleanArray || value is ShortArray
+
+    internal fun toList(value: Any?): List<Any?> {
+        return when (value) {
+            is List<*> -> value
+            is Collection<*> -> value.toList()
+            is Array<*> -> value.asList()
+            is IntArray -> value.asList()
+            is LongArray -> value.asList()
+            is DoubleArray -> value.asList()
+            is FloatArray -> value.asList()
+            is BooleanArray -> value.asList()
+            is ShortArray -> value.asList()
+            null -> emptyList()
+            else -> listOf(value)
+        }
+    }
+
+    private fun split(path: String): Array<String> = path.split('.').toTypedArray()
+
+    private fun valueAt(item: Any?, path: Array<String>, from: Int): Any? {
+        var current: Any? = item
+        for (i in from until path.size) {
+            current = when {
+                current is Map<*, *> -> current[path[i]]
+                isList(current) -> {
+                    val index = path[i].toIntOrNull()
+                    val values = toList(current)
+                    if (index != null) values.getOrNull(index) else values.map { valueAt(it, path, i) }
+                }
+                else -> return null
+            }
+        }
+        return current
+    }
+
+    private fun compileFilter(filter: Map<*, *>): QueryPredicate {
+        val predicates = filter.map { (key, condition) ->
+            when (key) {
+                AND -> AllOf(subFilters(condition).map { compileFilter(it) }.toTypedArray())
+                OR -> AnyOf(subFilters(condition).map { compileFilter(it) }.toTypedArray())
+                else -> FieldPredicate(split(key.toString()), compileCondition(condition))
+            }
+        }
+        return if (predicates.size == 1) predicates[0] else AllOf(predicates.toTypedArray())
+    }
+
+    private fun compileCondition(condition: Any?): Condition {
+        if (condition !is Map<*, *> || !isOperatorMap(condition)) {
+            return EqualsOrContains(condition)
+        }
+        val conditions = condition.mapNotNull { (operator, operand) -> compileOperator(operator.toString(), operand, condition) }
+        return if (conditions.size == 1) conditions[0] else AllConditions(conditions.toTypedArray())
+    }
+
+    private fun compileOperator(operator: String, operand: Any?, condition: Map<*, *>): Condition? {
+        return when (operator) {
+            "\$eq" -> EqualsOrContains(operand)
+            "\$ne" -> Not(EqualsOrContains(operand))
+            "\$gt" -> Compares(operand) { it > 0 }
+            "\$gte" -> Compares(operand) { it >= 0 }
+            "\$lt" -> Compares(operand) { it < 0 }
+            "\$lte" -> Compares(operand) { it <= 0 }
+            "\$in" -> In(toList(operand))
+            "\$nin" -> Not(In(toList(operand)))
+            "\$all" -> ContainsAll(toList(operand))
+            "\$size" -> Size((operand as? Number)?.toInt())
+            "\$regex" -> Regex(compilePattern(operand.toString(), condition["\$options"]?.toString()))
+            "\$options" -> null
+            "\$exists" -> Exists(operand == true)
+            "\$not" -> Not(compileCondition(operand))
+            else -> throw KinveyException("Unsupported query operator $operator",
+                    "Use the operators supported by the local cache", "The local cache cannot evaluate $operator")
+        }
+    }
+
+    private fun compilePattern(regex: String, options: String?): Pattern {
+        var flags = 0
+        options?.forEach { option ->
+            when (option) {
+                'i' -> flags = flags or Pattern.CASE_INSENSITIVE
+                'm' -> flags = flags or Pattern.MULTILINE
+                's' -> flags = flags or Pattern.DOTALL
+                'x' -> flags = flags or Pattern.COMMENTS
+            }
+        }
+        return Pattern.compile(regex, flags)
+    }
+
+    private fun equalsOrContains(value: Any?, expected: Any?, expectedIsList: Boolean): Boolean {
+        if (isList(value)) {
+            val values = toList(value)
+            if (!expectedIsList) {
+                return values.any { JsonValues.equal(it, expected) }
+            }
+            val expectedValues = toList(expected)
+            return values.size == expectedValues.size && values.indices.all { JsonValues.equal(values[it], expectedValues[it]) }
+        }
+        return JsonValues.equal(value, expected)
+    }
+
+    private class AllOf(private val predicates: Array<QueryPredicate>) : QueryPredicate {
+        override fun matches(item: Map<*, *>): Boolean = predicates.all { it.matches(item) }
+    }
+
+    private class AnyOf(private val predicates: Array<QueryPredicate>) : QueryPredicate {
+        override fun matches(item: Map<*, *>): Boolean = predicates.any { it.matches(item) }
+    }
+
+    private class FieldPredicate(private val path: Array<String>, private val condition: Condition) : QueryPredicate {
+        override fun matches(item: Map<*, *>): Boolean = condition.test(valueAt(item, path, 0))
+    }
+
+    /**
+     * Condition on the value of a field
+     */
+    private interface Condition {
+        fun test(value: Any?): Boolean
+    }
+
+    private class AllConditions(private val conditions: Array<Condition>) : Condition {
+        override fun test(value: Any?): Boolean = conditions.all { it.test(value) }
+    }
+
+    private class Not(private val condition: Condition) : Condition {
+        override fun test(value: Any?): Boolean = !condition.test(value)
+    }
+
+    private class EqualsOrContains(private val expected: Any?) : Condition {
+        private val expectedIsList = isList(expected)
+
+        override fun test(value: Any?): Boolean = equalsOrContains(value, expected, expectedIsList)
+    }
+
+    private class Compares(private val operand: Any?, private val accept: (Int) -> Boolean) : Condition {
+        override fun test(value: Any?): Boolean {
+            if (isList(value)) {
+                return toList(value).any { matches(it) }
+            }
+            return matches(value)
+        }
+
+        private fun matches(value: Any?): Boolean = JsonValues.isComparable(value, operand) && accept(JsonValues.compare(value, operand))
+    }
+
+    /**
+     * Scalar operands are looked up in a hash set by [JsonValues.hashKey], lists and maps are compared one by one
+     */
+    private class In(operands: List<Any?>) : Condition {
+        private val keys = HashSet<Any>()
+        private val others = ArrayList<Any?>()
+
+        init {
+            operands.forEach { operand ->
+                if (isList(operand) || operand is Map<*, *>) others.add(operand) else keys.add(JsonValues.hashKey(operand))
+            }
+        }
+
+        override fun test(value: Any?): Boolean {
+            if (isList(value)) {
+                if (keys.isNotEmpty() && toList(value).any { it !is Map<*, *> && !isList(it) && keys.contains(JsonValues.hashKey(it)) }) {
+                    return true
+                }
+            } else if (value !is Map<*, *> && keys.contains(JsonValues.hashKey(value))) {
+                return true
+            }
+            return others.any { equalsOrContains(value, it, isList(it)) }
+        }
+    }
+
+    private class ContainsAll(private val expected: List<Any?>) : Condition {
+        override fun test(value: Any?): Boolean {
+            val values = toList(value)
+            return expected.all { expected -> values.any { JsonValues.equal(it, expected) } }
+        }
+    }
+
+    private class Size(private val size: Int?) : Condition {
+        override fun test(value: Any?): Boolean = size != null && isList(value) && toList(value).size == size
+    }
+
+    private class Regex(private val pattern: Pattern) : Condition {
+        override fun test(value: Any?): Boolean {
+            if (isList(value)) {
+                return toList(value).any { it is String && pattern.matcher(it).find() }
+            }
+            return value is String && pattern.matcher(value).find()
+        }
+    }
+
+    private class Exists(private val exists: Boolean) : Condition {
+        override fun test(value: Any?): Boolean = (value != null) == exists
+    }
+
+    /**
+     * Compares strings and integral numbers directly and the other values by [JsonValues]
+     */
+    private class SortKey(private val path: Array<String>, private val descending: Boolean) {
+        fun compare(a: Map<*, *>, b: Map<*, *>): Int {
+            val x = valueAt(a, path, 0)
+            val y = valueAt(b, path, 0)
+            val result = when {
+                x is String && y is String -> x.compareTo(y)
+                x is Long && y is Long -> x.compareTo(y)
+                x is Int && y is Int -> x.compareTo(y)
+                else -> JsonValues.compare(x, y)
+            }
+            return if (descending) -result else result
+        }
+    }
+}
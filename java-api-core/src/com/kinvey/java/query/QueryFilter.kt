@@ -90,6 +90,13 @@ interface QueryFilter {
          */
         val filterMap: AbstractMap<String, Any?>
 
+        /**
+         * Number of the changes of the filter, used to know whether values computed from the filter are still valid.
+         * [UNTRACKED] if the builder does not count the changes.
+         */
+        val version: Long
+            get() = UNTRACKED
+
         /**
          * Possible filter operators
          */
@@ -187,5 +194,9 @@ interface QueryFilter {
          * @return
          */
         fun getOperator(operator: Operators): String
+
+        companion object {
+            const val UNTRACKED = -1L
+        }
     }
 }
@@ -0,0 +1,149 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+package com.kinvey.java.query
+
+import com.google.common.hash.HashCode
+import com.google.common.hash.Hashing
+import java.io.Serializable
+
+/**
+ * Canonical form of a query, equal for queries which differ only in the order of the keys of their filters
+ * or in the type of their numbers, so `{"a": 1, "b": 2.0}` and `{"b": 2, "a": 1L}` have the same fingerprint.
+ *
+ * [canonicalJson] is the filter as JSON with sorted keys, [hash] is its 128 bit murmur3 hash.
+ * Arrays keep their order, so the branches of `$or` and `$and` are compared in order.
+ */
+class QueryFingerprint private constructor(val canonicalJson: String) : Serializable {
+
+    @Transient
+    private var hashCode128: HashCode? = null
+
+    private val hashCode: HashCode
+        get() = hashCode128 ?: Hashing.murmur3_128().hashString(canonicalJson, Charsets.UTF_8).also { hashCode128 = it }
+
+    /**
+     * 128 bit hash of the canonical JSON as 32 hex digits
+     */
+    val hash: String
+        get() = hashCode.toString()
+
+    /**
+     * First 64 bits of the hash
+     */
+    val hash64: Long
+        get() = hashCode.asLong()
+
+    /**
+     * @return fingerprint of this one together with the modifiers of a query, like the sort order, skip and limit
+     */
+    fun with(modifiers: Map<String, Any?>): QueryFingerprint {
+        if (modifiers.isEmpty()) {
+            return this
+        }
+        val builder = StringBuilder(canonicalJson.length + 64)
+        builder.append("{\"filter\":").append(canonicalJson)
+        modifiers.entries.sortedBy { it.key }.forEach { (key, value) ->
+            builder.append(',')
+            appendString(builder, key)
+            builder.append(':')
+            append(builder, value)
+        }
+        builder.append('}')
+        return QueryFingerprint(builder.toString())
+    }
+
+    override fun equals(other: Any?): Boolean {
+        return this === other || other is QueryFingerprint && other.hash64 == hash64 && other.canonicalJson == canonicalJson
+    }
+
+    override fun hashCode(): Int = hash64.toInt()
+
+    override fun toString(): String = hash
+
+    companion object {
+        private const val serialVersionUID = 1L
+
+        /**
+         * @return fingerprint of the filter, null is the same as an empty filter
+         */
+        @JvmStatic
+        fun of(filter: Map<*, *>?): QueryFingerprint = QueryFingerprint(canonical(filter))
+
+        /**
+         * @return fingerprint of a raw query string, which is used as it is
+         */
+        @JvmStatic
+        fun ofRaw(queryString: String): QueryFingerprint = QueryFingerprint(queryString)
+
+        /**
+         * @return the filter as JSON with sorted keys
+         */
+        internal fun canonical(filter: Map<*, *>?): String {
+            val builder = StringBuilder()
+            append(builder, filter ?: emptyMap<String, Any?>())
+            return builder.toString()
+        }
+
+        private fun append(builder: StringBuilder, value: Any?) {
+            when {
+                value == null -> builder.append("null")
+                value is String -> appendString(builder, value)
+                value is Boolean -> builder.append(value)
+                value is Number -> {
+                    val key = JsonValues.hashKey(value)
+                    if (key is Double) appendString(builder, key.toString()) else builder.append(key)
+                }
+                value is Map<*, *> -> {
+                    builder.append('{')
+                    value.entries.sortedBy { it.key.toString() }.forEachIndexed { i, entry ->
+                        if (i > 0) {
+                            builder.append(',')
+                        }
+                        appendString(builder, entry.key.toString())
+                        builder.append(':')
+                        append(builder, entry.value)
+                    }
+                    builder.append('}')
+                }
+                QueryCompiler.isList(value) -> {
+                    builder.append('[')
+                    QueryCompiler.toList(value).forEachIndexed { i, element ->
+                        if (i > 0) {
+                            builder.append(',')
+                        }
+                        append(builder, element)
+                    }
+                    builder.append(']')
+                }
+                value is Enum<*> -> appendString(builder, value.name)
+                else -> appendString(builder, value.toString())
+            }
+        }
+
+        private fun appendString(builder: StringBuilder, value: String) {
+            builder.append('"')
+            value.forEach { c ->
+                when {
+                    c == '"' || c == '\\' -> builder.append('\\').append(c)
+                    c < ' ' -> builder.append(String.format("\\u%04x", c.toInt()))
+                    else -> builder.append(c)
+                }
+            }
+            builder.append('"')
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+package com.kinvey.java.query
+
+/**
+ * Filter of a query compiled by [QueryCompiler], tests json entities in memory.
+ * Predicates are immutable, so one instance can be used by many threads.
+ */
+interface QueryPredicate {
+
+    /**
+     * @return true if the entity matches the filter
+     */
+    fun matches(item: Map<*, *>): Boolean
+}
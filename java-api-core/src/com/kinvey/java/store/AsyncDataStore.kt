@@ -0,0 +1,85 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+
+package com.kinvey.java.store
+
+import com.google.api.client.json.GenericJson
+import com.kinvey.java.Query
+import com.kinvey.java.core.KinveyFuture
+import com.kinvey.java.model.KinveyPullResponse
+import com.kinvey.java.model.KinveyReadResponse
+import java.util.concurrent.Callable
+import java.util.concurrent.Executor
+
+/**
+ * Non-blocking API of a [BaseDataStore] for the JVM: every operation runs the blocking method of the store on the
+ * executor, including the parsing of the response, and returns a [KinveyFuture] of its result.
+ *
+ * @param store data store the operations are run on
+ * @param executor executor the operations run on, [com.kinvey.java.AbstractClient.asyncExecutor] by default
+ */
+class AsyncDataStore<T : GenericJson> @JvmOverloads constructor(
+        val store: BaseDataStore<T>,
+        private val executor: Executor = (store.client ?: throw NullPointerException("client must not be null."))
+                .asyncExecutor(store.collectionName)) {
+
+    fun find(id: String): KinveyFuture<T?> = supply(Callable { store.find(id) })
+
+    fun find(ids: Iterable<String>): KinveyFuture<KinveyReadResponse<T>?> = supply(Callable { store.find(ids) })
+
+    fun find(query: Query?): KinveyFuture<KinveyReadResponse<T>?> = supply(Callable { store.find(query) })
+
+    fun find(): KinveyFuture<KinveyReadResponse<T>?> = supply(Callable { store.find() })
+
+    fun count(): KinveyFuture<Int?> = supply(Callable { store.count() })
+
+    fun save(entity: T): KinveyFuture<T?> = supply(Callable { store.save(entity) })
+
+    fun save(entities: Iterable<T>): KinveyFuture<List<T>?> = supply(Callable { store.save(entities) })
+
+    fun delete(id: String): KinveyFuture<Int?> = supply(Callable { store.delete(id) })
+
+    fun delete(ids: Iterable<String>): KinveyFuture<Int?> = supply(Callable { store.delete(ids) })
+
+    fun delete(query: Query): KinveyFuture<Int?> = supply(Callable { store.delete(query) })
+
+    /**
+     * @see BaseDataStore.pushBlocking
+     */
+    fun push(): KinveyFuture<Void?> = supply(Callable<Void?> { store.pushBlocking(); null })
+
+    /**
+     * @see BaseDataStore.pullBlocking
+     */
+    @JvmOverloads
+    fun pull(query: Query?, pageSize: Int = 0): KinveyFuture<KinveyPullResponse> {
+        return supply(Callable { if (pageSize > 0) store.pullBlocking(query, pageSize) else store.pullBlocking(query) })
+    }
+
+    /**
+     * @see BaseDataStore.syncBlocking
+     */
+    @JvmOverloads
+    fun sync(query: Query?, pageSize: Int = 0): KinveyFuture<Void?> {
+        return supply(Callable<Void?> {
+            if (pageSize > 0) store.syncBlocking(query, pageSize) else store.syncBlocking(query)
+            null
+        })
+    }
+
+    private fun <R> supply(task: Callable<R>): KinveyFuture<R> = KinveyFuture.supply(executor, task)
+}
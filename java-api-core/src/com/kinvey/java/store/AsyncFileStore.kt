@@ -0,0 +1,89 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+
+package com.kinvey.java.store
+
+import com.kinvey.java.Metrics
+import com.kinvey.java.core.DownloaderProgressListener
+import com.kinvey.java.core.KinveyFuture
+import com.kinvey.java.core.MediaHttpDownloader
+import com.kinvey.java.core.MediaHttpUploader
+import com.kinvey.java.core.UploaderProgressListener
+import com.kinvey.java.model.FileMetaData
+import java.io.File
+import java.io.InputStream
+import java.io.OutputStream
+import java.util.concurrent.Callable
+import java.util.concurrent.Executor
+
+/**
+ * Non-blocking API of a [BaseFileStore] for the JVM: every operation runs the blocking method of the store on the
+ * executor and returns a [KinveyFuture] of its result. Cancelling the future of an upload or a download cancels
+ * the transfer.
+ *
+ * A file store runs one upload and one download at a time, use a store for each concurrent transfer.
+ *
+ * @param store file store the operations are run on
+ * @param executor executor the operations run on, [com.kinvey.java.AbstractClient.asyncExecutor] by default
+ */
+class AsyncFileStore @JvmOverloads constructor(
+        val store: BaseFileStore,
+        private val executor: Executor = store.client.asyncExecutor(Metrics.FILES_COLLECTION)) {
+
+    @JvmOverloads
+    fun upload(file: File, metadata: FileMetaData = FileMetaData().apply { fileName = file.name },
+               listener: UploaderProgressListener = NO_UPLOAD_PROGRESS): KinveyFuture<FileMetaData> {
+        return KinveyFuture.supply(executor, Callable { store.upload(file, metadata, listener) }, Runnable { store.cancelUploading() })
+    }
+
+    @JvmOverloads
+    fun upload(stream: InputStream, metadata: FileMetaData,
+               listener: UploaderProgressListener = NO_UPLOAD_PROGRESS): KinveyFuture<FileMetaData> {
+        return KinveyFuture.supply(executor, Callable { store.upload(stream, metadata, listener) }, Runnable { store.cancelUploading() })
+    }
+
+    @JvmOverloads
+    fun download(metadata: FileMetaData, os: OutputStream,
+                 listener: DownloaderProgressListener = NO_DOWNLOAD_PROGRESS): KinveyFuture<FileMetaData?> {
+        return KinveyFuture.supply(executor, Callable { store.download(metadata, os, null, null, listener) },
+                Runnable { store.cancelDownloading() })
+    }
+
+    /**
+     * @see BaseFileStore.download
+     */
+    @JvmOverloads
+    fun download(metadata: FileMetaData, target: File,
+                 listener: DownloaderProgressListener = NO_DOWNLOAD_PROGRESS): KinveyFuture<FileMetaData?> {
+        return KinveyFuture.supply(executor, Callable { store.download(metadata, target, listener) },
+                Runnable { store.cancelDownloading() })
+    }
+
+    fun find(id: String): KinveyFuture<FileMetaData?> = KinveyFuture.supply(executor, Callable { store.find(id, null) })
+
+    fun remove(metadata: FileMetaData): KinveyFuture<Int?> = KinveyFuture.supply(executor, Callable { store.remove(metadata) })
+
+    companion object {
+        private val NO_UPLOAD_PROGRESS = object : UploaderProgressListener {
+            override fun progressChanged(uploader: MediaHttpUploader?) {}
+        }
+
+        private val NO_DOWNLOAD_PROGRESS = object : DownloaderProgressListener {
+            override fun progressChanged(downloader: MediaHttpDownloader?) {}
+        }
+    }
+}
@@ -23,15 +23,20 @@ import com.kinvey.java.AbstractClient
 import com.kinvey.java.Constants
 import com.kinvey.java.KinveyException
 import com.kinvey.java.Logger
+import com.kinvey.java.Metrics
 import com.kinvey.java.Query
 import com.kinvey.java.cache.ICache
 import com.kinvey.java.cache.KinveyCachedClientCallback
+import com.kinvey.java.cache.MetricsCache
 import com.kinvey.java.core.KinveyCachedAggregateCallback
 import com.kinvey.java.core.KinveyClientCallback
 import com.kinvey.java.core.KinveyJsonResponseException
+import com.kinvey.java.core.KinveyScheduler
 import com.kinvey.java.model.*
 import com.kinvey.java.network.NetworkManager
 import com.kinvey.java.query.AbstractQuery
+import com.kinvey.java.query.MongoQueryFilter
+import com.kinvey.java.query.QueryFingerprint
 import com.kinvey.java.store.requests.data.AggregationRequest
 import com.kinvey.java.store.requests.data.PushRequest
 import com.kinvey.java.store.requests.data.delete.DeleteIdsRequest
@@ -39,6 +44,7 @@ import com.kinvey.java.store.requests.data.delete.DeleteQueryRequest
 import com.kinvey.java.store.requests.data.delete.DeleteSingleRequest
 import com.kinvey.java.store.requests.data.read.ReadAllRequest
 import com.kinvey.java.store.requests.data.read.ReadCountRequest
+import com.kinvey.java.store.requests.data.read.ReadIdsBulkRequest
 import com.kinvey.java.store.requests.data.read.ReadIdsRequest
 import com.kinvey.java.store.requests.data.read.ReadQueryRequest
 import com.kinvey.java.store.requests.data.read.ReadSingleRequest
@@ -52,9 +58,9 @@ import java.util.ArrayList
 import java.util.Date
 import java.util.Locale
 import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorCompletionService
 import java.util.concurrent.ExecutorService
-import java.util.concurrent.Executors
-import java.util.concurrent.FutureTask
+import java.util.concurrent.Future
 
 open class BaseDataStore<T : GenericJson> @JvmOverloads protected constructor(
         /**
@@ -92,13 +98,39 @@ open class BaseDataStore<T : GenericJson> @JvmOverloads protected constructor(
             cache?.isAddCount = value
         }
 
+    /**
+     * Maximum number of page requests the auto-paginated pull keeps running at once.
+     * A new page is requested only after a finished one has been saved to the local storage,
+     * so no more than this number of pages is held in memory.
+     * Default value is 5.
+     */
+    var pullPagesInFlight = BATCH_SIZE
+        set(value) {
+            Preconditions.checkArgument(value > 0, "pullPagesInFlight must be greater than 0")
+            field = value
+        }
+
+    /**
+     * It is a parameter to make the auto-paginated pull request the pages by `_id` instead of skip and limit.
+     * Every next page is requested with `_id` greater than the last pulled one, so deep pages are
+     * as fast as the first one. The pages are requested one by one, the next page is downloaded
+     * while the previous one is being saved.
+     * Is used only for queries without sorting or sorted by `_id` ascending,
+     * other queries are pulled with skip and limit.
+     * Default value is false.
+     */
+    var isKeysetPaginationEnabled = false
+
     internal var liveServiceCallback: KinveyDataStoreLiveServiceCallback<T>? = null
 
     init {
         Preconditions.checkNotNull(client, "client must not be null.")
         Preconditions.checkArgument(client?.isInitialize ?: false, "client must be initialized.")
         if (storeType != StoreType.NETWORK) {
-            cache = client?.cacheManager?.getCache(collectionName, currentClass, storeType.ttl)
+            val metrics: Metrics? = client?.metrics
+            cache = client?.cacheManager?.getCache(collectionName, currentClass, storeType.ttl)?.let { cache ->
+                if (metrics != null) MetricsCache(cache, collectionName, metrics) else cache
+            }
         }
         this.isDeltaSetCachingEnabled = client?.isUseDeltaCache ?: false
     }
@@ -157,6 +189,21 @@ open class BaseDataStore<T : GenericJson> @JvmOverloads protected constructor(
         }
     }
 
+    /**
+     * Look up for objects of a long list of ids.
+     * The ids are requested by `_id $in` pages which fit into the url, up to [pullPagesInFlight] pages at a time.
+     * With [StoreType.CACHE] the objects found in the local storage are not requested from the network.
+     * @param ids collection of strings that identify a set of ids we have to look for
+     * @return objects found for given ids in the order of the ids and the ids which were not found
+     */
+    @Throws(IOException::class)
+    fun findByIds(ids: Iterable<String>): KinveyBulkReadResponse<T>? {
+        Preconditions.checkNotNull(client, "client must not be null.")
+        Preconditions.checkArgument(client?.isInitialize ?: false, "client must be initialized.")
+        Preconditions.checkNotNull(ids, "ids must not be null.")
+        return ReadIdsBulkRequest(cache, networkManager, this.storeType.readPolicy, ids, getPullExecutor()).execute()
+    }
+
 
     /**
      * Lookup objects in given collection by given query
@@ -530,72 +577,144 @@ open class BaseDataStore<T : GenericJson> @JvmOverloads protected constructor(
     @Throws(IOException::class)
     private fun pullBlockingPaged(query: Query?, pageSize: Int): KinveyPullResponse {
         val response = KinveyPullResponse()
-        val stringQuery = query?.queryFilterMap.toString()
+        val stringQuery = queryCacheKey(query)
         if (query?.sortString.isNullOrEmpty()) {
             query?.addSort(Constants._ID, AbstractQuery.SortOrder.ASC)
         }
         val exceptions = ArrayList<Exception>()
-        var skipCount = 0
 
         // First, get the count of all the items to pull
         val countResponse = internalCountNetwork()
         val totalItemNumber = countResponse?.count ?: 0
         val lastRequestTime = countResponse?.lastRequestTime
-        var pulledItemCount = 0
-        val totalPagesNumber = Math.abs(totalItemNumber / pageSize) + 1
-        val batchSize = BATCH_SIZE // batch size for concurrent push requests
-        var executor: ExecutorService
-        var tasks: MutableList<FutureTask<PullTaskResponse<T>>>
-        var pullRequest: NetworkManager.Get<T>?
-        var ft: FutureTask<PullTaskResponse<T>>
         cache?.delete(query?.setSkip(0)?.setLimit(0))// To be sure that skip and limit are 0,
         // because in next lines custom skip and limit are set anyway
-        var i = 0
-        while (i < totalPagesNumber) {
-            executor = Executors.newFixedThreadPool(batchSize)
-            tasks = ArrayList()
-            do {
+        val pulledItemCount = if (query != null && isKeysetPaginationEnabled && isSortedById(query)) {
+            pullPagesByKeyset(query, pageSize, exceptions)
+        } else {
+            pullPagesBySkip(query, pageSize, totalItemNumber, exceptions)
+        }
+        query?.setSkip(0)?.setLimit(0) // To set back default value of skip and limit
+        response.listOfExceptions = exceptions
+        response.count = pulledItemCount
+        if (isDeltaSetCachingEnabled && lastRequestTime != null) {
+            saveQueryCacheItem(stringQuery, lastRequestTime)
+        }
+        return response
+    }
+
+    /**
+     * Pulls the pages with skip and limit, keeping at most [pullPagesInFlight] page requests running.
+     * Every page is saved to the cache as soon as it arrives and only then the next page is requested.
+     * @return count of the items saved to the cache
+     */
+    @Throws(IOException::class)
+    private fun pullPagesBySkip(query: Query?, pageSize: Int, totalItemNumber: Int, exceptions: MutableList<Exception>): Int {
+        val completionService = ExecutorCompletionService<PullTaskResponse<T>>(getPullExecutor())
+        var pulledItemCount = 0
+        var skipCount = 0
+        var inFlight = 0
+        var hasMorePages = true
+        while (true) {
+            // the first page is always requested, even if the count is 0
+            while (hasMorePages && inFlight < pullPagesInFlight && (skipCount == 0 || skipCount < totalItemNumber)) {
                 query?.setSkip(skipCount)?.setLimit(pageSize)
-                pullRequest = networkManager.getBlocking(query)
+                val pullRequest = networkManager.getBlocking(query)
                 skipCount += pageSize
                 try {
-                    ft = FutureTask(CallableAsyncPullRequestHelper(pullRequest, query))
-                    tasks.add(ft)
-                    executor.execute(ft)
+                    completionService.submit(CallableAsyncPullRequestHelper(pullRequest, query))
+                    inFlight++
                 } catch (e: AccessControlException) {
                     e.printStackTrace()
                     exceptions.add(e)
                 } catch (e: KinveyException) {
                     e.printStackTrace()
                     exceptions.add(e)
-                } catch (e: Exception) {
-                    throw e
                 }
-
-            } while (skipCount < totalItemNumber)
-
-            for (task in tasks) {
-                try {
-                    val tempResponse = task.get()
-                    pulledItemCount += cache?.save(tempResponse.kinveyReadResponse?.result ?: listOf())?.size ?: 0
-                    exceptions.addAll(tempResponse.kinveyReadResponse?.listOfExceptions ?: listOf())
-                } catch (e: InterruptedException) {
-                    e.printStackTrace()
-                } catch (e: ExecutionException) {
-                    e.printStackTrace()
+            }
+            if (inFlight == 0) {
+                break
+            }
+            try {
+                val tempResponse = completionService.take().get()
+                val result = tempResponse.kinveyReadResponse?.result ?: listOf()
+                val pageExceptions = tempResponse.kinveyReadResponse?.listOfExceptions ?: listOf()
+                pulledItemCount += cache?.save(result)?.size ?: 0
+                exceptions.addAll(pageExceptions)
+                if (result.size + pageExceptions.size < pageSize) {
+                    // a short page is the last one, the count may include items which don't match the query
+                    hasMorePages = false
                 }
+            } catch (e: InterruptedException) {
+                Thread.currentThread().interrupt()
+                exceptions.add(e)
+                break
+            } catch (e: ExecutionException) {
+                e.printStackTrace()
+                exceptions.add(e.cause as? Exception ?: e)
+            } finally {
+                inFlight--
+            }
+        }
+        return pulledItemCount
+    }
 
+    /**
+     * Pulls the pages ordered by `_id`, every next page is requested with `_id` greater than the last pulled one.
+     * The next page is downloaded while the current one is being saved to the cache.
+     * @return count of the items saved to the cache
+     */
+    @Throws(IOException::class)
+    private fun pullPagesByKeyset(query: Query, pageSize: Int, exceptions: MutableList<Exception>): Int {
+        val executor = getPullExecutor()
+        var pulledItemCount = 0
+        var nextPage: Future<PullTaskResponse<T>>? =
+                executor.submit(CallableAsyncPullRequestHelper(networkManager.getBlocking(keysetPageQuery(query, null, pageSize)), query))
+        while (nextPage != null) {
+            val page = try {
+                nextPage.get()
+            } catch (e: InterruptedException) {
+                Thread.currentThread().interrupt()
+                exceptions.add(e)
+                break
+            } catch (e: ExecutionException) {
+                e.printStackTrace()
+                exceptions.add(e.cause as? Exception ?: e)
+                break
             }
-            executor.shutdown()
-            i += batchSize
+            val result = page.kinveyReadResponse?.result ?: listOf()
+            val pageExceptions = page.kinveyReadResponse?.listOfExceptions ?: listOf()
+            val lastId = result.lastOrNull()?.get(Constants._ID) as String?
+            nextPage = if (lastId != null && result.size + pageExceptions.size >= pageSize) {
+                executor.submit(CallableAsyncPullRequestHelper(networkManager.getBlocking(keysetPageQuery(query, lastId, pageSize)), query))
+            } else null
+            pulledItemCount += cache?.save(result)?.size ?: 0
+            exceptions.addAll(pageExceptions)
         }
-        query?.setSkip(0)?.setLimit(0) // To set back default value of skip and limit
-        response.listOfExceptions = exceptions
-        response.count = pulledItemCount
-        if (isDeltaSetCachingEnabled && lastRequestTime != null) {
-            saveQueryCacheItem(stringQuery, lastRequestTime)
+        return pulledItemCount
+    }
+
+    private fun keysetPageQuery(query: Query, lastId: String?, pageSize: Int): Query {
+        if (lastId == null) {
+            return query.setSkip(0).setLimit(pageSize)
         }
-        return response
+        val pageQuery = Query(MongoQueryFilter.MongoQueryFilterBuilder()).greaterThan(Constants._ID, lastId)
+        if (query.queryFilterMap?.isNotEmpty() == true) {
+            pageQuery.and(query)
+        }
+        return pageQuery.addSort(Constants._ID, AbstractQuery.SortOrder.ASC).setLimit(pageSize)
+    }
+
+    private fun isSortedById(query: Query): Boolean {
+        val sort = query.getSort()
+        return sort.size == 1 && sort[Constants._ID] == AbstractQuery.SortOrder.ASC
+    }
+
+    /**
+     * @return executor of the client scheduler which runs up to [pullPagesInFlight] page requests of this collection
+     */
+    private fun getPullExecutor(): ExecutorService {
+        return (client?.scheduler ?: KinveyScheduler.shared).executor(collectionName, pullPagesInFlight)
     }
 
     private fun saveQueryCacheItem(stringQuery: String, lastRequestTime: String) {
@@ -659,7 +778,7 @@ open class BaseDataStore<T : GenericJson> @JvmOverloads protected constructor(
         cache?.delete(query)
         response?.result?.let { list -> cache?.save(list) }
         response?.lastRequestTime?.let { timeStr ->
-            saveQueryCacheItem(query?.queryFilterMap.toString(), timeStr)
+            saveQueryCacheItem(queryCacheKey(query), timeStr)
         }
         return response
     }
@@ -748,7 +867,36 @@ open class BaseDataStore<T : GenericJson> @JvmOverloads protected constructor(
     }
 
     private fun getQueryCacheItem(query: Query?): QueryCacheItem? {
-        return getQueryCacheItem(query?.queryFilterMap.toString())
+        val key = queryCacheKey(query)
+        return getQueryCacheItem(key) ?: migrateQueryCacheItem(query, key)
+    }
+
+    /**
+     * Moves the delta set state saved by earlier versions under `queryFilterMap.toString()` to the fingerprint key,
+     * so an upgrade keeps the delta sync of the queries instead of pulling them again
+     *
+     * @return the moved item or null if there is no state under the old key
+     */
+    private fun migrateQueryCacheItem(query: Query?, key: String): QueryCacheItem? {
+        val legacyKey = query?.queryFilterMap.toString()
+        if (legacyKey == key) {
+            return null
+        }
+        val legacyItem = getQueryCacheItem(legacyKey) ?: return null
+        if (legacyItem.collectionName != collectionName) {
+            return null
+        }
+        legacyItem.query = key
+        queryCache?.save(legacyItem)
+        return legacyItem
+    }
+
+    /**
+     * @return key of the delta set state of the query, the hash of its filter fingerprint,
+     * so queries whose filters differ only in the order of the keys share the state
+     */
+    private fun queryCacheKey(query: Query?): String {
+        return (query?.filterFingerprint ?: QueryFingerprint.of(null)).hash
     }
 
     private fun getQueryCacheItem(stringQuery: String): QueryCacheItem? {
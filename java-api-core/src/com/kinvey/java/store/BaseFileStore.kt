@@ -21,6 +21,7 @@ import com.google.api.client.http.InputStreamContent
 import com.google.api.client.util.Key
 import com.google.common.base.Preconditions
 import com.google.common.io.Closer
+import com.kinvey.java.AbstractClient
 import com.kinvey.java.KinveyException
 import com.kinvey.java.Query
 import com.kinvey.java.cache.ICache
@@ -35,6 +36,7 @@ import com.kinvey.java.model.FileMetaData
 import com.kinvey.java.network.NetworkFileManager
 import com.kinvey.java.network.NetworkManager
 import com.kinvey.java.store.file.FileUtils
+import com.kinvey.java.store.file.LruFileCache
 
 import java.io.File
 import java.io.FileInputStream
@@ -58,6 +60,26 @@ open class BaseFileStore
     private var downloader: MediaHttpDownloader? = null
     private var uploader: MediaHttpUploader? = null
 
+    /**
+     * Number of chunks of a file uploaded at the same time, 1 by default.
+     * Only uploads of a [File] are split into parallel chunks, streams are always uploaded one chunk after another.
+     */
+    var parallelUploads = 1
+        set(value) {
+            Preconditions.checkArgument(value > 0, "parallelUploads must be positive")
+            field = value
+        }
+
+    /**
+     * Number of chunks of a file downloaded at the same time, 1 by default.
+     * Only downloads into a [File] are split into parallel chunks, streams are always downloaded one chunk after another.
+     */
+    var parallelDownloads = 1
+        set(value) {
+            Preconditions.checkArgument(value > 0, "parallelDownloads must be positive")
+            field = value
+        }
+
     init {
         this.cache = cacheManager?.getCache("__KinveyFile__", FileMetadataWithPath::class.java, ttl)
     }
@@ -106,11 +128,14 @@ open class BaseFileStore
 
         val upload = networkFileManager.prepUploadBlocking(fileMetadataWithPath,
                 FileContent(fileMetadataWithPath.mimetype, file), listener)
-        upload.uploader?.let { setUploader(it) }
+        upload.uploader?.let {
+            it.setParallelUploads(parallelUploads)
+            setUploader(it)
+        }
 
         when (storeType?.writePolicy) {
             WritePolicy.FORCE_LOCAL -> {
-                saveCacheFile(FileInputStream(file), fileMetadataWithPath)
+                FileInputStream(file).use { saveCacheFile(it, fileMetadataWithPath) }
                 metadata = fileMetadataWithPath
             }
             WritePolicy.FORCE_NETWORK -> upload.execute()?.let { metadata = it }
@@ -122,7 +147,7 @@ open class BaseFileStore
                 }
 
                 fileMetadataWithPath.putAll(metadata as FileMetaData)
-                saveCacheFile(FileInputStream(file), fileMetadataWithPath)
+                FileInputStream(file).use { saveCacheFile(it, fileMetadataWithPath) }
             }
         }
         return metadata as FileMetaData
@@ -365,6 +390,59 @@ open class BaseFileStore
         return getFile(resultMetadata, os, storeType?.readPolicy, progressListener, cachedOs, cachedCallback)
     }
 
+    /**
+     * Download file into the target file using specified StoreType. Network downloads request ranges of the file
+     * by [parallelDownloads] concurrent requests, an interrupted download is resumed from the chunks already
+     * written to the target by calling this method again with the same target.
+     *
+     * The read policies apply like in the download into a stream: the downloaded file is kept in the cache folder
+     * unless the policy is [ReadPolicy.FORCE_NETWORK].
+     *
+     * @param metadata metadata of the file we are downloading
+     * @param target file where the content should be written
+     * @param progressListener listener to be used to track file download progress
+     * @return metadata of the file we are downloading
+     * @throws IOException
+     */
+    @Throws(IOException::class)
+    fun download(metadata: FileMetaData,
+                 target: File,
+                 progressListener: DownloaderProgressListener?): FileMetaData? {
+        Preconditions.checkNotNull(metadata, "metadata must not be null")
+        Preconditions.checkNotNull(metadata.id, "metadata.getId must not be null")
+        Preconditions.checkNotNull(target, "target must not be null")
+        Preconditions.checkNotNull(progressListener, "listener must not be null")
+        val resultMetadata: FileMetaData?
+        if (metadata.resumeDownloadData != null) {
+            resultMetadata = metadata
+        } else {
+            resultMetadata = metadata.id?.let { find(it, null) }
+        }
+        sendMetadata(resultMetadata, progressListener)
+        when (storeType?.readPolicy) {
+            ReadPolicy.FORCE_LOCAL -> return copyCachedFile(resultMetadata, target)
+            ReadPolicy.BOTH -> return getNetworkFileToCache(resultMetadata, target, progressListener)
+            ReadPolicy.NETWORK_OTHERWISE_LOCAL -> {
+                try {
+                    return getNetworkFileToCache(resultMetadata, target, progressListener)
+                } catch (e: IOException) {
+                    if (NetworkManager.checkNetworkRuntimeExceptions(e)) {
+                        throw e
+                    }
+                }
+                // if the network request fails, fetch data from local cache
+                return copyCachedFile(resultMetadata, target)
+            }
+            else -> return getNetworkFile(resultMetadata, target, progressListener)
+        }
+    }
+
+    /**
+     * Client of the network requests of the store
+     */
+    val client: AbstractClient<*>
+        get() = networkFileManager.client
+
     fun cancelDownloading(): Boolean {
         return if (downloader != null) {
             downloader?.cancel()
@@ -383,6 +461,24 @@ open class BaseFileStore
         }
     }
 
+    private val lruFileCache: LruFileCache
+        get() = LruFileCache.forDirectory(cacheStorage())
+
+    /**
+     * Maximum total size in bytes of the files kept in the cache folder, once it is exceeded the least recently
+     * read or written files are deleted together with their cached metadata. The limit is shared by all file stores
+     * using the same cache folder, it is [LruFileCache.UNLIMITED] by default.
+     *
+     * Files saved with [WritePolicy.FORCE_LOCAL] may exist only in the cache, keep that in mind setting the limit.
+     */
+    var cacheSizeLimit: Long
+        get() = lruFileCache.maxSize
+        set(value) {
+            val lru = lruFileCache
+            lru.maxSize = value
+            removeEvicted(lru.trim())
+        }
+
     private fun cacheStorage(): File {
         val f = File(cacheFolder)
         if (!f.exists()) {
@@ -396,12 +492,116 @@ open class BaseFileStore
 
     @Throws(IOException::class)
     private fun getNetworkFile(metadata: FileMetaData?, os: OutputStream, listener: DownloaderProgressListener?): FileMetaData? {
+        val downloader = createDownloader(listener)
+        return metadata?.let { downloader.download(it, os) }
+    }
+
+    @Throws(IOException::class)
+    private fun getNetworkFile(metadata: FileMetaData?, target: File, listener: DownloaderProgressListener?): FileMetaData? {
+        val downloader = createDownloader(listener)
+        downloader.setParallelDownloads(parallelDownloads)
+        return metadata?.let { downloader.download(it, target) }
+    }
+
+    /**
+     * Downloads the file into the stream and keeps a copy of it in the cache folder together with its ETag.
+     * If a copy with an ETag is cached already the download is conditional and an unchanged file is read
+     * from the cache instead of being downloaded again.
+     */
+    @Throws(IOException::class)
+    private fun getNetworkFileToCache(metadata: FileMetaData?, os: OutputStream, listener: DownloaderProgressListener?): FileMetaData? {
+        val id = metadata?.id ?: return getNetworkFile(metadata, os, listener)
+        val cachedFile = getCachedFile(metadata)
+        val downloader = createDownloader(listener)
+        if (cachedFile != null) {
+            downloader.ifNoneMatch = cache?.get(id)?.get(CACHE_ETAG)?.toString()
+        }
+        val tempFolder = File(cacheStorage(), TEMP_FOLDER)
+        tempFolder.mkdirs()
+        val temp = File.createTempFile(id, null, tempFolder)
+        try {
+            val fmd = FileOutputStream(temp).use { downloader.download(metadata, TeeOutputStream(os, it)) }
+            if (downloader.isNotModified && cachedFile != null) {
+                readCachedFile(cachedFile, os)
+                os.write(cachedFile.absolutePath.toByteArray())
+                return fmd
+            }
+            if (fmd != null) {
+                val f = File(cacheStorage(), id)
+                if (!temp.renameTo(f)) {
+                    FileOutputStream(f).use { FileUtils.copyFile(temp, it) }
+                }
+                val fmdWithPath = FileMetadataWithPath()
+                os.write(f.absolutePath.toByteArray())
+                fmdWithPath.putAll(fmd)
+                fmdWithPath.path = f.absolutePath
+                fmdWithPath.cachedEtag = fmd.etag
+                cache?.save(fmdWithPath)
+                onCacheFileWritten(f)
+            }
+            return fmd
+        } finally {
+            temp.delete()
+        }
+    }
+
+    /**
+     * Downloads the file into the target and copies it into the cache folder together with its ETag. Like
+     * [getNetworkFileToCache] into a stream, the download of a file cached with an ETag is conditional and
+     * an unchanged file is copied from the cache into the target.
+     */
+    @Throws(IOException::class)
+    private fun getNetworkFileToCache(metadata: FileMetaData?, target: File, listener: DownloaderProgressListener?): FileMetaData? {
+        val id = metadata?.id ?: return getNetworkFile(metadata, target, listener)
+        val cachedFile = getCachedFile(metadata)
+        val downloader = createDownloader(listener)
+        downloader.setParallelDownloads(parallelDownloads)
+        if (cachedFile != null) {
+            downloader.ifNoneMatch = cache?.get(id)?.get(CACHE_ETAG)?.toString()
+        }
+        val fmd = downloader.download(metadata, target) ?: return null
+        if (downloader.isNotModified && cachedFile != null) {
+            FileOutputStream(target).use { readCachedFile(cachedFile, it) }
+            return fmd
+        }
+        val tempFolder = File(cacheStorage(), TEMP_FOLDER)
+        tempFolder.mkdirs()
+        val temp = File.createTempFile(id, null, tempFolder)
+        try {
+            FileOutputStream(temp).use { FileUtils.copyFile(target, it) }
+            val f = File(cacheStorage(), id)
+            if (!temp.renameTo(f)) {
+                FileOutputStream(f).use { FileUtils.copyFile(temp, it) }
+            }
+            val fmdWithPath = FileMetadataWithPath()
+            fmdWithPath.putAll(fmd)
+            fmdWithPath.path = f.absolutePath
+            fmdWithPath.cachedEtag = fmd.etag
+            cache?.save(fmdWithPath)
+            onCacheFileWritten(f)
+        } finally {
+            temp.delete()
+        }
+        return fmd
+    }
+
+    private fun createDownloader(listener: DownloaderProgressListener?): MediaHttpDownloader {
         val client = networkFileManager.client
         val downloader = MediaHttpDownloader(client.requestFactory?.transport,
                 client.requestFactory?.initializer)
         downloader.progressListener = listener
+        downloader.metrics = client.metrics
+        downloader.scheduler = client.scheduler
+        downloader.retryEngine = client.retryEngine
         setDownloader(downloader)
-        return metadata?.let { downloader.download(it, os) }
+        return downloader
+    }
+
+    @Throws(IOException::class)
+    private fun copyCachedFile(metadata: FileMetaData?, target: File): FileMetaData? {
+        val f = getCachedFile(metadata) ?: throw KinveyException("FileMissing", "File Missing in cache", "")
+        FileOutputStream(target).use { readCachedFile(f, it) }
+        return metadata
     }
 
     /*    private FileMetaData getNetworkFile(FileMetaData metadata, String dst, DownloaderProgressListener listener) throws IOException {
@@ -448,7 +648,7 @@ open class BaseFileStore
                 if (f == null) {
                     throw KinveyException("FileMissing", "File Missing in cache", "")
                 } else {
-                    FileUtils.copyStreams(FileInputStream(f), os)
+                    readCachedFile(f, os)
                     return metadata
                 }
             }
@@ -459,44 +659,20 @@ open class BaseFileStore
                 } else {
                     if (cachedCallback != null) {
                         if (cachedOs != null) {
-                            FileUtils.copyStreams(FileInputStream(cachedFile), cachedOs)
+                            readCachedFile(cachedFile, cachedOs)
                         } else {
                             metadata?.path = cachedFile.absolutePath
                         }
                         cachedCallback.onSuccess(metadata ?: FileMetaData())
                     }
                 }
-                val fmd = getNetworkFile(metadata, os, listener)
-                if (fmd != null) {
-                    f = File(cacheStorage(), metadata?.id)
-                    if (!f.exists()) {
-                        f.createNewFile()
-                    }
-                    val fmdWithPath = FileMetadataWithPath()
-                    os.write(f.absolutePath.toByteArray())
-                    fmdWithPath.putAll(fmd)
-                    fmdWithPath.path = f.absolutePath
-                    cache?.save(fmdWithPath)
-                }
-                return fmd
+                return getNetworkFileToCache(metadata, os, listener)
             }
             ReadPolicy.FORCE_NETWORK -> return getNetworkFile(metadata, os, listener)
             ReadPolicy.NETWORK_OTHERWISE_LOCAL -> {
                 var networkException: IOException? = null
                 try {
-                    val fm = getNetworkFile(metadata, os, listener)
-                    if (fm != null) {
-                        f = File(cacheStorage(), metadata?.id)
-                        if (!f.exists()) {
-                            f.createNewFile()
-                        }
-                        val fmdWithPath = FileMetadataWithPath()
-                        os.write(f.absolutePath.toByteArray())
-                        fmdWithPath.putAll(fm)
-                        fmdWithPath.path = f.absolutePath
-                        cache?.save(fmdWithPath)
-                    }
-                    return fm
+                    return getNetworkFileToCache(metadata, os, listener)
                 } catch (e: IOException) {
                     if (NetworkManager.checkNetworkRuntimeExceptions(e)) {
                         throw e
@@ -510,7 +686,7 @@ open class BaseFileStore
                     if (f == null) {
                         throw KinveyException("FileMissing", "File Missing in cache", "")
                     } else {
-                        FileUtils.copyStreams(FileInputStream(f), os)
+                        readCachedFile(f, os)
                         return metadata
                     }
                 }
@@ -546,9 +722,37 @@ open class BaseFileStore
         }
 
         cache?.save(metadata)
+        onCacheFileWritten(f)
+    }
+
+    /**
+     * Streams the cached file to the output stream and marks it as recently used
+     */
+    @Throws(IOException::class)
+    private fun readCachedFile(file: File, os: OutputStream) {
+        FileUtils.copyFile(file, os)
+        if (isInCacheStorage(file)) {
+            lruFileCache.touch(file)
+        }
+    }
+
+    /**
+     * Registers the file written to the cache folder and removes the metadata of the files evicted to make room for it
+     */
+    private fun onCacheFileWritten(file: File) {
+        if (isInCacheStorage(file)) {
+            removeEvicted(lruFileCache.onWrite(file))
+        }
+    }
 
+    private fun removeEvicted(ids: List<String>) {
+        if (ids.isNotEmpty()) {
+            cache?.delete(ids)
+        }
     }
 
+    private fun isInCacheStorage(file: File): Boolean = file.absoluteFile.parentFile == cacheStorage().absoluteFile
+
     fun setStoreType(storeType: StoreType) {
         this.storeType = storeType
     }
@@ -556,6 +760,33 @@ open class BaseFileStore
     class FileMetadataWithPath : FileMetaData() {
         @Key(CACHE_FILE_PATH)
         override var path: String? = null
+
+        @Key(CACHE_ETAG)
+        var cachedEtag: String? = null
+    }
+
+    /**
+     * Writes everything written to it to both streams, neither stream is closed
+     */
+    private class TeeOutputStream(private val first: OutputStream, private val second: OutputStream) : OutputStream() {
+
+        @Throws(IOException::class)
+        override fun write(b: Int) {
+            first.write(b)
+            second.write(b)
+        }
+
+        @Throws(IOException::class)
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            first.write(b, off, len)
+            second.write(b, off, len)
+        }
+
+        @Throws(IOException::class)
+        override fun flush() {
+            first.flush()
+            second.flush()
+        }
     }
 
     private fun setDownloader(downloader: MediaHttpDownloader) {
@@ -569,5 +800,7 @@ open class BaseFileStore
     companion object {
 
         private const val CACHE_FILE_PATH = "KinveyCachePath"
+        private const val CACHE_ETAG = "KinveyCacheEtag"
+        private const val TEMP_FOLDER = "tmp"
     }
 }
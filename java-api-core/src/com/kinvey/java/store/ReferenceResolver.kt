@@ -0,0 +1,245 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+package com.kinvey.java.store
+
+import com.google.api.client.json.GenericJson
+import com.google.api.client.util.Types
+import com.google.common.base.Preconditions
+import com.kinvey.java.AbstractClient
+import com.kinvey.java.Constants
+import com.kinvey.java.cache.ICacheManager
+import com.kinvey.java.core.EntityDescriptor
+import com.kinvey.java.model.KinveyReference
+import com.kinvey.java.network.NetworkManager
+import java.io.IOException
+import java.util.ArrayList
+import java.util.IdentityHashMap
+import java.util.LinkedHashMap
+import java.util.LinkedHashSet
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Resolves the [KinveyReference]s of a page of entities on the client.
+ *
+ * The unresolved references of all the entities are collected and fetched level by level, up to [maxDepth] levels:
+ * each referenced entity is read once, from the cache of its collection when the [cacheManager] has opened one,
+ * e.g. for a data store of the collection, the rest with one `_id $in` query per collection. A resolved entity is
+ * put under [KinveyReference.RESOLVED_KEY] of the reference like the backend does for `resolve`, and fields
+ * annotated with [com.kinvey.java.annotations.KinveyReference] get the typed entity.
+ *
+ * The data stores don't resolve references themselves, call [resolve] with the entities they have read.
+ */
+class ReferenceResolver(private val client: AbstractClient<*>) {
+
+    /**
+     * Levels of references to resolve, 1 resolves the references of the entities only
+     */
+    var maxDepth = 1
+        set(value) {
+            Preconditions.checkArgument(value >= 0, "maxDepth must not be negative")
+            field = value
+        }
+
+    /**
+     * Ids in the query of one request, more ids of a collection are fetched with more requests to keep the url short
+     */
+    var idsPerRequest = NetworkManager.IDS_PER_PAGE
+        set(value) {
+            Preconditions.checkArgument(value > 0, "idsPerRequest must be positive")
+            field = value
+        }
+
+    /**
+     * Caches the referenced entities are read from before they are fetched, null to always fetch them
+     */
+    var cacheManager: ICacheManager? = client.cacheManager
+
+    private val itemClasses = ConcurrentHashMap<String, Class<out GenericJson>>()
+
+    /**
+     * Sets the class the entities of the collection are fetched as. By default it is the `itemClass` of a field
+     * annotated with [com.kinvey.java.annotations.KinveyReference], otherwise the class of the cache of the
+     * collection or [GenericJson].
+     */
+    fun registerItemClass(collection: String, itemClass: Class<out GenericJson>): ReferenceResolver {
+        Preconditions.checkNotNull(collection, "collection must not be null")
+        Preconditions.checkNotNull(itemClass, "itemClass must not be null")
+        itemClasses[collection] = itemClass
+        return this
+    }
+
+    /**
+     * Resolves the references of the entities, references to entities which don't exist stay unresolved
+     *
+     * @return number of the distinct references looked up
+     */
+    @Throws(IOException::class)
+    fun resolve(entities: Iterable<GenericJson>): Int {
+        Preconditions.checkNotNull(entities, "entities must not be null")
+        val resolved = HashMap<String, GenericJson>()
+        val read = HashSet<String>()
+        val visited = IdentityHashMap<GenericJson, Boolean>()
+        var level: List<GenericJson> = entities.toList()
+        var depth = 0
+        while (depth < maxDepth && level.isNotEmpty()) {
+            val stubs = LinkedHashMap<String, MutableList<MutableMap<String, Any?>>>()
+            val next = ArrayList<GenericJson>()
+            level.forEach { visited[it] = true }
+            level.forEach { collect(it, stubs, next) }
+            for ((collection, collectionStubs) in stubs) {
+                val ids = collectionStubs.mapTo(LinkedHashSet()) { it[Constants._ID] as String }
+                        .filter { read.add(key(collection, it)) }
+                read(collection, ids).forEach { entity ->
+                    (entity[Constants._ID] as? String)?.let { resolved[key(collection, it)] = entity }
+                }
+                collectionStubs.forEach { stub ->
+                    val entity = resolved[key(collection, stub[Constants._ID] as String)] ?: return@forEach
+                    stub[KinveyReference.RESOLVED_KEY] = entity
+                    next.add(entity)
+                }
+            }
+            level.forEach { bindAnnotatedFields(it) }
+            level = next.filter { visited.put(it, true) == null }
+            depth++
+        }
+        return read.size
+    }
+
+    /**
+     * Adds the unresolved references in the value to the stubs of their collection
+     * and the entities of the references resolved already to the next level
+     */
+    private fun collect(value: Any?, stubs: MutableMap<String, MutableList<MutableMap<String, Any?>>>,
+                        next: MutableList<GenericJson>) {
+        when {
+            value == null -> return
+            isReference(value) -> {
+                val stub = value as MutableMap<String, Any?>
+                val entity = stub[KinveyReference.RESOLVED_KEY]
+                if (entity is GenericJson) {
+                    next.add(entity)
+                } else if (entity == null) {
+                    stubs.getOrPut(stub[COLLECTION] as String) { ArrayList() }.add(stub)
+                }
+            }
+            value is Map<*, *> -> {
+                if (value is GenericJson) {
+                    registerAnnotatedItemClasses(value)
+                }
+                value.values.forEach { collect(it, stubs, next) }
+            }
+            value is Iterable<*> -> value.forEach { collect(it, stubs, next) }
+            value is Array<*> -> value.forEach { collect(it, stubs, next) }
+        }
+    }
+
+    private fun registerAnnotatedItemClasses(entity: GenericJson) {
+        EntityDescriptor.of(entity.javaClass).references.forEach { property ->
+            val reference = property.reference ?: return@forEach
+            itemClasses.putIfAbsent(reference.collection, reference.itemClass.java)
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun read(collection: String, ids: List<String>): List<GenericJson> {
+        if (ids.isEmpty()) {
+            return emptyList()
+        }
+        // only a cache opened already is read, opening one with another class may change the schema of its table
+        val cacheClass = cacheManager?.getCollectionItemClass(collection)
+        val itemClass = itemClasses[collection] ?: cacheClass ?: GenericJson::class.java
+        val result = ArrayList<GenericJson>(ids.size)
+        var missing = ids
+        if (cacheClass != null) {
+            cacheManager?.getCache(collection, cacheClass, Long.MAX_VALUE)?.let { cache ->
+                val cached = cache.get(ids)
+                result.addAll(cached)
+                val cachedIds = cached.mapTo(HashSet()) { it[Constants._ID] }
+                missing = ids.filter { it !in cachedIds }
+            }
+        }
+        val networkManager = NetworkManager(collection, itemClass, client)
+        for (chunk in missing.chunked(idsPerRequest)) {
+            networkManager.getBlocking(chunk.toTypedArray())?.execute()?.result?.let { result.addAll(it) }
+        }
+        return result
+    }
+
+    /**
+     * Sets the fields annotated with [com.kinvey.java.annotations.KinveyReference] to the resolved entities
+     * of the references kept under the field name of the annotation
+     */
+    private fun bindAnnotatedFields(entity: GenericJson) {
+        for (property in EntityDescriptor.of(entity.javaClass).references) {
+            val reference = property.reference ?: continue
+            if (property.type == KinveyReference::class.java) {
+                continue
+            }
+            val value = entity[reference.fieldName] ?: continue
+            val itemClass = property.elementType ?: property.type
+            if (!property.isArrayOrCollection) {
+                resolvedEntity(value, itemClass)?.let { property.set(entity, it) }
+                continue
+            }
+            val stubs = when (value) {
+                is Iterable<*> -> value.toList()
+                is Array<*> -> value.toList()
+                else -> listOf(value)
+            }
+            val items = stubs.mapNotNull { resolvedEntity(it, itemClass) }
+            if (items.size != stubs.size) {
+                continue
+            }
+            if (property.type.isArray) {
+                val array = java.lang.reflect.Array.newInstance(itemClass, items.size)
+                items.forEachIndexed { i, item -> java.lang.reflect.Array.set(array, i, item) }
+                property.set(entity, array)
+            } else if (property.type.isAssignableFrom(ArrayList::class.java)) {
+                property.set(entity, ArrayList(items))
+            }
+        }
+    }
+
+    private fun resolvedEntity(stub: Any?, itemClass: Class<*>): Any? {
+        if (stub == null || !isReference(stub)) {
+            return null
+        }
+        val entity = (stub as Map<*, *>)[KinveyReference.RESOLVED_KEY] as? Map<*, *> ?: return null
+        if (itemClass.isInstance(entity)) {
+            return entity
+        }
+        if (!GenericJson::class.java.isAssignableFrom(itemClass)) {
+            return null
+        }
+        val typed = Types.newInstance(itemClass) as GenericJson
+        entity.forEach { (key, value) -> typed[key as String] = value }
+        return typed
+    }
+
+    private fun isReference(value: Any): Boolean {
+        return value is MutableMap<*, *> && value[TYPE] == REFERENCE_TYPE
+                && value[COLLECTION] is String && value[Constants._ID] is String
+    }
+
+    private fun key(collection: String, id: String) = "$collection/$id"
+
+    companion object {
+        private const val TYPE = "_type"
+        private const val COLLECTION = "_collection"
+        private const val REFERENCE_TYPE = "KinveyRef"
+    }
+}
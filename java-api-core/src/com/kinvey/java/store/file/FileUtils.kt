@@ -16,22 +16,69 @@
 
 package com.kinvey.java.store.file
 
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
 import java.io.IOException
 import java.io.InputStream
 import java.io.OutputStream
+import java.nio.channels.FileChannel
+import java.util.concurrent.ArrayBlockingQueue
 
 /**
  * Created by Prots on 2/18/16.
  */
 object FileUtils {
-    private const val CHUNK_SIZE = 1024 * 1024 //1MB
+    private const val CHUNK_SIZE = 64 * 1024 //64KB
+    private const val MAX_POOLED_CHUNKS = 16
 
+    private val chunkPool = ArrayBlockingQueue<ByteArray>(MAX_POOLED_CHUNKS)
+
+    /**
+     * Copies the input stream to the output stream, neither stream is closed.
+     *
+     * File streams are copied by [FileChannel.transferTo] without passing the data through the heap,
+     * any other streams through a pooled buffer.
+     */
     @Throws(IOException::class)
     fun copyStreams(`is`: InputStream, os: OutputStream) {
-        val chunk = ByteArray(CHUNK_SIZE)
-        var curChunk = 0
-        while (`is`.read(chunk, 0, CHUNK_SIZE).also { curChunk = it } > 0) {
-            os.write(chunk, 0, curChunk)
+        if (`is` is FileInputStream && os is FileOutputStream) {
+            transfer(`is`.channel, os.channel)
+            return
+        }
+        val chunk = chunkPool.poll() ?: ByteArray(CHUNK_SIZE)
+        try {
+            var curChunk = 0
+            while (`is`.read(chunk, 0, CHUNK_SIZE).also { curChunk = it } > 0) {
+                os.write(chunk, 0, curChunk)
+            }
+        } finally {
+            chunkPool.offer(chunk)
+        }
+    }
+
+    /**
+     * Copies the content of the file to the output stream, the output stream is not closed.
+     */
+    @Throws(IOException::class)
+    fun copyFile(file: File, os: OutputStream) {
+        FileInputStream(file).use { copyStreams(it, os) }
+    }
+
+    /**
+     * Copies from the current position of the source channel to its end
+     */
+    @Throws(IOException::class)
+    private fun transfer(source: FileChannel, target: FileChannel) {
+        var position = source.position()
+        val size = source.size()
+        while (position < size) {
+            val transferred = source.transferTo(position, size - position, target)
+            if (transferred <= 0) {
+                break
+            }
+            position += transferred
         }
+        source.position(position)
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,158 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+package com.kinvey.java.store.file
+
+import com.google.common.base.Preconditions
+import java.io.File
+import java.io.FileFilter
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Keeps the total size of the files in a cache folder under a limit by deleting the least recently used ones.
+ *
+ * The use order is kept in memory and seeded from the last modified time of the files the first time
+ * the folder is used, reads and writes update the last modified time so the order survives a restart.
+ * Use [forDirectory] to get the instance of a folder, so all file stores which share a folder share the limit.
+ */
+class LruFileCache internal constructor(private val directory: File, private val fileFilter: FileFilter? = null) {
+
+    private val files = LinkedHashMap<String, Long>(16, 0.75f, true)
+    private var totalSize = 0L
+    private var isLoaded = false
+
+    /**
+     * Maximum total size of the cached files in bytes, [UNLIMITED] by default
+     */
+    @get:Synchronized
+    @set:Synchronized
+    var maxSize = UNLIMITED
+        set(value) {
+            Preconditions.checkArgument(value > 0, "maxSize must be positive")
+            field = value
+        }
+
+    /**
+     * Total size of the cached files in bytes
+     */
+    val size: Long
+        @Synchronized get() {
+            load()
+            return totalSize
+        }
+
+    /**
+     * Marks the file as the most recently used one
+     */
+    @Synchronized
+    fun touch(file: File) {
+        load()
+        // a read moves the entry to the end of the access order
+        if (files[file.name] != null) {
+            file.setLastModified(System.currentTimeMillis())
+        }
+    }
+
+    /**
+     * Registers a written file and evicts the least recently used files until the folder fits in [maxSize],
+     * the written file itself is never evicted.
+     *
+     * @return names of the evicted files, the file store uses them as ids of the metadata to be removed
+     */
+    @Synchronized
+    fun onWrite(file: File): List<String> {
+        load()
+        files.remove(file.name)?.let { totalSize -= it }
+        val length = file.length()
+        files[file.name] = length
+        totalSize += length
+        return trim(file.name)
+    }
+
+    /**
+     * Unregisters a file which has been deleted
+     */
+    @Synchronized
+    fun onDelete(file: File) {
+        load()
+        files.remove(file.name)?.let { totalSize -= it }
+    }
+
+    /**
+     * Evicts the least recently used files until the folder fits in [maxSize]
+     * @return names of the evicted files
+     */
+    @Synchronized
+    fun trim(): List<String> {
+        load()
+        return trim(null)
+    }
+
+    private fun trim(keep: String?): List<String> {
+        if (totalSize <= maxSize) {
+            return emptyList()
+        }
+        val evicted = ArrayList<String>()
+        val iterator = files.entries.iterator()
+        while (totalSize > maxSize && iterator.hasNext()) {
+            val (name, length) = iterator.next()
+            if (name == keep) {
+                continue
+            }
+            val file = File(directory, name)
+            if (!file.exists() || file.delete()) {
+                iterator.remove()
+                totalSize -= length
+                evicted.add(name)
+            }
+        }
+        return evicted
+    }
+
+    private fun load() {
+        if (isLoaded) {
+            return
+        }
+        isLoaded = true
+        directory.listFiles()
+                ?.filter { it.isFile && fileFilter?.accept(it) != false }
+                ?.sortedBy { it.lastModified() }
+                ?.forEach { file ->
+                    val length = file.length()
+                    files[file.name] = length
+                    totalSize += length
+                }
+    }
+
+    companion object {
+
+        const val UNLIMITED = Long.MAX_VALUE
+
+        private val caches = ConcurrentHashMap<String, LruFileCache>()
+
+        /**
+         * @param fileFilter files of the folder kept by the cache, all files if it is null; the filter of the first
+         * call for a folder is used
+         * @return the instance which keeps the folder
+         */
+        @JvmStatic
+        @JvmOverloads
+        fun forDirectory(directory: File, fileFilter: FileFilter? = null): LruFileCache {
+            val key = directory.absoluteFile.normalize().path
+            return caches[key] ?: LruFileCache(directory, fileFilter).let { created -> caches.putIfAbsent(key, created) ?: created }
+        }
+    }
+}
@@ -17,19 +17,32 @@
 package com.kinvey.java.store.requests.data
 
 import com.google.api.client.json.GenericJson
+import com.google.common.base.Preconditions
 import com.kinvey.java.AbstractClient
 import com.kinvey.java.Constants
-import com.kinvey.java.Constants.META_ID
+import com.kinvey.java.Query
 import com.kinvey.java.cache.ICache
 import com.kinvey.java.core.KinveyJsonResponseException
+import com.kinvey.java.core.KinveyScheduler
 import com.kinvey.java.network.NetworkManager
+import com.kinvey.java.query.MongoQueryFilter.MongoQueryFilterBuilder
 import com.kinvey.java.sync.SyncManager
 import com.kinvey.java.sync.dto.SyncItem
 import com.kinvey.java.sync.dto.SyncRequest
 
 import java.io.IOException
 import java.util.ArrayList
+import java.util.Collections
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorCompletionService
 
+/**
+ * Pushes the sync queue of a collection.
+ * Sync items are grouped by verb: entities for PUTs are read from the cache with one call and sent
+ * with up to [maxPutsInFlight] requests at a time, DELETEs are sent as `_id $in` delete by query requests
+ * and POSTs are saved with a batch request. Completed sync items are removed from the queue in batches,
+ * the items of a failed request stay in the queue for the next push.
+ */
 class PushBatchRequest<T : GenericJson>(
     collectionName: String,
     private val itemsCache: ICache<T>,
@@ -38,6 +51,15 @@ class PushBatchRequest<T : GenericJson>(
 
     var syncManager: SyncManager?
 
+    /**
+     * Max count of the PUT requests sent at the same time, [AbstractClient.numberThreadsForDataStoreSaveList] by default
+     */
+    var maxPutsInFlight: Int = Math.max(client?.numberThreadsForDataStoreSaveList ?: 1, 1)
+        set(value) {
+            Preconditions.checkArgument(value > 0, "maxPutsInFlight must be positive")
+            field = value
+        }
+
     init {
         this.collection = collectionName
         this.syncManager = client?.syncManager
@@ -47,48 +69,133 @@ class PushBatchRequest<T : GenericJson>(
     override fun execute(): Void? {
         val requests = syncManager?.popSingleQueue(collection)
         requests?.onEach { syncRequest -> syncManager?.executeRequest(client, syncRequest) }
-        val syncItems = syncManager?.popSingleItemQueue(collection)
-        var syncRequest: SyncRequest? = null
+        val syncItems = syncManager?.popSingleItemQueue(collection) ?: return null
+        val saveSyncItems = ArrayList<SyncItem>()
+        val deleteSyncItems = ArrayList<SyncItem>()
         val batchSyncItems = ArrayList<SyncItem>()
-        syncItems?.let { sItems ->
-            for (syncItem in sItems) {
-                val httpVerb = syncItem.requestMethod
-                val itemId = syncItem.entityID?.id ?: ""
-                when (httpVerb) {
-                    SyncRequest.HttpVerb.SAVE, //the SAVE case need for backward compatibility
-                    SyncRequest.HttpVerb.POST,
-                    SyncRequest.HttpVerb.PUT -> {
-                        val item = itemsCache.get(itemId)
-                        if (item == null) {
-                            // check that item wasn't deleted before
-                            syncManager?.deleteCachedItems(client?.query()?.equals(META_ID, itemId)?.notEqual(Constants.REQUEST_METHOD, Constants.DELETE))
-                        } else if (httpVerb != SyncRequest.HttpVerb.POST) {
-                            syncRequest = syncManager?.createSyncRequest(collection, networkManager.saveBlocking(item))
-                        }
-                    }
-                    SyncRequest.HttpVerb.DELETE -> syncRequest = syncManager?.createSyncRequest(collection, networkManager.deleteBlocking(itemId))
-                    else -> {}
-                }
+        val completedIds = Collections.synchronizedList(ArrayList<String>())
+        syncItems.forEach { syncItem ->
+            when (syncItem.requestMethod) {
+                SyncRequest.HttpVerb.SAVE, //the SAVE case need for backward compatibility
+                SyncRequest.HttpVerb.PUT -> saveSyncItems.add(syncItem)
+                SyncRequest.HttpVerb.DELETE -> deleteSyncItems.add(syncItem)
+                SyncRequest.HttpVerb.POST -> batchSyncItems.add(syncItem)
+                else -> syncItemId(syncItem)?.let { completedIds.add(it) }
+            }
+        }
+        try {
+            pushSaveItems(saveSyncItems, completedIds)
+            pushDeleteItems(deleteSyncItems, completedIds)
+            batchSyncItems.mapNotNullTo(completedIds) { syncItemId(it) }
+        } finally {
+            syncManager?.deleteCachedItems(ArrayList(completedIds))
+        }
+        if (batchSyncItems.isNotEmpty()) {
+            val saveItems = getSaveItems(batchSyncItems)
+            executeSaveRequest(saveItems)
+            removeBatchTempItems(batchSyncItems)
+        }
+        return null
+    }
+
+    /**
+     * Sends a PUT for every cached entity. The sync items of the entities which are not in the cache anymore are
+     * completed, together with all the other pending non-DELETE sync items of these entities.
+     */
+    @Throws(IOException::class)
+    private fun pushSaveItems(saveSyncItems: List<SyncItem>, completedIds: MutableList<String>) {
+        if (saveSyncItems.isEmpty()) {
+            return
+        }
+        val cachedItems = getCachedItems(saveSyncItems)
+        val puts = ArrayList<Pair<SyncItem, T>>()
+        val missedIds = LinkedHashSet<String>()
+        saveSyncItems.forEach { syncItem ->
+            val item = cachedItems[syncItem.entityID?.id ?: ""]
+            if (item == null) {
+                syncItemId(syncItem)?.let { completedIds.add(it) }
+                syncItem.entityID?.id?.let { missedIds.add(it) }
+            } else {
+                puts.add(syncItem to item)
+            }
+        }
+        deleteSyncItemsOfMissedEntities(missedIds)
+        if (maxPutsInFlight == 1 || puts.size == 1) {
+            puts.forEach { (syncItem, item) -> pushSaveItem(syncItem, item, completedIds) }
+            return
+        }
+        val executor = (client?.scheduler ?: KinveyScheduler.shared).executor(collection, maxPutsInFlight)
+        try {
+            val completionService = ExecutorCompletionService<Unit>(executor)
+            puts.forEach { (syncItem, item) -> completionService.submit { pushSaveItem(syncItem, item, completedIds) } }
+            var error: Throwable? = null
+            repeat(puts.size) {
                 try {
-                    if (SyncRequest.HttpVerb.POST == httpVerb) {
-                        batchSyncItems.add(syncItem)
-                    } else {
-                        syncManager?.executeRequest(client, syncRequest)
+                    completionService.take().get()
+                } catch (e: ExecutionException) {
+                    if (error == null) {
+                        error = e.cause
                     }
-                } catch (e: KinveyJsonResponseException) {
-                    if (e.statusCode != IGNORED_EXCEPTION_CODE && !e.message.contains(IGNORED_EXCEPTION_MESSAGE)) throw e
+                } catch (e: InterruptedException) {
+                    Thread.currentThread().interrupt()
+                    throw IOException(e)
                 }
-                syncManager?.deleteCachedItem(syncItem[Constants._ID] as String?)
             }
-            if (batchSyncItems.isNotEmpty()) {
-                val saveItems = getSaveItems(batchSyncItems)
-                executeSaveRequest(saveItems)
-                removeBatchTempItems(batchSyncItems)
+            error?.let { throw it }
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    private fun deleteSyncItemsOfMissedEntities(entityIds: Collection<String>) {
+        entityIds.chunked(MAX_IDS_PER_DELETE).forEach { chunk ->
+            syncManager?.deleteCachedItems(Query(MongoQueryFilterBuilder()).`in`(Constants.META_ID, chunk.toTypedArray())
+                    .notEqual(Constants.REQUEST_METHOD, Constants.DELETE))
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun pushSaveItem(syncItem: SyncItem, item: T, completedIds: MutableList<String>) {
+        executeIgnoringMissed(syncManager?.createSyncRequest(collection, networkManager.saveBlocking(item)))
+        syncItemId(syncItem)?.let { completedIds.add(it) }
+    }
+
+    /**
+     * Deletes the entities with `_id $in` queries of up to [MAX_IDS_PER_DELETE] ids each.
+     */
+    @Throws(IOException::class)
+    private fun pushDeleteItems(deleteSyncItems: List<SyncItem>, completedIds: MutableList<String>) {
+        deleteSyncItems.chunked(MAX_IDS_PER_DELETE).forEach { chunk ->
+            val ids = chunk.mapNotNull { it.entityID?.id }.distinct()
+            if (ids.isNotEmpty()) {
+                val query = Query(MongoQueryFilterBuilder()).`in`(Constants._ID, ids.toTypedArray())
+                executeIgnoringMissed(syncManager?.createSyncRequest(collection, networkManager.deleteBlocking(query)))
             }
+            chunk.mapNotNullTo(completedIds) { syncItemId(it) }
         }
-        return null
     }
 
+    @Throws(IOException::class)
+    private fun executeIgnoringMissed(syncRequest: SyncRequest?) {
+        try {
+            syncManager?.executeRequest(client, syncRequest)
+        } catch (e: KinveyJsonResponseException) {
+            if (e.statusCode != IGNORED_EXCEPTION_CODE && !e.message.contains(IGNORED_EXCEPTION_MESSAGE)) throw e
+        }
+    }
+
+    private fun getCachedItems(syncItems: List<SyncItem>): Map<String, T> {
+        val ids = syncItems.mapNotNull { it.entityID?.id }.filter { it.isNotEmpty() }
+        if (ids.isEmpty()) {
+            return emptyMap()
+        }
+        return itemsCache.get(ids).mapNotNull { item ->
+            (item[Constants._ID] as String?)?.let { id -> id to item }
+        }.toMap()
+    }
+
+    private fun syncItemId(syncItem: SyncItem): String? = syncItem[Constants._ID] as String?
+
     @Throws(IOException::class)
     protected fun executeSaveRequest(saveItems: List<T>) {
         val syncRequest = syncManager?.createSaveBatchSyncRequest(collection, networkManager, saveItems)
@@ -98,16 +205,16 @@ class PushBatchRequest<T : GenericJson>(
     }
 
     private fun removeBatchTempItems(batchSyncItems: List<SyncItem>) {
-        batchSyncItems.mapNotNull { item -> item.entityID?.id }
-            .onEach { id -> itemsCache.delete(id) }
+        val ids = batchSyncItems.mapNotNull { item -> item.entityID?.id }
+        if (ids.isNotEmpty()) {
+            itemsCache.delete(ids)
+        }
     }
 
     @Throws(IOException::class)
     protected fun getSaveItems(batchSyncItems: List<SyncItem>): List<T> {
-        return batchSyncItems.mapNotNull { s ->
-            val id = s.entityID?.id
-            if (id?.isNotEmpty() == true) { itemsCache.get(id) } else null
-        }
+        val cachedItems = getCachedItems(batchSyncItems)
+        return batchSyncItems.mapNotNull { s -> cachedItems[s.entityID?.id ?: ""] }
     }
 
     override fun cancel() {}
@@ -115,5 +222,6 @@ class PushBatchRequest<T : GenericJson>(
     companion object {
         private const val IGNORED_EXCEPTION_MESSAGE = "EntityNotFound"
         private const val IGNORED_EXCEPTION_CODE = 404
+        private const val MAX_IDS_PER_DELETE = 100
     }
 }
@@ -0,0 +1,191 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+package com.kinvey.java.store.requests.data.read
+
+import com.google.api.client.json.GenericJson
+import com.google.common.base.Preconditions
+import com.kinvey.java.Constants
+import com.kinvey.java.cache.ICache
+import com.kinvey.java.model.KinveyBulkReadResponse
+import com.kinvey.java.network.NetworkManager
+import com.kinvey.java.store.ReadPolicy
+import com.kinvey.java.store.requests.data.IRequest
+
+import java.io.IOException
+import java.io.InterruptedIOException
+import java.net.URLEncoder
+import java.util.ArrayList
+import java.util.LinkedHashMap
+import java.util.LinkedHashSet
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorCompletionService
+import java.util.concurrent.ExecutorService
+
+/**
+ * Looks up the entities of a long list of ids.
+ *
+ * The ids are split into pages whose `_id $in` query fits into [maxQueryLength] characters of the url,
+ * the pages are requested on the executor, which bounds the number of requests in flight.
+ * With [ReadPolicy.BOTH] the ids found in the cache are not requested, only the misses are fetched
+ * and saved to the cache. The result keeps the order of the requested ids, duplicates are returned once.
+ */
+class ReadIdsBulkRequest<T : GenericJson>(private val cache: ICache<T>?,
+                                          private val networkManager: NetworkManager<T>?,
+                                          private val readPolicy: ReadPolicy,
+                                          ids: Iterable<String>,
+                                          private val executor: ExecutorService) : IRequest<KinveyBulkReadResponse<T>> {
+
+    private val ids: List<String> = ArrayList(LinkedHashSet(ids.toList()))
+
+    /**
+     * Max length of the url encoded id list of a page
+     */
+    var maxQueryLength = DEFAULT_MAX_QUERY_LENGTH
+        set(value) {
+            Preconditions.checkArgument(value > 0, "maxQueryLength must be positive")
+            field = value
+        }
+
+    @Volatile
+    private var isCancelled = false
+
+    @Throws(IOException::class)
+    override fun execute(): KinveyBulkReadResponse<T>? {
+        val found = LinkedHashMap<String, T>()
+        when (readPolicy) {
+            ReadPolicy.FORCE_LOCAL -> putAll(found, cached(ids))
+            ReadPolicy.FORCE_NETWORK -> putAll(found, network(ids))
+            ReadPolicy.BOTH -> {
+                putAll(found, cached(ids))
+                val fetched = network(ids.filter { !found.containsKey(it) })
+                if (fetched.isNotEmpty()) {
+                    cache?.save(fetched)
+                }
+                putAll(found, fetched)
+            }
+            ReadPolicy.NETWORK_OTHERWISE_LOCAL -> {
+                var networkException: IOException? = null
+                try {
+                    val fetched = network(ids)
+                    if (fetched.isNotEmpty()) {
+                        cache?.save(fetched)
+                    }
+                    putAll(found, fetched)
+                } catch (e: IOException) {
+                    if (NetworkManager.checkNetworkRuntimeExceptions(e)) {
+                        throw e
+                    }
+                    networkException = e
+                }
+                // if the network request fails, fetch data from local cache
+                if (networkException != null) {
+                    putAll(found, cached(ids))
+                }
+            }
+        }
+        val response = KinveyBulkReadResponse<T>()
+        response.result = ids.mapNotNull { found[it] }
+        response.missingIds = ids.filter { !found.containsKey(it) }
+        return response
+    }
+
+    override fun cancel() {
+        isCancelled = true
+    }
+
+    private fun cached(ids: List<String>): List<T> {
+        return if (ids.isEmpty()) emptyList() else cache?.get(ids) ?: emptyList()
+    }
+
+    @Throws(IOException::class)
+    private fun network(ids: List<String>): List<T> {
+        val pages = pages(ids, maxQueryLength)
+        if (pages.isEmpty()) {
+            return emptyList()
+        }
+        if (pages.size == 1) {
+            return networkPage(pages[0])
+        }
+        val completionService = ExecutorCompletionService<List<T>>(executor)
+        val futures = pages.map { page -> completionService.submit { networkPage(page) } }
+        val result = ArrayList<T>()
+        try {
+            for (i in pages.indices) {
+                try {
+                    result.addAll(completionService.take().get())
+                } catch (e: ExecutionException) {
+                    val cause = e.cause
+                    throw cause as? IOException ?: cause as? RuntimeException ?: IOException(cause)
+                } catch (e: InterruptedException) {
+                    Thread.currentThread().interrupt()
+                    throw InterruptedIOException("bulk read interrupted")
+                }
+            }
+        } finally {
+            futures.forEach { it.cancel(true) }
+        }
+        return result
+    }
+
+    @Throws(IOException::class)
+    private fun networkPage(ids: List<String>): List<T> {
+        if (isCancelled) {
+            return emptyList()
+        }
+        return networkManager?.getBlocking(ids.toTypedArray())?.execute()?.result ?: emptyList()
+    }
+
+    private fun putAll(found: MutableMap<String, T>, items: List<T>) {
+        items.forEach { item -> (item[Constants._ID] as? String)?.let { found[it] = item } }
+    }
+
+    companion object {
+
+        /**
+         * Default max length of the url encoded id list of a page, leaves room for the rest of the url
+         * within the 8K limit of the common servers and proxies
+         */
+        const val DEFAULT_MAX_QUERY_LENGTH = 6000
+
+        /* characters of the encoded quotes and comma around an id */
+        private const val ID_OVERHEAD = 9
+
+        /**
+         * Splits the ids into pages whose url encoded `$in` list is not longer than maxQueryLength,
+         * a page has at least one id
+         */
+        internal fun pages(ids: List<String>, maxQueryLength: Int): List<List<String>> {
+            val pages = ArrayList<List<String>>()
+            var page = ArrayList<String>()
+            var length = 0
+            ids.forEach { id ->
+                val idLength = URLEncoder.encode(id, "UTF-8").length + ID_OVERHEAD
+                if (page.isNotEmpty() && length + idLength > maxQueryLength) {
+                    pages.add(page)
+                    page = ArrayList()
+                    length = 0
+                }
+                page.add(id)
+                length += idLength
+            }
+            if (page.isNotEmpty()) {
+                pages.add(page)
+            }
+            return pages
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+package com.kinvey.java.store.requests.data.save
+
+import java.io.Closeable
+import java.io.IOException
+import java.io.InterruptedIOException
+import java.util.IdentityHashMap
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Future
+
+/**
+ * Sends the batch requests of the chunks of a list ahead of the caller, with up to [maxInFlight] of them in flight,
+ * while the caller merges the responses chunk by chunk in the order of the list.
+ * The next chunk is sent when the response of a chunk is taken, so at most [maxInFlight] responses wait to be merged.
+ *
+ * @param post sends the request of a chunk on a thread of the [executor], it should return failures of the request
+ * as a part of its result, other exceptions are thrown by [take]
+ */
+internal class BatchPostPipeline<C, R>(private val chunks: List<C>,
+                                       private val maxInFlight: Int,
+                                       private val executor: ExecutorService,
+                                       private val post: (C) -> R) : Closeable {
+
+    private val pending = IdentityHashMap<C, Future<R>>()
+    private var next = 0
+
+    init {
+        sendNext()
+    }
+
+    /**
+     * Waits for the response of the chunk and sends the next chunks
+     * @return result of [post] for the chunk or null if the chunk is not one of the [chunks]
+     */
+    @Throws(IOException::class)
+    fun take(chunk: C): R? {
+        val future = pending.remove(chunk) ?: return null
+        try {
+            return future.get()
+        } catch (e: ExecutionException) {
+            throw e.cause as? IOException ?: e.cause as? RuntimeException ?: IOException(e.cause)
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+            throw InterruptedIOException("batch save interrupted")
+        } finally {
+            sendNext()
+        }
+    }
+
+    private fun sendNext() {
+        while (pending.size < maxInFlight && next < chunks.size) {
+            val chunk = chunks[next++]
+            pending[chunk] = executor.submit(Callable { post(chunk) })
+        }
+    }
+
+    /**
+     * Cancels the requests whose responses were not taken
+     */
+    override fun close() {
+        pending.values.forEach { it.cancel(true) }
+        pending.clear()
+        next = chunks.size
+        executor.shutdownNow()
+    }
+}
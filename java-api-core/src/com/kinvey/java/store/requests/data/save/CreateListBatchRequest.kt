@@ -18,10 +18,13 @@ package com.kinvey.java.store.requests.data.save
 
 import com.google.api.client.http.HttpResponseException
 import com.google.api.client.json.GenericJson
+import com.google.common.base.Preconditions
+import com.kinvey.java.AbstractClient
 import com.kinvey.java.KinveySaveBatchException
 import com.kinvey.java.Logger
 import com.kinvey.java.cache.ICache
 import com.kinvey.java.core.KinveyJsonResponseException
+import com.kinvey.java.core.KinveyScheduler
 import com.kinvey.java.model.KinveyBatchInsertError
 import com.kinvey.java.model.KinveySaveBatchResponse
 import com.kinvey.java.network.NetworkManager
@@ -49,9 +52,20 @@ class CreateListBatchRequest<T : GenericJson>(
     private var exception: IOException? = null
     private var wasException = false
     private var multipleRequests = false
+    private var pipeline: BatchPostPipeline<List<T>, PostedBatch<T>>? = null
+    private var postedCount = 0
 
     private val MAX_POST_ITEMS = 100
 
+    /**
+     * Max count of the batch POST requests sent at the same time, [AbstractClient.maxBatchPostsInFlight] by default
+     */
+    var maxPostsInFlight: Int = Math.max(networkManager.client?.maxBatchPostsInFlight ?: 1, 1)
+        set(value) {
+            Preconditions.checkArgument(value > 0, "maxPostsInFlight must be positive")
+            field = value
+        }
+
     @Throws(IOException::class)
     override fun execute(): KinveySaveBatchResponse<T> {
 
@@ -135,9 +149,25 @@ class CreateListBatchRequest<T : GenericJson>(
         return res
     }
 
+    /**
+     * Saves the entities by batch POSTs of [MAX_POST_ITEMS] entities. Up to [maxPostsInFlight] POSTs are sent ahead,
+     * their responses are merged in the order of the entities.
+     */
     private fun postBatchItems(entities: List<T>, result: KinveySaveBatchResponse<T>, useCache: Boolean = true) {
-        entities.chunked(MAX_POST_ITEMS).onEach { items ->
-            postSaveBatchRequest(items, result, useCache)
+        val chunks = entities.chunked(MAX_POST_ITEMS)
+        postedCount = 0
+        if (maxPostsInFlight > 1 && chunks.size > 1) {
+            val executor = (networkManager.client?.scheduler ?: KinveyScheduler.shared)
+                    .executor(networkManager.collectionName, maxPostsInFlight)
+            pipeline = BatchPostPipeline(chunks, maxPostsInFlight, executor) { items -> postBatch(items, useCache) }
+        }
+        try {
+            chunks.onEach { items ->
+                postSaveBatchRequest(items, result, useCache)
+            }
+        } finally {
+            pipeline?.close()
+            pipeline = null
         }
     }
 
@@ -145,23 +175,11 @@ class CreateListBatchRequest<T : GenericJson>(
     protected fun postSaveBatchRequest(entities: List<T>,
                                        result: KinveySaveBatchResponse<T>, useCache: Boolean = true): KinveySaveBatchResponse<T>? {
         var response: KinveySaveBatchResponse<T>? = null
-        val batchSaveErrors = ArrayList<KinveyBatchInsertError>()
-        var tempIds: List<String> = mutableListOf()
-        if (useCache) tempIds = entities.filter { networkManager.isTempId(it) }.map { it[_ID] as String }
+        val posted = pipeline?.take(entities) ?: postBatch(entities, useCache)
+        val tempIds = posted.tempIds
         try {
-            response = if (useCache && tempIds.isNotEmpty()) {
-                val entitiesWithoutIds =
-                        entities.map {
-                            if (networkManager.isTempId(it)) {
-                                it.set(_ID, null) as T
-                            } else {
-                                it
-                            }
-                        }
-                networkManager.saveBatchBlocking(entitiesWithoutIds)?.execute()
-            } else {
-                networkManager.saveBatchBlocking(entities)?.execute()
-            }
+            posted.error?.let { throw it }
+            response = posted.response
         } catch (e: KinveyJsonResponseException) {
             if (!multipleRequests) throw e
         } catch (e: IOException) {
@@ -193,19 +211,56 @@ class CreateListBatchRequest<T : GenericJson>(
                     cache?.save(response.entities)
                 }
             }
-            result.errors = mutableListOf()
-            if (response.errors != null) {
-                result.errors!!.addAll(response.errors!!)
+            if (result.errors == null) {
+                result.errors = mutableListOf()
             }
             if (response.haveErrors && useCache) {
                 enqueueBatchErrorsRequests(entities, response)
             }
-            response.errors?.let { errors -> batchSaveErrors.addAll(errors) }
-            removeSuccessBatchItemsFromCache(entities, batchSaveErrors)
+            val errors = response.errors.orEmpty()
+            removeSuccessBatchItemsFromCache(entities, errors)
+            // the indexes of the errors are relative to the chunk, the result has the errors of the whole list
+            errors.forEach { error -> error.index += postedCount }
+            result.errors!!.addAll(errors)
         }
+        postedCount += entities.size
         return response
     }
 
+    /**
+     * Sends the batch POST of a chunk, on a thread of the pipeline if it runs.
+     * Temporary ids are removed from the entities before they are sent.
+     */
+    private fun postBatch(entities: List<T>, useCache: Boolean): PostedBatch<T> {
+        var tempIds: List<String> = mutableListOf()
+        if (useCache) tempIds = entities.filter { networkManager.isTempId(it) }.map { it[_ID] as String }
+        return try {
+            val response = if (useCache && tempIds.isNotEmpty()) {
+                val entitiesWithoutIds =
+                        entities.map {
+                            if (networkManager.isTempId(it)) {
+                                it.set(_ID, null) as T
+                            } else {
+                                it
+                            }
+                        }
+                networkManager.saveBatchBlocking(entitiesWithoutIds)?.execute()
+            } else {
+                networkManager.saveBatchBlocking(entities)?.execute()
+            }
+            PostedBatch(tempIds, response)
+        } catch (e: IOException) {
+            PostedBatch(tempIds, error = e)
+        }
+    }
+
+    /**
+     * Response or failure of the batch POST of a chunk, with the temporary ids removed from its entities
+     */
+    private class PostedBatch<T : GenericJson>(val tempIds: List<String>,
+                                               val response: KinveySaveBatchResponse<T>? = null,
+                                               val error: IOException? = null)
+
     @Throws(IOException::class)
     private fun enqueueBatchErrorsRequests(saveList: List<T>?, response: KinveySaveBatchResponse<*>) {
         val errIndexes = getErrIndexes(response.errors)
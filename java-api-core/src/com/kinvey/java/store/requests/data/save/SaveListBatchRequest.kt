@@ -18,10 +18,13 @@ package com.kinvey.java.store.requests.data.save
 
 import com.google.api.client.http.HttpResponseException
 import com.google.api.client.json.GenericJson
+import com.google.common.base.Preconditions
+import com.kinvey.java.AbstractClient
 import com.kinvey.java.KinveySaveBatchException
 import com.kinvey.java.Logger
 import com.kinvey.java.cache.ICache
 import com.kinvey.java.core.KinveyJsonResponseException
+import com.kinvey.java.core.KinveyScheduler
 import com.kinvey.java.model.KinveyBatchInsertError
 import com.kinvey.java.model.KinveyUpdateSingleItemError
 import com.kinvey.java.model.KinveySaveBatchResponse
@@ -51,9 +54,20 @@ class SaveListBatchRequest<T : GenericJson>(
     private var exception: IOException? = null
     private var wasException = false
     private var multipleRequests = false
+    private var pipeline: BatchPostPipeline<List<T>, PostedBatch<T>>? = null
+    private var postedCount = 0
 
     private val MAX_POST_ITEMS = 100
 
+    /**
+     * Max count of the batch POST requests sent at the same time, [AbstractClient.maxBatchPostsInFlight] by default
+     */
+    var maxPostsInFlight: Int = Math.max(networkManager.client?.maxBatchPostsInFlight ?: 1, 1)
+        set(value) {
+            Preconditions.checkArgument(value > 0, "maxPostsInFlight must be positive")
+            field = value
+        }
+
     @Throws(IOException::class)
     override fun execute(): List<T> {
         var retList: List<T> = mutableListOf()
@@ -103,9 +117,25 @@ class SaveListBatchRequest<T : GenericJson>(
         return resultItems
     }
 
+    /**
+     * Saves the entities by batch POSTs of [MAX_POST_ITEMS] entities. Up to [maxPostsInFlight] POSTs are sent ahead,
+     * their responses are merged in the order of the entities.
+     */
     private fun postBatchItems(entities: List<T>, batchSaveEntities: MutableList<T>, batchSaveErrors: MutableList<KinveyBatchInsertError>, useCache: Boolean = true) {
-        entities.chunked(MAX_POST_ITEMS).onEach { items ->
-            postSaveBatchRequest(items, batchSaveEntities, batchSaveErrors, useCache)
+        val chunks = entities.chunked(MAX_POST_ITEMS)
+        postedCount = 0
+        if (maxPostsInFlight > 1 && chunks.size > 1) {
+            val executor = (networkManager.client?.scheduler ?: KinveyScheduler.shared)
+                    .executor(networkManager.collectionName, maxPostsInFlight)
+            pipeline = BatchPostPipeline(chunks, maxPostsInFlight, executor) { items -> postBatch(items) }
+        }
+        try {
+            chunks.onEach { items ->
+                postSaveBatchRequest(items, batchSaveEntities, batchSaveErrors, useCache)
+            }
+        } finally {
+            pipeline?.close()
+            pipeline = null
         }
     }
 
@@ -113,9 +143,10 @@ class SaveListBatchRequest<T : GenericJson>(
     protected fun postSaveBatchRequest(entities: List<T>,
         batchSaveEntities: MutableList<T>, batchSaveErrors: MutableList<KinveyBatchInsertError>, useCache: Boolean = true): KinveySaveBatchResponse<*>? {
         var response: KinveySaveBatchResponse<*>? = null
+        val posted = pipeline?.take(entities) ?: postBatch(entities)
         try {
-            val batchList = prepareSaveItems(SyncRequest.HttpVerb.POST, entities)
-            response = networkManager.saveBatchBlocking(batchList)?.execute()
+            posted.error?.let { throw it }
+            response = posted.response
         } catch (e: KinveyJsonResponseException) {
             if (!multipleRequests) throw e
         } catch (e: IOException) {
@@ -130,17 +161,37 @@ class SaveListBatchRequest<T : GenericJson>(
                 response.entities?.let { list -> batchSaveEntities.addAll(list as List<T>) }
             } else {
                 //wasException = true
-                response.errors?.let{ errors -> batchSaveErrors.addAll(errors) }
                 if (useCache) { enqueueBatchErrorsRequests(entities, response) }
             }
-            removeSuccessBatchItemsFromCache(entities, batchSaveErrors)
+            val errors = response.errors.orEmpty()
+            removeSuccessBatchItemsFromCache(entities, errors)
+            // the indexes of the errors are relative to the chunk, the saved list is the whole list
+            errors.forEach { error -> error.index += postedCount }
+            batchSaveErrors.addAll(errors)
         } else if (multipleRequests) {
             val emptyList = listOf(*Array<Any>(entities.count()) { GenericJson() })
             batchSaveEntities.addAll(emptyList as List<T>)
         }
+        postedCount += entities.size
         return response
     }
 
+    /**
+     * Sends the batch POST of a chunk, on a thread of the pipeline if it runs
+     */
+    private fun postBatch(entities: List<T>): PostedBatch<T> {
+        return try {
+            PostedBatch(networkManager.saveBatchBlocking(prepareSaveItems(SyncRequest.HttpVerb.POST, entities))?.execute())
+        } catch (e: IOException) {
+            PostedBatch(error = e)
+        }
+    }
+
+    /**
+     * Response or failure of the batch POST of a chunk
+     */
+    private class PostedBatch<T : GenericJson>(val response: KinveySaveBatchResponse<T>? = null, val error: IOException? = null)
+
     private fun recoverItemsOrder(srcItems: List<T>, postItems: List<T?>, putItems: List<T?>): List<T> {
         var postIdx = 0
         var putIdx = 0
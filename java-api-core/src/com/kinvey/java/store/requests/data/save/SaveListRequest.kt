@@ -21,6 +21,7 @@ import com.kinvey.java.Constants
 import com.kinvey.java.KinveyException
 import com.kinvey.java.Logger
 import com.kinvey.java.cache.ICache
+import com.kinvey.java.core.KinveyScheduler
 import com.kinvey.java.network.NetworkManager
 import com.kinvey.java.store.WritePolicy
 import com.kinvey.java.store.requests.data.IRequest
@@ -35,7 +36,6 @@ import java.util.ArrayList
 import java.util.concurrent.Callable
 import java.util.concurrent.ExecutionException
 import java.util.concurrent.ExecutorService
-import java.util.concurrent.Executors
 import java.util.concurrent.FutureTask
 
 /**
@@ -82,7 +82,9 @@ class SaveListRequest<T : GenericJson>(private val cache: ICache<T>?, private va
             }
             WritePolicy.FORCE_NETWORK -> {
                 Logger.INFO("Start saving entities")
-                val executor: ExecutorService = Executors.newFixedThreadPool(networkManager.client?.numberThreadsForDataStoreSaveList ?: 4)
+                val client = networkManager.client
+                val executor: ExecutorService = (client?.scheduler ?: KinveyScheduler.shared)
+                        .executor(networkManager.collectionName, Math.max(client?.numberThreadsForDataStoreSaveList ?: 4, 1))
                 val tasks: MutableList<FutureTask<T>>
                 var ft: FutureTask<T>
                 val items = objects as List<T>
@@ -19,9 +19,11 @@ package com.kinvey.java.store.requests.user
 import com.google.api.client.http.HttpContent
 import com.google.api.client.json.GenericJson
 import com.kinvey.java.AbstractClient
+import com.kinvey.java.auth.TokenRefreshManager
 import com.kinvey.java.core.AbstractKinveyClientRequest
 import com.kinvey.java.dto.BaseUser
 import com.kinvey.java.store.UserStoreRequestManager
+import java.io.IOException
 
 /**
  * Created by Prots on 2/12/16.
@@ -30,6 +32,15 @@ class GetMICAccessToken(private val userStoreRequestManager: UserStoreRequestMan
     : AbstractKinveyClientRequest<GenericJson>(userStoreRequestManager.getClient() as AbstractClient<BaseUser>,
         userStoreRequestManager.getClient()?.micHostName, "POST",
         "/" + userStoreRequestManager.getClient()?.micApiVersion + "/" + BASE_TOKEN_PATH, content, GenericJson::class.java) {
+
+    @Throws(IOException::class)
+    override fun execute(): GenericJson? {
+        val result = super.execute()
+        // lets the token be refreshed before it expires
+        result?.let { userStoreRequestManager.getClient()?.tokenRefreshManager?.onTokenIssued(TokenRefreshManager.expiresIn(it)) }
+        return result
+    }
+
     companion object {
         // Base path, without the MIC API version.
         private const val BASE_TOKEN_PATH = "oauth/token"
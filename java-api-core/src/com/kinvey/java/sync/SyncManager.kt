@@ -20,11 +20,10 @@ import com.google.api.client.json.GenericJson
 import com.google.api.client.json.JsonParser
 import com.google.gson.Gson
 import com.kinvey.java.AbstractClient
-import com.kinvey.java.AbstractClient.Companion.sharedInstance
 import com.kinvey.java.KinveySaveBatchException
 import com.kinvey.java.Logger.Companion.ERROR
+import com.kinvey.java.Metrics
 import com.kinvey.java.Query
-import com.kinvey.java.cache.ICache
 import com.kinvey.java.cache.ICacheManager
 import com.kinvey.java.core.AbstractKinveyClientRequest
 import com.kinvey.java.core.AbstractKinveyJsonClientRequest
@@ -49,6 +48,11 @@ import java.net.URLDecoder
  */
 open class SyncManager(val cacheManager: ICacheManager?) {
 
+    /**
+     * Registry the queued and executed sync requests are recorded in, nothing is recorded if it is not set
+     */
+    var metrics: Metrics? = null
+
     fun removeEntity(collectionName: String?, curEntityID: String?) {
         val query = Query(MongoQueryFilterBuilder())
         query.equals(COLLECTION_NAME, collectionName).equals(META_ID, curEntityID)
@@ -100,11 +104,25 @@ open class SyncManager(val cacheManager: ICacheManager?) {
         return requestCache?.delete(q!!) ?: 0
     }
 
+    /**
+     * Removes the sync items with the given ids from the queue in one cache call
+     * @param ids ids of the sync items
+     * @return count of the removed sync items
+     */
+    fun deleteCachedItems(ids: Collection<String>): Int {
+        if (ids.isEmpty()) {
+            return 0
+        }
+        val requestCache = cacheManager?.getCache(SYNC_ITEM_TABLE_NAME, SyncItem::class.java, Long.MAX_VALUE)
+        return requestCache?.delete(ids) ?: 0
+    }
+
     @Deprecated("use [.enqueueRequest]")
     @Throws(IOException::class)
     fun enqueueRequest(collectionName: String, clientRequest: AbstractKinveyJsonClientRequest<*>) {
         val requestCache = cacheManager?.getCache(SYNC, SyncRequest::class.java, Long.MAX_VALUE)
         requestCache?.save(createSyncRequest(collectionName, clientRequest))
+        recordEnqueued(collectionName, 1)
     }
 
     @Deprecated("use [.enqueueRequests]")
@@ -113,6 +131,7 @@ open class SyncManager(val cacheManager: ICacheManager?) {
         val requestCache = cacheManager?.getCache(SYNC, SyncRequest::class.java, Long.MAX_VALUE)
         val syncRequests = ret.map { item -> createSyncRequest(collectionName, networkManager.saveBlocking(item)) }
         requestCache?.save(syncRequests)
+        recordEnqueued(collectionName, syncRequests.size)
     }
 
     /**
@@ -122,63 +141,81 @@ open class SyncManager(val cacheManager: ICacheManager?) {
     fun enqueueRequest(request: SyncRequest?) {
         val requestCache = cacheManager?.getCache(SYNC, SyncRequest::class.java, Long.MAX_VALUE)
         requestCache?.save(request)
+        recordEnqueued(request?.collectionName, if (request != null) 1 else 0)
     }
 
     @Throws(IOException::class)
     fun <T : GenericJson> enqueueRequest(collectionName: String?, networkManager: NetworkManager<T>?, httpMethod: HttpVerb?, id: String?) {
-        val requestCache = cacheManager?.getCache(SYNC_ITEM_TABLE_NAME, SyncItem::class.java, Long.MAX_VALUE)
-        val syncItem = prepareSyncItemRequest(requestCache, collectionName, networkManager, httpMethod, id)
-        syncItem?.let { requestCache?.save(it) }
+        enqueueSyncItems(collectionName, networkManager, listOf(id to httpMethod))
     }
 
     @Throws(IOException::class)
     fun <T : GenericJson> enqueueDeleteRequests(collectionName: String?, networkManager: NetworkManager<T>?, ret: List<T>?) {
-        val requestCache = cacheManager?.getCache(SYNC_ITEM_TABLE_NAME, SyncItem::class.java, Long.MAX_VALUE)
-        val syncRequests = ret?.mapNotNull { item ->
-            val syncItemId = item[ID] as String?
-            prepareSyncItemRequest(requestCache, collectionName, networkManager, HttpVerb.DELETE, syncItemId)
-        }
-        syncRequests?.let { requests -> requestCache?.save(requests) }
+        ret ?: return
+        enqueueSyncItems(collectionName, networkManager, ret.map { item -> item[ID] as String? to HttpVerb.DELETE })
     }
 
     @Throws(IOException::class)
     fun <T : GenericJson> enqueueSaveRequests(collectionName: String, networkManager: NetworkManager<T>?, ret: List<T>?) {
-        val requestCache = cacheManager?.getCache(SYNC_ITEM_TABLE_NAME, SyncItem::class.java, Long.MAX_VALUE)
-        val syncRequests = ret?.mapNotNull { item ->
-            val syncItemId = item[ID] as String?
-            prepareSyncItemRequest(requestCache, collectionName, networkManager,
-                    if (networkManager?.isTempId(item) == true) HttpVerb.POST else HttpVerb.PUT, syncItemId)
-        }
-        syncRequests?.let { requests -> requestCache?.save(requests) }
+        ret ?: return
+        enqueueSyncItems(collectionName, networkManager, ret.map { item ->
+            item[ID] as String? to if (networkManager?.isTempId(item) == true) HttpVerb.POST else HttpVerb.PUT
+        })
     }
 
     @Throws(IOException::class)
     fun <T : GenericJson> enqueueDeleteRequests(collectionName: String?, networkManager: NetworkManager<T>?, ids: Iterable<String>?) {
-        val requestCache = cacheManager?.getCache(SYNC_ITEM_TABLE_NAME, SyncItem::class.java, Long.MAX_VALUE)
-        val syncRequests = ids?.mapNotNull { id -> prepareSyncItemRequest(requestCache, collectionName, networkManager, HttpVerb.DELETE, id) }
-        syncRequests?.let { requests -> requestCache?.save(requests) }
+        ids ?: return
+        enqueueSyncItems(collectionName, networkManager, ids.map { id -> id to HttpVerb.DELETE })
+    }
+
+    private fun recordEnqueued(collectionName: String?, count: Int) {
+        metrics?.entry(collectionName, Metrics.OP_SYNC_ENQUEUE)?.increment(count.toLong())
     }
 
+    /**
+     * Queues the requests of the entities with one lookup of the sync items already queued for them,
+     * one removal and one save.
+     * An entity which already has a sync item keeps it, unless the new request is a DELETE:
+     * then its sync items are replaced by the DELETE.
+     * @param requests ids of the entities with the methods of their requests
+     */
     @Throws(IOException::class)
-    private fun <T : GenericJson> prepareSyncItemRequest(requestCache: ICache<SyncItem>?,
-                                                          collectionName: String?,
-                                                          networkManager: NetworkManager<T>?,
-                                                          httpMethod: HttpVerb?,
-                                                          syncItemId: String?): SyncItem? {
-        val entityQuery = sharedInstance?.query()
-        entityQuery?.equals(META_DOT_ID, syncItemId)
-        val cache = requestCache ?: return null
-        return entityQuery?.run {
-            val itemsList = cache[this]
+    private fun <T : GenericJson> enqueueSyncItems(collectionName: String?,
+                                                    networkManager: NetworkManager<T>?,
+                                                    requests: List<Pair<String?, HttpVerb?>>) {
+        val requestCache = cacheManager?.getCache(SYNC_ITEM_TABLE_NAME, SyncItem::class.java, Long.MAX_VALUE) ?: return
+        val ids = requests.mapNotNullTo(LinkedHashSet()) { it.first }
+        val queuedIds = HashSet<String>()
+        if (ids.isNotEmpty()) {
+            val query = Query(MongoQueryFilterBuilder()).`in`(META_DOT_ID, ids.toTypedArray())
+            requestCache[query].mapNotNullTo(queuedIds) { it.entityID?.id }
+        }
+        val removedIds = LinkedHashSet<String>()
+        val newItems = LinkedHashMap<String, SyncItem>()
+        val newItemsWithoutId = ArrayList<SyncItem>()
+        for ((id, httpMethod) in requests) {
             when {
-                itemsList.isEmpty() -> createSyncItem(collectionName, httpMethod, networkManager, syncItemId)
+                id == null -> newItemsWithoutId.add(createSyncItem(collectionName, httpMethod, networkManager, null))
                 httpMethod == HttpVerb.DELETE -> {
-                    cache.delete(this)
-                    createSyncItem(collectionName, httpMethod, networkManager, syncItemId)
+                    if (queuedIds.contains(id)) {
+                        removedIds.add(id)
+                    }
+                    newItems.remove(id)
+                    newItems[id] = createSyncItem(collectionName, httpMethod, networkManager, id)
                 }
-                else -> null
+                !queuedIds.contains(id) && !newItems.containsKey(id) ->
+                    newItems[id] = createSyncItem(collectionName, httpMethod, networkManager, id)
             }
         }
+        if (removedIds.isNotEmpty()) {
+            requestCache.delete(Query(MongoQueryFilterBuilder()).`in`(META_DOT_ID, removedIds.toTypedArray()))
+        }
+        val syncItems = newItems.values + newItemsWithoutId
+        if (syncItems.isNotEmpty()) {
+            requestCache.save(syncItems)
+            recordEnqueued(collectionName, syncItems.size)
+        }
     }
 
     @Throws(IOException::class)
@@ -237,6 +274,19 @@ open class SyncManager(val cacheManager: ICacheManager?) {
      */
     @Throws(IOException::class)
     open fun executeRequest(client: AbstractClient<*>?, request: SyncRequest?): GenericJson? {
+        val start = System.nanoTime()
+        var success = false
+        try {
+            val result = runSyncRequest(client, request)
+            success = true
+            return result
+        } finally {
+            metrics?.entry(request?.collectionName, Metrics.OP_SYNC_EXECUTE)?.record(System.nanoTime() - start, success)
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun runSyncRequest(client: AbstractClient<*>?, request: SyncRequest?): GenericJson? {
         client?.clientAppVersion = request?.entityID?.customerVersion
         client?.setCustomRequestProperties(Gson().fromJson(request?.entityID?.customheader, GenericJson::class.java))
         var entity: GenericJson? = null
@@ -0,0 +1,149 @@
+package com.kinvey.java
+
+import com.google.api.client.json.GenericJson
+import com.google.api.client.testing.http.MockHttpTransport
+import com.google.api.client.testing.http.MockLowLevelHttpResponse
+import com.kinvey.java.cache.ICache
+import com.kinvey.java.cache.MetricsCache
+import com.kinvey.java.core.KinveyMockUnitTest
+import com.kinvey.java.dto.BaseUser
+import com.kinvey.java.network.NetworkManager
+import org.mockito.Mockito
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class MetricsTest : KinveyMockUnitTest<BaseUser>() {
+
+    fun testEntriesAreKeyedByCollectionAndOperation() {
+        val metrics = Metrics()
+        metrics.entry("books", "Get").record(TimeUnit.MILLISECONDS.toNanos(3), true)
+        metrics.entry("books", "Get").record(TimeUnit.MILLISECONDS.toNanos(5), false)
+        metrics.entry("books", "Save").record(TimeUnit.MILLISECONDS.toNanos(1), true)
+        metrics.entry(null, "Login").recordRetry()
+
+        val get = metrics.snapshot("books", "Get")
+        assertEquals(2L, get?.count)
+        assertEquals(1L, get?.errors)
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(5), get?.latency?.maxNanos)
+        assertEquals(1L, metrics.snapshot("books", "Save")?.count)
+        assertEquals(1L, metrics.snapshot(Metrics.NO_COLLECTION, "Login")?.retries)
+        assertNull(metrics.snapshot("books", "Delete"))
+        assertEquals(3, metrics.snapshot().size)
+    }
+
+    fun testConcurrentRecording() {
+        val metrics = Metrics()
+        val executor = Executors.newFixedThreadPool(8)
+        val tasks = (0 until 8).map {
+            Callable {
+                for (i in 0 until 10_000) {
+                    val entry = metrics.entry("collection${i % 4}", "op")
+                    entry.record(i.toLong(), true)
+                    entry.recordBytes(2, 3)
+                }
+            }
+        }
+        executor.invokeAll(tasks).forEach { it.get() }
+        executor.shutdown()
+        val snapshots = metrics.snapshot()
+        assertEquals(4, snapshots.size)
+        assertEquals(80_000L, snapshots.map { it.count }.sum())
+        assertEquals(80_000L, snapshots.map { it.latency.count }.sum())
+        assertEquals(160_000L, snapshots.map { it.bytesSent }.sum())
+        assertEquals(240_000L, snapshots.map { it.bytesReceived }.sum())
+    }
+
+    fun testHistogramPercentiles() {
+        val histogram = LatencyHistogram()
+        for (i in 1..99) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(10))
+        }
+        histogram.record(TimeUnit.SECONDS.toNanos(2))
+        val snapshot = histogram.snapshot()
+        assertEquals(100L, snapshot.count)
+        // 10us falls in the bucket up to 16us
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(16), snapshot.percentileNanos(50.0))
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(16), snapshot.percentileNanos(99.0))
+        assertEquals(TimeUnit.SECONDS.toNanos(2), snapshot.percentileNanos(100.0))
+        histogram.reset()
+        assertEquals(0L, histogram.snapshot().count)
+        assertEquals(0L, histogram.snapshot().percentileNanos(99.0))
+    }
+
+    fun testPublishToListeners() {
+        val metrics = Metrics()
+        val published = ArrayList<List<Metrics.Snapshot>>()
+        val listener = object : Metrics.Listener {
+            override fun onSnapshot(snapshots: List<Metrics.Snapshot>) {
+                published.add(snapshots)
+            }
+        }
+        metrics.addListener(listener)
+        metrics.entry("books", "Get").increment(5)
+        metrics.publish(true)
+        metrics.entry("books", "Get").increment()
+        metrics.publish()
+        metrics.removeListener(listener)
+        metrics.publish()
+
+        assertEquals(2, published.size)
+        assertEquals(5L, published[0].single().count)
+        assertEquals(1L, published[1].single().count)
+    }
+
+    fun testDisabledMetricsRecordNothing() {
+        val metrics = Metrics()
+        metrics.isEnabled = false
+        metrics.entry("books", "Get").record(1, true)
+        metrics.entry("books", "Get").recordCacheLookup(1, 1)
+        assertEquals(0L, metrics.snapshot("books", "Get")?.count)
+        assertEquals(0L, metrics.snapshot("books", "Get")?.cacheHits)
+    }
+
+    fun testCacheRecordsHitsAndMisses() {
+        val metrics = Metrics()
+        val cache = Mockito.mock(ICache::class.java) as ICache<GenericJson>
+        Mockito.`when`(cache["1"]).thenReturn(GenericJson())
+        Mockito.`when`(cache["2"]).thenReturn(null)
+        Mockito.`when`(cache[listOf("1", "2", "3")]).thenReturn(listOf(GenericJson()))
+        Mockito.`when`(cache.save(Mockito.any(GenericJson::class.java))).thenThrow(IllegalStateException())
+        val metricsCache = MetricsCache(cache, "books", metrics)
+
+        assertNotNull(metricsCache["1"])
+        assertNull(metricsCache["2"])
+        assertEquals(1, metricsCache[listOf("1", "2", "3")].size)
+        try {
+            metricsCache.save(GenericJson())
+            fail("IllegalStateException is expected")
+        } catch (e: IllegalStateException) {
+            assertTrue(true)
+        }
+
+        val reads = metrics.snapshot("books", Metrics.OP_CACHE_READ)
+        assertEquals(3L, reads?.count)
+        assertEquals(2L, reads?.cacheHits)
+        assertEquals(3L, reads?.cacheMisses)
+        assertEquals(0.4, reads?.cacheHitRatio ?: 0.0, 0.0001)
+        val saves = metrics.snapshot("books", Metrics.OP_CACHE_SAVE)
+        assertEquals(1L, saves?.count)
+        assertEquals(1L, saves?.errors)
+    }
+
+    fun testNetworkRequestIsRecorded() {
+        val body = "[{\"_id\":\"1\"}]"
+        val transport = MockHttpTransport.Builder()
+                .setLowLevelHttpResponse(MockLowLevelHttpResponse().setContent(body).setContentType("application/json")
+                        .addHeader("Content-Length", body.length.toString()))
+                .build()
+        val client = getClient(transport)
+        val networkManager = NetworkManager("books", GenericJson::class.java, client)
+        networkManager.getBlocking(Query())?.executeUnparsed()
+        networkManager.getBlocking(Query())?.executeUnparsed()
+
+        val snapshot = client.metrics.snapshot("books", NetworkManager.Get::class.java.simpleName)
+        assertEquals(2L, snapshot?.count)
+        assertEquals(0L, snapshot?.errors)
+        assertEquals(2L * body.length, snapshot?.bytesReceived)
+    }
+}
@@ -0,0 +1,172 @@
+package com.kinvey.java.annotations
+
+import com.google.api.client.http.LowLevelHttpRequest
+import com.google.api.client.http.LowLevelHttpResponse
+import com.google.api.client.json.GenericJson
+import com.google.api.client.testing.http.MockHttpTransport
+import com.google.api.client.testing.http.MockLowLevelHttpRequest
+import com.google.api.client.testing.http.MockLowLevelHttpResponse
+import com.google.api.client.util.Key
+import com.kinvey.java.KinveySaveBatchException
+import com.kinvey.java.annotations.ReferenceHelper.BatchReferenceListener
+import com.kinvey.java.core.KinveyMockUnitTest
+import com.kinvey.java.dto.BaseUser
+import com.kinvey.java.model.KinveyBatchInsertError
+import com.kinvey.java.model.KinveyReference as Reference
+import com.kinvey.java.model.KinveySaveBatchResponse
+import com.kinvey.java.network.NetworkManager
+import java.io.IOException
+import java.util.Collections
+
+class ReferenceGraphTest : KinveyMockUnitTest<BaseUser>() {
+
+    private val calls = ArrayList<Pair<String, Int>>()
+
+    private val listener = object : BatchReferenceListener {
+        override fun onUnsavedReferencesFound(collection: String, items: List<GenericJson>): KinveySaveBatchResponse<GenericJson?> {
+            calls.add(collection to items.size)
+            if (collection == "products") {
+                items.forEach { assertNull(it["product"]) }
+            } else {
+                // the products are saved before the line items referencing them
+                items.forEach { assertNotNull((it["product"] as Reference).id) }
+            }
+            val failed = items.indices.filter { (items[it] as? LineItem)?.quantity == -1 }
+            return KinveySaveBatchResponse(
+                    items.indices.mapTo(ArrayList<GenericJson?>()) { i -> if (i in failed) null else GenericJson().set("_id", "$collection-$i") },
+                    failed.map { KinveyBatchInsertError(it).apply { error = "ValidationError" } }.toMutableList())
+        }
+    }
+
+    fun testGraphIsSavedWithOneCallPerCollectionAndLevel() {
+        val products = (0 until 10).map { Product("product $it") }
+        val orders = (0 until 500).map { o -> Order((0 until 20).map { LineItem(products[(o + it) % 10], it) }) }
+
+        val errors = ReferenceHelper.processReferenceGraph(orders, listener)
+
+        assertTrue(errors.isEmpty())
+        assertEquals(listOf("products" to 10, "lineitems" to 10000), calls)
+        val references = orders[1]["lineItems"] as List<*>
+        assertEquals(20, references.size)
+        assertEquals(Reference("lineitems", "lineitems-20"), references[0])
+        assertEquals(Reference("products", "products-1"), orders[1].lineItems[0]["product"])
+    }
+
+    fun testSavedEntitiesAreOnlyReferenced() {
+        val product = Product("saved").apply { this["_id"] = "p1" }
+        val order = Order(listOf(LineItem(product, 1), LineItem(product, 2)))
+
+        ReferenceHelper.processReferenceGraph(listOf(order), listener)
+
+        assertEquals(listOf("lineitems" to 2), calls)
+        assertEquals(Reference("products", "p1"), order.lineItems[1]["product"])
+    }
+
+    fun testFailuresAreReportedPerEntity() {
+        val failing = LineItem(Product("a"), -1)
+        val order = Order(listOf(LineItem(Product("b"), 1), failing))
+
+        val errors = ReferenceHelper.processReferenceGraph(listOf(order), listener)
+
+        assertEquals(1, errors.size)
+        assertEquals("ValidationError", errors[failing]?.error)
+        // the reference to the failed entity is kept unresolved, the saved entity gets its id
+        assertEquals(listOf(Reference("lineitems", "lineitems-0"), Reference("lineitems", null)), order["lineItems"])
+        assertEquals("lineitems-0", order.lineItems[0]["_id"])
+        assertNull(failing["_id"])
+    }
+
+    fun testFailedCallIsReportedForEveryEntity() {
+        val items = listOf(LineItem(Product("a"), 1), LineItem(Product("b"), 1))
+        val errors = ReferenceHelper.processReferenceGraph(listOf(Order(items)), object : BatchReferenceListener {
+            override fun onUnsavedReferencesFound(collection: String, items: List<GenericJson>): KinveySaveBatchResponse<GenericJson?> {
+                throw IOException("offline")
+            }
+        })
+
+        assertEquals(4, errors.size)
+        assertEquals("offline", errors[items[1]]?.description)
+    }
+
+    fun testCycleIsRejected() {
+        val first = Node()
+        val second = Node()
+        first.next = second
+        second.next = first
+        try {
+            ReferenceHelper.processReferenceGraph(listOf(first), listener)
+            fail("cycle must be rejected")
+        } catch (e: IllegalArgumentException) {
+        }
+    }
+
+    fun testBatchSaveSavesReferencesInBatches() {
+        val posts = Collections.synchronizedList(ArrayList<String>())
+        val client = getClient(object : MockHttpTransport() {
+            override fun buildRequest(method: String, url: String): LowLevelHttpRequest {
+                return object : MockLowLevelHttpRequest(url) {
+                    override fun execute(): LowLevelHttpResponse {
+                        val collection = url.substringBefore('?').substringAfterLast('/')
+                        posts.add(collection)
+                        val count = Regex("\\{").findAll(contentAsString).count() -
+                                Regex("_collection").findAll(contentAsString).count()
+                        val entities = (0 until count).joinToString(",") { "{\"_id\":\"$collection-$it\"}" }
+                        return MockLowLevelHttpResponse().setContentType("application/json")
+                                .setContent("{\"entities\":[$entities],\"errors\":[]}")
+                    }
+                }
+            }
+        })
+        val orders = (0 until 3).map { o -> Order((0 until 2).map { LineItem(Product("p$it"), o) }) }
+
+        NetworkManager("orders", Order::class.java, client).saveBatchBlocking(orders)?.execute()
+
+        assertEquals(listOf("products", "lineitems", "orders"), posts)
+        assertEquals(Reference("lineitems", "lineitems-5"), (orders[2]["lineItems"] as List<*>)[1])
+    }
+
+    fun testBatchSaveFailsWithErrorsOfReferencedEntities() {
+        val posts = Collections.synchronizedList(ArrayList<String>())
+        val client = getClient(object : MockHttpTransport() {
+            override fun buildRequest(method: String, url: String): LowLevelHttpRequest {
+                return object : MockLowLevelHttpRequest(url) {
+                    override fun execute(): LowLevelHttpResponse {
+                        val collection = url.substringBefore('?').substringAfterLast('/')
+                        posts.add(collection)
+                        return MockLowLevelHttpResponse().setContentType("application/json")
+                                .setContent("{\"entities\":[{\"_id\":\"$collection-0\"},null]," +
+                                        "\"errors\":[{\"index\":1,\"error\":\"ValidationError\"}]}")
+                    }
+                }
+            }
+        })
+        val failing = LineItem(null, 2)
+        val order = Order(listOf(LineItem(null, 1), failing))
+
+        try {
+            NetworkManager("orders", Order::class.java, client).saveBatchBlocking(listOf(order))
+            fail("KinveySaveBatchException is expected")
+        } catch (e: KinveySaveBatchException) {
+            assertEquals("ValidationError", e.errors?.single()?.error)
+            assertSame(failing, e.entities?.single())
+        }
+        // the order is not saved with an unresolved reference
+        assertEquals(listOf("lineitems"), posts)
+        assertEquals(listOf(Reference("lineitems", "lineitems-0"), Reference("lineitems", null)), order["lineItems"])
+    }
+
+    class Product(@Key var name: String? = null) : GenericJson()
+
+    class LineItem(product: Product? = null, @Key var quantity: Int = 0) : GenericJson() {
+        @KinveyReference(fieldName = "product", collection = "products", itemClass = Product::class)
+        var productEntity: Product? = product
+    }
+
+    class Order(@KinveyReference(fieldName = "lineItems", collection = "lineitems", itemClass = LineItem::class)
+                var lineItems: List<LineItem> = emptyList()) : GenericJson()
+
+    class Node : GenericJson() {
+        @KinveyReference(fieldName = "next", collection = "nodes", itemClass = Node::class)
+        var next: Node? = null
+    }
+}
@@ -0,0 +1,147 @@
+package com.kinvey.java.auth
+
+import com.google.api.client.http.LowLevelHttpRequest
+import com.google.api.client.http.LowLevelHttpResponse
+import com.google.api.client.json.GenericJson
+import com.google.api.client.testing.http.MockHttpTransport
+import com.google.api.client.testing.http.MockLowLevelHttpRequest
+import com.google.api.client.testing.http.MockLowLevelHttpResponse
+import com.kinvey.java.AbstractClient
+import com.kinvey.java.Metrics
+import com.kinvey.java.core.KinveyMockUnitTest
+import com.kinvey.java.dto.BaseUser
+import com.kinvey.java.network.NetworkManager
+import java.io.IOException
+import java.util.Collections
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class TokenRefreshManagerTest : KinveyMockUnitTest<BaseUser>() {
+
+    private val sentAuthorizations = Collections.synchronizedList(ArrayList<String?>())
+    @Volatile
+    private var isOldTokenAccepted = false
+
+    private val transport = object : MockHttpTransport() {
+        override fun buildRequest(method: String, url: String): LowLevelHttpRequest {
+            return object : MockLowLevelHttpRequest(url) {
+                override fun execute(): LowLevelHttpResponse {
+                    val authorization = getFirstHeaderValue("Authorization")
+                    sentAuthorizations.add(authorization)
+                    if (authorization != "Kinvey new" && !(isOldTokenAccepted && authorization == "Kinvey old")) {
+                        return MockLowLevelHttpResponse().setStatusCode(401)
+                                .setContent("{\"error\":\"InvalidCredentials\"}").setContentType("application/json")
+                    }
+                    return MockLowLevelHttpResponse().setContent("{\"_id\":\"1\"}").setContentType("application/json")
+                }
+            }
+        }
+    }
+
+    private class TestTokenRefreshManager(private val client: AbstractClient<*>, var credential: Credential) : TokenRefreshManager(client) {
+        val refreshes = AtomicInteger()
+        var awaitParked = 0
+        var isFailing = false
+
+        override fun loadCredential(): Credential? = credential
+
+        override fun refreshCredential(credential: Credential, refreshToken: String): Long {
+            refreshes.incrementAndGet()
+            if (isFailing) {
+                throw IOException("refresh failed")
+            }
+            val deadline = System.currentTimeMillis() + 5000
+            while (parked() < awaitParked && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10)
+            }
+            this.credential = Credential(credential.userId, "new", "refresh2")
+            return 0
+        }
+
+        fun parked(): Long = client.metrics.snapshot(Metrics.NO_COLLECTION, Metrics.OP_TOKEN_REFRESH_PARKED)?.count ?: 0
+    }
+
+    fun testConcurrentUnauthorizedRequestsShareOneRefresh() {
+        val client = getClient(transport)
+        val manager = TestTokenRefreshManager(client, Credential("user", "old", "refresh"))
+        manager.awaitParked = 7
+        client.tokenRefreshManager = manager
+        val networkManager = NetworkManager("books", GenericJson::class.java, client)
+        val executor = Executors.newFixedThreadPool(8)
+        val start = CountDownLatch(1)
+        val futures = (0 until 8).map {
+            executor.submit(Callable {
+                val request = networkManager.getEntityBlocking("1")
+                request?.getRequestHeaders()?.authorization = "Kinvey old"
+                start.await()
+                request?.execute()
+            })
+        }
+        start.countDown()
+        val results = futures.map { it.get(10, TimeUnit.SECONDS) }
+        executor.shutdown()
+
+        assertEquals(1, manager.refreshes.get())
+        assertEquals(7, manager.parked())
+        assertEquals(1L, client.metrics.snapshot(Metrics.NO_COLLECTION, Metrics.OP_TOKEN_REFRESH)?.count)
+        results.forEach { assertEquals("1", it?.get("_id")) }
+        assertEquals(8, sentAuthorizations.count { it == "Kinvey old" })
+        assertEquals(8, sentAuthorizations.count { it == "Kinvey new" })
+    }
+
+    fun testTokenIsRefreshedBeforeExpiry() {
+        val client = getClient(transport)
+        val manager = TestTokenRefreshManager(client, Credential("user", "old", "refresh"))
+        client.tokenRefreshManager = manager
+        manager.onTokenIssued(30)
+        val networkManager = NetworkManager("books", GenericJson::class.java, client)
+
+        val first = networkManager.getEntityBlocking("1")
+        first?.getRequestHeaders()?.authorization = "Kinvey old"
+        first?.execute()
+        networkManager.getEntityBlocking("1")?.apply { getRequestHeaders().authorization = "Kinvey new" }?.execute()
+
+        assertEquals(1, manager.refreshes.get())
+        assertEquals(listOf<String?>("Kinvey new", "Kinvey new"), sentAuthorizations)
+    }
+
+    fun testFailedRefreshBeforeExpiryDoesNotFailRequests() {
+        isOldTokenAccepted = true
+        val client = getClient(transport)
+        val manager = TestTokenRefreshManager(client, Credential("user", "old", "refresh"))
+        manager.isFailing = true
+        client.tokenRefreshManager = manager
+        manager.onTokenIssued(30)
+        val networkManager = NetworkManager("books", GenericJson::class.java, client)
+
+        val results = (0 until 3).map {
+            networkManager.getEntityBlocking("1")?.apply { getRequestHeaders().authorization = "Kinvey old" }?.execute()
+        }
+
+        results.forEach { assertEquals("1", it?.get("_id")) }
+        // the refresh is not tried again by every request
+        assertEquals(1, manager.refreshes.get())
+        assertEquals(1L, client.metrics.snapshot(Metrics.NO_COLLECTION, Metrics.OP_TOKEN_REFRESH)?.errors)
+        assertEquals(listOf<String?>("Kinvey old", "Kinvey old", "Kinvey old"), sentAuthorizations)
+    }
+
+    fun testUnauthorizedWithoutRefreshTokenFails() {
+        val client = getClient(transport)
+        val manager = TestTokenRefreshManager(client, Credential("user", "old", null))
+        client.tokenRefreshManager = manager
+        val request = NetworkManager("books", GenericJson::class.java, client).getEntityBlocking("1")
+        request?.getRequestHeaders()?.authorization = "Kinvey old"
+
+        try {
+            request?.execute()
+            fail("IOException is expected")
+        } catch (e: IOException) {
+            // 401 is thrown
+        }
+        assertEquals(0, manager.refreshes.get())
+        assertEquals(1, sentAuthorizations.size)
+    }
+}
@@ -0,0 +1,194 @@
+package com.kinvey.java.cache
+
+import com.google.api.client.json.GenericJson
+import com.google.api.client.json.gson.GsonFactory
+import com.google.api.client.util.Key
+import com.kinvey.java.Query
+import com.kinvey.java.model.AggregateType
+import com.kinvey.java.query.AbstractQuery
+import com.kinvey.java.query.MongoQueryFilter
+import com.kinvey.java.store.QueryCacheItem
+import com.kinvey.java.sync.dto.SyncItem
+import com.kinvey.java.sync.dto.SyncRequest
+import junit.framework.TestCase
+import java.io.File
+import java.io.FileOutputStream
+import java.nio.file.Files
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+
+class DiskCacheManagerTest : TestCase() {
+
+    class Book : GenericJson() {
+        @Key("_id")
+        var id: String? = null
+        @Key
+        var title: String? = null
+        @Key
+        var pages: Int = 0
+    }
+
+    private var directory: File? = null
+    private var manager: DiskCacheManager? = null
+
+    override fun setUp() {
+        directory = Files.createTempDirectory("diskcache").toFile()
+        manager = open()
+    }
+
+    override fun tearDown() {
+        manager?.close()
+        directory?.deleteRecursively()
+    }
+
+    fun testEntitiesSurviveRestart() {
+        val cache = bookCache()
+        cache.save(listOf(book("1", "Alpha", 100), book("2", "Beta", 200), book("3", "Gamma", 300)))
+        cache.save(book("2", "Beta 2", 250))
+        cache.delete("3")
+        cache.save(Book().apply { title = "No id" })
+
+        restart()
+
+        val read = bookCache()
+        assertEquals("Beta 2", read["2"]?.title)
+        assertEquals(250, read["2"]?.pages)
+        assertNull(read["3"])
+        assertEquals(3, read.get().size)
+        assertTrue(read.get().any { it.id?.startsWith("temp_") == true })
+        assertEquals(listOf("1", "2"), ids(read[listOf("1", "2", "3")]))
+    }
+
+    fun testQueryFilterSortPagingAndGroup() {
+        val cache = bookCache()
+        cache.save(listOf(book("1", "Alpha", 100), book("2", "Beta", 200), book("3", "Alpha", 300), book("4", "Delta", 400)))
+
+        assertEquals(listOf("2", "3"), ids(cache[query().greaterThan("pages", 100).lessThanEqualTo("pages", 300)]))
+        assertEquals(listOf("4", "3"), ids(cache[query().addSort("pages", AbstractQuery.SortOrder.DESC).setLimit(2) as Query]))
+        assertEquals(2L, cache.count(query().equals("title", "Alpha")))
+        val sums = cache.group(AggregateType.SUM, arrayListOf("title"), "pages", query())
+        assertEquals(400L, sums.first { it["title"] == "Alpha" }.result)
+        assertEquals(2, cache.delete(query().lessThan("pages", 250)))
+        assertEquals(listOf("3", "4"), ids(cache.get()))
+    }
+
+    fun testTornRecordIsDroppedOnRecovery() {
+        bookCache().save(listOf(book("1", "Alpha", 100), book("2", "Beta", 200)))
+        manager?.close()
+        // a record cut by a crash while it was written
+        val segment = File(directory, BOOKS).listFiles()!!.filter { it.name.endsWith(".log") }.maxBy { it.name }!!
+        FileOutputStream(segment, true).use { it.write(byteArrayOf(0, 0, 0, 100, 1, 2, 3)) }
+        val length = segment.length()
+        manager = open()
+
+        val cache = bookCache()
+        assertEquals(listOf("1", "2"), ids(cache.get()))
+        assertEquals(length - 7, segment.length())
+        cache.save(book("3", "Gamma", 300))
+        restart()
+        assertEquals(listOf("1", "2", "3"), ids(bookCache().get()))
+    }
+
+    fun testCompactionDropsDeadRecords() {
+        manager?.close()
+        manager = open(4096)
+        val cache = bookCache()
+        for (round in 0 until 50) {
+            cache.save((0 until 10).map { book(it.toString(), "Round $round", round) })
+        }
+        cache.delete(listOf("8", "9"))
+        manager?.compact()
+
+        val size = File(directory, BOOKS).listFiles()!!.filter { it.name.endsWith(".log") }.sumBy { it.length().toInt() }
+        assertTrue("log size $size", size < 2 * 4096)
+        assertEquals(8, cache.get().size)
+        assertTrue(cache.get().all { it.title == "Round 49" })
+        restart()
+        assertEquals((0 until 8).map { it.toString() }.toSet(), ids(bookCache().get()).toSet())
+        assertTrue(bookCache().get().all { it.pages == 49 })
+    }
+
+    fun testClearedEntitiesDoNotComeBack() {
+        bookCache().save(listOf(book("1", "Alpha", 100), book("2", "Beta", 200)))
+        manager?.clearCollection(BOOKS, Book::class.java, Long.MAX_VALUE)
+        bookCache().save(book("3", "Gamma", 300))
+
+        restart()
+
+        assertEquals(listOf("3"), ids(bookCache().get()))
+        manager?.clear()
+        restart()
+        assertEquals(0, bookCache().get().size)
+    }
+
+    fun testExpiredEntitiesAreNotReturned() {
+        val cache = manager!!.getCache(BOOKS, Book::class.java, 50L)!!
+        cache.save(book("1", "Short lived", 1))
+        assertNotNull(cache["1"])
+        Thread.sleep(100)
+        assertNull(cache["1"])
+        assertEquals(0, cache.get().size)
+    }
+
+    fun testSyncQueueAndQueryCacheSurviveRestart() {
+        val syncItems = manager!!.getCache(SYNC_ITEMS, SyncItem::class.java, Long.MAX_VALUE)!!
+        syncItems.save(SyncItem(SyncRequest.HttpVerb.PUT, SyncRequest.SyncMetaData("e1"), BOOKS))
+        syncItems.save(SyncItem(SyncRequest.HttpVerb.DELETE, SyncRequest.SyncMetaData("e2"), BOOKS))
+        manager!!.getCache(QUERY_CACHE, QueryCacheItem::class.java, Long.MAX_VALUE)!!
+                .save(QueryCacheItem(BOOKS, "{\"pages\":1}", "2019-01-01T00:00:00.000Z"))
+
+        restart()
+
+        val item = manager!!.getCache(SYNC_ITEMS, SyncItem::class.java, Long.MAX_VALUE)!![query().equals("meta.id", "e2")].single()
+        assertEquals(SyncRequest.HttpVerb.DELETE, item.requestMethod)
+        assertEquals(BOOKS, item.collectionName)
+        val queryCache = manager!!.getCache(QUERY_CACHE, QueryCacheItem::class.java, Long.MAX_VALUE)!!
+        assertEquals("2019-01-01T00:00:00.000Z", queryCache[query().equals("query", "{\"pages\":1}")].single().lastRequestTime)
+    }
+
+    fun testConcurrentWritesWithCompaction() {
+        manager?.close()
+        manager = open(8192)
+        val executor = Executors.newFixedThreadPool(4)
+        val tasks = (0 until 4).map { thread ->
+            Callable {
+                val cache = bookCache()
+                for (i in 0 until 300) {
+                    cache.save(book("$thread-${i % 20}", "Book", i))
+                    assertEquals(i, cache["$thread-${i % 20}"]?.pages)
+                }
+            }
+        }
+        executor.invokeAll(tasks).forEach { it.get() }
+        executor.shutdown()
+        restart()
+        assertEquals(80, bookCache().get().size)
+        assertTrue(bookCache().get().all { it.pages >= 280 })
+    }
+
+    private fun open(maxSegmentSize: Long = DiskCacheManager.DEFAULT_MAX_SEGMENT_SIZE) =
+            DiskCacheManager(directory!!, GsonFactory(), maxSegmentSize)
+
+    private fun restart() {
+        manager?.close()
+        manager = open()
+    }
+
+    private fun bookCache(): ICache<Book> = manager!!.getCache(BOOKS, Book::class.java, Long.MAX_VALUE)!!
+
+    private fun query() = Query(MongoQueryFilter.MongoQueryFilterBuilder())
+
+    private fun ids(books: List<Book>) = books.map { it.id }
+
+    private fun book(id: String, title: String, pages: Int) = Book().apply {
+        this.id = id
+        this.title = title
+        this.pages = pages
+    }
+
+    companion object {
+        private const val BOOKS = "books"
+        private const val SYNC_ITEMS = "syncitems"
+        private const val QUERY_CACHE = "queryCache"
+    }
+}
@@ -0,0 +1,58 @@
+package com.kinvey.java.cache
+
+import com.kinvey.java.Query
+import com.kinvey.java.cache.InMemoryCacheManagerTest.Book
+import com.kinvey.java.query.MongoQueryFilter
+import com.kinvey.java.testing.Benchmark
+import junit.framework.TestCase
+
+/**
+ * Runs get by id, query by an indexed field, query by a not indexed field and save on [InMemoryCacheManager] caches
+ * of 20k entities, each by [THREADS] threads at once. The indexed and the not indexed query must find the same
+ * entities. The throughput is measured and logged only with `-Dkinvey.benchmark=true`, the 200k entity run is
+ * enabled with `-Dkinvey.benchmark.large=true`.
+ */
+class InMemoryCacheBenchmarkTest : TestCase() {
+
+    fun testOperationsUnderContention() {
+        val sizes = if (Benchmark.isLargeEnabled) listOf(20000, 200000) else listOf(20000)
+        sizes.forEach { size ->
+            val manager = InMemoryCacheManager()
+            manager.addIndex(BOOKS, "pages")
+            val cache = manager.getCache(BOOKS, Book::class.java, Long.MAX_VALUE)!!
+            cache.save((0 until size).map { book(it) })
+
+            listOf(0, size / 2, size - 1).forEach { index ->
+                val found = cache[query().equals("pages", index)]
+                assertEquals(listOf(index.toString()), found.map { it.id })
+                assertEquals(found.map { it.id }, cache[query().equals("title", "Book $index")].map { it.id })
+            }
+            val operations = if (Benchmark.isEnabled) OPERATIONS else OPERATIONS / 10
+            val queries = if (Benchmark.isEnabled) QUERIES else QUERIES / 10
+            val getById = Benchmark.measureConcurrent(THREADS, operations) { thread, i -> cache["${(thread * 7919 + i * 31) % size}"] }
+            val indexedQuery = Benchmark.measureConcurrent(THREADS, queries) { thread, i -> cache[query().equals("pages", (thread * 7919 + i * 31) % size)] }
+            val scanQuery = Benchmark.measureConcurrent(THREADS, queries) { thread, i -> cache[query().equals("title", "Book ${(thread * 7919 + i * 31) % size}")] }
+            val save = Benchmark.measureConcurrent(THREADS, operations) { thread, i -> cache.save(book((thread * 7919 + i * 31) % size)) }
+            assertEquals(size.toLong(), cache.count(null))
+            if (Benchmark.isEnabled) {
+                Benchmark.report(javaClass, "items=$size threads=$THREADS get by id: $getById ops/s, indexed query: $indexedQuery ops/s, " +
+                        "not indexed query: $scanQuery ops/s, save: $save ops/s")
+            }
+        }
+    }
+
+    private fun query() = Query(MongoQueryFilter.MongoQueryFilterBuilder())
+
+    private fun book(i: Int) = Book().apply {
+        id = i.toString()
+        title = "Book $i"
+        pages = i
+    }
+
+    companion object {
+        private const val BOOKS = "books"
+        private const val THREADS = 4
+        private const val OPERATIONS = 20000
+        private const val QUERIES = 100
+    }
+}
@@ -0,0 +1,168 @@
+package com.kinvey.java.cache
+
+import com.google.api.client.json.GenericJson
+import com.google.api.client.util.Key
+import com.kinvey.java.Query
+import com.kinvey.java.model.AggregateType
+import com.kinvey.java.query.AbstractQuery
+import com.kinvey.java.query.MongoQueryFilter
+import com.kinvey.java.sync.dto.SyncItem
+import com.kinvey.java.sync.dto.SyncRequest
+import junit.framework.TestCase
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+
+class InMemoryCacheManagerTest : TestCase() {
+
+    class Book : GenericJson() {
+        @Key("_id")
+        var id: String? = null
+        @Key
+        var title: String? = null
+        @Key
+        var pages: Int = 0
+        @Key
+        var tags: List<String>? = null
+        @Key
+        var author: Author? = null
+    }
+
+    class Author : GenericJson() {
+        @Key
+        var name: String? = null
+    }
+
+    private var manager = InMemoryCacheManager()
+
+    override fun setUp() {
+        manager = InMemoryCacheManager()
+    }
+
+    fun testSaveAndGetById() {
+        val cache = bookCache()
+        val saved = cache.save(book("1", "Kotlin", 300))
+        cache.save(Book().apply { title = "No id" })
+
+        val read = cache["1"]
+        assertEquals("Kotlin", read?.title)
+        assertNotSame(saved, read)
+        // changing the returned copy does not change the cache
+        read?.title = "Changed"
+        assertEquals("Kotlin", cache["1"]?.title)
+        assertEquals(2, cache.get().size)
+        assertTrue(cache.get().any { it.id?.startsWith("temp_") == true })
+        assertEquals(listOf("1"), cache[listOf("1", "unknown")].map { it.id })
+        assertEquals(1, cache.delete("1"))
+        assertNull(cache["1"])
+    }
+
+    fun testQueryFilterSortAndPaging() {
+        val cache = bookCache()
+        cache.save(listOf(book("1", "Alpha", 100, "a"), book("2", "Beta", 200, "b"),
+                book("3", "Gamma", 300, "a", "b"), book("4", "Delta", 400)))
+
+        assertEquals(listOf("2", "3"), ids(cache[query().greaterThan("pages", 100).lessThanEqualTo("pages", 300)]))
+        assertEquals(listOf("1", "3"), ids(cache[query().equals("tags", "a")]))
+        assertEquals(listOf("3"), ids(cache[query().all("tags", arrayOf("a", "b"))]))
+        assertEquals(listOf("1", "4"), ids(cache[query().`in`("title", arrayOf("Alpha", "Delta"))]))
+        assertEquals(listOf("2", "4"), ids(cache[query().notIn("title", arrayOf("Alpha", "Gamma"))]))
+        assertEquals(listOf("4", "2"), ids(cache[query().startsWith("title", "D").or(query().equals("title", "Beta"))
+                .addSort("pages", AbstractQuery.SortOrder.DESC) as Query]))
+        assertEquals(listOf("3", "2"), ids(cache[query().addSort("pages", AbstractQuery.SortOrder.DESC).setSkip(1).setLimit(2) as Query]))
+        assertEquals(2L, cache.count(query().greaterThan("pages", 200)))
+        assertEquals(2, cache.delete(query().lessThan("pages", 300)))
+        assertEquals(listOf("3", "4"), ids(cache.get()))
+    }
+
+    fun testDottedPathsAndSecondaryIndex() {
+        manager.addIndex(BOOKS, "author.name")
+        manager.addIndex(BOOKS, "pages")
+        val cache = bookCache()
+        (1..100).forEach { i ->
+            cache.save(book(i.toString(), "Book $i", i).apply { author = Author().apply { name = "author${i % 10}" } })
+        }
+
+        assertEquals(setOf("author.name", "pages"), manager.getIndexes(BOOKS))
+        val found = cache[query().equals("author.name", "author3").greaterThanEqualTo("pages", 50)]
+        assertEquals(listOf("53", "63", "73", "83", "93"), ids(found))
+        assertEquals(listOf("10", "20"), ids(cache[query().`in`("pages", arrayOf(10, 20L)).equals("author.name", "author0")]))
+        // saving again reindexes the entity
+        cache.save(book("53", "Book 53", 10).apply { author = Author().apply { name = "author3" } })
+        assertEquals(listOf("63", "73", "83", "93"), ids(cache[query().equals("author.name", "author3").greaterThanEqualTo("pages", 50)]))
+    }
+
+    fun testExpiredEntitiesAreNotReturned() {
+        val cache = manager.getCache(BOOKS, Book::class.java, 50L)!!
+        cache.save(book("1", "Short lived", 1))
+        assertNotNull(cache["1"])
+        Thread.sleep(1100)
+        assertNull(cache["1"])
+        assertEquals(0, cache.get().size)
+        assertEquals(0, bookCache().get().size)
+    }
+
+    fun testGroup() {
+        val cache = bookCache()
+        cache.save(listOf(book("1", "A", 100, "x"), book("2", "A", 300), book("3", "B", 50)))
+
+        val sums = cache.group(AggregateType.SUM, arrayListOf("title"), "pages", query())
+        assertEquals(2, sums.size)
+        assertEquals("A", sums[0]["title"])
+        assertEquals(400L, sums[0].result)
+        val averages = cache.group(AggregateType.AVERAGE, arrayListOf("title"), "pages", query().equals("title", "A"))
+        assertEquals(200.0, averages.single().result)
+        assertEquals(2L, cache.group(AggregateType.COUNT, arrayListOf("title"), null, query())[0].result)
+    }
+
+    fun testSyncQueueCollection() {
+        val cache = manager.getCache(SYNC_ITEMS, SyncItem::class.java, Long.MAX_VALUE)!!
+        cache.save(SyncItem(SyncRequest.HttpVerb.PUT, SyncRequest.SyncMetaData("e1"), "books"))
+        cache.save(SyncItem(SyncRequest.HttpVerb.DELETE, SyncRequest.SyncMetaData("e2"), "books"))
+        cache.save(SyncItem(SyncRequest.HttpVerb.PUT, SyncRequest.SyncMetaData("e3"), "authors"))
+
+        assertEquals(2L, cache.count(query().equals("collection", "books")))
+        val item = cache[query().equals("meta.id", "e2")].single()
+        assertEquals(SyncRequest.HttpVerb.DELETE, item.requestMethod)
+        assertEquals("e2", item.entityID?.id)
+        manager.clearCollection(SYNC_ITEMS, SyncItem::class.java, Long.MAX_VALUE)
+        assertEquals(0, cache.get().size)
+    }
+
+    fun testConcurrentReadsAndWrites() {
+        manager.addIndex(BOOKS, "pages")
+        val executor = Executors.newFixedThreadPool(8)
+        val tasks = (0 until 8).map { thread ->
+            Callable {
+                val cache = bookCache()
+                for (i in 0 until 500) {
+                    val id = "$thread-$i"
+                    cache.save(book(id, "Book", i))
+                    assertEquals(id, cache[id]?.id)
+                    cache[query().equals("pages", i)]
+                }
+            }
+        }
+        executor.invokeAll(tasks).forEach { it.get() }
+        executor.shutdown()
+        assertEquals(4000, bookCache().get().size)
+        assertEquals(8L, bookCache().count(query().equals("pages", 499)))
+    }
+
+    private fun bookCache(): ICache<Book> = manager.getCache(BOOKS, Book::class.java, Long.MAX_VALUE)!!
+
+    private fun query() = Query(MongoQueryFilter.MongoQueryFilterBuilder())
+
+    private fun ids(books: List<Book>) = books.map { it.id }
+
+    private fun book(id: String, title: String, pages: Int, vararg tags: String) = Book().apply {
+        this.id = id
+        this.title = title
+        this.pages = pages
+        this.tags = tags.toList()
+    }
+
+    companion object {
+        private const val BOOKS = "books"
+        private const val SYNC_ITEMS = "syncitems"
+    }
+}
@@ -0,0 +1,61 @@
+package com.kinvey.java.core
+
+import com.google.api.client.json.GenericJson
+import com.google.api.client.util.Key
+import com.kinvey.java.annotations.KinveyReference
+import junit.framework.TestCase
+
+class EntityDescriptorTest : TestCase() {
+
+    open class Base : GenericJson() {
+        @Key("_id")
+        var id: String? = null
+    }
+
+    class Author : Base() {
+        @Key
+        var name: String? = null
+        @Key("books")
+        var bookList: List<Book>? = null
+        @Key
+        var tags: Array<String>? = null
+        @KinveyReference(fieldName = "favorite", collection = "books", itemClass = Book::class)
+        var favorite: Book? = null
+        var notKey: String? = null
+    }
+
+    class Book : Base() {
+        @Key
+        var title: String? = null
+    }
+
+    fun testPropertiesOfClassAndSuperclass() {
+        val descriptor = EntityDescriptor.of(Author::class.java)
+
+        val keys = descriptor.properties.filter { it.fieldInfo != null }.map { it.name }
+        assertEquals(listOf("name", "books", "tags", "_id"), keys)
+        assertEquals(Book::class.java, descriptor.property("books")?.elementType)
+        assertEquals(String::class.java, descriptor.property("tags")?.elementType)
+        assertNull(descriptor.property("name")?.elementType)
+        assertNull(descriptor.property("notKey"))
+    }
+
+    fun testReferencesAndValues() {
+        val author = Author().apply {
+            name = "Ann"
+            favorite = Book().apply { title = "First" }
+            notKey = "value"
+        }
+        val descriptor = EntityDescriptor.of(Author::class.java)
+
+        assertEquals(listOf("favorite"), descriptor.references.map { it.name })
+        assertEquals("books", descriptor.references[0].reference?.collection)
+        assertSame(author.favorite, descriptor.references[0].get(author))
+        assertEquals("Ann", descriptor.property("name")?.get(author))
+        assertEquals("value", descriptor.properties.first { it.name == "notKey" }.get(author))
+    }
+
+    fun testDescriptorIsReflectedOnce() {
+        assertSame(EntityDescriptor.of(Book::class.java), EntityDescriptor.of(Book::class.java))
+    }
+}
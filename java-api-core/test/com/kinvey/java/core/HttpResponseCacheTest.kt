@@ -0,0 +1,210 @@
+package com.kinvey.java.core
+
+import com.google.api.client.http.LowLevelHttpRequest
+import com.google.api.client.http.LowLevelHttpResponse
+import com.google.api.client.json.GenericJson
+import com.google.api.client.testing.http.MockHttpTransport
+import com.google.api.client.testing.http.MockLowLevelHttpRequest
+import com.google.api.client.testing.http.MockLowLevelHttpResponse
+import com.kinvey.java.dto.BaseUser
+import com.kinvey.java.network.NetworkManager
+import java.io.File
+import java.nio.file.Files
+import java.util.Collections
+
+class HttpResponseCacheTest : KinveyMockUnitTest<BaseUser>() {
+
+    private val sentValidators = Collections.synchronizedList(ArrayList<String?>())
+    private var etag = "\"v1\""
+    private var body = "{\"_id\":\"1\",\"title\":\"Kotlin\"}"
+
+    private val transport = object : MockHttpTransport() {
+        override fun buildRequest(method: String, url: String): LowLevelHttpRequest {
+            return object : MockLowLevelHttpRequest(url) {
+                override fun execute(): LowLevelHttpResponse {
+                    val ifNoneMatch = getFirstHeaderValue("If-None-Match")
+                    sentValidators.add(ifNoneMatch)
+                    if (ifNoneMatch == etag) {
+                        return MockLowLevelHttpResponse().setStatusCode(304)
+                    }
+                    return MockLowLevelHttpResponse().setContent(body).setContentType("application/json; charset=UTF-8")
+                            .addHeader("ETag", etag)
+                }
+            }
+        }
+    }
+
+    fun testUnchangedResponseIsServedFromCache() {
+        val client = getClient(transport)
+        val cache = InMemoryHttpResponseCache()
+        client.httpResponseCache = cache
+        val networkManager = NetworkManager("books", GenericJson::class.java, client)
+
+        val first = networkManager.getEntityBlocking("1")?.execute()
+        val second = networkManager.getEntityBlocking("1")?.execute()
+
+        assertEquals(listOf(null, "\"v1\""), sentValidators)
+        assertEquals("Kotlin", first?.get("title"))
+        assertEquals("Kotlin", second?.get("title"))
+        assertEquals(body.length.toLong(), cache.size)
+    }
+
+    fun testChangedResponseReplacesCachedOne() {
+        val client = getClient(transport)
+        client.httpResponseCache = InMemoryHttpResponseCache()
+        val networkManager = NetworkManager("books", GenericJson::class.java, client)
+
+        networkManager.getEntityBlocking("1")?.execute()
+        etag = "\"v2\""
+        body = "{\"_id\":\"1\",\"title\":\"Java\"}"
+        val changed = networkManager.getEntityBlocking("1")?.execute()
+        val cached = networkManager.getEntityBlocking("1")?.execute()
+
+        assertEquals(listOf(null, "\"v1\"", "\"v2\""), sentValidators)
+        assertEquals("Java", changed?.get("title"))
+        assertEquals("Java", cached?.get("title"))
+    }
+
+    fun testUnchangedCountIsServedFromCache() {
+        val client = getClient(transport)
+        client.httpResponseCache = InMemoryHttpResponseCache()
+        body = "{\"count\":3}"
+        val networkManager = NetworkManager("books", GenericJson::class.java, client)
+
+        val first = networkManager.getCountBlocking(null)?.execute()
+        val second = networkManager.getCountBlocking(null)?.execute()
+
+        assertEquals(listOf(null, "\"v1\""), sentValidators)
+        assertEquals(3, first?.count)
+        assertEquals(3, second?.count)
+    }
+
+    fun testUnchangedDeltaIsServedFromCache() {
+        val client = getClient(transport)
+        client.httpResponseCache = InMemoryHttpResponseCache()
+        body = "{\"changed\":[{\"_id\":\"1\",\"title\":\"Kotlin\"}],\"deleted\":[]}"
+        val networkManager = NetworkManager("books", GenericJson::class.java, client)
+
+        val first = networkManager.queryCacheGetBlocking(client.query(), "2019-01-01T00:00:00.000Z")?.execute()
+        val second = networkManager.queryCacheGetBlocking(client.query(), "2019-01-01T00:00:00.000Z")?.execute()
+
+        assertEquals(listOf(null, "\"v1\""), sentValidators)
+        assertEquals("Kotlin", first?.changed?.get(0)?.get("title"))
+        assertEquals("Kotlin", second?.changed?.get(0)?.get("title"))
+    }
+
+    fun testNoValidatorsWithoutCache() {
+        val networkManager = NetworkManager("books", GenericJson::class.java, getClient(transport))
+
+        networkManager.getEntityBlocking("1")?.execute()
+        networkManager.getEntityBlocking("1")?.execute()
+
+        assertEquals(listOf<String?>(null, null), sentValidators)
+    }
+
+    fun testInMemoryCacheEvictsLeastRecentlyUsed() {
+        val cache = InMemoryHttpResponseCache(250)
+        cache.put("a", entry(100))
+        cache.put("b", entry(100))
+        assertNotNull(cache["a"])
+        cache.put("c", entry(100))
+
+        assertNotNull(cache["a"])
+        assertNull(cache["b"])
+        assertNotNull(cache["c"])
+    }
+
+    fun testDiskCacheSurvivesReopenAndEvicts() {
+        val directory = Files.createTempDirectory("responses").toFile()
+        try {
+            val cache = DiskHttpResponseCache(directory, 450)
+            cache.put("a", HttpResponseCache.Entry("\"e\"", null, "application/json", ByteArray(100) { 7 }))
+            cache.put("b", entry(100))
+
+            val reopened = DiskHttpResponseCache(directory, 450)
+            val a = reopened["a"]
+            assertEquals("\"e\"", a?.etag)
+            assertEquals("application/json", a?.contentType)
+            assertTrue(ByteArray(100) { 7 }.contentEquals(a!!.body))
+            reopened.put("c", entry(100))
+
+            assertNotNull(reopened["a"])
+            assertNull(reopened["b"])
+            assertNotNull(reopened["c"])
+            reopened.clear()
+            assertNull(reopened["a"])
+        } finally {
+            directory.deleteRecursively()
+        }
+    }
+
+    fun testCorruptedDiskEntryIsIgnored() {
+        val directory = Files.createTempDirectory("responses").toFile()
+        try {
+            val cache = DiskHttpResponseCache(directory, 1000)
+            cache.put("a", entry(100))
+            directory.listFiles { file: File -> file.isFile }!!.forEach { it.writeBytes(ByteArray(10)) }
+
+            assertNull(cache["a"])
+        } finally {
+            directory.deleteRecursively()
+        }
+    }
+
+    fun testBodyBiggerThanMaxEntryIsNotCached() {
+        val client = getClient(transport)
+        val cache = InMemoryHttpResponseCache()
+        client.httpResponseCache = object : HttpResponseCache by cache {
+            override val maxEntryBytes: Long = 10
+        }
+        val networkManager = NetworkManager("books", GenericJson::class.java, client)
+
+        val first = networkManager.getEntityBlocking("1")?.execute()
+        val second = networkManager.getEntityBlocking("1")?.execute()
+
+        assertEquals(listOf<String?>(null, null), sentValidators)
+        assertEquals("Kotlin", first?.get("title"))
+        assertEquals("Kotlin", second?.get("title"))
+        assertEquals(0L, cache.size)
+    }
+
+    fun testDiskCacheDoesNotWriteKey() {
+        val directory = Files.createTempDirectory("responses").toFile()
+        try {
+            val cache = DiskHttpResponseCache(directory, 1000)
+            val key = "https://baas.kinvey.com/appdata/kid/books/1\nKinvey session-token"
+            cache.put(key, entry(10))
+
+            val files = directory.listFiles { file: File -> file.isFile }!!
+            assertEquals(1, files.size)
+            assertFalse(String(files[0].readBytes(), Charsets.ISO_8859_1).contains("session-token"))
+            assertNotNull(DiskHttpResponseCache(directory, 1000)[key])
+            assertNull(cache["another key"])
+        } finally {
+            directory.deleteRecursively()
+        }
+    }
+
+    fun testDiskCacheLeavesOtherFilesAlone() {
+        val directory = Files.createTempDirectory("responses").toFile()
+        try {
+            val other = File(directory, "notes.txt").apply { writeBytes(ByteArray(500)) }
+            val otherTemp = File(directory, "tmp/upload.part").apply { parentFile.mkdirs(); writeText("part") }
+            val cache = DiskHttpResponseCache(directory, 250)
+            cache.put("a", entry(100))
+            cache.put("b", entry(100))
+            cache.put("c", entry(100))
+
+            assertNull(cache["a"])
+            assertNotNull(cache["c"])
+            cache.clear()
+            assertNull(cache["c"])
+            assertTrue(other.exists())
+            assertTrue(otherTemp.exists())
+        } finally {
+            directory.deleteRecursively()
+        }
+    }
+
+    private fun entry(size: Int) = HttpResponseCache.Entry("\"e\"", null, null, ByteArray(size))
+}
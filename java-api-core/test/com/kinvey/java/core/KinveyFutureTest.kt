@@ -0,0 +1,108 @@
+package com.kinvey.java.core
+
+import junit.framework.TestCase
+import java.io.IOException
+import java.util.concurrent.Callable
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+class KinveyFutureTest : TestCase() {
+
+    private val executor = Executors.newSingleThreadExecutor()
+
+    override fun tearDown() {
+        executor.shutdownNow()
+    }
+
+    fun testResultAndErrorAreCompleted() {
+        val caller = Thread.currentThread()
+        val result = KinveyFuture.supply(executor, Callable { Thread.currentThread() !== caller })
+        assertTrue(result.get(5, TimeUnit.SECONDS))
+
+        val failed = KinveyFuture.supply(executor, Callable<String> { throw IOException("failed") })
+        try {
+            failed.get(5, TimeUnit.SECONDS)
+            fail("ExecutionException is expected")
+        } catch (e: ExecutionException) {
+            assertTrue(e.cause is IOException)
+        }
+    }
+
+    fun testCancelledBeforeStartNeverRuns() {
+        val blocker = CountDownLatch(1)
+        executor.execute { blocker.await() }
+        val runs = AtomicInteger()
+        val future = KinveyFuture.supply(executor, Callable { runs.incrementAndGet() })
+
+        assertTrue(future.cancel(false))
+        blocker.countDown()
+        KinveyFuture.supply(executor, Callable { 0 }).get(5, TimeUnit.SECONDS)
+
+        assertEquals(0, runs.get())
+        try {
+            future.get()
+            fail("CancellationException is expected")
+        } catch (e: CancellationException) {
+            assertNotNull(e)
+        }
+    }
+
+    fun testCancelInterruptsRunningTask() {
+        val started = CountDownLatch(1)
+        val interrupted = CountDownLatch(1)
+        val cancelAction = AtomicBoolean()
+        val future = KinveyFuture.supply(executor, Callable {
+            started.countDown()
+            try {
+                Thread.sleep(10_000)
+            } catch (e: InterruptedException) {
+                interrupted.countDown()
+            }
+            "done"
+        }, Runnable { cancelAction.set(true) })
+        assertTrue(started.await(5, TimeUnit.SECONDS))
+
+        assertTrue(future.cancel(true))
+
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS))
+        assertTrue(cancelAction.get())
+        assertTrue(future.isCancelled)
+        // the interrupt does not leak into the next task of the thread
+        assertFalse(KinveyFuture.supply(executor, Callable { Thread.currentThread().isInterrupted }).get(5, TimeUnit.SECONDS))
+    }
+
+    fun testCancelledCallbackGetsNoResult() {
+        val delivered = AtomicInteger()
+        val cancelled = AtomicInteger()
+        val blocker = CountDownLatch(1)
+        val callback = object : KinveyCancellableCallback<String> {
+            override var isCancelled = false
+            override fun onSuccess(result: String?) {
+                delivered.incrementAndGet()
+            }
+
+            override fun onFailure(error: Throwable?) {
+                delivered.incrementAndGet()
+            }
+
+            override fun onCancelled() {
+                cancelled.incrementAndGet()
+            }
+        }
+        val future = KinveyFuture.supply(executor, Callable {
+            blocker.await()
+            "result"
+        }).whenDone(callback)
+        callback.isCancelled = true
+        blocker.countDown()
+
+        assertEquals("result", future.get(5, TimeUnit.SECONDS))
+        assertEquals(0, delivered.get())
+        assertEquals(1, cancelled.get())
+    }
+}
@@ -0,0 +1,87 @@
+package com.kinvey.java.core
+
+import com.google.api.client.json.GenericJson
+import com.google.api.client.json.JsonObjectParser
+import com.google.api.client.json.gson.GsonFactory
+import com.google.api.client.util.Charsets
+import com.google.api.client.util.Key
+import com.google.gson.JsonArray
+import com.google.gson.JsonParser
+import com.kinvey.java.testing.Benchmark
+import junit.framework.TestCase
+import java.io.ByteArrayInputStream
+
+/**
+ * Compares the streaming array parsing used by [AbstractKinveyReadRequest] with the previous
+ * parse-to-string, build a tree and re-parse every element approach on 1k and 10k item arrays.
+ * Both must parse the same entities. Their throughput and allocated bytes per parsed array are measured and logged
+ * only with `-Dkinvey.benchmark=true`, the 100k item run is enabled with `-Dkinvey.benchmark.large=true`.
+ */
+class KinveyJsonArrayParserBenchmarkTest : TestCase() {
+
+    private val factory = GsonFactory()
+    private val objectParser = JsonObjectParser(factory)
+
+    fun testStreamingParserMatchesLegacy() {
+        val sizes = if (Benchmark.isLargeEnabled) listOf(1000, 10000, 100000) else listOf(1000, 10000)
+        sizes.forEach { size ->
+            val payload = payload(size)
+            val parsed = parseStreaming(payload)
+            assertEquals(size, parsed.size)
+            assertEquals(parseLegacy(payload).map { listOf(it.id, it.name, it.age) }, parsed.map { listOf(it.id, it.name, it.age) })
+            if (Benchmark.isEnabled) {
+                val streaming = Benchmark.measure(size.toLong(), WARMUP_ITERATIONS, ITERATIONS) { parseStreaming(payload) }
+                val legacy = Benchmark.measure(size.toLong(), WARMUP_ITERATIONS, ITERATIONS) { parseLegacy(payload) }
+                Benchmark.report(javaClass, "items=$size streaming: ${streaming.itemsPerSecond} items/s, ${streaming.bytesPerRun} B/op; " +
+                        "legacy: ${legacy.itemsPerSecond} items/s, ${legacy.bytesPerRun} B/op")
+            }
+        }
+    }
+
+    private fun parseStreaming(bytes: ByteArray): List<Entity> {
+        val results = ArrayList<Entity>()
+        val exceptions = ArrayList<Exception>()
+        KinveyJsonArrayParser(factory).parseArrayAndClose(ByteArrayInputStream(bytes), Charsets.UTF_8,
+                Entity::class.java, results, exceptions)
+        return results
+    }
+
+    private fun parseLegacy(bytes: ByteArray): List<Entity> {
+        val results = ArrayList<Entity>()
+        val jsonString = String(bytes, Charsets.UTF_8)
+        val jsonArray = JsonParser().parse(jsonString) as JsonArray
+        jsonArray.forEach { element ->
+            val item = objectParser.parseAndClose(ByteArrayInputStream(element.toString().toByteArray(Charsets.UTF_8)),
+                    Charsets.UTF_8, Entity::class.java)
+            results.add(item)
+        }
+        return results
+    }
+
+    private fun payload(size: Int): ByteArray {
+        val builder = StringBuilder("[")
+        for (i in 0 until size) {
+            if (i > 0) {
+                builder.append(',')
+            }
+            builder.append("""{"_id":"5d9753c32e3050651455$i","name":"entity $i","age":$i,""")
+                    .append(""""_kmd":{"lmt":"2019-10-04T14:14:27.094Z","ect":"2019-10-04T14:14:27.094Z"},""")
+                    .append(""""_acl":{"creator":"5d9753c32e3050651455677f"}}""")
+        }
+        return builder.append(']').toString().toByteArray(Charsets.UTF_8)
+    }
+
+    class Entity : GenericJson() {
+        @Key("_id")
+        var id: String? = null
+        @Key
+        var name: String? = null
+        @Key
+        var age: Int = 0
+    }
+
+    companion object {
+        private const val WARMUP_ITERATIONS = 2
+        private const val ITERATIONS = 3
+    }
+}
@@ -0,0 +1,148 @@
+package com.kinvey.java.core
+
+import com.google.api.client.json.GenericJson
+import com.google.api.client.json.JsonFactory
+import com.google.api.client.json.JsonToken
+import com.google.api.client.json.gson.GsonFactory
+import com.google.api.client.json.jackson.JacksonFactory
+import com.google.api.client.util.Key
+import com.kinvey.java.KinveyException
+import junit.framework.TestCase
+import java.io.ByteArrayInputStream
+import java.io.IOException
+import java.nio.charset.StandardCharsets
+
+class KinveyJsonArrayParserTest : TestCase() {
+
+    private val factories: List<JsonFactory> = listOf(GsonFactory(), JacksonFactory())
+
+    fun testParseArray() {
+        val json = """[{"_id":"1","name":"first","age":10},{"_id":"2","name":"second","age":20}]"""
+        factories.forEach { factory ->
+            val results = mutableListOf<Entity>()
+            val exceptions = mutableListOf<Exception>()
+            KinveyJsonArrayParser(factory).parseArrayAndClose(stream(json), StandardCharsets.UTF_8, Entity::class.java, results, exceptions)
+            assertEquals(2, results.size)
+            assertEquals("1", results[0].id)
+            assertEquals("second", results[1].name)
+            assertEquals(20, results[1].age)
+            assertTrue(exceptions.isEmpty())
+        }
+    }
+
+    fun testParseEmptyArray() {
+        factories.forEach { factory ->
+            val results = mutableListOf<Entity>()
+            val exceptions = mutableListOf<Exception>()
+            KinveyJsonArrayParser(factory).parseArrayAndClose(stream("[]"), StandardCharsets.UTF_8, Entity::class.java, results, exceptions)
+            assertTrue(results.isEmpty())
+            assertTrue(exceptions.isEmpty())
+        }
+    }
+
+    fun testNestedValuesAreKept() {
+        val json = """[{"_id":"1","_kmd":{"lmt":"2019-10-04T14:14:27.094Z","ect":"2019-10-04T14:14:27.094Z"},"tags":[["a"],["b","c"]]}]"""
+        factories.forEach { factory ->
+            val results = mutableListOf<Entity>()
+            val exceptions = mutableListOf<Exception>()
+            KinveyJsonArrayParser(factory).parseArrayAndClose(stream(json), StandardCharsets.UTF_8, Entity::class.java, results, exceptions)
+            assertEquals(1, results.size)
+            assertEquals("2019-10-04T14:14:27.094Z", (results[0]["_kmd"] as Map<*, *>)["lmt"])
+            assertEquals(2, (results[0]["tags"] as List<*>).size)
+            assertTrue(exceptions.isEmpty())
+        }
+    }
+
+    fun testBrokenElementIsIsolated() {
+        val json = """[{"_id":"1","age":1},{"_id":"2","age":"not a number","_kmd":{"lmt":"x"}},{"_id":"3","_kmd":{"lmt":"y"},"age":3}]"""
+        factories.forEach { factory ->
+            val results = mutableListOf<Entity>()
+            val exceptions = mutableListOf<Exception>()
+            KinveyJsonArrayParser(factory).parseArrayAndClose(stream(json), StandardCharsets.UTF_8, Entity::class.java, results, exceptions)
+            assertEquals(2, results.size)
+            assertEquals("1", results[0].id)
+            assertEquals("3", results[1].id)
+            assertEquals(3, results[1].age)
+            assertEquals(1, exceptions.size)
+            assertTrue(exceptions[0] is KinveyException)
+        }
+    }
+
+    fun testReadArraysInsideObject() {
+        val json = """{"changed":[{"_id":"1"},{"_id":"2"}],"other":{"skip":[1,2,3]},"deleted":[{"_id":"3"}]}"""
+        factories.forEach { factory ->
+            val arrayParser = KinveyJsonArrayParser(factory)
+            val changed = mutableListOf<Entity>()
+            val deleted = mutableListOf<Entity>()
+            val exceptions = mutableListOf<Exception>()
+            val parser = arrayParser.createParser(stream(json), StandardCharsets.UTF_8)
+            parser.nextToken()
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                val name = parser.currentName
+                parser.nextToken()
+                when (name) {
+                    "changed" -> arrayParser.readArray(parser, Entity::class.java, changed, exceptions)
+                    "deleted" -> arrayParser.readArray(parser, Entity::class.java, deleted, exceptions)
+                    else -> parser.skipChildren()
+                }
+            }
+            parser.close()
+            assertEquals(listOf("1", "2"), changed.map { it.id })
+            assertEquals(listOf("3"), deleted.map { it.id })
+            assertTrue(exceptions.isEmpty())
+        }
+    }
+
+    fun testReadArrayOfOtherParser() {
+        val json = """{"changed":[{"_id":"1","age":"not a number","_kmd":{"lmt":"x"}},{"_id":"2"}]}"""
+        factories.forEach { factory ->
+            val changed = mutableListOf<Entity>()
+            val exceptions = mutableListOf<Exception>()
+            val parser = factory.createJsonParser(stream(json), StandardCharsets.UTF_8)
+            parser.nextToken()
+            parser.nextToken()
+            parser.nextToken()
+            KinveyJsonArrayParser(factory).readArray(parser, Entity::class.java, changed, exceptions)
+            assertEquals(JsonToken.END_ARRAY, parser.currentToken)
+            assertEquals(JsonToken.END_OBJECT, parser.nextToken())
+            parser.close()
+            assertEquals(listOf("2"), changed.map { it.id })
+            assertEquals(1, exceptions.size)
+        }
+    }
+
+    fun testNotArrayFails() {
+        factories.forEach { factory ->
+            try {
+                KinveyJsonArrayParser(factory).parseArrayAndClose(stream("""{"_id":"1"}"""), StandardCharsets.UTF_8,
+                        Entity::class.java, mutableListOf<Entity>(), mutableListOf())
+                fail("IllegalArgumentException is expected")
+            } catch (e: IllegalArgumentException) {
+                assertNotNull(e.message)
+            }
+        }
+    }
+
+    fun testTruncatedContentFails() {
+        factories.forEach { factory ->
+            try {
+                KinveyJsonArrayParser(factory).parseArrayAndClose(stream("""[{"_id":"1"}"""), StandardCharsets.UTF_8,
+                        Entity::class.java, mutableListOf<Entity>(), mutableListOf())
+                fail("IOException is expected")
+            } catch (e: IOException) {
+                assertNotNull(e)
+            }
+        }
+    }
+
+    private fun stream(json: String) = ByteArrayInputStream(json.toByteArray(StandardCharsets.UTF_8))
+
+    class Entity : GenericJson() {
+        @Key("_id")
+        var id: String? = null
+        @Key
+        var name: String? = null
+        @Key
+        var age: Int = 0
+    }
+}
@@ -0,0 +1,226 @@
+package com.kinvey.java.core
+
+import com.google.api.client.http.GenericUrl
+import com.google.api.client.http.HttpResponseException
+import com.google.api.client.http.InputStreamContent
+import com.sun.net.httpserver.HttpServer
+import junit.framework.TestCase
+import java.io.ByteArrayInputStream
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.net.Proxy
+import java.net.ProxySelector
+import java.net.SocketAddress
+import java.net.URI
+import java.nio.charset.StandardCharsets
+import java.util.Collections
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Runs the pooled transport against a local HTTP server, which records the client port of every request,
+ * so a reused connection shows up as the same port.
+ */
+class KinveyPooledHttpTransportTest : TestCase() {
+
+    private var server: HttpServer? = null
+    private val clientPorts = Collections.synchronizedList(ArrayList<Int>())
+    private val inFlight = AtomicInteger()
+    private val maxInFlight = AtomicInteger()
+
+    override fun setUp() {
+        val server = HttpServer.create(InetSocketAddress("127.0.0.1", 0), 0)
+        server.executor = Executors.newCachedThreadPool()
+        server.createContext("/fixed") { exchange ->
+            clientPorts.add(exchange.remoteAddress.port)
+            val body = "fixed ${exchange.requestURI.query}".toByteArray(StandardCharsets.UTF_8)
+            exchange.sendResponseHeaders(200, body.size.toLong())
+            exchange.responseBody.use { it.write(body) }
+        }
+        server.createContext("/chunked") { exchange ->
+            clientPorts.add(exchange.remoteAddress.port)
+            val request = exchange.requestBody.readBytes()
+            exchange.sendResponseHeaders(200, 0)
+            exchange.responseBody.use { out ->
+                out.write("echo:".toByteArray(StandardCharsets.UTF_8))
+                out.flush()
+                out.write(request)
+            }
+        }
+        server.createContext("/slow") { exchange ->
+            clientPorts.add(exchange.remoteAddress.port)
+            val current = inFlight.incrementAndGet()
+            maxInFlight.accumulateAndGet(current) { a, b -> Math.max(a, b) }
+            Thread.sleep(50)
+            inFlight.decrementAndGet()
+            val body = "slow".toByteArray(StandardCharsets.UTF_8)
+            exchange.sendResponseHeaders(200, body.size.toLong())
+            exchange.responseBody.use { it.write(body) }
+        }
+        server.createContext("/nocontent") { exchange ->
+            // the server closes the connection after a response without content
+            clientPorts.add(exchange.remoteAddress.port)
+            exchange.sendResponseHeaders(204, -1)
+            exchange.close()
+        }
+        server.createContext("/close") { exchange ->
+            clientPorts.add(exchange.remoteAddress.port)
+            exchange.responseHeaders.add("Connection", "close")
+            val body = "closed".toByteArray(StandardCharsets.UTF_8)
+            exchange.sendResponseHeaders(200, body.size.toLong())
+            exchange.responseBody.use { it.write(body) }
+        }
+        server.createContext("/missing") { exchange ->
+            clientPorts.add(exchange.remoteAddress.port)
+            val body = "{\"error\":\"EntityNotFound\"}".toByteArray(StandardCharsets.UTF_8)
+            exchange.sendResponseHeaders(404, body.size.toLong())
+            exchange.responseBody.use { it.write(body) }
+        }
+        server.start()
+        this.server = server
+    }
+
+    override fun tearDown() {
+        server?.stop(0)
+    }
+
+    fun testSequentialRequestsReuseConnection() {
+        val transport = KinveyPooledHttpTransport.Builder().build()
+        val factory = transport.createRequestFactory()
+        for (i in 0 until 10) {
+            val response = factory.buildGetRequest(url("/fixed?i=$i")).execute()
+            assertEquals("fixed i=$i", response.parseAsString())
+        }
+        val stats = transport.poolStats
+        assertEquals(1L, stats.connectionsCreated)
+        assertEquals(9L, stats.connectionsReused)
+        assertEquals(0, stats.leased)
+        assertEquals(1, stats.idle)
+        assertEquals(1, clientPorts.toSet().size)
+        transport.shutdown()
+        assertEquals(0, transport.poolStats.idle)
+    }
+
+    fun testChunkedRequestAndResponse() {
+        val transport = KinveyPooledHttpTransport.Builder().build()
+        val factory = transport.createRequestFactory()
+        for (i in 0 until 3) {
+            // unknown length is sent with chunked transfer encoding
+            val content = InputStreamContent("text/plain", ByteArrayInputStream("body $i".toByteArray(StandardCharsets.UTF_8)))
+            val response = factory.buildPostRequest(url("/chunked"), content).execute()
+            assertEquals("echo:body $i", response.parseAsString())
+        }
+        assertEquals(1L, transport.poolStats.connectionsCreated)
+        assertEquals(1, clientPorts.toSet().size)
+    }
+
+    fun testErrorResponseKeepsConnection() {
+        val transport = KinveyPooledHttpTransport.Builder().build()
+        val factory = transport.createRequestFactory()
+        try {
+            factory.buildGetRequest(url("/missing")).execute()
+            fail("HttpResponseException is expected")
+        } catch (e: HttpResponseException) {
+            assertEquals(404, e.statusCode)
+        }
+        factory.buildGetRequest(url("/fixed?i=1")).execute().parseAsString()
+        assertEquals(1L, transport.poolStats.connectionsCreated)
+    }
+
+    fun testMaxConnectionsPerRoute() {
+        val transport = KinveyPooledHttpTransport.Builder().setMaxConnectionsPerRoute(2).build()
+        val factory = transport.createRequestFactory()
+        val executor = Executors.newFixedThreadPool(6)
+        val tasks = (0 until 12).map {
+            Callable {
+                factory.buildGetRequest(url("/slow")).execute().run {
+                    parseAsString()
+                    statusCode
+                }
+            }
+        }
+        val statuses = executor.invokeAll(tasks).map { it.get() }
+        executor.shutdown()
+        assertTrue(statuses.all { it == 200 })
+        assertTrue(maxInFlight.get() <= 2)
+        assertTrue(transport.poolStats.connectionsCreated <= 2)
+        assertTrue(clientPorts.toSet().size <= 2)
+        assertEquals(0, transport.poolStats.leased)
+        assertEquals(0, transport.poolStats.pending)
+    }
+
+    fun testIdleConnectionsAreEvicted() {
+        val transport = KinveyPooledHttpTransport.Builder().setIdleTimeout(50, TimeUnit.MILLISECONDS).build()
+        val factory = transport.createRequestFactory()
+        factory.buildGetRequest(url("/fixed?i=1")).execute().parseAsString()
+        assertEquals(1, transport.poolStats.idle)
+        Thread.sleep(100)
+        transport.evictIdleConnections()
+        assertEquals(0, transport.poolStats.idle)
+        factory.buildGetRequest(url("/fixed?i=2")).execute().parseAsString()
+        assertEquals(2L, transport.poolStats.connectionsCreated)
+    }
+
+    fun testKeepAliveDisabled() {
+        val transport = KinveyPooledHttpTransport.Builder().setKeepAliveEnabled(false).build()
+        val factory = transport.createRequestFactory()
+        for (i in 0 until 3) {
+            factory.buildGetRequest(url("/fixed?i=$i")).execute().parseAsString()
+        }
+        assertEquals(3L, transport.poolStats.connectionsCreated)
+        assertEquals(0, transport.poolStats.idle)
+        assertEquals(3, clientPorts.toSet().size)
+    }
+
+    fun testConnectionClosedByServerIsNotReused() {
+        val transport = KinveyPooledHttpTransport.Builder().build()
+        val factory = transport.createRequestFactory()
+        factory.buildGetRequest(url("/close")).execute().parseAsString()
+        assertEquals(0, transport.poolStats.idle)
+        factory.buildGetRequest(url("/fixed?i=1")).execute().parseAsString()
+        assertEquals(2L, transport.poolStats.connectionsCreated)
+        assertEquals(2, clientPorts.toSet().size)
+    }
+
+    fun testConnectionClosedWhileIdleIsReplaced() {
+        val transport = KinveyPooledHttpTransport.Builder().build()
+        val factory = transport.createRequestFactory()
+        for (i in 0 until 5) {
+            assertEquals(204, factory.buildGetRequest(url("/nocontent")).execute().statusCode)
+        }
+        assertEquals(5, clientPorts.toSet().size)
+        assertEquals(0, transport.poolStats.leased)
+    }
+
+    fun testPoolSettingsMustBeValid() {
+        try {
+            KinveyPooledHttpTransport.Builder().setMaxConnectionsPerRoute(0)
+            fail("IllegalArgumentException is expected")
+        } catch (e: IllegalArgumentException) {
+            assertNotNull(e.message)
+        }
+    }
+
+    fun testProxiedRequestUsesDefaultTransport() {
+        val defaultSelector = ProxySelector.getDefault()
+        // the local server stands in for the proxy, it gets the absolute URL of the request
+        ProxySelector.setDefault(object : ProxySelector() {
+            override fun select(uri: URI): List<Proxy> = listOf(Proxy(Proxy.Type.HTTP, server?.address))
+            override fun connectFailed(uri: URI, sa: SocketAddress, ioe: IOException) {}
+        })
+        try {
+            val transport = KinveyPooledHttpTransport.Builder().build()
+            val response = transport.createRequestFactory()
+                    .buildGetRequest(GenericUrl("http://proxied.kinvey.test/fixed?i=1")).execute()
+            assertEquals("fixed i=1", response.parseAsString())
+            assertEquals(0L, transport.poolStats.connectionsCreated)
+            assertEquals(1, clientPorts.size)
+        } finally {
+            ProxySelector.setDefault(defaultSelector)
+        }
+    }
+
+    private fun url(path: String) = GenericUrl("http://127.0.0.1:${server?.address?.port}$path")
+}
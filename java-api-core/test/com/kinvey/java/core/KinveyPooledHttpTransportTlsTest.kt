@@ -0,0 +1,108 @@
+package com.kinvey.java.core
+
+import com.google.api.client.http.GenericUrl
+import com.sun.net.httpserver.HttpsConfigurator
+import com.sun.net.httpserver.HttpsServer
+import junit.framework.TestCase
+import java.io.File
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.nio.charset.StandardCharsets
+import java.security.KeyStore
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import javax.net.ssl.HostnameVerifier
+import javax.net.ssl.KeyManagerFactory
+import javax.net.ssl.SSLContext
+import javax.net.ssl.TrustManagerFactory
+
+/**
+ * Runs the pooled transport against a local HTTPS server with a certificate issued for `localhost` only.
+ */
+class KinveyPooledHttpTransportTlsTest : TestCase() {
+
+    private var server: HttpsServer? = null
+    private var keyStoreFile: File? = null
+    private var keyStore: KeyStore? = null
+
+    override fun setUp() {
+        val file = File.createTempFile("server", ".p12")
+        file.delete()
+        keyStoreFile = file
+        val keytool = File(File(System.getProperty("java.home"), "bin"), "keytool").path
+        val process = ProcessBuilder(keytool, "-genkeypair", "-alias", "server", "-keyalg", "RSA", "-keysize", "2048",
+                "-validity", "2", "-dname", "CN=localhost", "-ext", "SAN=dns:localhost", "-storetype", "PKCS12",
+                "-keystore", file.path, "-storepass", PASSWORD, "-keypass", PASSWORD)
+                .redirectErrorStream(true).start()
+        process.inputStream.readBytes()
+        assertTrue(process.waitFor(60, TimeUnit.SECONDS))
+        val keyStore = KeyStore.getInstance("PKCS12")
+        file.inputStream().use { keyStore.load(it, PASSWORD.toCharArray()) }
+        this.keyStore = keyStore
+        val keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm())
+        keyManagers.init(keyStore, PASSWORD.toCharArray())
+        val context = SSLContext.getInstance("TLS")
+        context.init(keyManagers.keyManagers, null, null)
+        val server = HttpsServer.create(InetSocketAddress(0), 0)
+        server.httpsConfigurator = HttpsConfigurator(context)
+        server.executor = Executors.newCachedThreadPool()
+        server.createContext("/fixed") { exchange ->
+            val body = "secure".toByteArray(StandardCharsets.UTF_8)
+            exchange.sendResponseHeaders(200, body.size.toLong())
+            exchange.responseBody.use { it.write(body) }
+        }
+        server.start()
+        this.server = server
+    }
+
+    override fun tearDown() {
+        server?.stop(0)
+        keyStoreFile?.delete()
+    }
+
+    fun testHostOfCertificateIsAccepted() {
+        val transport = builder().build()
+        val factory = transport.createRequestFactory()
+        for (i in 0 until 3) {
+            assertEquals("secure", factory.buildGetRequest(url("localhost")).execute().parseAsString())
+        }
+        assertEquals(1L, transport.poolStats.connectionsCreated)
+        transport.shutdown()
+    }
+
+    fun testHostNotInCertificateIsRejected() {
+        val transport = builder().build()
+        try {
+            transport.createRequestFactory().buildGetRequest(url("127.0.0.1")).execute()
+            fail("the certificate is not issued for 127.0.0.1")
+        } catch (e: IOException) {
+        }
+        assertEquals(0L, transport.poolStats.connectionsCreated)
+        assertEquals(0, transport.poolStats.leased)
+    }
+
+    fun testCustomHostnameVerifierIsUsed() {
+        val transport = builder().setHostnameVerifier(HostnameVerifier { host, _ -> host == "localhost" }).build()
+        assertEquals("secure", transport.createRequestFactory().buildGetRequest(url("localhost")).execute().parseAsString())
+        val rejecting = builder().setHostnameVerifier(HostnameVerifier { _, _ -> false }).build()
+        try {
+            rejecting.createRequestFactory().buildGetRequest(url("localhost")).execute()
+            fail("the verifier rejects every host")
+        } catch (e: IOException) {
+        }
+    }
+
+    private fun builder(): KinveyPooledHttpTransport.Builder {
+        val trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm())
+        trustManagers.init(keyStore)
+        val context = SSLContext.getInstance("TLS")
+        context.init(null, trustManagers.trustManagers, null)
+        return KinveyPooledHttpTransport.Builder().setSslSocketFactory(context.socketFactory)
+    }
+
+    private fun url(host: String) = GenericUrl("https://$host:${server?.address?.port}/fixed")
+
+    companion object {
+        private const val PASSWORD = "changeit"
+    }
+}
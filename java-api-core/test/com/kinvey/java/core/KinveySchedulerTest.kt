@@ -0,0 +1,169 @@
+/*
+ *  Copyright (c) 2019, Kinvey, Inc. All rights reserved.
+ *
+ * This software is licensed to you under the Kinvey terms of service located at
+ * http://www.kinvey.com/terms-of-use. By downloading, accessing and/or using this
+ * software, you hereby accept such terms of service  (and any agreement referenced
+ * therein) and agree that you have read, understand and agree to be bound by such
+ * terms of service and are of legal age to agree to such terms with Kinvey.
+ *
+ * This software contains valuable confidential and proprietary information of
+ * KINVEY, INC and is subject to applicable licensing agreements.
+ * Unauthorized reproduction, transmission or distribution of this file and its
+ * contents is a violation of applicable laws.
+ *
+ */
+
+
+package com.kinvey.java.core
+
+import com.kinvey.java.Metrics
+import junit.framework.TestCase
+import java.util.Collections
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class KinveySchedulerTest : TestCase() {
+
+    private val running = AtomicInteger()
+    private val maxRunning = AtomicInteger()
+
+    fun testConcurrencyIsLimitedAcrossGroups() {
+        val scheduler = KinveyScheduler(2)
+        val futures = (0 until 8).map { i -> scheduler.submit("collection${i % 3}", Callable { track(); i }) }
+
+        assertEquals((0 until 8).toList(), futures.map { it.get(5, TimeUnit.SECONDS) })
+        assertEquals(2, maxRunning.get())
+        shutdown(scheduler)
+        assertEquals(8L, scheduler.stats.completed)
+    }
+
+    fun testGroupsTakeTurns() {
+        val scheduler = KinveyScheduler(1)
+        val release = CountDownLatch(1)
+        val order = Collections.synchronizedList(ArrayList<String>())
+        scheduler.execute("blocker", Runnable { release.await() })
+        scheduler.execute("a", Runnable { order.add("a1") })
+        scheduler.execute("a", Runnable { order.add("a2") })
+        scheduler.execute("a", Runnable { order.add("a3") })
+        val last = scheduler.submit("b", Callable { order.add("b1") })
+
+        val stats = scheduler.stats
+        assertEquals(1, stats.active)
+        assertEquals(4, stats.queued)
+        assertEquals(mapOf("a" to 3, "b" to 1), stats.queuedByGroup)
+        release.countDown()
+        last.get(5, TimeUnit.SECONDS)
+        shutdown(scheduler)
+        assertEquals(listOf("a1", "b1", "a2", "a3"), order)
+    }
+
+    fun testExecutorLimitsItsTasks() {
+        val scheduler = KinveyScheduler(8)
+        val executor = scheduler.executor("collection", 2)
+        val futures = (0 until 6).map { executor.submit { track() } }
+
+        futures.forEach { it.get(5, TimeUnit.SECONDS) }
+        assertEquals(2, maxRunning.get())
+        executor.shutdown()
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS))
+        try {
+            executor.submit { track() }
+            fail("a shut down executor must reject tasks")
+        } catch (e: RejectedExecutionException) {
+        }
+        // the scheduler is still usable
+        assertEquals(1, scheduler.submit("collection", Callable { 1 }).get(5, TimeUnit.SECONDS))
+        shutdown(scheduler)
+    }
+
+    fun testTaskWaitingForNestedTasksDoesNotStarveScheduler() {
+        val scheduler = KinveyScheduler(1)
+        val result = scheduler.submit("outer", Callable {
+            val executor = scheduler.executor("inner", 1)
+            (0 until 3).map { i -> executor.submit(Callable { i * 2 }) }.sumBy { it.get() }
+        })
+
+        assertEquals(6, result.get(5, TimeUnit.SECONDS))
+        shutdown(scheduler)
+    }
+
+    fun testNestedTasksRunInParallelOnFreeSlots() {
+        val scheduler = KinveyScheduler(4)
+        val result = scheduler.submit("outer", Callable {
+            val executor = scheduler.executor("inner", 3)
+            // every task waits for the other ones, so they finish only if they run at the same time
+            val barrier = CountDownLatch(3)
+            (0 until 3).map { executor.submit(Callable { barrier.countDown(); barrier.await(5, TimeUnit.SECONDS) }) }
+                    .all { it.get() }
+        })
+
+        assertTrue(result.get(10, TimeUnit.SECONDS))
+        shutdown(scheduler)
+    }
+
+    fun testLevelsAreRecordedInMetrics() {
+        val scheduler = KinveyScheduler(1)
+        val metrics = Metrics()
+        scheduler.metrics = metrics
+        val release = CountDownLatch(1)
+        scheduler.execute("a", Runnable { release.await() })
+        scheduler.execute("a", Runnable { })
+        scheduler.execute("a", Runnable { })
+        scheduler.execute("b", Runnable { })
+
+        assertEquals(1L, metrics.snapshot(null, Metrics.OP_SCHEDULER_ACTIVE)?.level)
+        assertEquals(2L, metrics.snapshot("a", Metrics.OP_SCHEDULER_QUEUED)?.level)
+        assertEquals(1L, metrics.snapshot("b", Metrics.OP_SCHEDULER_QUEUED)?.level)
+        release.countDown()
+        shutdown(scheduler)
+        val active = metrics.snapshot(null, Metrics.OP_SCHEDULER_ACTIVE)
+        assertEquals(0L, active?.level)
+        assertEquals(1L, active?.peakLevel)
+        assertEquals(0L, metrics.snapshot("a", Metrics.OP_SCHEDULER_QUEUED)?.level)
+        assertEquals(2L, metrics.snapshot("a", Metrics.OP_SCHEDULER_QUEUED)?.peakLevel)
+    }
+
+    fun testShutdownNowRemovesQueuedTasks() {
+        val scheduler = KinveyScheduler(1)
+        val release = CountDownLatch(1)
+        val ran = AtomicInteger()
+        scheduler.execute("a", Runnable { release.await() })
+        scheduler.execute("a", Runnable { ran.incrementAndGet() })
+        scheduler.execute("b", Runnable { ran.incrementAndGet() })
+
+        assertEquals(2, scheduler.shutdownNow().size)
+        try {
+            scheduler.execute("a", Runnable { ran.incrementAndGet() })
+            fail("a shut down scheduler must reject tasks")
+        } catch (e: RejectedExecutionException) {
+        }
+        assertFalse(scheduler.isTerminated)
+        release.countDown()
+        assertTrue(scheduler.awaitTermination(5, TimeUnit.SECONDS))
+        assertEquals(0, ran.get())
+    }
+
+    fun testVirtualThreadsAreUsedOnlyIfSupported() {
+        val scheduler = KinveyScheduler(2, true)
+        val threadName = scheduler.submit(null, Callable { Thread.currentThread().name }).get(5, TimeUnit.SECONDS)
+
+        assertEquals(KinveyScheduler.isVirtualThreadsSupported, threadName.startsWith("kinvey-virtual-worker"))
+        shutdown(scheduler)
+    }
+
+    private fun track() {
+        val current = running.incrementAndGet()
+        maxRunning.accumulateAndGet(current) { a, b -> Math.max(a, b) }
+        Thread.sleep(30)
+        running.decrementAndGet()
+    }
+
+    private fun shutdown(scheduler: KinveyScheduler) {
+        scheduler.shutdown()
+        assertTrue(scheduler.awaitTermination(5, TimeUnit.SECONDS))
+    }
+}
@@ -0,0 +1,263 @@
+package com.kinvey.java.core
+
+import com.google.api.client.http.javanet.NetHttpTransport
+import com.kinvey.java.KinveyDownloadFileException
+import com.kinvey.java.model.FileMetaData
+import com.sun.net.httpserver.HttpServer
+import junit.framework.TestCase
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.InterruptedIOException
+import java.net.InetSocketAddress
+import java.util.Collections
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * Downloads a file from a local endpoint which serves byte ranges.
+ */
+class MediaHttpDownloaderParallelTest : TestCase() {
+
+    private val chunkSize = 64 * 1024
+    private val content = ByteArray(5 * chunkSize + 1000) { (it % 251).toByte() }
+    private var server: HttpServer? = null
+    private var target: File? = null
+    private val requestedOffsets = Collections.synchronizedList(ArrayList<Long>())
+    private val failOffsets = Collections.synchronizedMap(HashMap<Long, Int>())
+    private val inFlight = AtomicInteger()
+    private val maxInFlight = AtomicInteger()
+    @Volatile
+    private var isUnavailable = false
+    @Volatile
+    private var reportedSize = content.size
+
+    override fun setUp() {
+        target = File.createTempFile("download", ".bin").apply { delete() }
+        val server = HttpServer.create(InetSocketAddress("127.0.0.1", 0), 0)
+        server.executor = Executors.newCachedThreadPool()
+        server.createContext("/file") { exchange ->
+            if (exchange.requestHeaders.getFirst("If-None-Match") == ETAG) {
+                exchange.sendResponseHeaders(304, -1)
+                exchange.close()
+                return@createContext
+            }
+            val current = inFlight.incrementAndGet()
+            maxInFlight.accumulateAndGet(current) { a, b -> Math.max(a, b) }
+            val range = exchange.requestHeaders.getFirst("Range").substringAfter("bytes=")
+            val start = range.substringBefore('-').toInt()
+            val end = Math.min(range.substringAfter('-').toInt(), content.size - 1)
+            requestedOffsets.add(start.toLong())
+            Thread.sleep(20)
+            inFlight.decrementAndGet()
+            val failure = if (isUnavailable) 503 else failOffsets.remove(start.toLong())
+            if (failure != null) {
+                exchange.sendResponseHeaders(failure, -1)
+            } else {
+                exchange.responseHeaders.add("Content-Range", "bytes $start-$end/$reportedSize")
+                exchange.responseHeaders.add("ETag", ETAG)
+                exchange.sendResponseHeaders(206, (end - start + 1).toLong())
+                exchange.responseBody.write(content, start, end - start + 1)
+            }
+            exchange.close()
+        }
+        server.start()
+        this.server = server
+    }
+
+    override fun tearDown() {
+        server?.stop(0)
+        target?.delete()
+        DownloadCheckpoint.fileFor(target!!).delete()
+    }
+
+    fun testChunksAreDownloadedInParallel() {
+        val progress = Collections.synchronizedList(ArrayList<Double>())
+        val downloader = createDownloader(3, progress)
+
+        val result = downloader.download(createMetaData(), target!!)
+
+        assertNotNull(result)
+        assertEquals(ETAG, result?.etag)
+        assertTrue(content.contentEquals(target!!.readBytes()))
+        assertEquals(6, requestedOffsets.size)
+        assertTrue(maxInFlight.get() in 2..3)
+        assertEquals(MediaHttpDownloader.DownloadState.DOWNLOAD_COMPLETE, downloader.downloadState)
+        assertEquals(content.size.toLong(), downloader.numBytesDownloaded)
+        assertEquals(progress.sorted(), progress)
+        assertEquals(1.0, progress.last())
+        assertFalse(DownloadCheckpoint.fileFor(target!!).exists())
+    }
+
+    fun testFailedDownloadIsResumedFromCheckpoint() {
+        failOffsets[2L * chunkSize] = 404
+        val metaData = createMetaData()
+        try {
+            createDownloader(1, ArrayList()).download(metaData, target!!)
+            fail("KinveyDownloadFileException is expected")
+        } catch (e: KinveyDownloadFileException) {
+            assertSame(metaData, e.downloadedFileMetaData)
+        }
+        val checkpoint = DownloadCheckpoint.load(target!!, FILE_ID, null, content.size.toLong(), chunkSize)
+        val completed = (0 until checkpoint.chunkCount).filter { checkpoint.isCompleted(it) }
+        assertTrue(completed.containsAll(listOf(0, 1)))
+        assertFalse(checkpoint.isCompleted(2))
+        requestedOffsets.clear()
+
+        val downloader = createDownloader(2, ArrayList())
+        val result = downloader.download(metaData, target!!)
+
+        assertNotNull(result)
+        assertTrue(content.contentEquals(target!!.readBytes()))
+        // only the chunks which were not written are requested again, a chunk of the stopped download
+        // may still reach the server after the first run has failed
+        assertEquals(6 - completed.size, requestedOffsets.toSet().size)
+        assertTrue(requestedOffsets.none { (it / chunkSize).toInt() in completed })
+        assertFalse(DownloadCheckpoint.fileFor(target!!).exists())
+    }
+
+    fun testCheckpointOfReplacedFileIsDiscarded() {
+        failOffsets[2L * chunkSize] = 404
+        val replaced = createMetaData()
+        replaced.etag = "\"v0\""
+        try {
+            createDownloader(1, ArrayList()).download(replaced, target!!)
+            fail("KinveyDownloadFileException is expected")
+        } catch (e: KinveyDownloadFileException) {
+        }
+        assertTrue(DownloadCheckpoint.fileFor(target!!).exists())
+        requestedOffsets.clear()
+
+        val metaData = createMetaData()
+        metaData.etag = ETAG
+        val result = createDownloader(2, ArrayList()).download(metaData, target!!)
+
+        assertNotNull(result)
+        assertTrue(content.contentEquals(target!!.readBytes()))
+        assertEquals(6, requestedOffsets.toSet().size)
+    }
+
+    fun testOtherTotalOfContentRangeFailsDownload() {
+        reportedSize = content.size + 1
+        val metaData = createMetaData()
+        try {
+            createDownloader(2, ArrayList()).download(metaData, target!!)
+            fail("KinveyDownloadFileException is expected")
+        } catch (e: KinveyDownloadFileException) {
+            assertSame(metaData, e.downloadedFileMetaData)
+        }
+        assertFalse(DownloadCheckpoint.fileFor(target!!).exists())
+    }
+
+    fun testServerErrorIsRetried() {
+        failOffsets[chunkSize.toLong()] = 503
+        val downloader = createDownloader(2, ArrayList())
+
+        val result = downloader.download(createMetaData(), target!!)
+
+        assertNotNull(result)
+        assertTrue(content.contentEquals(target!!.readBytes()))
+        assertEquals(7, requestedOffsets.size)
+    }
+
+    fun testInterruptStopsRetries() {
+        isUnavailable = true
+        val downloader = createDownloader(1, ArrayList())
+        downloader.setBackOffPolicyEnabled(false)
+        val error = AtomicReference<Throwable>()
+        val isInterrupted = AtomicBoolean()
+        val thread = Thread {
+            try {
+                downloader.download(createMetaData(), ByteArrayOutputStream())
+            } catch (e: Throwable) {
+                error.set(e)
+            }
+            isInterrupted.set(Thread.currentThread().isInterrupted)
+        }
+        thread.start()
+        while (requestedOffsets.isEmpty()) {
+            Thread.sleep(5)
+        }
+        thread.interrupt()
+        thread.join(5000)
+
+        assertFalse(thread.isAlive)
+        assertTrue(error.get() is InterruptedIOException)
+        assertTrue(isInterrupted.get())
+        assertEquals(1, requestedOffsets.size)
+    }
+
+    fun testUnchangedFileIsNotDownloadedAgain() {
+        val out = ByteArrayOutputStream()
+        val first = createDownloader(1, ArrayList())
+        val metaData = first.download(createMetaData(), out)
+        assertEquals(ETAG, metaData?.etag)
+        assertFalse(first.isNotModified)
+        assertEquals(content.size, out.size())
+        assertTrue(content.contentEquals(out.toByteArray()))
+        requestedOffsets.clear()
+
+        val conditional = createDownloader(1, ArrayList())
+        conditional.ifNoneMatch = ETAG
+        val unchanged = conditional.download(createMetaData(), ByteArrayOutputStream())
+
+        assertNotNull(unchanged)
+        assertTrue(conditional.isNotModified)
+        assertEquals(MediaHttpDownloader.DownloadState.DOWNLOAD_COMPLETE, conditional.downloadState)
+        assertTrue(requestedOffsets.isEmpty())
+    }
+
+    fun testUnchangedFileIsNotDownloadedAgainIntoTarget() {
+        val conditional = createDownloader(3, ArrayList())
+        conditional.ifNoneMatch = ETAG
+
+        val unchanged = conditional.download(createMetaData(), target!!)
+
+        assertEquals(ETAG, unchanged?.etag)
+        assertTrue(conditional.isNotModified)
+        assertEquals(MediaHttpDownloader.DownloadState.DOWNLOAD_COMPLETE, conditional.downloadState)
+        assertTrue(requestedOffsets.isEmpty())
+        assertFalse(DownloadCheckpoint.fileFor(target!!).exists())
+    }
+
+    fun testChangedFileIsDownloadedIntoTarget() {
+        val conditional = createDownloader(3, ArrayList())
+        conditional.ifNoneMatch = "\"v0\""
+
+        val result = conditional.download(createMetaData(), target!!)
+
+        assertEquals(ETAG, result?.etag)
+        assertFalse(conditional.isNotModified)
+        assertTrue(content.contentEquals(target!!.readBytes()))
+        assertEquals(6, requestedOffsets.size)
+    }
+
+    private fun createMetaData(): FileMetaData {
+        val metaData = FileMetaData()
+        metaData.id = FILE_ID
+        metaData.downloadURL = "http://127.0.0.1:${server?.address?.port}/file"
+        metaData.fileSize = content.size.toLong()
+        return metaData
+    }
+
+    private fun createDownloader(parallelDownloads: Int, progress: MutableList<Double>): MediaHttpDownloader {
+        val downloader = MediaHttpDownloader(NetHttpTransport(), null)
+        downloader.setChunkSize(chunkSize)
+        downloader.setParallelDownloads(parallelDownloads)
+        downloader.setProgressListener(object : DownloaderProgressListener {
+            override fun progressChanged(downloader: MediaHttpDownloader?) {
+                if (downloader?.downloadState == MediaHttpDownloader.DownloadState.DOWNLOAD_IN_PROGRESS
+                        || downloader?.downloadState == MediaHttpDownloader.DownloadState.DOWNLOAD_COMPLETE) {
+                    progress.add(downloader.progress)
+                }
+            }
+        })
+        return downloader
+    }
+
+    companion object {
+        private const val ETAG = "\"v1\""
+        private const val FILE_ID = "file1"
+    }
+}
@@ -0,0 +1,165 @@
+package com.kinvey.java.core
+
+import com.google.api.client.http.FileContent
+import com.google.api.client.http.HttpResponse
+import com.google.api.client.http.javanet.NetHttpTransport
+import com.google.api.client.json.JsonObjectParser
+import com.kinvey.java.model.FileMetaData
+import com.kinvey.java.testing.HttpTesting
+import com.kinvey.java.testing.MockKinveyClientRequest
+import com.sun.net.httpserver.HttpServer
+import junit.framework.TestCase
+import org.mockito.ArgumentMatchers.any
+import org.mockito.Mockito.doReturn
+import org.mockito.Mockito.spy
+import java.io.File
+import java.net.InetSocketAddress
+import java.util.BitSet
+import java.util.Collections
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Uploads a file to a local endpoint which accepts the ranged PUTs of a resumable upload in any order,
+ * or only in order like the resumable upload urls of cloud storages.
+ */
+class MediaHttpUploaderParallelTest : TestCase() {
+
+    private var server: HttpServer? = null
+    private var file: File? = null
+    private var received: ByteArray? = null
+    private val receivedBytes = BitSet()
+    private val inFlight = AtomicInteger()
+    private val maxInFlight = AtomicInteger()
+    private val failOnceOffsets = Collections.synchronizedSet(HashSet<Long>())
+    private val chunkRequests = AtomicInteger()
+    @Volatile
+    private var isInOrder = false
+
+    override fun setUp() {
+        val content = ByteArray(4 * MediaHttpUploader.MINIMUM_CHUNK_SIZE + 1000) { (it % 251).toByte() }
+        file = File.createTempFile("upload", ".bin").apply { writeBytes(content) }
+        received = ByteArray(content.size)
+        val server = HttpServer.create(InetSocketAddress("127.0.0.1", 0), 0)
+        server.executor = Executors.newCachedThreadPool()
+        server.createContext("/upload") { exchange ->
+            val current = inFlight.incrementAndGet()
+            maxInFlight.accumulateAndGet(current) { a, b -> Math.max(a, b) }
+            val contentRange = exchange.requestHeaders.getFirst("Content-Range")
+            val body = exchange.requestBody.readBytes()
+            Thread.sleep(20)
+            var status = 308
+            if (!contentRange.startsWith("bytes */")) {
+                chunkRequests.incrementAndGet()
+                val range = contentRange.substring("bytes ".length, contentRange.indexOf('/'))
+                val start = range.substringBefore('-').toLong()
+                if (isInOrder && start == 0L) {
+                    // the chunks sent along with the first one arrive before it's written
+                    Thread.sleep(200)
+                }
+                if (failOnceOffsets.remove(start)) {
+                    status = 503
+                } else if (isInOrder && start != synchronized(receivedBytes) { receivedBytes.nextClearBit(0).toLong() }) {
+                    // bytes which don't follow the received ones are dropped
+                } else {
+                    synchronized(receivedBytes) {
+                        System.arraycopy(body, 0, received!!, start.toInt(), body.size)
+                        receivedBytes.set(start.toInt(), start.toInt() + body.size)
+                    }
+                }
+            }
+            synchronized(receivedBytes) {
+                if (status != 503 && receivedBytes.cardinality() == received!!.size) {
+                    status = 200
+                }
+            }
+            inFlight.decrementAndGet()
+            if (status == 308) {
+                // like a resumable upload endpoint, report the contiguous bytes received from the beginning
+                val contiguous = synchronized(receivedBytes) { receivedBytes.nextClearBit(0) }
+                if (contiguous > 0) {
+                    exchange.responseHeaders.add("Range", "bytes=0-${contiguous - 1}")
+                }
+            }
+            exchange.sendResponseHeaders(status, -1)
+            exchange.close()
+        }
+        server.start()
+        this.server = server
+    }
+
+    override fun tearDown() {
+        server?.stop(0)
+        file?.delete()
+    }
+
+    fun testChunksAreUploadedInParallel() {
+        val progress = Collections.synchronizedList(ArrayList<Double>())
+        val uploader = createUploader(3, progress)
+
+        val result = uploader.upload(MockKinveyClientRequest("GET", HttpTesting.SIMPLE_URL, null, Void::class.java))
+
+        assertNotNull(result)
+        assertNull(result?.uploadUrl)
+        assertTrue(file!!.readBytes().contentEquals(received!!))
+        assertEquals(5, chunkRequests.get())
+        assertTrue(maxInFlight.get() in 2..3)
+        assertEquals(MediaHttpUploader.UploadState.UPLOAD_COMPLETE, uploader.uploadState)
+        assertEquals(1.0, progress.last())
+        assertEquals(progress.sorted(), progress)
+    }
+
+    fun testFailedChunkIsRetried() {
+        failOnceOffsets.add(MediaHttpUploader.MINIMUM_CHUNK_SIZE.toLong())
+        val uploader = createUploader(2, ArrayList())
+
+        val result = uploader.upload(MockKinveyClientRequest("GET", HttpTesting.SIMPLE_URL, null, Void::class.java))
+
+        assertNotNull(result)
+        assertTrue(file!!.readBytes().contentEquals(received!!))
+        assertEquals(6, chunkRequests.get())
+    }
+
+    fun testChunksDroppedByInOrderServerAreSentAgain() {
+        isInOrder = true
+        val progress = Collections.synchronizedList(ArrayList<Double>())
+        val uploader = createUploader(3, progress)
+
+        val result = uploader.upload(MockKinveyClientRequest("GET", HttpTesting.SIMPLE_URL, null, Void::class.java))
+
+        assertNotNull(result)
+        assertTrue(file!!.readBytes().contentEquals(received!!))
+        assertTrue(chunkRequests.get() > 5)
+        assertEquals(MediaHttpUploader.UploadState.UPLOAD_COMPLETE, uploader.uploadState)
+        assertEquals(1.0, progress.last())
+        assertEquals(progress.sorted(), progress)
+    }
+
+    fun testSingleUploadIsSequential() {
+        val uploader = createUploader(1, ArrayList())
+
+        val result = uploader.upload(MockKinveyClientRequest("GET", HttpTesting.SIMPLE_URL, null, Void::class.java))
+
+        assertNotNull(result)
+        assertTrue(file!!.readBytes().contentEquals(received!!))
+        assertEquals(1, maxInFlight.get())
+    }
+
+    private fun createUploader(parallelUploads: Int, progress: MutableList<Double>): MediaHttpUploader {
+        val uploader = spy(MediaHttpUploader(FileContent("application/octet-stream", file), NetHttpTransport(), null))
+        uploader.setChunkSize(MediaHttpUploader.MINIMUM_CHUNK_SIZE)
+        uploader.setParallelUploads(parallelUploads)
+        val meta = FileMetaData()
+        meta.uploadUrl = "http://127.0.0.1:${server?.address?.port}/upload"
+        doReturn(meta).`when`(uploader).parse(any(JsonObjectParser::class.java), any(HttpResponse::class.java))
+        uploader.setProgressListener(object : UploaderProgressListener {
+            override fun progressChanged(uploader: MediaHttpUploader?) {
+                if (uploader?.uploadState == MediaHttpUploader.UploadState.UPLOAD_IN_PROGRESS
+                        || uploader?.uploadState == MediaHttpUploader.UploadState.UPLOAD_COMPLETE) {
+                    progress.add(uploader.progress)
+                }
+            }
+        })
+        return uploader
+    }
+}
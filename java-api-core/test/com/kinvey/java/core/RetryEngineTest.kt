@@ -0,0 +1,197 @@
+package com.kinvey.java.core
+
+import com.google.api.client.http.LowLevelHttpRequest
+import com.google.api.client.http.LowLevelHttpResponse
+import com.google.api.client.json.GenericJson
+import com.google.api.client.testing.http.MockHttpTransport
+import com.google.api.client.testing.http.MockLowLevelHttpRequest
+import com.google.api.client.testing.http.MockLowLevelHttpResponse
+import com.kinvey.java.Metrics
+import com.kinvey.java.dto.BaseUser
+import com.kinvey.java.network.NetworkManager
+import java.io.IOException
+import java.util.Random
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+
+class RetryEngineTest : KinveyMockUnitTest<BaseUser>() {
+
+    private val statuses = ConcurrentLinkedQueue<Int>()
+    private val sentRequests = AtomicInteger()
+
+    private val transport = object : MockHttpTransport() {
+        override fun buildRequest(method: String, url: String): LowLevelHttpRequest {
+            return object : MockLowLevelHttpRequest(url) {
+                override fun execute(): LowLevelHttpResponse {
+                    sentRequests.incrementAndGet()
+                    return MockLowLevelHttpResponse().setStatusCode(statuses.poll() ?: 200)
+                            .setContent("{\"_id\":\"1\"}").setContentType("application/json")
+                }
+            }
+        }
+    }
+
+    private fun createEngine(client: AbstractKinveyClient): RetryEngine {
+        val engine = RetryEngine(client.metrics)
+        listOf(500, 503).forEach { engine.setPolicy(it, RetryEngine.Policy(3, 1, 5, it == 500)) }
+        client.retryEngine = engine
+        return engine
+    }
+
+    private fun count(client: AbstractKinveyClient, operation: String): Long =
+            client.metrics.snapshot(Metrics.NO_COLLECTION, operation)?.count ?: 0
+
+    fun testUnavailableResponseIsRetried() {
+        val client = getClient(transport)
+        val engine = createEngine(client)
+        statuses.addAll(listOf(503, 503))
+
+        val result = NetworkManager("books", GenericJson::class.java, client).getEntityBlocking("1")?.execute()
+
+        assertEquals("1", result?.get("_id"))
+        assertEquals(3, sentRequests.get())
+        assertEquals(2L, engine.stats.retries)
+        assertEquals(2L, count(client, Metrics.OP_RETRY))
+        assertEquals(2L, client.metrics.snapshot("books", "GetEntity")?.retries)
+    }
+
+    fun testServerErrorOfPostIsNotRetried() {
+        val client = getClient(transport)
+        createEngine(client)
+        statuses.add(500)
+
+        try {
+            NetworkManager("books", GenericJson::class.java, client).saveBlocking(GenericJson())?.execute()
+            fail("IOException is expected")
+        } catch (e: IOException) {
+            // 500 is thrown
+        }
+        assertEquals(1, sentRequests.get())
+    }
+
+    fun testExhaustedBudgetStopsRetries() {
+        val client = getClient(transport)
+        val engine = createEngine(client)
+        while (engine.tryAcquireRetry()) {
+            // spend the initial budget
+        }
+        engine.retryBudgetRatio = 0.5
+        statuses.addAll(listOf(503, 503, 503))
+
+        try {
+            NetworkManager("books", GenericJson::class.java, client).getEntityBlocking("1")?.execute()
+            fail("IOException is expected")
+        } catch (e: IOException) {
+            // 503 is thrown
+        }
+        assertEquals(1, sentRequests.get())
+        assertEquals(2L, engine.stats.budgetExhausted)
+        assertEquals(2L, count(client, Metrics.OP_RETRY_BUDGET_EXHAUSTED))
+    }
+
+    fun testCircuitOpensAndClosesAfterProbe() {
+        val client = getClient(transport)
+        val engine = createEngine(client)
+        engine.setPolicy(503, null)
+        engine.failureThreshold = 2
+        engine.openMillis = 50
+        val networkManager = NetworkManager("books", GenericJson::class.java, client)
+        statuses.addAll(listOf(503, 503))
+        repeat(2) {
+            try {
+                networkManager.getEntityBlocking("1")?.execute()
+                fail("IOException is expected")
+            } catch (e: IOException) {
+                // 503 is thrown
+            }
+        }
+        val host = networkManager.getEntityBlocking("1")!!.buildHttpRequest()!!.url.host
+        assertEquals(RetryEngine.CircuitState.OPEN, engine.circuitState(host))
+
+        try {
+            networkManager.getEntityBlocking("1")?.execute()
+            fail("KinveyCircuitOpenException is expected")
+        } catch (e: KinveyCircuitOpenException) {
+            assertEquals(host, e.host)
+        }
+        assertEquals(2, sentRequests.get())
+        assertEquals(1L, count(client, Metrics.OP_RETRY_REJECTED))
+        assertEquals(1L, count(client, Metrics.OP_RETRY_CIRCUIT_OPENED))
+
+        Thread.sleep(60)
+        assertEquals("1", networkManager.getEntityBlocking("1")?.execute()?.get("_id"))
+        assertEquals(RetryEngine.CircuitState.CLOSED, engine.circuitState(host))
+        assertEquals(3, sentRequests.get())
+    }
+
+    fun testUnavailableResponseOfPostIsNotRetriedByDefault() {
+        val client = getClient(transport)
+        client.retryEngine = RetryEngine(client.metrics)
+        statuses.add(503)
+
+        try {
+            NetworkManager("books", GenericJson::class.java, client).saveBlocking(GenericJson())?.execute()
+            fail("IOException is expected")
+        } catch (e: IOException) {
+            // 503 is thrown
+        }
+        assertEquals(1, sentRequests.get())
+    }
+
+    fun testCircuitIsDisabledByDefault() {
+        val engine = RetryEngine()
+        val attempts = engine.start("host", "GET", retryable = false)
+        repeat(10) {
+            attempts.begin()
+            attempts.onError(IOException())
+        }
+        assertEquals(RetryEngine.CircuitState.CLOSED, engine.circuitState("host"))
+    }
+
+    fun testRetriedRequestFailsCircuitOnce() {
+        val client = getClient(transport)
+        val engine = createEngine(client)
+        engine.failureThreshold = 2
+        val networkManager = NetworkManager("books", GenericJson::class.java, client)
+        statuses.addAll(listOf(503, 503, 503, 503))
+
+        try {
+            networkManager.getEntityBlocking("1")?.execute()
+            fail("IOException is expected")
+        } catch (e: IOException) {
+            // 503 is thrown
+        }
+        assertEquals(4, sentRequests.get())
+        val host = networkManager.getEntityBlocking("1")!!.buildHttpRequest()!!.url.host
+        assertEquals(RetryEngine.CircuitState.CLOSED, engine.circuitState(host))
+    }
+
+    fun testServerErrorDoesNotFailCircuit() {
+        val client = getClient(transport)
+        val engine = createEngine(client)
+        engine.setPolicy(500, null)
+        engine.failureThreshold = 1
+        val networkManager = NetworkManager("books", GenericJson::class.java, client)
+        statuses.add(500)
+
+        try {
+            networkManager.getEntityBlocking("1")?.execute()
+            fail("IOException is expected")
+        } catch (e: IOException) {
+            // 500 is thrown
+        }
+        assertEquals("1", networkManager.getEntityBlocking("1")?.execute()?.get("_id"))
+        assertEquals(2, sentRequests.get())
+    }
+
+    fun testDecorrelatedJitterStaysWithinBounds() {
+        val policy = RetryEngine.Policy(5, 10, 100)
+        val random = Random(1)
+        var previous = 0L
+        repeat(50) {
+            val delay = policy.nextDelayMillis(previous, random)
+            assertTrue(delay in 10..Math.min(100, Math.max(10, previous * 3)))
+            previous = delay
+        }
+    }
+}
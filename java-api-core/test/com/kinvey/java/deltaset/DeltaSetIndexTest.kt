@@ -0,0 +1,40 @@
+package com.kinvey.java.deltaset
+
+import com.kinvey.java.Constants
+import junit.framework.TestCase
+import java.text.SimpleDateFormat
+import java.util.Locale
+import java.util.TimeZone
+
+class DeltaSetIndexTest : TestCase() {
+
+    fun testPutAndGet() {
+        val index = DeltaSetIndex(2)
+        for (i in 0 until 1000) {
+            index.put("id$i", i.toLong())
+        }
+        index.put("id10", 42L)
+        assertEquals(1000, index.size)
+        assertEquals(42L, index.get("id10", -1L))
+        assertEquals(999L, index.get("id999", -1L))
+        assertEquals(-1L, index.get("id1000", -1L))
+        assertEquals(-1L, index.get(null, -1L))
+        assertTrue("id0" in index)
+        assertFalse("other" in index)
+    }
+
+    fun testParseLmt() {
+        val format = SimpleDateFormat(Constants.DATE_FORMAT, Locale.US)
+        format.timeZone = TimeZone.getTimeZone("UTC")
+        listOf("2019-10-04T14:14:27.094Z", "1970-01-01T00:00:00.000Z", "2000-02-29T23:59:59.999Z", "1969-12-31T23:59:59.001Z")
+                .forEach { lmt -> assertEquals(lmt, format.parse(lmt).time, DeltaSetIndex.parseLmt(lmt)) }
+        assertEquals(DeltaSetIndex.parseLmt("2019-10-04T14:14:27.000Z"), DeltaSetIndex.parseLmt("2019-10-04T14:14:27Z"))
+        assertEquals(DeltaSetIndex.parseLmt("2019-10-04T14:14:27.094Z"), DeltaSetIndex.parseLmt("2019-10-04T14:14:27.094512Z"))
+    }
+
+    fun testParseBrokenLmt() {
+        listOf(null, "", "null", "2019-10-04 14:14:27.094Z", "2019-13-04T14:14:27.094Z", "2019-10-04T14:14:27.Z",
+                "2019-10-04T14:14:27.09aZ", "2019-10-04T14:14:27.094+01:00")
+                .forEach { lmt -> assertEquals(lmt.toString(), DeltaSetIndex.UNKNOWN_LMT, DeltaSetIndex.parseLmt(lmt)) }
+    }
+}
@@ -0,0 +1,65 @@
+package com.kinvey.java.deltaset
+
+import com.kinvey.java.Constants._ID
+import com.kinvey.java.Constants._KMD
+import com.kinvey.java.Constants._LMT
+import com.kinvey.java.testing.Benchmark
+import junit.framework.TestCase
+
+/**
+ * Compares [DeltaSetMerge.getIdsForUpdate] with the previous two hash maps and a hash set approach on 20k items,
+ * where every tenth item is changed. Both must find the same ids. Their throughput and allocated bytes per call
+ * are measured and logged only with `-Dkinvey.benchmark=true`, the 200k item run is enabled with
+ * `-Dkinvey.benchmark.large=true`.
+ */
+class DeltaSetMergeBenchmarkTest : TestCase() {
+
+    fun testIndexedMergeMatchesLegacy() {
+        val sizes = if (Benchmark.isLargeEnabled) listOf(20000, 200000) else listOf(20000)
+        sizes.forEach { size ->
+            val cache = (0 until size).map { i -> DeltaSetMergeTest.Entity(id = id(i), kmd = mapOf(_LMT to lmt(i, false))) }
+            val online = (0 until size).map { i -> DeltaSetItem(id(i), DeltaSetItem.KMD(lmt(i, i % 10 == 0))) }
+            assertEquals(legacyIdsForUpdate(cache, online).toSet(), DeltaSetMerge.getIdsForUpdate(cache, online).toSet())
+            assertEquals(size / 10, DeltaSetMerge.getIdsForUpdate(cache, online).size)
+            if (Benchmark.isEnabled) {
+                val indexed = Benchmark.measure(size.toLong(), WARMUP_ITERATIONS, ITERATIONS) { DeltaSetMerge.getIdsForUpdate(cache, online) }
+                val legacy = Benchmark.measure(size.toLong(), WARMUP_ITERATIONS, ITERATIONS) { legacyIdsForUpdate(cache, online) }
+                Benchmark.report(javaClass, "items=$size indexed: ${indexed.itemsPerSecond} items/s, ${indexed.bytesPerRun} B/op; " +
+                        "legacy: ${legacy.itemsPerSecond} items/s, ${legacy.bytesPerRun} B/op")
+            }
+        }
+    }
+
+    /**
+     * The previous implementation of [DeltaSetMerge.getIdsForUpdate]
+     */
+    private fun legacyIdsForUpdate(cache: List<DeltaSetMergeTest.Entity>, items: List<DeltaSetItem>): List<String> {
+        val cachedMap = cache.filter { it.containsKey(_ID) }.map { it[_ID].toString() to it }.toMap()
+        val onlineMap = items.map { it.id to it }.toMap()
+        val idsToUpdate = HashSet<String?>(onlineMap.keys)
+        cachedMap.keys.forEach { cachedId ->
+            if (onlineMap.containsKey(cachedId)) {
+                val cachedItem = cachedMap[cachedId]
+                var cachedKMD: DeltaSetItem.KMD? = null
+                if (cachedItem != null && cachedItem.containsKey(_KMD)) {
+                    val kmd = cachedItem[_KMD]
+                    if (kmd is Map<*, *>) { cachedKMD = DeltaSetItem.KMD(kmd[_LMT].toString()) }
+                }
+                if (cachedKMD == null || cachedKMD.lmt == onlineMap[cachedId]?.kmd?.lmt) {
+                    idsToUpdate.remove(cachedId)
+                }
+            }
+        }
+        return idsToUpdate.filterNotNull()
+    }
+
+    private fun id(i: Int) = String.format("5d9753c32e30506514%06d", i)
+
+    private fun lmt(i: Int, changed: Boolean) =
+            String.format("2019-10-%02dT14:%02d:%02d.%03dZ", if (changed) 5 else 4, i / 60 % 60, i % 60, i % 1000)
+
+    companion object {
+        private const val WARMUP_ITERATIONS = 3
+        private const val ITERATIONS = 5
+    }
+}
@@ -82,6 +82,57 @@ class DeltaSetMergeTest : TestCase() {
         assertEquals(idTest4, result[3].id)
     }
 
+    fun testGetIdsForUpdate_KeepsOnlineOrder() {
+        val cacheList = listOf(
+                Entity(id=idTest4, name="test 4", kmd=mapOf(Pair(LMT, lmtTest4))),
+                Entity(id=idTest2, name="test 2", kmd=mapOf(Pair(LMT, lmtTest2)))
+        )
+        val itemsList = listOf(
+                DeltaSetItem(idTest3, DeltaSetItem.KMD(lmtTest3)),
+                DeltaSetItem(idTest2, DeltaSetItem.KMD(lmtTest2)),
+                DeltaSetItem(idTest4, DeltaSetItem.KMD(lmtTest3)),
+                DeltaSetItem(idTest1, DeltaSetItem.KMD(lmtTest1)),
+                DeltaSetItem(idTest3, DeltaSetItem.KMD(lmtTest3))
+        )
+        val idsToUpdate = DeltaSetMerge.getIdsForUpdate(cacheList, itemsList)
+        assertEquals(listOf(idTest3, idTest4, idTest1), idsToUpdate)
+    }
+
+    fun testGetIdsForUpdate_Streaming() {
+        val cacheList = listOf(
+                Entity(id=idTest1, name="test 1", kmd=mapOf(Pair("lmt", lmtTest1))),
+                Entity(id=idTest2, name="test 2", kmd=mapOf(Pair("lmt", "not a date"))),
+                Entity(id=idTest3, name="test 3")
+        )
+        val items = sequenceOf(
+                DeltaSetItem(idTest1, DeltaSetItem.KMD(lmtTest1)),
+                DeltaSetItem(idTest2, DeltaSetItem.KMD(lmtTest2)),
+                DeltaSetItem(idTest3, DeltaSetItem.KMD(lmtTest3))
+        )
+        val idsToUpdate = DeltaSetMerge.getIdsForUpdate(cacheList, items.iterator())
+        assertEquals(listOf(idTest2), idsToUpdate)
+    }
+
+    fun testGetIdsForUpdate_SameTimeInOtherPrecision() {
+        val cacheList = listOf(Entity(id=idTest1, name="test 1", kmd=mapOf(Pair(LMT, "2019-10-04T14:14:27.090Z"))))
+        val itemsList = listOf(DeltaSetItem(idTest1, DeltaSetItem.KMD("2019-10-04T14:14:27.09Z")))
+        assertTrue(DeltaSetMerge.getIdsForUpdate(cacheList, itemsList).isEmpty())
+    }
+
+    fun testMerge_PrefersOnline() {
+        val orderList = listOf(
+                DeltaSetItem(idTest2, DeltaSetItem.KMD(lmtTest2)),
+                DeltaSetItem(idTest4, DeltaSetItem.KMD(lmtTest4)),
+                DeltaSetItem(idTest1, DeltaSetItem.KMD(lmtTest1)))
+        val onlineList = java.util.LinkedList(listOf(Entity(id=idTest2, name="online 2")))
+        val cacheList = listOf(
+                Entity(id=idTest2, name="cached 2"),
+                Entity(id=idTest1, name="cached 1")
+        )
+        val result = DeltaSetMerge.merge(orderList, cacheList, onlineList)
+        assertEquals(listOf("online 2", "cached 1"), result.map { it.name })
+    }
+
     data class Entity (
         @Key("_id")
         var id: String? = null,
@@ -0,0 +1,145 @@
+package com.kinvey.java.network
+
+import com.google.api.client.http.LowLevelHttpRequest
+import com.google.api.client.http.LowLevelHttpResponse
+import com.google.api.client.json.GenericJson
+import com.google.api.client.testing.http.MockHttpTransport
+import com.google.api.client.testing.http.MockLowLevelHttpRequest
+import com.google.api.client.testing.http.MockLowLevelHttpResponse
+import com.kinvey.java.Query
+import com.kinvey.java.core.KinveyMockUnitTest
+import com.kinvey.java.dto.BaseUser
+import com.kinvey.java.query.AbstractQuery
+import java.io.IOException
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class ReadCoalescerTest : KinveyMockUnitTest<BaseUser>() {
+
+    private val requests = AtomicInteger()
+
+    private val transport = object : MockHttpTransport() {
+        override fun buildRequest(method: String, url: String): LowLevelHttpRequest {
+            return object : MockLowLevelHttpRequest(url) {
+                override fun execute(): LowLevelHttpResponse {
+                    requests.incrementAndGet()
+                    Thread.sleep(200)
+                    val body = if (url.endsWith("/1")) "{\"_id\":\"1\"}" else "[{\"_id\":\"1\"},{\"_id\":\"2\"}]"
+                    return MockLowLevelHttpResponse().setContent(body).setContentType("application/json")
+                }
+            }
+        }
+    }
+
+    fun testConcurrentIdenticalReadsShareOneRequest() {
+        val client = getClient(transport)
+        val coalescer = ReadCoalescer()
+        client.readCoalescer = coalescer
+        val networkManager = NetworkManager("books", GenericJson::class.java, client)
+        val executor = Executors.newFixedThreadPool(4)
+        val start = CountDownLatch(1)
+        val tasks = (0 until 4).map {
+            Callable {
+                start.await()
+                networkManager.getBlocking(Query().equals("title", "Kotlin").addSort("_id", AbstractQuery.SortOrder.ASC))?.execute()
+            }
+        }
+        val futures = tasks.map { executor.submit(it) }
+        start.countDown()
+        val responses = futures.map { it.get(5, TimeUnit.SECONDS) }
+        executor.shutdown()
+
+        assertEquals(1, requests.get())
+        assertEquals(ReadCoalescer.Stats(hits = 0, misses = 1, coalesced = 3), coalescer.stats)
+        responses.forEach { assertEquals(listOf("1", "2"), it?.result?.map { entity -> entity["_id"] }) }
+        // every caller gets its own entities
+        val entities = responses.flatMap { it?.result ?: emptyList() }
+        assertEquals(8, entities.size)
+        assertEquals(8, entities.map { System.identityHashCode(it) }.distinct().size)
+    }
+
+    fun testDifferentReadsAreNotShared() {
+        val client = getClient(transport)
+        client.readCoalescer = ReadCoalescer(60_000)
+        val networkManager = NetworkManager("books", GenericJson::class.java, client)
+
+        networkManager.getBlocking(Query().equals("title", "Kotlin"))?.execute()
+        networkManager.getBlocking(Query().equals("title", "Java"))?.execute()
+        networkManager.getBlocking(Query().equals("title", "Kotlin").setLimit(1))?.execute()
+        networkManager.getEntityBlocking("1")?.execute()
+
+        assertEquals(4, requests.get())
+    }
+
+    fun testResultIsKeptUntilWrite() {
+        val client = getClient(transport)
+        val coalescer = ReadCoalescer(60_000)
+        client.readCoalescer = coalescer
+        val networkManager = NetworkManager("books", GenericJson::class.java, client)
+
+        val first = networkManager.getEntityBlocking("1")?.execute()
+        val second = networkManager.getEntityBlocking("1")?.execute()
+        assertEquals(1, requests.get())
+        assertEquals(first, second)
+        assertNotSame(first, second)
+        second?.set("title", "changed")
+        assertNull(networkManager.getEntityBlocking("1")?.execute()?.get("title"))
+        assertEquals(2L, coalescer.stats.hits)
+
+        networkManager.deleteBlocking("2")?.executeUnparsed()
+        networkManager.getEntityBlocking("1")?.execute()
+        assertEquals(3, requests.get())
+        assertEquals(2L, coalescer.stats.misses)
+    }
+
+    fun testSenderChangesDoNotReachKeptResult() {
+        val coalescer = ReadCoalescer(60_000)
+        val parsed = GenericJson().set("title", "Kotlin")
+        val copy = { entity: GenericJson -> entity.clone() }
+
+        val sent = coalescer.execute("books", "1", copy, Callable { parsed })
+        assertNotSame(parsed, sent)
+        sent?.set("title", "changed")
+        parsed.set("title", "changed too")
+
+        assertEquals("Kotlin", coalescer.execute("books", "1", copy, Callable<GenericJson?> { fail(); null })?.get("title"))
+    }
+
+    fun testErrorIsThrownToAllWaitingCallers() {
+        val coalescer = ReadCoalescer(60_000)
+        val started = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        val executor = Executors.newFixedThreadPool(3)
+        val leader = executor.submit(Callable {
+            coalescer.execute<String>("books", "key", { it }, Callable {
+                started.countDown()
+                release.await()
+                throw IOException("failed")
+            })
+        })
+        started.await()
+        val followers = (0 until 2).map {
+            executor.submit(Callable { coalescer.execute<String>("books", "key", { it }, Callable { "not expected" }) })
+        }
+        while (coalescer.stats.coalesced < 2) {
+            Thread.sleep(5)
+        }
+        release.countDown()
+
+        (followers + leader).forEach { future ->
+            try {
+                future.get(5, TimeUnit.SECONDS)
+                fail("IOException is expected")
+            } catch (e: ExecutionException) {
+                assertTrue(e.cause is IOException)
+            }
+        }
+        executor.shutdown()
+        // a failed result is not kept
+        assertEquals("next", coalescer.execute<String>("books", "key", { it }, Callable { "next" }))
+    }
+}
@@ -0,0 +1,85 @@
+package com.kinvey.java.query
+
+import com.kinvey.java.KinveyException
+import com.kinvey.java.Query
+import com.kinvey.java.query.MongoQueryFilter.MongoQueryFilterBuilder
+import junit.framework.TestCase
+import java.math.BigDecimal
+
+class QueryCompilerTest : TestCase() {
+
+    private val items = listOf(
+            item("1", "Alpha", 100, listOf("a"), mapOf("name" to "Ann", "age" to 30)),
+            item("2", "Beta", 200L, listOf("b"), mapOf("name" to "Bob", "age" to 40)),
+            item("3", "Gamma", 300.0, listOf("a", "b"), mapOf("name" to "ann", "age" to 50)),
+            item("4", "Delta", BigDecimal("400"), emptyList(), null))
+
+    fun testComparisonsAndNumbersOfAnyType() {
+        assertEquals(listOf("2", "3"), ids(query().greaterThan("pages", 100).lessThanEqualTo("pages", 300)))
+        assertEquals(listOf("3"), ids(query().equals("pages", 300)))
+        assertEquals(listOf("1", "2", "4"), ids(query().notEqual("pages", 300L)))
+        assertEquals(listOf("4"), ids(query().greaterThanEqualTo("pages", 400.0)))
+    }
+
+    fun testInAndNotInUseSetsOfAnyNumberType() {
+        assertEquals(listOf("1", "4"), ids(query().`in`("pages", arrayOf(100L, 400.0, "300"))))
+        assertEquals(listOf("2", "3"), ids(query().notIn("pages", arrayOf(100, BigDecimal("400.00")))))
+        assertEquals(listOf("1", "3"), ids(query().`in`("tags", arrayOf("a", "z"))))
+        assertEquals(listOf("1", "3"), ids(query().`in`("author.name", arrayOf("Ann", "ann"))))
+    }
+
+    fun testArraysRegexAndDottedPaths() {
+        assertEquals(listOf("3"), ids(query().all("tags", arrayOf("a", "b"))))
+        assertEquals(listOf("4"), ids(query().size("tags", 0)))
+        assertEquals(listOf("1"), ids(query().regEx("author.name", "^A")))
+        assertEquals(listOf("1", "3"), ids(linkedMapOf("author.name" to mapOf("\$regex" to "^a", "\$options" to "i"))))
+        assertEquals(listOf("2", "3"), ids(query().greaterThan("author.age", 35)))
+        assertEquals(listOf("4"), ids(query().equals("author", null)))
+    }
+
+    fun testAndOrNot() {
+        assertEquals(listOf("2", "4"), ids(query().startsWith("title", "D").or(query().equals("title", "Beta"))))
+        assertEquals(listOf("3"), ids(query().equals("tags", "a").and(query().greaterThan("pages", 100))))
+        assertEquals(listOf("2", "3", "4"), ids(query().equals("title", "Alpha").not()))
+    }
+
+    fun testPredicatesAreCachedByFingerprint() {
+        val first = QueryCompiler.compile(linkedMapOf<String, Any?>("title" to "Alpha", "pages" to mapOf("\$gt" to 1)))
+        val reordered = QueryCompiler.compile(linkedMapOf<String, Any?>("pages" to mapOf("\$gt" to 1), "title" to "Alpha"))
+        val other = QueryCompiler.compile(linkedMapOf<String, Any?>("title" to "Alpha", "pages" to mapOf("\$gt" to "1")))
+        assertSame(first, reordered)
+        assertNotSame(first, other)
+        assertTrue(QueryCompiler.compile(null).matches(items[0]))
+    }
+
+    fun testUnsupportedOperator() {
+        try {
+            QueryCompiler.compile(linkedMapOf<String, Any?>("loc" to mapOf("\$nearSphere" to listOf(1, 2))))
+            fail("KinveyException expected")
+        } catch (e: KinveyException) {
+            assertTrue(e.reason!!.contains("\$nearSphere"))
+        }
+    }
+
+    fun testSortComparator() {
+        val byPages = QueryCompiler.comparator(linkedMapOf("pages" to AbstractQuery.SortOrder.DESC))!!
+        assertEquals(listOf("4", "3", "2", "1"), items.sortedWith(byPages).map { it["_id"] })
+        val byName = QueryCompiler.comparator(linkedMapOf("author.name" to AbstractQuery.SortOrder.ASC,
+                "pages" to AbstractQuery.SortOrder.ASC))!!
+        assertEquals(listOf("4", "1", "2", "3"), items.sortedWith(byName).map { it["_id"] })
+        assertNull(QueryCompiler.comparator(emptyMap()))
+    }
+
+    private fun ids(query: AbstractQuery): List<Any?> = ids(query.queryFilterMap as Map<String, Any?>)
+
+    private fun ids(filter: Map<String, Any?>): List<Any?> {
+        val predicate = QueryCompiler.compile(filter)
+        return items.filter { predicate.matches(it) }.map { it["_id"] }
+    }
+
+    private fun query() = Query(MongoQueryFilterBuilder())
+
+    private fun item(id: String, title: String, pages: Number, tags: List<String>, author: Map<String, Any>?): Map<String, Any?> {
+        return linkedMapOf("_id" to id, "title" to title, "pages" to pages, "tags" to tags, "author" to author)
+    }
+}
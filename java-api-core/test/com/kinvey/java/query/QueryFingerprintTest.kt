@@ -0,0 +1,54 @@
+package com.kinvey.java.query
+
+import com.google.api.client.json.gson.GsonFactory
+import com.kinvey.java.Query
+import com.kinvey.java.query.MongoQueryFilter.MongoQueryFilterBuilder
+import junit.framework.TestCase
+
+class QueryFingerprintTest : TestCase() {
+
+    fun testKeyOrderAndNumberTypesDoNotChangeTheFingerprint() {
+        val a = query().equals("name", "Ann").greaterThan("age", 30).`in`("tags", arrayOf("a", "b"))
+        val b = query().`in`("tags", arrayOf("a", "b")).greaterThan("age", 30L).equals("name", "Ann")
+
+        assertEquals(a.filterFingerprint, b.filterFingerprint)
+        assertEquals(a.filterFingerprint.hash, b.filterFingerprint.hash)
+        assertEquals(32, a.filterFingerprint.hash.length)
+        assertEquals("{\"age\":{\"\$gt\":30},\"name\":\"Ann\",\"tags\":{\"\$in\":[\"a\",\"b\"]}}", a.filterFingerprint.canonicalJson)
+        assertEquals(QueryFingerprint.of(linkedMapOf("n" to 1.50)), QueryFingerprint.of(linkedMapOf("n" to 1.5f)))
+    }
+
+    fun testDifferentQueriesHaveDifferentFingerprints() {
+        assertFalse(query().equals("age", 30).filterFingerprint == query().equals("age", "30").filterFingerprint)
+        assertFalse(query().`in`("tags", arrayOf("a", "b")).filterFingerprint == query().`in`("tags", arrayOf("b", "a")).filterFingerprint)
+        assertEquals(QueryFingerprint.of(null), query().filterFingerprint)
+    }
+
+    fun testFingerprintOfTheWholeQueryIncludesSortAndPaging() {
+        val a = query().equals("name", "Ann").addSort("age", AbstractQuery.SortOrder.DESC)
+        val b = query().equals("name", "Ann").addSort("age", AbstractQuery.SortOrder.ASC)
+
+        assertEquals(a.filterFingerprint, b.filterFingerprint)
+        assertFalse(a.fingerprint == b.fingerprint)
+        assertFalse(a.fingerprint == query().equals("name", "Ann").addSort("age", AbstractQuery.SortOrder.DESC).setLimit(10).fingerprint)
+        assertEquals(query().equals("name", "Ann").fingerprint, query().equals("name", "Ann").filterFingerprint)
+    }
+
+    fun testFingerprintAndJsonAreComputedOncePerVersion() {
+        val factory = GsonFactory()
+        val query = query().equals("name", "Ann")
+        val fingerprint = query.filterFingerprint
+        val json = query.getQueryFilterJson(factory)
+
+        assertSame(fingerprint, query.filterFingerprint)
+        assertSame(json, query.getQueryFilterJson(factory))
+
+        query.greaterThan("age", 30)
+        assertNotSame(fingerprint, query.filterFingerprint)
+        assertEquals("{\"name\":\"Ann\",\"age\":{\"\$gt\":30}}", query.getQueryFilterJson(factory))
+        query.not()
+        assertFalse(query.getQueryFilterJson(factory)!!.contains("\"name\":\"Ann\""))
+    }
+
+    private fun query() = Query(MongoQueryFilterBuilder())
+}
@@ -0,0 +1,175 @@
+package com.kinvey.java.store
+
+import com.kinvey.java.AbstractClient
+import com.kinvey.java.Query
+import com.kinvey.java.cache.ICache
+import com.kinvey.java.cache.ICacheManager
+import com.kinvey.java.model.KinveyCountResponse
+import com.kinvey.java.model.KinveyReadResponse
+import com.kinvey.java.network.NetworkManager
+import com.kinvey.java.store.request.Person
+import com.kinvey.java.sync.SyncManager
+import junit.framework.TestCase
+import org.mockito.ArgumentMatchers.any
+import org.mockito.ArgumentMatchers.anyBoolean
+import org.mockito.ArgumentMatchers.anyLong
+import org.mockito.ArgumentMatchers.anyString
+import org.mockito.Mockito.`when`
+import org.mockito.Mockito.mock
+import java.util.Collections
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class BaseDataStorePullTest : TestCase() {
+
+    private var client: AbstractClient<*>? = null
+    private var networkManager: NetworkManager<Person>? = null
+    private var cache: ICache<Person>? = null
+    private val savedIds = Collections.synchronizedList(ArrayList<String>())
+    private val requestedQueries = Collections.synchronizedList(ArrayList<String>())
+    private val inFlight = AtomicInteger()
+    private val maxInFlight = AtomicInteger()
+
+    override fun setUp() {
+        client = mock(AbstractClient::class.java)
+        networkManager = mock(NetworkManager::class.java) as NetworkManager<Person>
+        cache = mock(ICache::class.java) as ICache<Person>
+        val cacheManager = mock(ICacheManager::class.java)
+        `when`(client?.isInitialize).thenReturn(true)
+        `when`(client?.cacheManager).thenReturn(cacheManager)
+        `when`(client?.syncManager).thenReturn(SyncManager(null))
+        `when`(client?.query()).thenAnswer { Query() }
+        `when`(cacheManager.getCache(anyString(), any(Class::class.java) as Class<Person>?, anyLong())).thenReturn(cache)
+        `when`(cache?.save(any(Iterable::class.java) as Iterable<Person>?)).thenAnswer { invocation ->
+            val items = (invocation.arguments[0] as Iterable<Person>).toList()
+            items.forEach { savedIds.add(it.id!!) }
+            items
+        }
+    }
+
+    fun testPullBySkipKeepsBoundedWindow() {
+        val ids = ids(95)
+        mockNetwork(ids)
+        val store = TestDataStore(client, networkManager)
+        store.pullPagesInFlight = 3
+        val response = store.pullBlocking(Query(), 10)
+        assertEquals(95, response.count)
+        assertEquals(ids.toSet(), savedIds.toSet())
+        assertEquals(10, requestedQueries.size)
+        assertTrue(maxInFlight.get() <= 3)
+        assertTrue(response.listOfExceptions?.isEmpty() == true)
+    }
+
+    fun testPullBySkipStopsOnShortPage() {
+        val ids = ids(25)
+        // count of the whole collection is bigger than the count of the items matched by the query
+        mockNetwork(ids, count = 1000)
+        val store = TestDataStore(client, networkManager)
+        store.pullPagesInFlight = 1
+        val response = store.pullBlocking(Query(), 10)
+        assertEquals(25, response.count)
+        assertEquals(3, requestedQueries.size)
+    }
+
+    fun testPullByKeyset() {
+        val ids = ids(45)
+        mockNetwork(ids)
+        val store = TestDataStore(client, networkManager)
+        store.isKeysetPaginationEnabled = true
+        val response = store.pullBlocking(Query(), 10)
+        assertEquals(45, response.count)
+        assertEquals(ids, savedIds)
+        assertEquals(5, requestedQueries.size)
+        assertFalse(requestedQueries[0].contains("\$gt"))
+        assertTrue(requestedQueries[1].contains("\$gt=${ids[9]}"))
+        assertTrue(requestedQueries.none { it.contains("skip=") })
+    }
+
+    fun testKeysetIsNotUsedForCustomSort() {
+        val ids = ids(20)
+        mockNetwork(ids)
+        val store = TestDataStore(client, networkManager)
+        store.isKeysetPaginationEnabled = true
+        val query = Query().addSort("age", com.kinvey.java.query.AbstractQuery.SortOrder.DESC)
+        val response = store.pullBlocking(query, 10)
+        assertEquals(20, response.count)
+        assertTrue(requestedQueries.none { it.contains("\$gt") })
+    }
+
+    fun testPullByKeysetOfExplicitIdSort() {
+        val ids = ids(20)
+        mockNetwork(ids)
+        val store = TestDataStore(client, networkManager)
+        store.isKeysetPaginationEnabled = true
+        val query = Query().addSort("_id", com.kinvey.java.query.AbstractQuery.SortOrder.ASC)
+        val response = store.pullBlocking(query, 10)
+        assertEquals(20, response.count)
+        assertTrue(requestedQueries[1].contains("\$gt=${ids[9]}"))
+    }
+
+    fun testKeysetIsNotUsedForSecondarySort() {
+        val ids = ids(20)
+        mockNetwork(ids)
+        val store = TestDataStore(client, networkManager)
+        store.isKeysetPaginationEnabled = true
+        val query = Query().addSort("_id", com.kinvey.java.query.AbstractQuery.SortOrder.ASC)
+                .addSort("age", com.kinvey.java.query.AbstractQuery.SortOrder.ASC)
+        val response = store.pullBlocking(query, 10)
+        assertEquals(20, response.count)
+        assertTrue(requestedQueries.none { it.contains("\$gt") })
+    }
+
+    fun testPagesInFlightMustBePositive() {
+        val store = TestDataStore(client, networkManager)
+        try {
+            store.pullPagesInFlight = 0
+            fail("IllegalArgumentException is expected")
+        } catch (e: IllegalArgumentException) {
+            assertNotNull(e)
+        }
+    }
+
+    fun testAsyncPullRunsOnExecutor() {
+        mockNetwork(ids(25))
+        val executor = Executors.newSingleThreadExecutor()
+        try {
+            val future = AsyncDataStore(TestDataStore(client, networkManager), executor).pull(Query(), 10)
+            assertEquals(25, future.get(5, TimeUnit.SECONDS).count)
+            assertEquals(3, requestedQueries.size)
+        } finally {
+            executor.shutdown()
+        }
+    }
+
+    private fun ids(count: Int): List<String> = (0 until count).map { String.format("id%05d", it) }
+
+    /**
+     * Serves the given sorted ids page by page, for skip and limit queries as well as for `_id` greater than queries.
+     */
+    private fun mockNetwork(ids: List<String>, count: Int = ids.size) {
+        val getCount = mock(NetworkManager.GetCount::class.java) as NetworkManager.GetCount<Person>
+        `when`(getCount.execute()).thenReturn(KinveyCountResponse(count))
+        `when`(networkManager?.countBlocking).thenReturn(getCount)
+        `when`(networkManager?.getBlocking(any(Query::class.java), anyBoolean())).thenAnswer { invocation ->
+            val query = invocation.arguments[0] as Query
+            val filter = query.queryFilterMap.toString()
+            requestedQueries.add(filter + (if (query.skip > 0) " skip=${query.skip}" else ""))
+            val lastId = Regex("\\\$gt=(id\\d+)").find(filter)?.groupValues?.get(1)
+            val from = if (lastId != null) ids.indexOf(lastId) + 1 else query.skip
+            val page = ids.drop(from).take(query.limit).map { Person(id = it) }
+            val get = mock(NetworkManager.Get::class.java) as NetworkManager.Get<Person>
+            `when`(get.execute()).thenAnswer {
+                val current = inFlight.incrementAndGet()
+                maxInFlight.accumulateAndGet(current) { a, b -> Math.max(a, b) }
+                Thread.sleep(5)
+                inFlight.decrementAndGet()
+                KinveyReadResponse(result = page).apply { listOfExceptions = listOf() }
+            }
+            get
+        }
+    }
+
+    private class TestDataStore(client: AbstractClient<*>?, networkManager: NetworkManager<Person>?)
+        : BaseDataStore<Person>(client, Person.COLLECTION, Person::class.java, StoreType.SYNC, networkManager!!)
+}
@@ -4,6 +4,9 @@ import com.kinvey.java.store.file.FileUtils
 import junit.framework.TestCase
 import java.io.ByteArrayInputStream
 import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
 
 class FileUtilsTest : TestCase() {
 
@@ -16,4 +19,34 @@ class FileUtilsTest : TestCase() {
         val resultStr = outStream.toString()
         assertEquals(STREAM_STR, resultStr)
     }
-}
\ No newline at end of file
+
+    fun testCopyFileStreamsFromCurrentPosition() {
+        val source = File.createTempFile("source", ".tmp")
+        val target = File.createTempFile("target", ".tmp")
+        try {
+            source.writeText(STREAM_STR)
+            FileInputStream(source).use { inStream ->
+                inStream.skip(5)
+                FileOutputStream(target).use { outStream -> FileUtils.copyStreams(inStream, outStream) }
+                assertEquals(-1, inStream.read())
+            }
+            assertEquals(STREAM_STR.substring(5), target.readText())
+        } finally {
+            source.delete()
+            target.delete()
+        }
+    }
+
+    fun testCopyFile() {
+        val source = File.createTempFile("source", ".tmp")
+        try {
+            val content = ByteArray(200 * 1024) { (it % 127).toByte() }
+            source.writeBytes(content)
+            val outStream = ByteArrayOutputStream()
+            FileUtils.copyFile(source, outStream)
+            assertTrue(content.contentEquals(outStream.toByteArray()))
+        } finally {
+            source.delete()
+        }
+    }
+}
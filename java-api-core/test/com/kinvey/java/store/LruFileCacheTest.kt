@@ -0,0 +1,67 @@
+package com.kinvey.java.store
+
+import com.kinvey.java.store.file.LruFileCache
+import junit.framework.TestCase
+import java.io.File
+import java.nio.file.Files
+
+class LruFileCacheTest : TestCase() {
+
+    private var directory: File? = null
+
+    override fun setUp() {
+        directory = Files.createTempDirectory("lru-file-cache").toFile()
+    }
+
+    override fun tearDown() {
+        directory?.deleteRecursively()
+    }
+
+    fun testLeastRecentlyUsedFilesAreEvicted() {
+        val lru = LruFileCache.forDirectory(directory!!)
+        lru.maxSize = 30
+        assertTrue(lru.onWrite(write("a", 10)).isEmpty())
+        assertTrue(lru.onWrite(write("b", 10)).isEmpty())
+        assertTrue(lru.onWrite(write("c", 10)).isEmpty())
+        lru.touch(File(directory, "a"))
+
+        assertEquals(listOf("b"), lru.onWrite(write("d", 10)))
+        assertFalse(File(directory, "b").exists())
+        assertTrue(File(directory, "a").exists())
+        assertEquals(30L, lru.size)
+    }
+
+    fun testWrittenFileIsNeverEvicted() {
+        val lru = LruFileCache.forDirectory(directory!!)
+        lru.maxSize = 15
+        lru.onWrite(write("a", 10))
+        assertEquals(listOf("a"), lru.onWrite(write("big", 20)))
+        assertTrue(File(directory, "big").exists())
+        assertEquals(20L, lru.size)
+    }
+
+    fun testExistingFilesAreLoadedInLastModifiedOrder() {
+        write("old", 10).setLastModified(1000)
+        write("new", 10).setLastModified(2000)
+        val lru = LruFileCache.forDirectory(directory!!)
+        assertEquals(20L, lru.size)
+        lru.maxSize = 10
+        assertEquals(listOf("old"), lru.trim())
+        assertSame(lru, LruFileCache.forDirectory(File(directory, "../${directory?.name}")))
+    }
+
+    fun testMaxSizeMustBePositive() {
+        try {
+            LruFileCache.forDirectory(directory!!).maxSize = 0
+            fail("IllegalArgumentException is expected")
+        } catch (e: IllegalArgumentException) {
+            assertNotNull(e.message)
+        }
+    }
+
+    private fun write(name: String, size: Int): File {
+        val file = File(directory, name)
+        file.writeBytes(ByteArray(size))
+        return file
+    }
+}
@@ -0,0 +1,151 @@
+package com.kinvey.java.store
+
+import com.google.api.client.http.LowLevelHttpRequest
+import com.google.api.client.http.LowLevelHttpResponse
+import com.google.api.client.json.GenericJson
+import com.google.api.client.testing.http.MockHttpTransport
+import com.google.api.client.testing.http.MockLowLevelHttpRequest
+import com.google.api.client.testing.http.MockLowLevelHttpResponse
+import com.google.api.client.util.Key
+import com.kinvey.java.annotations.KinveyReference as KinveyReferenceField
+import com.kinvey.java.cache.InMemoryCacheManager
+import com.kinvey.java.core.KinveyMockUnitTest
+import com.kinvey.java.dto.BaseUser
+import com.kinvey.java.model.KinveyReference
+import java.net.URLDecoder
+import java.util.Collections
+
+class ReferenceResolverTest : KinveyMockUnitTest<BaseUser>() {
+
+    private val requests = Collections.synchronizedList(ArrayList<String>())
+
+    private val transport = object : MockHttpTransport() {
+        override fun buildRequest(method: String, url: String): LowLevelHttpRequest {
+            return object : MockLowLevelHttpRequest(url) {
+                override fun execute(): LowLevelHttpResponse {
+                    val collection = url.substringBefore('?').substringAfterLast('/')
+                    requests.add(collection)
+                    val query = URLDecoder.decode(url.substringAfter("query="), "UTF-8")
+                    val ids = Regex("in\":\\[(.*?)]").find(query)!!.groupValues[1]
+                            .split(',').map { it.trim('"') }
+                    val body = ids.joinToString(",", "[", "]") { entityJson(collection, it) }
+                    return MockLowLevelHttpResponse().setContent(body).setContentType("application/json")
+                }
+            }
+        }
+    }
+
+    fun testPageIsResolvedWithOneRequestPerCollection() {
+        val resolver = ReferenceResolver(getClient(transport))
+        val books = (0 until 1000).map { i ->
+            GenericJson().apply {
+                this["_id"] = "book$i"
+                this["author"] = KinveyReference("authors", "a${i % 50}")
+                this["editor"] = reference("editors", "e${i % 20}")
+                this["tags"] = listOf(reference("tags", "t${i % 7}"), reference("tags", "t${(i + 1) % 7}"))
+            }
+        }
+
+        assertEquals(77, resolver.resolve(books))
+
+        assertEquals(listOf("authors", "editors", "tags"), requests.sorted())
+        val author = (books[51]["author"] as KinveyReference).resolvedObject
+        assertEquals("a1", author?.get("_id"))
+        assertEquals("e11", ((books[51]["editor"] as Map<*, *>)["_obj"] as GenericJson)["_id"])
+        assertEquals("t3", (((books[51]["tags"] as List<*>)[1] as Map<*, *>)["_obj"] as GenericJson)["_id"])
+        // the nested reference of an author is not resolved beyond the depth
+        assertNull((author?.get("publisher") as Map<*, *>)["_obj"])
+    }
+
+    fun testReferencesAreResolvedLevelByLevel() {
+        val resolver = ReferenceResolver(getClient(transport))
+        resolver.maxDepth = 2
+        val books = (0 until 100).map { i ->
+            GenericJson().apply { this["author"] = KinveyReference("authors", "a${i % 10}") }
+        }
+
+        resolver.resolve(books)
+
+        assertEquals(listOf("authors", "publishers"), requests)
+        val author = (books[4]["author"] as KinveyReference).resolvedObject
+        assertEquals("p1", ((author?.get("publisher") as Map<*, *>)["_obj"] as GenericJson)["_id"])
+    }
+
+    fun testCachedReferencesAreNotFetched() {
+        val resolver = ReferenceResolver(getClient(transport))
+        resolver.cacheManager = InMemoryCacheManager()
+        resolver.registerItemClass("authors", GenericJson::class.java)
+        resolver.registerItemClass("editors", Editor::class.java)
+        resolver.cacheManager?.getCache("editors", Editor::class.java, Long.MAX_VALUE)
+                ?.save((0 until 5).map { Editor().apply { this["_id"] = "e$it"; name = "cached" } })
+        val books = (0 until 10).map { i ->
+            GenericJson().apply { this["editor"] = KinveyReference("editors", "e${i % 5}") }
+        }
+
+        resolver.resolve(books)
+
+        assertTrue(requests.isEmpty())
+        assertEquals("cached", (books[7]["editor"] as KinveyReference).getTypedObject(Editor::class.java)?.name)
+    }
+
+    fun testReferencesAreReadFromOpenedCache() {
+        val resolver = ReferenceResolver(getClient(transport))
+        val cacheManager = InMemoryCacheManager()
+        resolver.cacheManager = cacheManager
+        cacheManager.getCache("authors", GenericJson::class.java, Long.MAX_VALUE)
+                ?.save((0 until 3).map { i -> GenericJson().apply { this["_id"] = "a$i"; this["name"] = "cached" } })
+        val books = (0 until 6).map { i ->
+            GenericJson().apply {
+                this["author"] = KinveyReference("authors", "a${i % 3}")
+                this["editor"] = KinveyReference("editors", "e${i % 2}")
+            }
+        }
+
+        resolver.resolve(books)
+
+        // the editors have no cache opened and are fetched
+        assertEquals(listOf("editors"), requests)
+        assertEquals("cached", (books[4]["author"] as KinveyReference).resolvedObject?.get("name"))
+        assertNull(cacheManager.getCollectionItemClass("editors"))
+    }
+
+    fun testAnnotatedFieldsGetTypedEntities() {
+        val resolver = ReferenceResolver(getClient(transport))
+        val books = (0 until 4).map { i ->
+            Book().apply {
+                this["editor"] = KinveyReference("editors", "e${i % 2}")
+                this["reviewers"] = listOf(KinveyReference("editors", "e2"), KinveyReference("editors", "e3"))
+            }
+        }
+
+        resolver.resolve(books)
+
+        assertEquals(listOf("editors"), requests)
+        assertEquals("editor e1", books[3].editor?.name)
+        assertEquals(listOf("editor e2", "editor e3"), books[0].reviewers?.map { it.name })
+    }
+
+    private fun reference(collection: String, id: String): MutableMap<String, Any?> {
+        return linkedMapOf("_type" to "KinveyRef", "_collection" to collection, "_id" to id)
+    }
+
+    private fun entityJson(collection: String, id: String): String {
+        return when (collection) {
+            "authors" -> "{\"_id\":\"$id\",\"publisher\":{\"_type\":\"KinveyRef\",\"_collection\":\"publishers\"," +
+                    "\"_id\":\"p${id.substring(1).toInt() % 3}\"}}"
+            else -> "{\"_id\":\"$id\",\"name\":\"editor $id\"}"
+        }
+    }
+
+    class Editor : GenericJson() {
+        @Key
+        var name: String? = null
+    }
+
+    class Book : GenericJson() {
+        @KinveyReferenceField(fieldName = "editor", collection = "editors", itemClass = Editor::class)
+        var editor: Editor? = null
+        @KinveyReferenceField(fieldName = "reviewers", collection = "editors", itemClass = Editor::class)
+        var reviewers: List<Editor>? = null
+    }
+}
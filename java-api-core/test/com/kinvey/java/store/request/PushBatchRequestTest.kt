@@ -10,10 +10,15 @@ import com.kinvey.java.sync.dto.SyncItem
 import com.kinvey.java.sync.dto.SyncRequest
 import junit.framework.TestCase
 import org.junit.Before
+import com.google.api.client.json.gson.GsonFactory
+import org.mockito.ArgumentCaptor
 import org.mockito.ArgumentMatchers.any
 import org.mockito.ArgumentMatchers.anyString
 import org.mockito.Mockito
 import org.powermock.api.mockito.PowerMockito
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 
 class PushBatchRequestTest : TestCase() {
 
@@ -46,15 +51,95 @@ class PushBatchRequestTest : TestCase() {
         request.syncManager = syncManager
 
         PowerMockito.doReturn(saveItems).`when`(syncManager, "popSingleItemQueue", Person.COLLECTION)
-        PowerMockito.doReturn(person1).`when`(cache, "get", personId1)
-        PowerMockito.doReturn(person2).`when`(cache, "get", personId2)
+        Mockito.`when`(cache?.get(listOf(personId1, personId2) as Iterable<String>)).thenReturn(listOf(person1, person2))
 
         request.execute()
 
-        Mockito.verify(cache, Mockito.times(2))?.get(anyString())
+        Mockito.verify(cache, Mockito.times(1))?.get(listOf(personId1, personId2))
+        Mockito.verify(cache, Mockito.never())?.get(anyString())
         Mockito.verify(syncManager, Mockito.times(2))?.executeRequest(any(), any())
     }
 
+    fun testPushPutRequestInParallel() {
+        val syncItems = (1..6).map { i ->
+            SyncItem(SyncRequest.HttpVerb.PUT, SyncRequest.SyncMetaData("testId$i", null, null), Person.COLLECTION)
+                    .apply { set("_id", "syncId$i") }
+        }
+        val persons = (1..6).map { i -> Person(id = "testId$i") }
+        val inFlight = AtomicInteger()
+        val maxInFlight = AtomicInteger()
+        // the first requests are held until maxPutsInFlight of them are in flight
+        val allInFlight = CountDownLatch(3)
+
+        val request = PushBatchRequest(Person.COLLECTION, cache as ICache<Person>,
+                spyNetworkManager as NetworkManager<Person>, client)
+        request.syncManager = syncManager
+        request.maxPutsInFlight = 3
+
+        PowerMockito.doReturn(syncItems).`when`(syncManager, "popSingleItemQueue", Person.COLLECTION)
+        Mockito.`when`(cache?.get(persons.map { it.id } as Iterable<String>)).thenReturn(persons)
+        Mockito.`when`(syncManager?.executeRequest(any(), any())).thenAnswer {
+            val current = inFlight.incrementAndGet()
+            maxInFlight.accumulateAndGet(current) { a, b -> Math.max(a, b) }
+            allInFlight.countDown()
+            assertTrue(allInFlight.await(5, TimeUnit.SECONDS))
+            inFlight.decrementAndGet()
+            null
+        }
+
+        val removedIds = ArrayList<String>()
+        Mockito.doAnswer { invocation -> removedIds.addAll(invocation.arguments[0] as Collection<String>); 0 }
+                .`when`(syncManager)?.deleteCachedItems(Mockito.anyCollection())
+
+        request.execute()
+
+        Mockito.verify(syncManager, Mockito.times(6))?.executeRequest(any(), any())
+        assertEquals(request.maxPutsInFlight, maxInFlight.get())
+        Mockito.verify(syncManager)?.deleteCachedItems(Mockito.anyCollection())
+        assertEquals(syncItems.map { it["_id"] }.toSet(), removedIds.toSet())
+    }
+
+    fun testMissedItemIsCompletedWithoutRequest() {
+        val syncItem1 = SyncItem(SyncRequest.HttpVerb.PUT, SyncRequest.SyncMetaData(personId1, null, null), Person.COLLECTION)
+        syncItem1["_id"] = "syncId1"
+        val request = PushBatchRequest(Person.COLLECTION, cache as ICache<Person>,
+                spyNetworkManager as NetworkManager<Person>, client)
+        request.syncManager = syncManager
+
+        PowerMockito.doReturn(listOf(syncItem1)).`when`(syncManager, "popSingleItemQueue", Person.COLLECTION)
+        Mockito.`when`(cache?.get(listOf(personId1) as Iterable<String>)).thenReturn(listOf<Person>())
+
+        request.execute()
+
+        Mockito.verify(syncManager, Mockito.never())?.executeRequest(any(), any())
+        Mockito.verify(syncManager)?.deleteCachedItems(listOf("syncId1"))
+        val captor = ArgumentCaptor.forClass(Query::class.java)
+        Mockito.verify(syncManager)?.deleteCachedItems(captor.capture())
+        assertEquals("{\"meta.id\":{\"\$in\":[\"testId1\"]},\"requestMethod\":{\"\$ne\":\"DELETE\"}}",
+                captor.value.getQueryFilterJson(GsonFactory()))
+    }
+
+    fun testPushDeleteRequestsAsQuery() {
+        val syncItems = (1..3).map { i ->
+            SyncItem(SyncRequest.HttpVerb.DELETE, SyncRequest.SyncMetaData("testId$i", null, null), Person.COLLECTION)
+                    .apply { set("_id", "syncId$i") }
+        }
+        val request = PushBatchRequest(Person.COLLECTION, cache as ICache<Person>,
+                spyNetworkManager as NetworkManager<Person>, client)
+        request.syncManager = syncManager
+
+        PowerMockito.doReturn(syncItems).`when`(syncManager, "popSingleItemQueue", Person.COLLECTION)
+
+        request.execute()
+
+        val captor = ArgumentCaptor.forClass(Query::class.java)
+        Mockito.verify(spyNetworkManager, Mockito.times(1))?.deleteBlocking(captor.capture())
+        assertEquals("{\"_id\":{\"\$in\":[\"testId1\",\"testId2\",\"testId3\"]}}", captor.value.getQueryFilterJson(GsonFactory()))
+        Mockito.verify(spyNetworkManager, Mockito.never())?.deleteBlocking(anyString())
+        Mockito.verify(syncManager, Mockito.times(1))?.executeRequest(any(), any())
+        Mockito.verify(syncManager)?.deleteCachedItems(listOf("syncId1", "syncId2", "syncId3"))
+    }
+
     fun testPushPostRequest() {
         val syncItem1 = SyncItem(SyncRequest.HttpVerb.POST, SyncRequest.SyncMetaData(personId1, null, null), Person.COLLECTION)
         val syncItem2 = SyncItem(SyncRequest.HttpVerb.POST, SyncRequest.SyncMetaData(personId2, null, null), Person.COLLECTION)
@@ -68,13 +153,11 @@ class PushBatchRequestTest : TestCase() {
         request.syncManager = syncManager
 
         PowerMockito.doReturn(saveItems).`when`(syncManager, "popSingleItemQueue", Person.COLLECTION)
-        PowerMockito.doReturn(person1).`when`(cache, "get", personId1)
-        PowerMockito.doReturn(person2).`when`(cache, "get", personId2)
         PowerMockito.doReturn(personItems).`when`(request, "getSaveItems", saveItems)
 
         request.execute()
 
-        Mockito.verify(cache, Mockito.times(2))?.get(anyString())
+        Mockito.verify(cache, Mockito.never())?.get(anyString())
         PowerMockito.verifyPrivate(request, Mockito.times(1))?.invoke("executeSaveRequest", personItems)
     }
 }
\ No newline at end of file
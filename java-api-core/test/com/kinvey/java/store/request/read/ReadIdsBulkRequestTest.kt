@@ -0,0 +1,99 @@
+package com.kinvey.java.store.request.read
+
+import com.kinvey.java.cache.ICache
+import com.kinvey.java.model.KinveyReadResponse
+import com.kinvey.java.network.NetworkManager
+import com.kinvey.java.store.ReadPolicy
+import com.kinvey.java.store.request.Person
+import com.kinvey.java.store.requests.data.read.ReadIdsBulkRequest
+import junit.framework.TestCase
+import org.junit.Before
+import org.mockito.ArgumentMatchers.any
+import org.mockito.ArgumentMatchers.anyIterable
+import org.mockito.Mockito
+import java.net.UnknownHostException
+import java.util.Collections
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+
+class ReadIdsBulkRequestTest : TestCase() {
+
+    var networkManager: NetworkManager<Person>? = null
+    var cache: ICache<Person>? = null
+    var executor: ExecutorService? = null
+    val requestedPages: MutableList<List<String>> = Collections.synchronizedList(ArrayList())
+
+    @Before
+    override fun setUp() {
+        networkManager = Mockito.mock(NetworkManager::class.java) as NetworkManager<Person>?
+        cache = Mockito.mock(ICache::class.java) as ICache<Person>
+        executor = Executors.newFixedThreadPool(3)
+        // the server knows every id except the ones starting with "missing", results come in reverse order
+        Mockito.`when`(networkManager?.getBlocking(any(Array<String>::class.java))).thenAnswer { invocation ->
+            val ids = (invocation.arguments[0] as Array<String>).toList()
+            requestedPages.add(ids)
+            val get = Mockito.mock(NetworkManager.Get::class.java) as NetworkManager.Get<Person>
+            val found = ids.filter { !it.startsWith("missing") }.reversed().map { Person(id = it) }
+            Mockito.`when`(get.execute()).thenReturn(KinveyReadResponse(result = found))
+            get
+        }
+    }
+
+    override fun tearDown() {
+        executor?.shutdownNow()
+    }
+
+    fun testPagesFitIntoQueryLength() {
+        val ids = (0 until 1000).map { "id$it" }
+        val request = ReadIdsBulkRequest(cache, networkManager, ReadPolicy.FORCE_NETWORK, ids, executor!!)
+        request.maxQueryLength = 500
+
+        val response = request.execute()
+
+        assertTrue(requestedPages.size > 1)
+        requestedPages.forEach { page -> assertTrue(page.sumBy { it.length + 9 } <= 500) }
+        assertEquals(ids.toSet(), requestedPages.flatten().toSet())
+        assertEquals(ids, response?.result?.map { it.id })
+        assertEquals(emptyList<String>(), response?.missingIds)
+        Mockito.verify(cache, Mockito.never())?.save(Mockito.anyList())
+    }
+
+    fun testMissingIdsAreReportedInCallerOrder() {
+        val ids = listOf("c", "missing1", "a", "c", "b", "missing2")
+        val response = ReadIdsBulkRequest(cache, networkManager, ReadPolicy.FORCE_NETWORK, ids, executor!!).execute()
+
+        assertEquals(listOf("c", "a", "b"), response?.result?.map { it.id })
+        assertEquals(listOf("missing1", "missing2"), response?.missingIds)
+        assertEquals(1, requestedPages.size)
+    }
+
+    fun testBothFetchesOnlyCacheMisses() {
+        val ids = listOf("a", "b", "c", "missing")
+        Mockito.`when`(cache?.get(anyIterable())).thenReturn(listOf(Person(id = "b")))
+
+        val response = ReadIdsBulkRequest(cache, networkManager, ReadPolicy.BOTH, ids, executor!!).execute()
+
+        assertEquals(listOf(listOf("a", "c", "missing")), requestedPages)
+        assertEquals(listOf("a", "b", "c"), response?.result?.map { it.id })
+        assertEquals(listOf("missing"), response?.missingIds)
+        Mockito.verify(cache, Mockito.times(1))?.save(Mockito.anyList())
+    }
+
+    fun testNetworkOtherwiseLocalError() {
+        val ids = listOf("a", "b")
+        Mockito.`when`(networkManager?.getBlocking(any(Array<String>::class.java))).thenThrow(UnknownHostException("test exception"))
+        Mockito.`when`(cache?.get(anyIterable())).thenReturn(listOf(Person(id = "a")))
+
+        val response = ReadIdsBulkRequest(cache, networkManager, ReadPolicy.NETWORK_OTHERWISE_LOCAL, ids, executor!!).execute()
+
+        assertEquals(listOf("a"), response?.result?.map { it.id })
+        assertEquals(listOf("b"), response?.missingIds)
+    }
+
+    fun testPages() {
+        assertEquals(listOf(listOf("a", "b"), listOf("c")), ReadIdsBulkRequest.pages(listOf("a", "b", "c"), 20))
+        // an id longer than the limit still gets its own page
+        assertEquals(listOf(listOf("long-id")), ReadIdsBulkRequest.pages(listOf("long-id"), 5))
+        assertEquals(emptyList<List<String>>(), ReadIdsBulkRequest.pages(emptyList(), 5))
+    }
+}
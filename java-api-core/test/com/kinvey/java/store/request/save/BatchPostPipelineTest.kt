@@ -0,0 +1,139 @@
+package com.kinvey.java.store.request.save
+
+import com.google.api.client.http.LowLevelHttpRequest
+import com.google.api.client.http.LowLevelHttpResponse
+import com.google.api.client.json.GenericJson
+import com.google.api.client.json.gson.GsonFactory
+import com.google.api.client.testing.http.MockHttpTransport
+import com.google.api.client.testing.http.MockLowLevelHttpRequest
+import com.google.api.client.testing.http.MockLowLevelHttpResponse
+import com.kinvey.java.cache.InMemoryCacheManager
+import com.kinvey.java.core.KinveyMockUnitTest
+import com.kinvey.java.dto.BaseUser
+import com.kinvey.java.network.NetworkManager
+import com.kinvey.java.store.WritePolicy
+import com.kinvey.java.store.request.Person
+import com.kinvey.java.store.requests.data.save.CreateListBatchRequest
+import com.kinvey.java.store.requests.data.save.SaveListBatchRequest
+import com.kinvey.java.sync.SyncManager
+import com.kinvey.java.sync.dto.SyncItem
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Saves lists by batch POSTs to a mock transport which answers every POST after [LATENCY_MILLIS].
+ */
+class BatchPostPipelineTest : KinveyMockUnitTest<BaseUser>() {
+
+    private val inFlight = AtomicInteger()
+    private val maxInFlight = AtomicInteger()
+    private val posts = AtomicInteger()
+    @Volatile private var failingAge: String? = null
+
+    private val transport = object : MockHttpTransport() {
+        override fun buildRequest(method: String, url: String): LowLevelHttpRequest {
+            return object : MockLowLevelHttpRequest(url) {
+                override fun execute(): LowLevelHttpResponse {
+                    maxInFlight.accumulateAndGet(inFlight.incrementAndGet()) { a, b -> Math.max(a, b) }
+                    try {
+                        posts.incrementAndGet()
+                        Thread.sleep(LATENCY_MILLIS)
+                        val body = ByteArrayOutputStream().also { streamingContent.writeTo(it) }.toString("UTF-8")
+                        val items = FACTORY.createJsonParser(body).parseArray(ArrayList::class.java, GenericJson::class.java)
+                                .map { it as GenericJson }
+                        if (items.any { it["age"] == failingAge }) {
+                            throw IOException("connection reset")
+                        }
+                        val entities = items.map { item -> item.apply { set("_id", "id-${item["age"]}") } }
+                        val errors = items.withIndex().filter { it.value["age"] == INVALID }
+                                .map { mapOf("index" to it.index, "error" to "KinveyInternalErrorRetry") }
+                        val response = mapOf("entities" to entities, "errors" to errors)
+                        return MockLowLevelHttpResponse().setContent(FACTORY.toString(response)).setContentType("application/json")
+                    } finally {
+                        inFlight.decrementAndGet()
+                    }
+                }
+            }
+        }
+    }
+
+    fun testPipelinedPostsKeepOrder() {
+        val client = getClient(transport)
+        client.retryEngine = null
+        val networkManager = NetworkManager(Person.COLLECTION, Person::class.java, client)
+        val persons = persons(1000)
+
+        val sequential = SaveListBatchRequest(null, networkManager, WritePolicy.FORCE_NETWORK, persons, null)
+        sequential.maxPostsInFlight = 1
+        assertEquals(persons.map { "id-${it.age}" }, sequential.execute().map { it.id })
+        assertEquals(1, maxInFlight.getAndSet(0))
+
+        val pipelined = SaveListBatchRequest(null, networkManager, WritePolicy.FORCE_NETWORK, persons(1000), null)
+        pipelined.maxPostsInFlight = 4
+        val result = pipelined.execute()
+
+        assertEquals(persons.map { "id-${it.age}" }, result.map { it.id })
+        assertEquals(4, maxInFlight.get())
+        assertEquals(20, posts.get())
+    }
+
+    fun testErrorIndexesReferToWholeList() {
+        val client = getClient(transport)
+        val networkManager = NetworkManager(Person.COLLECTION, Person::class.java, client)
+        val persons = persons(300)
+        persons[5].age = INVALID
+        persons[250].age = INVALID
+        val request = CreateListBatchRequest(null, networkManager, WritePolicy.FORCE_NETWORK, persons, null)
+        request.maxPostsInFlight = 3
+
+        val result = request.execute()
+
+        assertEquals(listOf(5, 250), result.errors?.map { it.index })
+        assertEquals(300, result.entities?.size)
+        assertEquals("id-0", result.entities?.first()?.id)
+        assertEquals("id-299", result.entities?.last()?.id)
+    }
+
+    fun testFailedChunkIsQueued() {
+        val client = getClient(transport)
+        client.retryEngine = null
+        val networkManager = NetworkManager(Person.COLLECTION, Person::class.java, client)
+        val cacheManager = InMemoryCacheManager()
+        val cache = cacheManager.getCache(Person.COLLECTION, Person::class.java, Long.MAX_VALUE)
+        val syncManager = SyncManager(cacheManager)
+        val persons = persons(300).onEach { it.id = "temp_${it.age}" }
+        failingAge = "150"
+        val request = SaveListBatchRequest(cache, networkManager, WritePolicy.LOCAL_THEN_NETWORK, persons, syncManager)
+        request.maxPostsInFlight = 3
+
+        request.execute()
+
+        val queued = cacheManager.getCache("syncitems", SyncItem::class.java, Long.MAX_VALUE)!!.get()
+        assertEquals((100 until 200).map { "temp_$it" }.toSet(), queued.map { it.entityID?.id }.toSet())
+    }
+
+    fun testFailedPostOfForceNetworkIsThrown() {
+        val client = getClient(transport)
+        client.retryEngine = null
+        val networkManager = NetworkManager(Person.COLLECTION, Person::class.java, client)
+        failingAge = "250"
+        val request = SaveListBatchRequest(null, networkManager, WritePolicy.FORCE_NETWORK, persons(300), null)
+
+        try {
+            request.execute()
+            fail("IOException is expected")
+        } catch (e: IOException) {
+            assertEquals("connection reset", e.cause?.message)
+        }
+        assertEquals(3, posts.get())
+    }
+
+    private fun persons(count: Int) = (0 until count).map { Person(age = it.toString()) }
+
+    companion object {
+        private const val LATENCY_MILLIS = 30L
+        private const val INVALID = "invalid"
+        private val FACTORY = GsonFactory()
+    }
+}
@@ -0,0 +1,66 @@
+package com.kinvey.java.sync
+
+import com.google.api.client.json.GenericJson
+import com.kinvey.java.cache.InMemoryCacheManager
+import com.kinvey.java.sync.dto.SyncRequest.HttpVerb
+import com.kinvey.java.testing.Benchmark
+import junit.framework.TestCase
+
+/**
+ * Compares queueing the saves of many entities with [SyncManager.enqueueSaveRequests], which looks up the queued
+ * sync items of all entities at once, with queueing them one by one, which runs a lookup and a save per entity.
+ * Half of the entities already have a queued request. Runs 1k and 10k entities with `meta.id` indexed and 1k
+ * entities without an index, like the sync item table of a database which scans it for every lookup.
+ * Both must leave one queued request per entity. The time they take is measured and logged only with
+ * `-Dkinvey.benchmark=true`, the 100k indexed and 10k not indexed runs are enabled with `-Dkinvey.benchmark.large=true`.
+ */
+class SyncManagerEnqueueBenchmarkTest : TestCase() {
+
+    fun testBulkEnqueueQueuesOneRequestPerEntity() {
+        val large = Benchmark.isLargeEnabled
+        val sizes = if (large) listOf(1000, 10000, 100000) else listOf(1000, 10000)
+        sizes.forEach { size ->
+            val entities = (0 until size).map { i -> GenericJson().apply { put("_id", i.toString()) } }
+            val bulk = measure(entities, true, ::enqueueBulk)
+            val single = measure(entities, true, ::enqueueOneByOne)
+            if (Benchmark.isEnabled) {
+                Benchmark.report(javaClass, "items=$size indexed bulk enqueue: ${bulk / 1000} us, one by one: ${single / 1000} us")
+            }
+            if (size <= if (large) 10000 else 1000) {
+                val bulkScan = measure(entities, false, ::enqueueBulk)
+                val singleScan = measure(entities, false, ::enqueueOneByOne)
+                if (Benchmark.isEnabled) {
+                    Benchmark.report(javaClass, "items=$size not indexed bulk enqueue: ${bulkScan / 1000} us, one by one: ${singleScan / 1000} us")
+                }
+            }
+        }
+    }
+
+    private fun enqueueBulk(syncManager: SyncManager, entities: List<GenericJson>) {
+        syncManager.enqueueSaveRequests<GenericJson>(BOOKS, null, entities)
+    }
+
+    private fun enqueueOneByOne(syncManager: SyncManager, entities: List<GenericJson>) {
+        entities.forEach { syncManager.enqueueRequest<GenericJson>(BOOKS, null, HttpVerb.PUT, it["_id"] as String) }
+    }
+
+    /**
+     * @return nanoseconds the enqueue took, after half of the entities were queued
+     */
+    private fun measure(entities: List<GenericJson>, indexed: Boolean, enqueue: (SyncManager, List<GenericJson>) -> Unit): Long {
+        val cacheManager = InMemoryCacheManager()
+        if (indexed) {
+            cacheManager.addIndex(SYNC_ITEMS, "meta.id")
+        }
+        val syncManager = SyncManager(cacheManager)
+        syncManager.enqueueSaveRequests<GenericJson>(BOOKS, null, entities.filterIndexed { i, _ -> i % 2 == 0 })
+        val elapsed = Benchmark.time { enqueue(syncManager, entities) }
+        assertEquals(entities.size.toLong(), syncManager.getCount(BOOKS))
+        return elapsed
+    }
+
+    companion object {
+        private const val BOOKS = "books"
+        private const val SYNC_ITEMS = "syncitems"
+    }
+}
@@ -0,0 +1,59 @@
+package com.kinvey.java.sync
+
+import com.google.api.client.json.GenericJson
+import com.kinvey.java.cache.InMemoryCacheManager
+import com.kinvey.java.core.KinveyMockUnitTest
+import com.kinvey.java.dto.BaseUser
+import com.kinvey.java.network.NetworkManager
+import com.kinvey.java.sync.dto.SyncItem
+import com.kinvey.java.sync.dto.SyncRequest.HttpVerb
+
+class SyncManagerTest : KinveyMockUnitTest<BaseUser>() {
+
+    private lateinit var cacheManager: InMemoryCacheManager
+    private lateinit var syncManager: SyncManager
+    private lateinit var networkManager: NetworkManager<GenericJson>
+
+    override fun setUp() {
+        super.setUp()
+        cacheManager = InMemoryCacheManager()
+        syncManager = SyncManager(cacheManager)
+        networkManager = NetworkManager(BOOKS, GenericJson::class.java, client)
+    }
+
+    fun testSaveRequestsAreQueuedOncePerEntity() {
+        syncManager.enqueueSaveRequests(BOOKS, networkManager, listOf(entity("1"), entity("temp_2")))
+        syncManager.enqueueSaveRequests(BOOKS, networkManager, listOf(entity("1"), entity("3"), entity("3")))
+
+        assertEquals(mapOf("1" to HttpVerb.PUT, "temp_2" to HttpVerb.POST, "3" to HttpVerb.PUT), queued())
+    }
+
+    fun testDeleteReplacesQueuedRequests() {
+        syncManager.enqueueSaveRequests(BOOKS, networkManager, listOf(entity("1"), entity("2")))
+        syncManager.enqueueDeleteRequests(BOOKS, networkManager, listOf("1", "4"))
+        syncManager.enqueueSaveRequests(BOOKS, networkManager, listOf(entity("1")))
+
+        assertEquals(mapOf("1" to HttpVerb.DELETE, "2" to HttpVerb.PUT, "4" to HttpVerb.DELETE), queued())
+        assertEquals(3L, syncManager.getCount(BOOKS))
+    }
+
+    fun testDeleteInSameBatchReplacesSave() {
+        syncManager.enqueueRequest(BOOKS, networkManager, HttpVerb.PUT, "1")
+        syncManager.enqueueDeleteRequests(BOOKS, networkManager, listOf(entity("1"), entity("1")))
+
+        assertEquals(mapOf("1" to HttpVerb.DELETE), queued())
+        assertEquals(1, items().size)
+    }
+
+    private fun items(): List<SyncItem> =
+            cacheManager.getCache(SYNC_ITEMS, SyncItem::class.java, Long.MAX_VALUE)!!.get()
+
+    private fun queued(): Map<String?, HttpVerb?> = items().associate { it.entityID?.id to it.requestMethod }
+
+    private fun entity(id: String) = GenericJson().apply { put("_id", id) }
+
+    companion object {
+        private const val BOOKS = "books"
+        private const val SYNC_ITEMS = "syncitems"
+    }
+}
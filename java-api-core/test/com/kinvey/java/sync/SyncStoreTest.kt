@@ -0,0 +1,114 @@
+package com.kinvey.java.sync
+
+import com.google.api.client.http.HttpTransport
+import com.google.api.client.http.LowLevelHttpRequest
+import com.google.api.client.http.LowLevelHttpResponse
+import com.google.api.client.json.GenericJson
+import com.google.api.client.json.JsonObjectParser
+import com.google.api.client.json.gson.GsonFactory
+import com.google.api.client.testing.http.MockHttpTransport
+import com.google.api.client.testing.http.MockLowLevelHttpRequest
+import com.google.api.client.testing.http.MockLowLevelHttpResponse
+import com.kinvey.java.AbstractClient
+import com.kinvey.java.CustomEndpoints
+import com.kinvey.java.UserDiscovery
+import com.kinvey.java.UserGroup
+import com.kinvey.java.cache.DiskCacheManager
+import com.kinvey.java.cache.ICacheManager
+import com.kinvey.java.cache.InMemoryCacheManager
+import com.kinvey.java.core.KinveyMockUnitTest.MockKinveyClientRequestInitializer
+import com.kinvey.java.dto.BaseUser
+import com.kinvey.java.store.BaseDataStore
+import com.kinvey.java.store.StoreType
+import com.kinvey.java.sync.dto.SyncItem
+import com.kinvey.java.sync.dto.SyncRequest.HttpVerb
+import junit.framework.TestCase
+import java.nio.file.Files
+import java.util.Collections
+
+/**
+ * Writes to a SYNC store of a JVM client which has a cache manager only and pushes the queued writes.
+ */
+class SyncStoreTest : TestCase() {
+
+    private val requests = Collections.synchronizedList(ArrayList<String>())
+
+    private val transport = object : MockHttpTransport() {
+        override fun buildRequest(method: String, url: String): LowLevelHttpRequest {
+            return object : MockLowLevelHttpRequest(url) {
+                override fun execute(): LowLevelHttpResponse {
+                    requests.add("$method ${url.substringAfter("/appdata/").substringAfter('/').substringBefore('?')}")
+                    val body = contentAsString.takeIf { it.isNotEmpty() }?.replace("\"_id\":\"temp_", "\"_id\":\"saved_")
+                            ?: "{}"
+                    return MockLowLevelHttpResponse().setContent(body).setContentType("application/json")
+                }
+            }
+        }
+    }
+
+    fun testSyncStoreQueuesAndPushesWrites() {
+        val client = JvmClient(transport, InMemoryCacheManager())
+        val store = BaseDataStore.collection(BOOKS, GenericJson::class.java, StoreType.SYNC, client)
+
+        store.save(GenericJson().set("_id", "1").set("title", "Kotlin"))
+        store.save(GenericJson().set("_id", "2").set("title", "Java"))
+
+        assertTrue(requests.isEmpty())
+        assertEquals(2L, client.syncManager.getCount(BOOKS))
+
+        store.pushBlocking()
+
+        assertEquals(listOf("PUT books/1", "PUT books/2"), requests.sorted())
+        assertEquals(0L, client.syncManager.getCount(BOOKS))
+    }
+
+    fun testQueuedWritesSurviveRestart() {
+        val directory = Files.createTempDirectory("sync").toFile()
+        try {
+            val before = DiskCacheManager(directory, GsonFactory())
+            val store = BaseDataStore.collection(BOOKS, GenericJson::class.java, StoreType.SYNC, JvmClient(transport, before))
+            store.save(GenericJson().set("_id", "1").set("title", "Kotlin"))
+            store.delete("2")
+            before.close()
+
+            val after = DiskCacheManager(directory, GsonFactory())
+            val client = JvmClient(transport, after)
+            val queued = after.getCache(SYNC_ITEMS, SyncItem::class.java, Long.MAX_VALUE)!!.get()
+            assertEquals(mapOf("1" to HttpVerb.PUT, "2" to HttpVerb.DELETE), queued.associate { it.entityID?.id to it.requestMethod })
+            assertEquals(2L, client.syncManager.getCount(BOOKS))
+
+            BaseDataStore.collection(BOOKS, GenericJson::class.java, StoreType.SYNC, client).pushBlocking()
+
+            assertEquals(listOf("DELETE books/2", "PUT books/1"), requests.sorted())
+            assertEquals(0L, client.syncManager.getCount(BOOKS))
+            after.close()
+        } finally {
+            directory.deleteRecursively()
+        }
+    }
+
+    /**
+     * Client of a JVM application, it has no separate cache manager for the sync queue
+     */
+    class JvmClient(transport: HttpTransport, cacheManager: ICacheManager)
+        : AbstractClient<BaseUser>(transport, null, "https://baas.kinvey.com/", "", JsonObjectParser(GsonFactory()),
+            MockKinveyClientRequestInitializer(), null, null) {
+
+        init {
+            this.cacheManager = cacheManager
+        }
+
+        override fun performLockDown() {}
+
+        override fun userDiscovery(): UserDiscovery<*>? = null
+
+        override fun userGroup(): UserGroup? = null
+
+        override fun <I : GenericJson, O> customEndpoints(myClass: Class<O>?): CustomEndpoints<I, O> = CustomEndpoints(this)
+    }
+
+    companion object {
+        private const val BOOKS = "books"
+        private const val SYNC_ITEMS = "syncitems"
+    }
+}
@@ -0,0 +1,96 @@
+package com.kinvey.java.testing
+
+import java.lang.management.ManagementFactory
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.logging.Logger
+
+/**
+ * Gating and measuring shared by the benchmark tests. Without `-Dkinvey.benchmark=true` the benchmark tests only
+ * check the results of the code under measurement, with it they measure it and log the numbers.
+ */
+object Benchmark {
+
+    /**
+     * Enables the measurements of the benchmark tests
+     */
+    const val BENCHMARK_PROPERTY = "kinvey.benchmark"
+    /**
+     * Enables the large payload runs of the benchmark tests, along with [BENCHMARK_PROPERTY]
+     */
+    const val LARGE_PROPERTY = "kinvey.benchmark.large"
+
+    val isEnabled: Boolean
+        get() = java.lang.Boolean.getBoolean(BENCHMARK_PROPERTY)
+
+    val isLargeEnabled: Boolean
+        get() = isEnabled && java.lang.Boolean.getBoolean(LARGE_PROPERTY)
+
+    /**
+     * Runs the block [warmupIterations] times, then measures [iterations] runs on the current thread
+     *
+     * @param items items processed by one run
+     */
+    fun measure(items: Long, warmupIterations: Int, iterations: Int, run: () -> Unit): Result {
+        repeat(warmupIterations) { run() }
+        val threadId = Thread.currentThread().id
+        val startBytes = allocatedBytes(threadId)
+        val start = System.nanoTime()
+        repeat(iterations) { run() }
+        val elapsed = System.nanoTime() - start
+        val allocated = allocatedBytes(threadId) - startBytes
+        return Result(items * iterations * 1_000_000_000L / Math.max(elapsed, 1), allocated / iterations)
+    }
+
+    /**
+     * Runs the operation [operationsPerThread] times on each of the threads at once, after a warm up of a tenth of that
+     *
+     * @param operation called with the thread index and the operation index
+     * @return operations per second of all threads together
+     */
+    fun measureConcurrent(threads: Int, operationsPerThread: Int, operation: (Int, Int) -> Any?): Long {
+        val executor = Executors.newFixedThreadPool(threads)
+        try {
+            executor.invokeAll((0 until threads).map { thread -> Callable { repeat(operationsPerThread / 10) { operation(thread, it) } } })
+                    .forEach { it.get() }
+            val start = System.nanoTime()
+            executor.invokeAll((0 until threads).map { thread -> Callable { repeat(operationsPerThread) { operation(thread, it) } } })
+                    .forEach { it.get() }
+            val elapsed = System.nanoTime() - start
+            return threads * operationsPerThread * 1_000_000_000L / Math.max(elapsed, 1)
+        } finally {
+            executor.shutdown()
+        }
+    }
+
+    /**
+     * @return nanoseconds the block took
+     */
+    fun time(block: () -> Unit): Long {
+        val start = System.nanoTime()
+        block()
+        return System.nanoTime() - start
+    }
+
+    /**
+     * Logs the measurements under the name of the benchmark test
+     */
+    fun report(benchmark: Class<*>, message: String) {
+        Logger.getLogger(benchmark.name).info(message)
+    }
+
+    private fun allocatedBytes(threadId: Long): Long {
+        val bean = ManagementFactory.getThreadMXBean()
+        return if (bean is com.sun.management.ThreadMXBean && bean.isThreadAllocatedMemorySupported) {
+            bean.getThreadAllocatedBytes(threadId)
+        } else {
+            0
+        }
+    }
+
+    /**
+     * @property itemsPerSecond items processed per second
+     * @property bytesPerRun bytes allocated by one run, 0 if the JVM doesn't report allocations
+     */
+    data class Result(val itemsPerSecond: Long, val bytesPerRun: Long)
+}